@@ -322,6 +322,21 @@ CREATE TABLE `t_amdb_app_shadowdatabase` (
                                              KEY `appname_index` (`app_name`,`data_source`) USING BTREE
 ) ENGINE=InnoDB  DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_bin;
 
+-- ----------------------------
+-- Table structure for t_amdb_app_shadow_watermark
+-- ----------------------------
+DROP TABLE IF EXISTS `t_amdb_app_shadow_watermark`;
+CREATE TABLE `t_amdb_app_shadow_watermark` (
+                                             `id` bigint(20) NOT NULL AUTO_INCREMENT COMMENT '主键Id',
+                                             `app_name` varchar(100) COLLATE utf8mb4_bin NOT NULL COMMENT '应用名称',
+                                             `user_app_key` varchar(64) COLLATE utf8mb4_bin NOT NULL DEFAULT 'default' COMMENT '租户标识',
+                                             `env_code` varchar(64) COLLATE utf8mb4_bin NOT NULL DEFAULT 'test' COMMENT '环境标识',
+                                             `watermark` datetime NOT NULL COMMENT '已扫描到的trace startDate(不含)',
+                                             `gmt_modify` timestamp NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+                                             PRIMARY KEY (`id`),
+                                             UNIQUE KEY `unique_indx` (`user_app_key`,`env_code`,`app_name`)
+) ENGINE=InnoDB  DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_bin;
+
 -- ----------------------------
 -- Table structure for t_amdb_config
 -- ----------------------------
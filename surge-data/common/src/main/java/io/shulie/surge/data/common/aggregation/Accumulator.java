@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation;
+
+import java.io.Serializable;
+
+/**
+ * 并发累加器，{@link AggregateSlot} 中每个 key 对应一个实例
+ *
+ * @author pamirs
+ */
+public interface Accumulator<A> extends Serializable {
+    /**
+     * 将 value 累加到自身，允许多个线程并发调用
+     *
+     * @param value
+     */
+    void add(A value);
+
+    /**
+     * 生成当前累加结果的快照
+     *
+     * @return
+     */
+    A snapshot();
+}
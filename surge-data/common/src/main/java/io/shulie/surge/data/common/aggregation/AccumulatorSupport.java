@@ -0,0 +1,30 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation;
+
+/**
+ * 支持生成并发累加器的记录，未实现该接口的记录在 {@link AggregateSlot} 中会退化为加锁合并
+ *
+ * @author pamirs
+ */
+public interface AccumulatorSupport<A> {
+    /**
+     * 以自身为模板创建一个空的累加器，自身的数据不会被累加进去
+     *
+     * @return
+     */
+    Accumulator<A> newAccumulator();
+}
@@ -15,6 +15,7 @@
 
 package io.shulie.surge.data.common.aggregation;
 
+import com.google.common.collect.Maps;
 import io.shulie.surge.data.common.utils.ObjectUtils;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
 
@@ -22,37 +23,52 @@ import java.io.Serializable;
 import java.util.Map;
 import java.util.Map.Entry;
 
+/**
+ * 一个时间槽内的聚合数据，支持多线程并发写入。
+ * <p>
+ * 每个 key 对应一个 {@link Accumulator}，通过 putIfAbsent 原子创建；
+ * 记录实现了 {@link AccumulatorSupport} 时使用其无锁累加器，否则退化为加锁合并。
+ */
 public class AggregateSlot<K, A extends AggregateSupport<A>>
 		implements AggregateSupport<AggregateSlot<K, A>>, Serializable {
 
 	private static final long serialVersionUID = 1882481077143283226L;
 
-	private Map<K, A> map;
+	private NonBlockingHashMap<K, Accumulator<A>> map;
 
 	public AggregateSlot() {
-		this.map = new NonBlockingHashMap<K, A>();
+		this.map = new NonBlockingHashMap<K, Accumulator<A>>();
 	}
 
 	public AggregateSlot(int initialCapacity) {
-		this.map = new NonBlockingHashMap<K, A>(initialCapacity);
+		this.map = new NonBlockingHashMap<K, Accumulator<A>>(initialCapacity);
+	}
+
+	public void addToSlot(K key, A value) {
+		Accumulator<A> accumulator = map.get(key);
+		if (accumulator == null) {
+			Accumulator<A> newAccumulator = newAccumulator(value);
+			accumulator = map.putIfAbsent(key, newAccumulator);
+			if (accumulator == null) {
+				accumulator = newAccumulator;
+			}
+		}
+		accumulator.add(value);
 	}
 
 	@SuppressWarnings("unchecked")
-	public A addToSlot(K key, A value) {
-		A a = map.get(key);
-		if (a == null) {
-			a = (A) ObjectUtils.newIntsance(value.getClass());
-			map.put(key, a);
+	private Accumulator<A> newAccumulator(A value) {
+		if (value instanceof AccumulatorSupport) {
+			return ((AccumulatorSupport<A>) value).newAccumulator();
 		}
-		a.aggregateFrom(value);
-		return a;
+		return new LockedAccumulator<A>((A) ObjectUtils.newIntsance(value.getClass()));
 	}
 
 	@Override
 	public void aggregateFrom(AggregateSlot<K, A> other) {
 		if (other != null && !other.isEmpty()) {
-			for (Entry<K, A> entry : other.map.entrySet()) {
-				addToSlot(entry.getKey(), entry.getValue());
+			for (Entry<K, Accumulator<A>> entry : other.map.entrySet()) {
+				addToSlot(entry.getKey(), entry.getValue().snapshot());
 			}
 		}
 	}
@@ -65,12 +81,51 @@ public class AggregateSlot<K, A extends AggregateSupport<A>>
 		return map.isEmpty();
 	}
 
+	/**
+	 * 生成当前槽内数据的快照，对返回结果的修改不会影响槽本身
+	 *
+	 * @return
+	 */
 	public Map<K, A> toMap() {
-		return map;
+		Map<K, A> result = Maps.newHashMapWithExpectedSize(map.size());
+		for (Entry<K, Accumulator<A>> entry : map.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().snapshot());
+		}
+		return result;
 	}
 
 	@Override
 	public String toString() {
-		return map.toString();
+		return toMap().toString();
+	}
+
+	/**
+	 * 未实现 {@link AccumulatorSupport} 的记录使用的累加器，合并时加锁
+	 */
+	private static final class LockedAccumulator<A extends AggregateSupport<A>> implements Accumulator<A> {
+
+		private static final long serialVersionUID = -4412398537601387553L;
+
+		private final A target;
+
+		LockedAccumulator(A target) {
+			this.target = target;
+		}
+
+		@Override
+		public synchronized void add(A value) {
+			target.aggregateFrom(value);
+		}
+
+		/**
+		 * 在锁内复制一份，调用方后续合并快照时不会和写线程同时修改 target
+		 */
+		@Override
+		@SuppressWarnings("unchecked")
+		public synchronized A snapshot() {
+			A copy = (A) ObjectUtils.newIntsance(target.getClass());
+			copy.aggregateFrom(target);
+			return copy;
+		}
 	}
 }
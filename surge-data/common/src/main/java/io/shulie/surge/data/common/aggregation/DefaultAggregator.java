@@ -40,7 +40,7 @@ public class DefaultAggregator implements Aggregator {
 
     private Scheduler scheduler;
 
-    private Map<String, ResultListener> resultListeners = Maps.newHashMap();
+    private Map<String, ResultListener> resultListeners = Maps.newConcurrentMap();
 
     /**
      * @param intervalInSecond 统计间隔
@@ -15,6 +15,8 @@
 
 package io.shulie.surge.data.common.aggregation.metrics;
 
+import io.shulie.surge.data.common.aggregation.Accumulator;
+import io.shulie.surge.data.common.aggregation.AccumulatorSupport;
 import io.shulie.surge.data.common.aggregation.AggregatableRecord;
 import io.shulie.surge.data.common.aggregation.TimestampSupport;
 import io.shulie.surge.data.common.utils.Bytes;
@@ -29,15 +31,24 @@ import java.util.Arrays;
  *
  * @author pamirs
  */
-public class CallStat implements AggregatableRecord<CallStat>, TimestampSupport {
+public class CallStat implements AggregatableRecord<CallStat>, TimestampSupport, AccumulatorSupport<CallStat> {
 
     private static final long serialVersionUID = -2763638750561198315L;
     private static final long[] EMPTY_ARRAY = new long[0];
 
+    /**
+     * 长度为 10 的 trace 指标：第一列为总次数，最后一列为最大耗时
+     */
+    static final int TRACE_LENGTH = 10;
+
     private transient long timestamp;
     private long[] values;
     private String traceId;
     private String sqlStatement;
+    /**
+     * 耗时分布，只有 trace 指标有。单条数据时为空，由最大耗时和总次数代替
+     */
+    private LatencyHistogram histogram;
 
     public CallStat() {
         this("", EMPTY_ARRAY);
@@ -92,10 +103,50 @@ public class CallStat implements AggregatableRecord<CallStat>, TimestampSupport
         this.sqlStatement = sqlStatement;
     }
 
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public void setHistogram(LatencyHistogram histogram) {
+        this.histogram = histogram;
+    }
+
+    /**
+     * 耗时分位值，不超过最大耗时
+     *
+     * @param quantile 0 到 1 之间，如 0.99
+     * @return 没有耗时分布时返回 0
+     */
+    public long getPercentile(double quantile) {
+        if (histogram == null) {
+            return values.length == TRACE_LENGTH ? values[TRACE_LENGTH - 1] : 0;
+        }
+        long value = histogram.percentile(quantile);
+        return values.length == TRACE_LENGTH ? Math.min(value, values[TRACE_LENGTH - 1]) : value;
+    }
+
+    /**
+     * 把 other 的耗时分布合并到自身，自身或 other 为单条数据时按最大耗时记入其调用次数
+     */
+    private void mergeLatency(CallStat other) {
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            if (values[0] > 0) {
+                histogram.record(values[TRACE_LENGTH - 1], values[0]);
+            }
+        }
+        if (other.histogram != null) {
+            histogram.merge(other.histogram);
+        } else {
+            histogram.record(other.values[TRACE_LENGTH - 1], other.values[0]);
+        }
+    }
+
     public void reset() {
         for (int i = 0; i < values.length; i++) {
             values[i] = 0;
         }
+        histogram = null;
     }
 
     public int length() {
@@ -115,6 +166,10 @@ public class CallStat implements AggregatableRecord<CallStat>, TimestampSupport
                 if (other.sqlStatement != null) {
                     this.sqlStatement = other.sqlStatement;
                 }
+                // values 已经是 other 的副本，只复制耗时分布，单条数据保持没有分布
+                if (len == TRACE_LENGTH && other.histogram != null) {
+                    this.histogram = other.histogram.copy();
+                }
             }
             return;
         }
@@ -131,13 +186,16 @@ public class CallStat implements AggregatableRecord<CallStat>, TimestampSupport
         if (len == 5) {
             traceId = other.traceId;
         }
+        if (len == TRACE_LENGTH) {
+            mergeLatency(other);
+        }
         if (len <= 10) {
             switch (len) {
                 //最大耗时计算
                 case 10:
-                    values[9] = Math.max(values[9], values2[9]);
                     if (values2[9] > values[9]) {
-                        //计算最大耗时对应的traceId,原先的逻辑存在问题
+                        values[9] = values2[9];
+                        //计算最大耗时对应的traceId,需要先比较再赋值
                         traceId = other.traceId;
                         //保存sql语句
                         sqlStatement = other.sqlStatement;
@@ -169,6 +227,11 @@ public class CallStat implements AggregatableRecord<CallStat>, TimestampSupport
         }
     }
 
+    @Override
+    public Accumulator<CallStat> newAccumulator() {
+        return new CallStatAccumulator(this);
+    }
+
     @Override
     public byte[] toBytes() throws IOException {
         return Bytes.toBytes(FormatUtils.join(values, "|") + '|' + traceId);
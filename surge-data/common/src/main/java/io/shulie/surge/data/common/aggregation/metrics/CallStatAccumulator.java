@@ -0,0 +1,232 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import io.shulie.surge.data.common.aggregation.Accumulator;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link CallStat} 的并发累加器，语义与 {@link CallStat#aggregateFrom(CallStat)} 一致：
+ * <ul>
+ * <li>列数由第一条数据决定，列数不一致的数据直接丢弃</li>
+ * <li>长度为 10 时最后一列为最大耗时，traceId/sqlStatement 跟随最大耗时一起更新</li>
+ * <li>长度为 5 时为断言指标，traceId 取最新一条</li>
+ * <li>其余列累加</li>
+ * </ul>
+ * 累加列使用 {@link LongAdder} 分段计数，最大耗时与其 traceId 放在同一个不可变对象里 CAS 更新，保证两者一致。
+ * 长度为 10 时同时累加耗时分布，固定 {@link LatencyHistogram#BUCKETS} 个桶，每个桶原子累加。
+ * 大部分 key 在一个周期内只有一条数据，先只记下所在的桶，出现第二个桶时才 CAS 换成完整的桶数组
+ *
+ * @author pamirs
+ */
+public final class CallStatAccumulator implements Accumulator<CallStat> {
+
+    private static final long serialVersionUID = 4470155627542113402L;
+
+    private static final int MAX_RT_LENGTH = 10;
+    private static final int MAX_RT_INDEX = MAX_RT_LENGTH - 1;
+    private static final int ASSERT_LENGTH = 5;
+
+    private final int length;
+    private final LongAdder[] sums;
+    private final AtomicReference<Extreme> extreme;
+    private volatile String latestTraceId;
+    /**
+     * null、{@link SingleBucket} 或 {@link AtomicLongArray}，只会按这个顺序变化
+     */
+    private final AtomicReference<Object> latency;
+
+    CallStatAccumulator(CallStat template) {
+        this.length = template.length();
+        this.sums = new LongAdder[length == MAX_RT_LENGTH ? MAX_RT_INDEX : length];
+        for (int i = 0; i < sums.length; i++) {
+            sums[i] = new LongAdder();
+        }
+        this.extreme = new AtomicReference<Extreme>(
+                new Extreme(Long.MIN_VALUE, template.getTraceId(), template.getSqlStatement()));
+        this.latestTraceId = template.getTraceId();
+        this.latency = length == MAX_RT_LENGTH ? new AtomicReference<>() : null;
+    }
+
+    @Override
+    public void add(CallStat value) {
+        if (value.length() != length) {
+            return;
+        }
+        for (int i = 0; i < sums.length; i++) {
+            long v = value.get(i);
+            if (v != 0) {
+                sums[i].add(v);
+            }
+        }
+        if (length == MAX_RT_LENGTH) {
+            long rt = value.get(MAX_RT_INDEX);
+            Extreme current;
+            while (rt > (current = extreme.get()).maxRt) {
+                if (extreme.compareAndSet(current, new Extreme(rt, value.getTraceId(), value.getSqlStatement()))) {
+                    break;
+                }
+            }
+            addLatency(value);
+        } else if (length == ASSERT_LENGTH) {
+            latestTraceId = value.getTraceId();
+        }
+    }
+
+    /**
+     * 单条数据按最大耗时记总次数，已聚合的数据合并其耗时分布
+     */
+    private void addLatency(CallStat value) {
+        LatencyHistogram histogram = value.getHistogram();
+        if (histogram == null) {
+            long count = value.get(0);
+            if (count > 0) {
+                addLatency(LatencyHistogram.bucketIndex(value.get(MAX_RT_INDEX)), count);
+            }
+            return;
+        }
+        long[] counts = histogram.rawCounts();
+        AtomicLongArray buckets = null;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                if (buckets == null) {
+                    buckets = buckets();
+                }
+                buckets.addAndGet(i, counts[i]);
+            }
+        }
+    }
+
+    private void addLatency(int index, long count) {
+        while (true) {
+            Object current = latency.get();
+            if (current instanceof AtomicLongArray) {
+                ((AtomicLongArray) current).addAndGet(index, count);
+                return;
+            }
+            SingleBucket single = (SingleBucket) current;
+            if (single == null || single.index == index) {
+                // 落在同一个桶时仍然只记一个桶
+                long total = single == null ? count : single.count + count;
+                if (latency.compareAndSet(single, new SingleBucket(index, total))) {
+                    return;
+                }
+            } else {
+                inflate(single);
+            }
+        }
+    }
+
+    /**
+     * @return 完整的桶数组，需要时由单桶状态展开
+     */
+    private AtomicLongArray buckets() {
+        while (true) {
+            Object current = latency.get();
+            if (current instanceof AtomicLongArray) {
+                return (AtomicLongArray) current;
+            }
+            AtomicLongArray buckets = inflate((SingleBucket) current);
+            if (buckets != null) {
+                return buckets;
+            }
+        }
+    }
+
+    /**
+     * @return CAS 成功时返回新的桶数组，否则返回 null 由调用方重读
+     */
+    private AtomicLongArray inflate(SingleBucket single) {
+        AtomicLongArray buckets = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        if (single != null) {
+            buckets.set(single.index, single.count);
+        }
+        return latency.compareAndSet(single, buckets) ? buckets : null;
+    }
+
+    @Override
+    public CallStat snapshot() {
+        long[] values = new long[length];
+        for (int i = 0; i < sums.length; i++) {
+            values[i] = sums[i].sum();
+        }
+        Extreme e = extreme.get();
+        String traceId = e.traceId;
+        if (length == MAX_RT_LENGTH) {
+            values[MAX_RT_INDEX] = e.maxRt == Long.MIN_VALUE ? 0 : e.maxRt;
+        } else if (length == ASSERT_LENGTH) {
+            traceId = latestTraceId;
+        }
+        CallStat callStat = new CallStat(traceId, e.sqlStatement, values);
+        if (latency != null) {
+            Object current = latency.get();
+            long[] counts;
+            if (current instanceof AtomicLongArray) {
+                AtomicLongArray buckets = (AtomicLongArray) current;
+                counts = new long[buckets.length()];
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] = buckets.get(i);
+                }
+            } else if (current != null) {
+                SingleBucket single = (SingleBucket) current;
+                counts = new long[single.index + 1];
+                counts[single.index] = single.count;
+            } else {
+                counts = new long[0];
+            }
+            callStat.setHistogram(LatencyHistogram.fromCounts(counts));
+        }
+        return callStat;
+    }
+
+    /**
+     * 只有一条数据时的耗时分布，不可变
+     */
+    private static final class SingleBucket implements Serializable {
+
+        private static final long serialVersionUID = 2254719930215873362L;
+
+        private final int index;
+        private final long count;
+
+        SingleBucket(int index, long count) {
+            this.index = index;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 最大耗时及其对应的 traceId、sql 语句，不可变
+     */
+    private static final class Extreme implements Serializable {
+
+        private static final long serialVersionUID = -6010716373052812311L;
+
+        private final long maxRt;
+        private final String traceId;
+        private final String sqlStatement;
+
+        Extreme(long maxRt, String traceId, String sqlStatement) {
+            this.maxRt = maxRt;
+            this.traceId = traceId;
+            this.sqlStatement = sqlStatement;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 多线程并发写入的耗时分布，分桶与 {@link LatencyHistogram} 相同。
+ * <p>
+ * 写入只有一次桶计数的原子自增和一次总和累加，不加锁；
+ * 读取通过 {@link #snapshot()} 得到普通的 {@link LatencyHistogram}，可以与其他分布合并后再计算分位值。
+ * 快照不是原子的，与写入并发时总数可能与各桶之和有少量偏差
+ *
+ * @author pamirs
+ */
+public class ConcurrentLatencyHistogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * 记录一次耗时
+     *
+     * @param value 耗时，单位由调用方决定
+     */
+    public void record(long value) {
+        counts.incrementAndGet(LatencyHistogram.bucketIndex(value));
+        sum.add(Math.max(0, value));
+    }
+
+    /**
+     * 当前分布的副本
+     */
+    public LatencyHistogram snapshot() {
+        long[] copy = new long[counts.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+        }
+        return LatencyHistogram.fromCounts(copy);
+    }
+
+    /**
+     * 所有记录值的总和
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * 一个时间窗口内的高频 key 统计，内存占用与 key 的种类数无关。
+ * <p>
+ * 使用 Space-Saving 算法维护 2 * capacity 个计数器，计数器满时替换计数最小的 key，
+ * 新 key 继承被替换 key 的计数作为误差上界。
+ * 保证次数（计数 - 误差）达到 admitCount 的 key 才会进入精确统计，精确统计最多 capacity 个，
+ * 进入后在本窗口内保持不变，其余 key 由调用方归入"其他"。
+ * <p>
+ * 同时用 HyperLogLog（1024 个寄存器，误差约 3%）估算窗口内 key 的种类数。
+ * <p>
+ * 非线程安全的部分都在同步方法内，单个实例只应被少量线程共享
+ *
+ * @author pamirs
+ */
+public class HeavyHitters {
+
+    private static final int REGISTER_BITS = 10;
+    private static final int REGISTERS = 1 << REGISTER_BITS;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final int capacity;
+    private final int admitCount;
+
+    private final Map<String, Counter> counters;
+    private final TreeSet<Counter> ordered = new TreeSet<>();
+    private final Set<String> admitted;
+    private final byte[] registers = new byte[REGISTERS];
+
+    private long sequence;
+    private long total;
+    private long folded;
+
+    /**
+     * @param capacity   精确统计的 key 数上限
+     * @param admitCount 进入精确统计需要的最小保证次数
+     */
+    public HeavyHitters(int capacity, int admitCount) {
+        this.capacity = Math.max(1, capacity);
+        this.admitCount = Math.max(1, admitCount);
+        this.counters = new HashMap<>(this.capacity * 4);
+        this.admitted = new HashSet<>(this.capacity * 2);
+    }
+
+    /**
+     * 记录一次 key
+     *
+     * @return true 表示该 key 单独统计，false 表示归入其他
+     */
+    public synchronized boolean offer(String key) {
+        total++;
+        addDistinct(key);
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            ordered.remove(counter);
+            counter.count++;
+            counter.sequence = ++sequence;
+        } else if (counters.size() < capacity * 2) {
+            counter = new Counter(key, 1, 0, ++sequence);
+            counters.put(key, counter);
+        } else {
+            Counter min = ordered.pollFirst();
+            counters.remove(min.key);
+            counter = new Counter(key, min.count + 1, min.count, ++sequence);
+            counters.put(key, counter);
+        }
+        ordered.add(counter);
+        if (admitted.contains(key)) {
+            return true;
+        }
+        if (admitted.size() < capacity && counter.count - counter.error >= admitCount) {
+            admitted.add(key);
+            return true;
+        }
+        folded++;
+        return false;
+    }
+
+    /**
+     * 开始下一个窗口，本窗口计数最高的 key 直接进入下一个窗口的精确统计
+     */
+    public synchronized HeavyHitters next() {
+        HeavyHitters next = new HeavyHitters(capacity, admitCount);
+        for (Map.Entry<String, Long> entry : top(capacity)) {
+            next.admitted.add(entry.getKey());
+        }
+        return next;
+    }
+
+    /**
+     * 计数最高的 n 个 key 及其估计次数（可能偏大，不超过误差上界）
+     */
+    public synchronized List<Map.Entry<String, Long>> top(int n) {
+        List<Map.Entry<String, Long>> result = new ArrayList<>(Math.min(n, ordered.size()));
+        Iterator<Counter> iterator = ordered.descendingIterator();
+        while (iterator.hasNext() && result.size() < n) {
+            Counter counter = iterator.next();
+            result.add(new AbstractMap.SimpleImmutableEntry<>(counter.key, counter.count));
+        }
+        return result;
+    }
+
+    /**
+     * 窗口内 key 种类数的估计值
+     */
+    public synchronized long cardinality() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // 小基数时用线性计数修正
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * 归入其他的次数
+     */
+    public synchronized long getFolded() {
+        return folded;
+    }
+
+    public synchronized int getAdmitted() {
+        return admitted.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void addDistinct(String key) {
+        long hash = Hashing.murmur3_128().hashString(key, StandardCharsets.UTF_8).asLong();
+        int index = (int) (hash >>> (64 - REGISTER_BITS));
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << REGISTER_BITS) | (1L << (REGISTER_BITS - 1))) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{total=" + total + ", folded=" + folded + ", admitted=" + admitted.size()
+                + ", cardinality=" + cardinality() + ", top=" + top(5) + "}";
+    }
+
+    private static final class Counter implements Comparable<Counter> {
+        private final String key;
+        private long count;
+        private final long error;
+        private long sequence;
+
+        Counter(String key, long count, long error, long sequence) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+            this.sequence = sequence;
+        }
+
+        /**
+         * 计数相同时先替换最久未出现的 key
+         */
+        @Override
+        public int compareTo(Counter o) {
+            int c = Long.compare(count, o.count);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * 可合并的耗时分布，用于计算 p50/p90/p99/p999。
+ * <p>
+ * 按对数-线性分桶（与 HdrHistogram 思路一致）：小于 16 的值每个值一个桶，
+ * 之后每个 2 的幂区间均分为 16 个桶，相对误差不超过 1/32。
+ * 超过 {@link #MAX_VALUE} 的值计入最后一个桶，桶数固定为 {@link #BUCKETS}，
+ * 计数数组只扩展到出现过的最大桶，单个分布最多占用 {@link #BUCKETS} 个 long。
+ * <p>
+ * 合并即对应桶计数相加，满足交换律和结合律，可以在时间槽和多个 reducer 之间任意顺序合并
+ *
+ * @author pamirs
+ */
+public class LatencyHistogram implements Serializable {
+
+    private static final long serialVersionUID = -3260476384180779504L;
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * 可区分的最大耗时（毫秒），约 4.6 小时
+     */
+    public static final long MAX_VALUE = (1L << 24) - 1;
+
+    public static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+
+    private static final long[] EMPTY = new long[0];
+
+    private long[] counts;
+    private long totalCount;
+
+    public LatencyHistogram() {
+        this.counts = EMPTY;
+    }
+
+    /**
+     * @param counts 各桶计数，长度不超过 {@link #BUCKETS}，末尾的空桶会被截掉
+     */
+    public static LatencyHistogram fromCounts(long[] counts) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        int length = Math.min(counts.length, BUCKETS);
+        while (length > 0 && counts[length - 1] == 0) {
+            length--;
+        }
+        histogram.counts = Arrays.copyOf(counts, length);
+        for (int i = 0; i < length; i++) {
+            histogram.totalCount += histogram.counts[i];
+        }
+        return histogram;
+    }
+
+    public static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * 桶的代表值，取桶区间的中点
+     */
+    public static long bucketValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+        long width = 1L << shift;
+        return lower + (width - 1) / 2;
+    }
+
+    /**
+     * 记录耗时
+     *
+     * @param value 耗时
+     * @param count 次数，采样时为采样率
+     */
+    public void record(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        int index = bucketIndex(value);
+        ensureLength(index + 1);
+        counts[index] += count;
+        totalCount += count;
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other == null || other.totalCount == 0) {
+            return;
+        }
+        long[] otherCounts = other.counts;
+        ensureLength(otherCounts.length);
+        for (int i = 0; i < otherCounts.length; i++) {
+            counts[i] += otherCounts[i];
+        }
+        totalCount += other.totalCount;
+    }
+
+    private void ensureLength(int length) {
+        if (counts.length < length) {
+            counts = Arrays.copyOf(counts, length);
+        }
+    }
+
+    /**
+     * 计算分位值
+     *
+     * @param quantile 0 到 1 之间，如 0.99
+     * @return 分位值，没有数据时为 0
+     */
+    public long percentile(double quantile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return bucketValue(i);
+            }
+        }
+        return bucketValue(counts.length - 1);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return 各桶计数的副本
+     */
+    public long[] getCounts() {
+        return Arrays.copyOf(counts, counts.length);
+    }
+
+    /**
+     * 内部计数数组，只读，供同包的累加器合并时避免复制
+     */
+    long[] rawCounts() {
+        return counts;
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.counts = Arrays.copyOf(counts, counts.length);
+        copy.totalCount = totalCount;
+        return copy;
+    }
+
+    @Override
+    public String toString() {
+        return "{count=" + totalCount + ", p50=" + percentile(0.5) + ", p99=" + percentile(0.99) + "}";
+    }
+}
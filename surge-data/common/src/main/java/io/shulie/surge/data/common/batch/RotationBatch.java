@@ -21,7 +21,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -44,6 +47,11 @@ public class RotationBatch<T extends Serializable> {
     private BatchSaver batchSaver;
     private AtomicBoolean started = new AtomicBoolean(false);
     private String shardKey = "";
+    private SpillBuffer<ArrayList<T>> spillBuffer;
+    /**
+     * 保存和重放互斥：判断落盘缓冲是否有数据到保存或落盘之间不能插入重放
+     */
+    private final Object saveLock = new Object();
 
     public RotationBatch(RotationPolicy... rotationPolicy) {
         rotationPolicy(rotationPolicy);
@@ -91,6 +99,34 @@ public class RotationBatch<T extends Serializable> {
         return this;
     }
 
+    /**
+     * 保存失败的批次落盘，存储恢复后按顺序重放，需要先设置 batchSaver。
+     * <p>
+     * 开启后异常也计入重试次数，重试耗尽的批次写入落盘缓冲而不是在当前线程一直重试；
+     * 落盘缓冲中还有数据时新的批次直接落盘，保证写入顺序
+     *
+     * @param name      落盘缓冲名称，进程内唯一
+     * @param directory 落盘目录，重启后继续重放目录中的数据
+     * @param maxBytes  磁盘占用上限
+     * @return
+     */
+    public RotationBatch spill(String name, File directory, long maxBytes) throws IOException {
+        if (batchSaver == null) {
+            throw new IllegalStateException("Please add batchSaver first!");
+        }
+        this.spillBuffer = new SpillBuffer<>(name, directory, maxBytes, SpillBuffer.<ArrayList<T>>javaSerialization(),
+                batch -> {
+                    synchronized (saveLock) {
+                        return save(new LinkedBlockingQueue<>(batch));
+                    }
+                });
+        return this;
+    }
+
+    public SpillBuffer<ArrayList<T>> getSpillBuffer() {
+        return spillBuffer;
+    }
+
     /**
      * 添加对象到批中
      *
@@ -101,7 +137,10 @@ public class RotationBatch<T extends Serializable> {
         if (started.compareAndSet(false, true)) {
             start();
         }
-        batchObjs.add(object);
+        // 与 saveBatch 的队列交换互斥，避免并发写入时加到已经取走的队列里
+        synchronized (this) {
+            batchObjs.add(object);
+        }
         /**
          * 检查mark
          */
@@ -135,22 +174,37 @@ public class RotationBatch<T extends Serializable> {
         if (CollectionUtils.isEmpty(batch)) {
             return;
         }
-        int count = 0;
-        while (count < maxRetries) {
-            try {
-                if (StringUtils.isNotBlank(shardKey)) {
-                    batchSaver.shardSaveBatch(shardKey, batch);
-                    break;
-                } else {
-                    if (batchSaver.saveBatch(batch)) {
-                        break;
+        synchronized (saveLock) {
+            if (spillBuffer != null && spillBuffer.hasPending()) {
+                spillBuffer.spill(new ArrayList<>(batch));
+                return;
+            }
+            int count = 0;
+            while (count < maxRetries) {
+                try {
+                    if (save(batch)) {
+                        return;
+                    }
+                    count++;
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                    if (spillBuffer != null) {
+                        count++;
                     }
                 }
-                count++;
-            } catch (Throwable e) {
-                e.printStackTrace();
             }
+            if (spillBuffer != null) {
+                spillBuffer.spill(new ArrayList<>(batch));
+            }
+        }
+    }
+
+    private boolean save(LinkedBlockingQueue<T> batch) {
+        if (StringUtils.isNotBlank(shardKey)) {
+            batchSaver.shardSaveBatch(shardKey, batch);
+            return true;
         }
+        return batchSaver.saveBatch(batch);
     }
 
     /**
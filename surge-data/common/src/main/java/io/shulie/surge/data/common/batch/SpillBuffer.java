@@ -0,0 +1,291 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.batch;
+
+import io.shulie.surge.data.common.pool.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 存储不可用时的本地落盘缓冲：写入失败的批次序列化后追加到 {@link SpillLog}，
+ * 后台线程按写入顺序重放，存储恢复后自动排空，重放成功的批次才会确认。
+ * <p>
+ * 重放失败时按 1 秒到 30 秒指数退避；反序列化失败的批次无法重放，记录日志后跳过。
+ * 调用方在 {@link #hasPending()} 为 true 时应把新批次也写入缓冲，保证存储恢复后按原顺序写入。
+ * <p>
+ * 所有实例登记在进程内，可通过 {@link #all()} 获取落盘量和重放进度
+ *
+ * @author pamirs
+ */
+public class SpillBuffer<T> implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SpillBuffer.class);
+
+    private static final ConcurrentMap<String, SpillBuffer<?>> REGISTRY = new ConcurrentHashMap<>();
+
+    private static final long SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final long MIN_RETRY_MILLIS = 1000;
+    private static final long MAX_RETRY_MILLIS = 30000;
+    private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+    private final String name;
+    private final SpillLog log;
+    private final Codec<T> codec;
+    private final Replayer<T> replayer;
+    private final ScheduledExecutorService executor;
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    private long retryMillis = MIN_RETRY_MILLIS;
+    private long nextReplayTime;
+    private volatile boolean replaying;
+
+    /**
+     * 打开落盘缓冲并开始重放目录中已有的数据
+     *
+     * @param name      名称，用于日志和统计，进程内已有同名实例时抛出异常
+     * @param directory 落盘目录，一个目录只能由一个实例使用
+     * @param maxBytes  磁盘占用上限，超过后淘汰最老的数据
+     * @param codec     批次的序列化方式
+     * @param replayer  重放到存储，返回 false 或抛出异常表示存储仍不可用
+     */
+    public SpillBuffer(String name, File directory, long maxBytes, Codec<T> codec, Replayer<T> replayer) throws IOException {
+        this.name = name;
+        this.codec = codec;
+        this.replayer = replayer;
+        synchronized (REGISTRY) {
+            if (REGISTRY.containsKey(name)) {
+                throw new IOException("spill buffer " + name + " already opened");
+            }
+            this.log = new SpillLog(directory, Math.min(SEGMENT_BYTES, Math.max(1, maxBytes / 4)), maxBytes);
+            REGISTRY.put(name, this);
+        }
+        this.executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("spill-replay-" + name, true));
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    replay();
+                    log.force();
+                } catch (Throwable e) {
+                    logger.error("spill buffer {} replay fail", SpillBuffer.this.name, e);
+                }
+            }
+        }, FORCE_INTERVAL_MILLIS, FORCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 写入一个批次
+     *
+     * @param batch
+     * @return 序列化或写文件失败时返回 false，批次丢失
+     */
+    public boolean spill(T batch) {
+        try {
+            log.append(codec.encode(batch));
+            return true;
+        } catch (Throwable e) {
+            failed.incrementAndGet();
+            logger.error("spill buffer {} append fail, batch dropped", name, e);
+            return false;
+        }
+    }
+
+    /**
+     * 是否有未重放的数据
+     */
+    public boolean hasPending() {
+        return !log.isEmpty();
+    }
+
+    private void replay() throws IOException {
+        if (log.isEmpty() || System.currentTimeMillis() < nextReplayTime) {
+            return;
+        }
+        long replayed = 0;
+        replaying = true;
+        try {
+            byte[] payload;
+            while ((payload = log.peek()) != null) {
+                T batch;
+                try {
+                    batch = codec.decode(payload);
+                } catch (Throwable e) {
+                    discarded.incrementAndGet();
+                    logger.error("spill buffer {} can not decode batch, skip {} bytes", name, payload.length, e);
+                    log.commit();
+                    continue;
+                }
+                boolean success;
+                try {
+                    success = replayer.replay(batch);
+                } catch (Throwable e) {
+                    logger.warn("spill buffer {} replay fail: {}", name, e.toString());
+                    success = false;
+                }
+                if (!success) {
+                    nextReplayTime = System.currentTimeMillis() + retryMillis;
+                    logger.warn("spill buffer {} replayed {} batches, pending {} batches {} bytes, retry in {}ms",
+                            name, replayed, log.getPendingRecords(), log.getPendingBytes(), retryMillis);
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                    return;
+                }
+                log.commit();
+                replayed++;
+            }
+            retryMillis = MIN_RETRY_MILLIS;
+            logger.info("spill buffer {} drained, replayed {} batches, total replayed {} batches {} bytes",
+                    name, replayed, log.getCommittedRecords(), log.getCommittedBytes());
+        } finally {
+            replaying = false;
+        }
+    }
+
+    @Override
+    public void close() {
+        REGISTRY.remove(name, this);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    public static Collection<SpillBuffer<?>> all() {
+        return Collections.unmodifiableCollection(REGISTRY.values());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isReplaying() {
+        return replaying;
+    }
+
+    public long getPendingBatches() {
+        return log.getPendingRecords();
+    }
+
+    public long getPendingBytes() {
+        return log.getPendingBytes();
+    }
+
+    public long getDiskBytes() {
+        return log.diskBytes();
+    }
+
+    public long getSpilledBatches() {
+        return log.getAppendedRecords();
+    }
+
+    public long getSpilledBytes() {
+        return log.getAppendedBytes();
+    }
+
+    public long getReplayedBatches() {
+        return log.getCommittedRecords();
+    }
+
+    public long getReplayedBytes() {
+        return log.getCommittedBytes();
+    }
+
+    public long getEvictedBatches() {
+        return log.getEvictedRecords();
+    }
+
+    public long getEvictedBytes() {
+        return log.getEvictedBytes();
+    }
+
+    /**
+     * 写入失败而丢失的批次数
+     */
+    public long getFailedBatches() {
+        return failed.get();
+    }
+
+    /**
+     * 无法反序列化而跳过的批次数
+     */
+    public long getDiscardedBatches() {
+        return discarded.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + "{pending=" + getPendingBatches() + ", pendingBytes=" + getPendingBytes()
+                + ", spilled=" + getSpilledBatches() + ", replayed=" + getReplayedBatches()
+                + ", evicted=" + getEvictedBatches() + ", failed=" + getFailedBatches() + "}";
+    }
+
+    /**
+     * 使用 java 序列化，适用于元素实现了 {@link Serializable} 的批次
+     */
+    public static <T extends Serializable> Codec<T> javaSerialization() {
+        return new Codec<T>() {
+            @Override
+            public byte[] encode(T value) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+                try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                    out.writeObject(value);
+                }
+                return bytes.toByteArray();
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T decode(byte[] bytes) throws IOException {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return (T) in.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 批次的序列化方式
+     */
+    public interface Codec<T> {
+        byte[] encode(T value) throws IOException;
+
+        T decode(byte[] bytes) throws IOException;
+    }
+
+    /**
+     * 把批次重放到存储
+     */
+    public interface Replayer<T> {
+        /**
+         * @return false 表示存储仍不可用，稍后重试
+         */
+        boolean replay(T batch) throws Exception;
+    }
+}
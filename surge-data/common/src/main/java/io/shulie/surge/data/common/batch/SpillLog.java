@@ -0,0 +1,423 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.batch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的追加日志，按写入顺序读出，读完确认后才前进。
+ * <p>
+ * 数据按段文件存放，文件名为段号，写满后滚动到下一个段；每条记录为 长度(4) + crc32(4) + 内容，
+ * 先写内容再写长度，长度为 0 表示段内没有更多记录，进程崩溃时最后一条写了一半的记录在恢复时通过 crc 丢弃。
+ * 读进度记录在单独映射的 checkpoint 文件中，重启后从上次确认的位置继续，最多重复读出一条记录。
+ * <p>
+ * 磁盘占用超过 maxBytes 时从最老的段开始整段淘汰，淘汰的记录计入统计。
+ * 已读完的段立即删除，映射由 GC 回收。
+ * <p>
+ * 所有方法同步，读写可以在不同线程
+ *
+ * @author pamirs
+ */
+public class SpillLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SpillLog.class);
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int HEADER_SIZE = 8;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long maxBytes;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final MappedByteBuffer checkpoint;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * 当前读到的段和段内位置，peek 出的记录长度
+     */
+    private Segment readSegment;
+    private int readPosition;
+    private int peekedLength = -1;
+
+    private long pendingRecords;
+    private long pendingBytes;
+    private long appendedRecords;
+    private long appendedBytes;
+    private long committedRecords;
+    private long committedBytes;
+    private long evictedRecords;
+    private long evictedBytes;
+    private boolean closed;
+
+    /**
+     * 打开目录下已有的日志，没有时新建
+     *
+     * @param directory    日志目录，一个目录只能由一个实例使用
+     * @param segmentBytes 段文件大小，单条记录超过该大小时单独成段
+     * @param maxBytes     磁盘占用上限，至少保留正在写入的段
+     */
+    public SpillLog(File directory, long segmentBytes, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = Math.max(4096, Math.min(segmentBytes, Integer.MAX_VALUE));
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("can not create spill directory " + directory);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw")) {
+            checkpoint = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    ids.add(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warn("ignore unknown file in spill directory: {}", file);
+                }
+            }
+        }
+        Collections.sort(ids);
+        long checkpointId = checkpoint.getLong(0);
+        long checkpointPosition = checkpoint.getLong(8);
+        for (long id : ids) {
+            File file = segmentFile(id);
+            if (id < checkpointId) {
+                delete(file);
+                continue;
+            }
+            Segment segment = new Segment(id, file, file.length());
+            segment.map();
+            segment.scan();
+            segments.addLast(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.addLast(createSegment(Math.max(0, checkpointId), segmentBytes));
+        }
+        readSegment = segments.peekFirst();
+        readPosition = readSegment.id == checkpointId ? (int) Math.min(checkpointPosition, readSegment.end) : 0;
+        for (Segment segment : segments) {
+            pendingRecords += segment.records;
+            pendingBytes += segment.end;
+        }
+        // 读位置之前的记录已经确认
+        int position = 0;
+        while (position < readPosition) {
+            int length = readSegment.buffer.getInt(position);
+            pendingRecords--;
+            pendingBytes -= HEADER_SIZE + length;
+            position += HEADER_SIZE + length;
+        }
+        readPosition = position;
+        // 旧段不再写入，释放映射
+        for (Segment segment : segments) {
+            if (segment != readSegment && segment != segments.peekLast()) {
+                segment.buffer = null;
+            }
+        }
+        if (pendingRecords > 0) {
+            logger.info("spill log {} recovered, segments:{}, records:{}, bytes:{}", directory, segments.size(), pendingRecords, pendingBytes);
+        }
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @param payload 记录内容，不能为空
+     */
+    public synchronized void append(byte[] payload) throws IOException {
+        ensureOpen();
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("empty record");
+        }
+        int size = HEADER_SIZE + payload.length;
+        Segment segment = segments.peekLast();
+        if (segment.end + size > segment.capacity) {
+            if (segment.buffer != null) {
+                segment.buffer.force();
+                if (segment != readSegment) {
+                    segment.buffer = null;
+                }
+            }
+            segment = createSegment(segment.id + 1, Math.max(segmentBytes, size));
+            segments.addLast(segment);
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        crc.reset();
+        crc.update(payload, 0, payload.length);
+        buffer.position(segment.end + HEADER_SIZE);
+        buffer.put(payload);
+        buffer.putInt(segment.end + 4, (int) crc.getValue());
+        // 长度最后写，读到非 0 长度时内容一定完整
+        buffer.putInt(segment.end, payload.length);
+        segment.end += size;
+        segment.records++;
+        pendingRecords++;
+        pendingBytes += size;
+        appendedRecords++;
+        appendedBytes += size;
+        evict();
+    }
+
+    /**
+     * 读出下一条未确认的记录，重复调用返回同一条
+     *
+     * @return 没有记录时返回 null
+     */
+    public synchronized byte[] peek() throws IOException {
+        ensureOpen();
+        while (true) {
+            if (readPosition + HEADER_SIZE <= readSegment.end) {
+                int length = readSegment.buffer.getInt(readPosition);
+                byte[] payload = new byte[length];
+                readSegment.buffer.position(readPosition + HEADER_SIZE);
+                readSegment.buffer.get(payload);
+                peekedLength = length;
+                return payload;
+            }
+            if (readSegment == segments.peekLast()) {
+                return null;
+            }
+            // 当前段已读完，删除后读下一段
+            segments.pollFirst();
+            delete(readSegment.file);
+            readSegment = segments.peekFirst();
+            readPosition = 0;
+            if (readSegment.buffer == null) {
+                readSegment.map();
+            }
+            saveCheckpoint();
+        }
+    }
+
+    /**
+     * 确认 {@link #peek} 读出的记录，读进度前进一条
+     */
+    public synchronized void commit() {
+        if (closed || peekedLength < 0) {
+            return;
+        }
+        int size = HEADER_SIZE + peekedLength;
+        readPosition += size;
+        peekedLength = -1;
+        pendingRecords--;
+        pendingBytes -= size;
+        committedRecords++;
+        committedBytes += size;
+        saveCheckpoint();
+    }
+
+    /**
+     * 把正在写入的段和读进度刷到磁盘，进程崩溃不会丢数据，这里防的是机器掉电
+     */
+    public synchronized void force() {
+        if (closed) {
+            return;
+        }
+        Segment segment = segments.peekLast();
+        if (segment.buffer != null) {
+            segment.buffer.force();
+        }
+        checkpoint.force();
+    }
+
+    private void evict() throws IOException {
+        while (segments.size() > 1 && diskBytes() > maxBytes) {
+            Segment oldest = segments.pollFirst();
+            long records = oldest.records;
+            long bytes = oldest.end;
+            if (oldest == readSegment) {
+                // 读位置之前的记录已经确认过
+                records -= readRecordsBefore(readPosition);
+                bytes -= readPosition;
+                readSegment = segments.peekFirst();
+                readPosition = 0;
+                peekedLength = -1;
+                if (readSegment.buffer == null) {
+                    readSegment.map();
+                }
+                saveCheckpoint();
+            }
+            delete(oldest.file);
+            pendingRecords -= records;
+            pendingBytes -= bytes;
+            evictedRecords += records;
+            evictedBytes += bytes;
+            logger.warn("spill log {} exceeds {} bytes, evict segment {}, records:{}", directory, maxBytes, oldest.id, records);
+        }
+    }
+
+    private int readRecordsBefore(int end) {
+        int records = 0;
+        for (int position = 0; position < end; position += HEADER_SIZE + readSegment.buffer.getInt(position)) {
+            records++;
+        }
+        return records;
+    }
+
+    private void saveCheckpoint() {
+        // 先写位置再写段号，中途崩溃最多从旧段的开头重读，不会跳过数据
+        checkpoint.putLong(8, readPosition);
+        checkpoint.putLong(0, readSegment.id);
+    }
+
+    private Segment createSegment(long id, long capacity) throws IOException {
+        Segment segment = new Segment(id, segmentFile(id), capacity);
+        segment.map();
+        return segment;
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%020d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.warn("fail to delete spill segment {}", file);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("spill log closed: " + directory);
+        }
+    }
+
+    public synchronized long diskBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.capacity;
+        }
+        return bytes;
+    }
+
+    public synchronized boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    public synchronized long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    public synchronized long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    public synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    public synchronized long getCommittedRecords() {
+        return committedRecords;
+    }
+
+    public synchronized long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    public synchronized long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            force();
+            closed = true;
+        }
+    }
+
+    /**
+     * 一个段文件，capacity 为文件大小，end 为已写入的末尾
+     */
+    private final class Segment {
+        private final long id;
+        private final File file;
+        private final int capacity;
+        private MappedByteBuffer buffer;
+        private int end;
+        private long records;
+
+        Segment(long id, File file, long capacity) {
+            this.id = id;
+            this.file = file;
+            this.capacity = (int) Math.min(capacity, Integer.MAX_VALUE);
+        }
+
+        void map() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        }
+
+        /**
+         * 恢复时找到段的末尾，遇到长度为 0、越界或 crc 不一致的记录即认为到达末尾
+         */
+        void scan() {
+            int position = 0;
+            while (position + HEADER_SIZE <= capacity) {
+                int length = buffer.getInt(position);
+                if (length <= 0 || position + HEADER_SIZE + (long) length > capacity) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.position(position + HEADER_SIZE);
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    logger.warn("spill segment {} is truncated at {}, the last record was not completely written", file, position);
+                    // 清掉长度，之后追加时覆盖
+                    buffer.putInt(position, 0);
+                    break;
+                }
+                position += HEADER_SIZE + length;
+                records++;
+            }
+            end = position;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.utils;
+
+/**
+ * 在字节数组上按行分隔符扫描，只记录每一行的起止位置，不产生中间字符串。
+ * 行为与 {@code Splitter.on(delimiter).omitEmptyStrings()} 一致：空行会被跳过。
+ * <p>
+ * 非线程安全，每个请求体使用一个实例
+ *
+ * @author pamirs
+ */
+public final class ByteLineScanner {
+
+    public static final byte[] CRLF = new byte[]{'\r', '\n'};
+    public static final byte[] LF = new byte[]{'\n'};
+
+    private final byte[] buf;
+    private final int limit;
+    private final byte[] delimiter;
+    private int position;
+    private int lineOffset;
+    private int lineLength;
+
+    public ByteLineScanner(byte[] buf, byte[] delimiter) {
+        this(buf, 0, buf.length, delimiter);
+    }
+
+    public ByteLineScanner(byte[] buf, int offset, int length, byte[] delimiter) {
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("delimiter is empty");
+        }
+        this.buf = buf;
+        this.position = offset;
+        this.limit = offset + length;
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * 移动到下一个非空行
+     *
+     * @return 没有更多行时返回 false
+     */
+    public boolean next() {
+        while (position < limit) {
+            int start = position;
+            int end = indexOfDelimiter(start);
+            if (end < 0) {
+                end = limit;
+                position = limit;
+            } else {
+                position = end + delimiter.length;
+            }
+            if (end > start) {
+                lineOffset = start;
+                lineLength = end - start;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 统计当前位置之后剩余的非空行数，不移动扫描位置
+     *
+     * @return 剩余行数
+     */
+    public int remainingLines() {
+        int count = 0;
+        int from = position;
+        while (from < limit) {
+            int end = indexOfDelimiter(from);
+            if (end < 0) {
+                end = limit;
+            }
+            if (end > from) {
+                count++;
+            }
+            from = end == limit ? limit : end + delimiter.length;
+        }
+        return count;
+    }
+
+    private int indexOfDelimiter(int from) {
+        byte first = delimiter[0];
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (buf[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    public byte[] buffer() {
+        return buf;
+    }
+
+    /**
+     * @return 当前行在 buffer 中的起始位置
+     */
+    public int lineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return 当前行的字节长度，不含分隔符
+     */
+    public int lineLength() {
+        return lineLength;
+    }
+}
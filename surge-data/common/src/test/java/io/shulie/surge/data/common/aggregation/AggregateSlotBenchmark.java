@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation;
+
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.utils.ObjectUtils;
+import org.cliffc.high_scale_lib.NonBlockingHashMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多线程写同一个时间槽：原先 get/put + 无锁 aggregateFrom 的实现 与 原子创建 + 分段累加的实现
+ * 原先的实现在多线程下会丢数据，这里只比较吞吐
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AggregateSlotBenchmark {
+
+    @Param({"16", "1024"})
+    private int keys;
+
+    private Metric[] metrics;
+
+    private AggregateSlot<Metric, CallStat> slot;
+
+    private LegacySlot<Metric, CallStat> legacySlot;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        metrics = new Metric[keys];
+        for (int i = 0; i < keys; i++) {
+            metrics[i] = Metric.of("trace_metrics", new String[]{"app-" + i, "service-" + i, "method"}, "", new String[]{});
+        }
+        slot = new AggregateSlot<Metric, CallStat>();
+        legacySlot = new LegacySlot<Metric, CallStat>();
+    }
+
+    @Benchmark
+    public void slot() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        slot.addToSlot(metrics[random.nextInt(keys)], newCallStat(random));
+    }
+
+    @Benchmark
+    public void legacySlot() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        legacySlot.addToSlot(metrics[random.nextInt(keys)], newCallStat(random));
+    }
+
+    private static CallStat newCallStat(ThreadLocalRandom random) {
+        long rt = random.nextInt(1000);
+        return new CallStat("traceId", "sql", 1, 1, rt, 0, 1, 1, 1, 1, 0, rt);
+    }
+
+    /**
+     * 原先的 AggregateSlot 实现
+     */
+    static final class LegacySlot<K, A extends AggregateSupport<A>> {
+
+        private final Map<K, A> map = new NonBlockingHashMap<K, A>();
+
+        @SuppressWarnings("unchecked")
+        A addToSlot(K key, A value) {
+            A a = map.get(key);
+            if (a == null) {
+                a = (A) ObjectUtils.newIntsance(value.getClass());
+                map.put(key, a);
+            }
+            a.aggregateFrom(value);
+            return a;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 4, 16}) {
+            Options options = new OptionsBuilder()
+                    .include(AggregateSlotBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation;
+
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author pamirs
+ */
+public class AggregateSlotTest {
+
+    private static final int THREADS = 8;
+    private static final int ADDS = 20000;
+    private static final int KEYS = 16;
+
+    @Test
+    public void concurrentAddLocked() throws Exception {
+        final AggregateSlot<Integer, Sum> slot = new AggregateSlot<Integer, Sum>();
+        run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS; i++) {
+                    slot.addToSlot(i % KEYS, new Sum(1, 2));
+                }
+            }
+        }, null);
+        assertSums(slot.toMap(), THREADS * ADDS);
+    }
+
+    @Test
+    public void concurrentAddCallStat() throws Exception {
+        final AggregateSlot<Integer, CallStat> slot = new AggregateSlot<Integer, CallStat>();
+        run(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS; i++) {
+                    slot.addToSlot(i % KEYS, new CallStat("", "", 1, 1, 5, 0, 1, 1, 1, 1, 0, 5));
+                }
+            }
+        }, null);
+        long total = 0;
+        for (CallStat stat : slot.toMap().values()) {
+            Assert.assertEquals(stat.get(0), stat.get(1));
+            Assert.assertEquals(stat.get(0) * 5, stat.get(2));
+            total += stat.get(0);
+        }
+        Assert.assertEquals(THREADS * ADDS, total);
+    }
+
+    @Test
+    public void snapshotIsCopy() {
+        AggregateSlot<String, Sum> slot = new AggregateSlot<String, Sum>();
+        slot.addToSlot("a", new Sum(1, 2));
+        Sum snapshot = slot.toMap().get("a");
+        slot.addToSlot("a", new Sum(1, 2));
+        Assert.assertEquals(1, snapshot.count);
+        snapshot.aggregateFrom(new Sum(100, 200));
+        Assert.assertEquals(2, slot.toMap().get("a").count);
+    }
+
+    /**
+     * 写入的同时不断取快照合并到另一个槽，模拟 reduce 任务合并窗口：
+     * 每个快照内部一致，合并结果不影响原槽，最终数据不丢
+     */
+    @Test
+    public void snapshotWhileWriting() throws Exception {
+        final AggregateSlot<Integer, Sum> slot = new AggregateSlot<Integer, Sum>();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Runnable writer = new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < ADDS; i++) {
+                    slot.addToSlot(i % KEYS, new Sum(1, 2));
+                }
+            }
+        };
+        Runnable reader = new Runnable() {
+            @Override
+            public void run() {
+                AggregateSlot<Integer, Sum> combined = new AggregateSlot<Integer, Sum>();
+                combined.aggregateFrom(slot);
+                combined.aggregateFrom(slot);
+                for (Sum sum : combined.toMap().values()) {
+                    if (sum.total != sum.count * 2) {
+                        error.compareAndSet(null, "torn snapshot " + sum);
+                    }
+                }
+            }
+        };
+        run(writer, reader);
+        Assert.assertNull(error.get());
+        assertSums(slot.toMap(), THREADS * ADDS);
+    }
+
+    private static void assertSums(Map<Integer, Sum> map, long expected) {
+        long count = 0;
+        for (Sum sum : map.values()) {
+            Assert.assertEquals(sum.count * 2, sum.total);
+            count += sum.count;
+        }
+        Assert.assertEquals(KEYS, map.size());
+        Assert.assertEquals(expected, count);
+    }
+
+    /**
+     * THREADS 个线程同时执行 writer，reader 不为空时另起一个线程在写入期间循环执行
+     */
+    private static void run(final Runnable writer, final Runnable reader) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    writer.run();
+                }
+            }));
+        }
+        Thread readerThread = null;
+        if (reader != null) {
+            readerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    await(start);
+                    while (!done.get()) {
+                        reader.run();
+                    }
+                }
+            });
+            readerThread.start();
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        if (readerThread != null) {
+            readerThread.join();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 未实现 {@link AccumulatorSupport} 的记录，走加锁合并
+     */
+    static final class Sum implements AggregateSupport<Sum> {
+        private long count;
+        private long total;
+
+        Sum() {
+        }
+
+        Sum(long count, long total) {
+            this.count = count;
+            this.total = total;
+        }
+
+        @Override
+        public void aggregateFrom(Sum other) {
+            count += other.count;
+            // 放大两次写入之间的窗口，快照不在锁内复制时容易读到一半
+            Thread.yield();
+            total += other.total;
+        }
+
+        @Override
+        public String toString() {
+            return count + "/" + total;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author pamirs
+ */
+public class HeavyHittersTest {
+
+    @Test
+    public void heavyKeysAdmittedAndTailFolded() {
+        HeavyHitters sketch = new HeavyHitters(10, 3);
+        Random random = new Random(11);
+        int tail = 0;
+        for (int i = 0; i < 200000; i++) {
+            if (random.nextInt(10) < 7) {
+                Assert.assertTrue(sketch.offer("hot-" + random.nextInt(5)) || i < 100);
+            } else {
+                sketch.offer("tail-" + tail++);
+            }
+        }
+        Assert.assertTrue(sketch.getAdmitted() <= 10);
+        Assert.assertTrue(sketch.getFolded() >= tail - 10 * 3);
+        for (Map.Entry<String, Long> entry : sketch.top(5)) {
+            Assert.assertTrue(entry.getKey(), entry.getKey().startsWith("hot-"));
+        }
+        HeavyHitters next = sketch.next();
+        Assert.assertTrue(next.offer("hot-0"));
+        Assert.assertFalse(next.offer("tail-new"));
+    }
+
+    @Test
+    public void cardinalityWithinError() {
+        for (int n : new int[]{10, 1000, 100000}) {
+            HeavyHitters sketch = new HeavyHitters(10, 3);
+            for (int i = 0; i < n; i++) {
+                sketch.offer("sql-" + i);
+                sketch.offer("sql-" + i);
+            }
+            long estimate = sketch.cardinality();
+            Assert.assertTrue(n + " vs " + estimate, Math.abs(estimate - n) <= Math.max(1, n / 10));
+        }
+    }
+}
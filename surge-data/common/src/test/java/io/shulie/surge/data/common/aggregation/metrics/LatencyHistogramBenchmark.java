@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 耗时分布的记录与合并开销：reducer 每个时间槽对每个 metric 合并一次各 spout 的分布
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LatencyHistogramBenchmark {
+
+    /**
+     * 最大耗时，决定计数数组的实际长度
+     */
+    @Param({"100", "10000", "16777215"})
+    private long maxRt;
+
+    private LatencyHistogram source;
+
+    private LatencyHistogram target;
+
+    private CallStat snapshot;
+
+    private CallStat aggregated;
+
+    private long[] values;
+
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        Random random = new Random(7);
+        source = new LatencyHistogram();
+        values = new long[4096];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (random.nextDouble() * maxRt);
+            source.record(values[i], 1);
+        }
+        target = new LatencyHistogram();
+        snapshot = new CallStat("traceId", "null", 4096, 4096, 0, 0, 1, 4096, 1, 4096, 0, maxRt);
+        snapshot.setHistogram(source);
+        aggregated = new CallStat();
+    }
+
+    @Benchmark
+    public void record() {
+        target.record(values[next++ & (values.length - 1)], 1);
+    }
+
+    @Benchmark
+    public LatencyHistogram merge() {
+        target.merge(source);
+        return target;
+    }
+
+    @Benchmark
+    public CallStat aggregateFrom() {
+        aggregated.aggregateFrom(snapshot);
+        return aggregated;
+    }
+
+    @Benchmark
+    public long percentile() {
+        return source.percentile(0.99);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(LatencyHistogramBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
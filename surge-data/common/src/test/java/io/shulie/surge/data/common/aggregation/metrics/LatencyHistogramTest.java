@@ -0,0 +1,169 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.aggregation.metrics;
+
+import io.shulie.surge.data.common.aggregation.Accumulator;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author pamirs
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketErrorIsBounded() {
+        for (long value = 0; value <= LatencyHistogram.MAX_VALUE; value = value * 5 / 4 + 1) {
+            long bucketValue = LatencyHistogram.bucketValue(LatencyHistogram.bucketIndex(value));
+            Assert.assertTrue(value + " -> " + bucketValue, Math.abs(bucketValue - value) <= Math.max(1, value / 32));
+        }
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        Assert.assertEquals(336, LatencyHistogram.BUCKETS);
+    }
+
+    @Test
+    public void percentileCloseToExact() {
+        Random random = new Random(7);
+        long[] values = new long[100000];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.abs(random.nextGaussian() * 200) + (random.nextInt(1000) == 0 ? 5000 : 10);
+            histogram.record(values[i], 1);
+        }
+        Arrays.sort(values);
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long estimate = histogram.percentile(quantile);
+            Assert.assertTrue(quantile + ": " + exact + " vs " + estimate, Math.abs(estimate - exact) <= exact / 32 + 1);
+        }
+    }
+
+    @Test
+    public void mergeMatchesSingleHistogram() {
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram left = new LatencyHistogram();
+        LatencyHistogram right = new LatencyHistogram();
+        for (int i = 0; i < 10000; i++) {
+            all.record(i, 2);
+            (i % 3 == 0 ? left : right).record(i, 2);
+        }
+        left.merge(right);
+        Assert.assertEquals(all.getTotalCount(), left.getTotalCount());
+        Assert.assertArrayEquals(all.getCounts(), left.getCounts());
+    }
+
+    @Test
+    public void accumulatorAndAggregateFromAgree() {
+        CallStat aggregated = new CallStat();
+        Accumulator<CallStat> accumulator = traceStat(1, 1).newAccumulator();
+        Accumulator<CallStat> reducer = traceStat(1, 1).newAccumulator();
+        for (int i = 1; i <= 1000; i++) {
+            CallStat stat = traceStat(i, i % 10 == 0 ? 10 : 1);
+            aggregated.aggregateFrom(stat);
+            accumulator.add(stat);
+        }
+        CallStat snapshot = accumulator.snapshot();
+        // reducer 合并已聚合的快照
+        reducer.add(snapshot);
+        CallStat reduced = reducer.snapshot();
+        for (double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            Assert.assertEquals(aggregated.getPercentile(quantile), snapshot.getPercentile(quantile));
+            Assert.assertEquals(aggregated.getPercentile(quantile), reduced.getPercentile(quantile));
+        }
+        Assert.assertEquals(1900, reduced.getHistogram().getTotalCount());
+        Assert.assertEquals(1000, reduced.getPercentile(1));
+    }
+
+    /**
+     * 耗时分布先只记一个桶，出现第二个桶后再展开，结果与直接记录一致
+     */
+    @Test
+    public void accumulatorLatencyStartsWithSingleBucket() {
+        Accumulator<CallStat> accumulator = traceStat(1, 1).newAccumulator();
+        Assert.assertEquals(0, accumulator.snapshot().getHistogram().getTotalCount());
+
+        accumulator.add(traceStat(100, 2));
+        accumulator.add(traceStat(100, 3));
+        LatencyHistogram single = accumulator.snapshot().getHistogram();
+        Assert.assertEquals(5, single.getTotalCount());
+        Assert.assertEquals(LatencyHistogram.bucketValue(LatencyHistogram.bucketIndex(100)), single.percentile(0.5));
+
+        accumulator.add(traceStat(3000, 1));
+        LatencyHistogram expected = new LatencyHistogram();
+        expected.record(100, 5);
+        expected.record(3000, 1);
+        LatencyHistogram inflated = accumulator.snapshot().getHistogram();
+        Assert.assertEquals(6, inflated.getTotalCount());
+        Assert.assertArrayEquals(expected.getCounts(), inflated.getCounts());
+
+        // 第一条就是已聚合的数据时直接展开
+        Accumulator<CallStat> reducer = traceStat(1, 1).newAccumulator();
+        reducer.add(accumulator.snapshot());
+        Assert.assertArrayEquals(expected.getCounts(), reducer.snapshot().getHistogram().getCounts());
+    }
+
+    @Test
+    public void accumulatorLatencyConcurrentInflate() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            Accumulator<CallStat> accumulator = traceStat(1, 1).newAccumulator();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                long rt = 10 + t * 1000;
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        accumulator.add(traceStat(rt, 1));
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            LatencyHistogram histogram = accumulator.snapshot().getHistogram();
+            Assert.assertEquals(4000, histogram.getTotalCount());
+            for (int t = 0; t < threads.length; t++) {
+                Assert.assertEquals(1000, histogram.getCounts()[LatencyHistogram.bucketIndex(10 + t * 1000)]);
+            }
+        }
+    }
+
+    @Test
+    public void aggregateFromKeepsReceiverSingleEvent() {
+        // 接收方是单条数据，没有耗时分布
+        CallStat receiver = traceStat(1000, 4);
+        receiver.aggregateFrom(traceStat(10, 1));
+        Assert.assertEquals(5, receiver.getHistogram().getTotalCount());
+        // 4 次 1000ms 和 1 次 10ms，分位值不超过最大耗时
+        Assert.assertEquals(1000, receiver.getPercentile(0.5));
+        Assert.assertEquals(LatencyHistogram.bucketValue(LatencyHistogram.bucketIndex(10)), receiver.getPercentile(0.1));
+
+        // 空的接收方复制第一条数据，不重复计数
+        CallStat empty = new CallStat();
+        empty.aggregateFrom(traceStat(1000, 4));
+        empty.aggregateFrom(traceStat(10, 1));
+        Assert.assertEquals(5, empty.getHistogram().getTotalCount());
+        Assert.assertEquals(1000, empty.getPercentile(0.5));
+    }
+
+    private static CallStat traceStat(long rt, long sampling) {
+        return new CallStat("traceId-" + rt, "null", sampling, sampling, rt * sampling, 0, 1, sampling, 1, sampling, 0, rt);
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.batch;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author pamirs
+ */
+public class SpillLogTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spill").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void replayInOrderAcrossSegmentsAndRestart() throws IOException {
+        SpillLog log = new SpillLog(directory, 4096, 1 << 20);
+        for (int i = 0; i < 500; i++) {
+            log.append(record(i));
+        }
+        Assert.assertTrue(segments().length > 1);
+        for (int i = 0; i < 40; i++) {
+            Assert.assertEquals("record-" + i, new String(log.peek(), StandardCharsets.UTF_8));
+            log.commit();
+        }
+        // 未确认的记录重启后重新读出
+        Assert.assertEquals("record-40", new String(log.peek(), StandardCharsets.UTF_8));
+        log.close();
+
+        log = new SpillLog(directory, 4096, 1 << 20);
+        Assert.assertEquals(460, log.getPendingRecords());
+        log.append(record(500));
+        for (int i = 40; i <= 500; i++) {
+            Assert.assertEquals("record-" + i, new String(log.peek(), StandardCharsets.UTF_8));
+            log.commit();
+        }
+        Assert.assertNull(log.peek());
+        Assert.assertTrue(log.isEmpty());
+        Assert.assertEquals(0, log.getPendingBytes());
+        // 读完的段已删除，只保留正在写入的段
+        Assert.assertEquals(1, segments().length);
+        log.close();
+    }
+
+    @Test
+    public void evictOldestSegments() throws IOException {
+        SpillLog log = new SpillLog(directory, 4096, 4096 * 3);
+        for (int i = 0; i < 1000; i++) {
+            log.append(record(i));
+        }
+        Assert.assertTrue(log.diskBytes() <= 4096 * 3);
+        Assert.assertTrue(log.getEvictedRecords() > 0);
+        Assert.assertEquals(1000, log.getPendingRecords() + log.getEvictedRecords());
+        // 剩下的是最新的记录
+        Assert.assertEquals("record-" + log.getEvictedRecords(), new String(log.peek(), StandardCharsets.UTF_8));
+        log.close();
+    }
+
+    @Test
+    public void dropTornRecordOnRecovery() throws IOException {
+        SpillLog log = new SpillLog(directory, 4096, 1 << 20);
+        log.append(record(0));
+        log.append(record(1));
+        log.close();
+        // 模拟最后一条记录只写了一半：内容被破坏，crc 不一致
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            file.seek(8 + record(0).length + 8);
+            file.write('x');
+        }
+
+        log = new SpillLog(directory, 4096, 1 << 20);
+        Assert.assertEquals(1, log.getPendingRecords());
+        log.append(record(2));
+        Assert.assertEquals("record-0", new String(log.peek(), StandardCharsets.UTF_8));
+        log.commit();
+        Assert.assertEquals("record-2", new String(log.peek(), StandardCharsets.UTF_8));
+        log.close();
+    }
+
+    @Test
+    public void rotationBatchSpillsAndReplaysAfterRecovery() throws Exception {
+        AtomicBoolean available = new AtomicBoolean(false);
+        List<String> saved = new ArrayList<>();
+        RotationBatch<String> batch = new RotationBatch<>(new CountRotationPolicy(2));
+        batch.batchSaver(new RotationBatch.BatchSaver<String>() {
+            @Override
+            public boolean saveBatch(LinkedBlockingQueue<String> objectBatch) {
+                if (!available.get()) {
+                    throw new IllegalStateException("sink unavailable");
+                }
+                synchronized (saved) {
+                    saved.addAll(objectBatch);
+                }
+                return true;
+            }
+
+            @Override
+            public boolean shardSaveBatch(String key, LinkedBlockingQueue<String> objectBatch) {
+                return false;
+            }
+        });
+        batch.spill("test", directory, 1 << 20);
+        try {
+            for (int i = 0; i < 6; i++) {
+                batch.addBatch("v" + i);
+            }
+            Assert.assertEquals(3, batch.getSpillBuffer().getPendingBatches());
+
+            // 存储恢复后，新数据排在落盘数据之后
+            available.set(true);
+            batch.addBatch("v6");
+            batch.addBatch("v7");
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+            while (batch.getSpillBuffer().hasPending() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            synchronized (saved) {
+                Assert.assertEquals("[v0, v1, v2, v3, v4, v5, v6, v7]", saved.toString());
+            }
+            Assert.assertEquals(4, batch.getSpillBuffer().getReplayedBatches());
+        } finally {
+            batch.getSpillBuffer().close();
+        }
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File[] segments() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.common.utils;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author pamirs
+ */
+public class ByteLineScannerTest {
+
+    @Test
+    public void splitCrlfAndSkipEmptyLines() {
+        Assert.assertEquals(Lists.newArrayList("a|1", "b|2", "c|3"), lines("a|1\r\nb|2\r\n\r\nc|3\r\n", ByteLineScanner.CRLF));
+        // 单独的 \r 和 \n 不是 CRLF 分隔符
+        Assert.assertEquals(Lists.newArrayList("a\rb", "c\nd"), lines("a\rb\r\nc\nd", ByteLineScanner.CRLF));
+    }
+
+    @Test
+    public void splitLf() {
+        Assert.assertEquals(Lists.newArrayList("a", "b\r", "c"), lines("\na\nb\r\n\nc", ByteLineScanner.LF));
+    }
+
+    @Test
+    public void trailingPartialLine() {
+        Assert.assertEquals(Lists.newArrayList("a", "partial"), lines("a\r\npartial", ByteLineScanner.CRLF));
+        // 末尾只有半个分隔符时作为行内容
+        Assert.assertEquals(Lists.newArrayList("a", "b\r"), lines("a\r\nb\r", ByteLineScanner.CRLF));
+    }
+
+    @Test
+    public void emptyInput() {
+        Assert.assertTrue(lines("", ByteLineScanner.CRLF).isEmpty());
+        Assert.assertTrue(lines("\r\n\r\n", ByteLineScanner.CRLF).isEmpty());
+        ByteLineScanner scanner = new ByteLineScanner(new byte[0], ByteLineScanner.LF);
+        Assert.assertFalse(scanner.next());
+        Assert.assertFalse(scanner.next());
+    }
+
+    @Test
+    public void delimiterAcrossRangeBoundary() {
+        byte[] body = "xxa\r\nb\r\nc".getBytes(Bytes.UTF_8);
+        // 扫描范围在第二个 CRLF 的 \r 之后结束，范围外的 \n 不能被读到
+        ByteLineScanner scanner = new ByteLineScanner(body, 2, 5, ByteLineScanner.CRLF);
+        List<String> lines = new ArrayList<>();
+        while (scanner.next()) {
+            lines.add(new String(scanner.buffer(), scanner.lineOffset(), scanner.lineLength(), Bytes.UTF_8));
+        }
+        Assert.assertEquals(Lists.newArrayList("a", "b\r"), lines);
+        // 下一段从被切开的 \n 开始
+        scanner = new ByteLineScanner(body, 7, 2, ByteLineScanner.CRLF);
+        Assert.assertTrue(scanner.next());
+        Assert.assertEquals("\nc", new String(body, scanner.lineOffset(), scanner.lineLength(), Bytes.UTF_8));
+        Assert.assertFalse(scanner.next());
+    }
+
+    @Test
+    public void sameAsSplitter() {
+        String content = "中文|1\r\n\r\nascii|2\r\n\r\r\n|\r\nlast";
+        Assert.assertEquals(Lists.newArrayList(Splitter.on("\r\n").omitEmptyStrings().split(content)),
+                lines(content, ByteLineScanner.CRLF));
+    }
+
+    @Test
+    public void remainingLinesMatchesNext() {
+        String[] contents = {"", "\r\n", "a|1\r\nb|2\r\n\r\nc|3\r\n", "a\r\nb\r", "中文|1\r\n\r\nascii|2\r\n\r\r\n|\r\nlast"};
+        for (String content : contents) {
+            Assert.assertEquals(content, lines(content, ByteLineScanner.CRLF).size(),
+                    new ByteLineScanner(content.getBytes(Bytes.UTF_8), ByteLineScanner.CRLF).remainingLines());
+        }
+        ByteLineScanner scanner = new ByteLineScanner("a\nb\nc".getBytes(Bytes.UTF_8), ByteLineScanner.LF);
+        Assert.assertTrue(scanner.next());
+        // 只统计未读的行，且不影响后续扫描
+        Assert.assertEquals(2, scanner.remainingLines());
+        Assert.assertTrue(scanner.next());
+        Assert.assertEquals(2, scanner.lineOffset());
+    }
+
+    private static List<String> lines(String content, byte[] delimiter) {
+        byte[] body = content.getBytes(Bytes.UTF_8);
+        ByteLineScanner scanner = new ByteLineScanner(body, delimiter);
+        List<String> lines = new ArrayList<>();
+        while (scanner.next()) {
+            lines.add(new String(body, scanner.lineOffset(), scanner.lineLength(), Bytes.UTF_8));
+        }
+        return lines;
+    }
+}
@@ -15,6 +15,7 @@
 
 package io.shulie.surge.data.runtime.digest.handler;
 
+import io.shulie.surge.data.common.aggregation.metrics.ConcurrentLatencyHistogram;
 import io.shulie.surge.data.runtime.digest.DataDigester;
 import io.shulie.surge.data.runtime.disruptor.WorkHandler;
 import org.slf4j.Logger;
@@ -23,13 +24,15 @@ import org.slf4j.LoggerFactory;
 public class DigesterWorkerHanlder implements WorkHandler<DigestJob> {
     private static Logger logger = LoggerFactory.getLogger(DigesterHandler.class);
     DataDigester eed;
-    int index;
-    long[] digesterTimeCost;
+    ConcurrentLatencyHistogram latency;
 
-    public DigesterWorkerHanlder(DataDigester eed, int index, long[] digesterTimeCost) {
+    /**
+     * @param eed     digester
+     * @param latency 同一个 digester 的所有 worker 共用的耗时分布，单位微秒
+     */
+    public DigesterWorkerHanlder(DataDigester eed, ConcurrentLatencyHistogram latency) {
         this.eed = eed;
-        this.index = index;
-        this.digesterTimeCost = digesterTimeCost;
+        this.latency = latency;
     }
 
     @Override
@@ -37,12 +40,12 @@ public class DigesterWorkerHanlder implements WorkHandler<DigestJob> {
         if (event.context == null) {
             return;
         }
-        long now = System.currentTimeMillis();
+        long start = System.nanoTime();
         try {
             eed.digest(event.context);
         } catch (Throwable e) {
             logger.error("digest error ", e);
         }
-        digesterTimeCost[index] += (System.currentTimeMillis() - now);
+        latency.record((System.nanoTime() - start) / 1000);
     }
 }
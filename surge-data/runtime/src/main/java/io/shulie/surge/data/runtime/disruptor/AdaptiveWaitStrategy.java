@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.disruptor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive strategy that moves between busy-spin, Thread.yield(), parking and a lock and condition variable
+ * depending on how long {@link EventProcessor}s have recently been waiting on the barrier.
+ *
+ * The average wait is an estimate of the inter-arrival time: when events arrive faster than a spin budget the
+ * processors spin or yield and never sleep, when the ring is idle they skip straight to blocking and cost no CPU.
+ * Busy-spin is only used when there are fewer consumers than available processors, otherwise spinning threads
+ * steal CPU from the consumers that have work.
+ *
+ * Producers only take the lock in {@link #signalAllWhenBlocking()} when a processor is actually blocked.
+ */
+public final class AdaptiveWaitStrategy implements WaitStrategy
+{
+	private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+	private static final long YIELD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+	private static final long MIN_PARK_STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+	private static final long MAX_PARK_STEP_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+	/**
+	 * Average wait above which processors block without spinning, yielding or parking first.
+	 */
+	private static final long BLOCK_THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	/**
+	 * Blocked processors also wake up periodically, a safety net that costs nothing measurable when idle.
+	 */
+	private static final long MAX_BLOCK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final int EWMA_SHIFT = 3;
+
+	private final Lock lock = new ReentrantLock();
+	private final Condition processorNotifyCondition = lock.newCondition();
+	private final AtomicInteger blockedCount = new AtomicInteger();
+	private final boolean spinAllowed;
+	private volatile long averageWaitNanos;
+
+	public AdaptiveWaitStrategy()
+	{
+		this(1);
+	}
+
+	/**
+	 * @param consumers number of threads on this host that will wait using this kind of strategy
+	 */
+	public AdaptiveWaitStrategy(final int consumers)
+	{
+		this.spinAllowed = consumers < Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public long waitFor(final long sequence, final Sequence cursor, final Sequence dependentSequence,
+			final SequenceBarrier barrier)
+			throws AlertException, InterruptedException
+	{
+		long availableSequence;
+		if ((availableSequence = dependentSequence.get()) >= sequence)
+		{
+			decay();
+			return availableSequence;
+		}
+
+		final long start = System.nanoTime();
+		final long expectedWait = averageWaitNanos;
+		try
+		{
+			if (expectedWait < BLOCK_THRESHOLD_NANOS)
+			{
+				final long spinUntil = spinAllowed && expectedWait < YIELD_NANOS ? start + SPIN_NANOS : start;
+				final long yieldUntil = spinUntil + YIELD_NANOS;
+				final long parkUntil = yieldUntil + PARK_NANOS;
+				long parkStep = MIN_PARK_STEP_NANOS;
+				long now;
+				while ((availableSequence = dependentSequence.get()) < sequence)
+				{
+					barrier.checkAlert();
+					now = System.nanoTime();
+					if (now - spinUntil < 0)
+					{
+						continue;
+					}
+					if (now - yieldUntil < 0)
+					{
+						Thread.yield();
+					}
+					else if (now - parkUntil < 0)
+					{
+						LockSupport.parkNanos(parkStep);
+						parkStep = Math.min(parkStep << 1, MAX_PARK_STEP_NANOS);
+					}
+					else
+					{
+						break;
+					}
+				}
+				if (availableSequence >= sequence)
+				{
+					return availableSequence;
+				}
+			}
+
+			return block(sequence, cursor, dependentSequence, barrier);
+		}
+		finally
+		{
+			record(System.nanoTime() - start);
+		}
+	}
+
+	private long block(final long sequence, final Sequence cursor, final Sequence dependentSequence,
+			final SequenceBarrier barrier)
+			throws AlertException, InterruptedException
+	{
+		long availableSequence;
+		// the increment must be visible before the cursor is re-read, pairs with the read in signalAllWhenBlocking
+		blockedCount.incrementAndGet();
+		lock.lock();
+		try
+		{
+			while ((availableSequence = cursor.get()) < sequence)
+			{
+				barrier.checkAlert();
+				processorNotifyCondition.awaitNanos(MAX_BLOCK_NANOS);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+			blockedCount.decrementAndGet();
+		}
+
+		while ((availableSequence = dependentSequence.get()) < sequence)
+		{
+			barrier.checkAlert();
+		}
+
+		return availableSequence;
+	}
+
+	@Override
+	public void signalAllWhenBlocking()
+	{
+		if (blockedCount.get() == 0)
+		{
+			return;
+		}
+		lock.lock();
+		try
+		{
+			processorNotifyCondition.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return recent average time a processor waited for the next sequence, in nanoseconds
+	 */
+	public long getAverageWaitNanos()
+	{
+		return averageWaitNanos;
+	}
+
+	/**
+	 * An event was already available, the ring is busy. Only written while non-zero so that a saturated ring
+	 * does not bounce the cache line between processors.
+	 */
+	private void decay()
+	{
+		final long average = averageWaitNanos;
+		if (average != 0)
+		{
+			averageWaitNanos = average < (1 << EWMA_SHIFT) ? 0 : average - (average >> EWMA_SHIFT);
+		}
+	}
+
+	private void record(final long waitNanos)
+	{
+		final long average = averageWaitNanos;
+		averageWaitNanos = average + ((Math.min(waitNanos, MAX_BLOCK_NANOS) - average) >> EWMA_SHIFT);
+	}
+}
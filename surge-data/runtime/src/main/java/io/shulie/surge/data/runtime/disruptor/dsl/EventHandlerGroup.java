@@ -153,4 +153,14 @@ public class EventHandlerGroup<T>
 	{
 		return disruptor.getRingBuffer().newBarrier(sequences);
 	}
+
+	/**
+	 * Get the sequences of the processors in this group, for example to measure how far they lag behind the cursor.
+	 *
+	 * @return a copy of the sequences tracked by this group.
+	 */
+	public Sequence[] getSequences()
+	{
+		return Arrays.copyOf(sequences, sequences.length);
+	}
 }
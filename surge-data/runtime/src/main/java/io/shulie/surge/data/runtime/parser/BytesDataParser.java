@@ -0,0 +1,49 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.parser;
+
+import io.shulie.surge.data.runtime.digest.DigestContext;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * 直接基于请求体字节解析的解析器，由 {@link io.shulie.surge.data.runtime.processor.DataQueue#publishBytes}
+ * 使用。未实现该接口的解析器会退回到字符串解析路径
+ */
+public interface BytesDataParser<OUT extends Serializable> {
+    /**
+     * 请求级别的行后缀，每个请求体调用一次，结果传给该请求体每一行的 {@link #createContext}
+     *
+     * @param header 请求级别的上下文
+     * @return 没有后缀时返回 null
+     */
+    default byte[] lineSuffix(Map<String, Object> header) {
+        return null;
+    }
+
+    /**
+     * 根据请求体中的一行创建数据处理上下文
+     *
+     * @param header 请求级别的上下文，同一个请求体的所有行共享
+     * @param body   请求体
+     * @param offset 行起始位置
+     * @param length 行长度，不含分隔符
+     * @param suffix {@link #lineSuffix} 的结果
+     * @return
+     */
+    DigestContext<OUT> createContext(Map<String, Object> header, byte[] body, int offset, int length, byte[] suffix);
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ringbuffer 之前的准入控制：过载时按类别丢弃低价值的数据，而不是拒绝整个请求让客户端重试。
+ * <p>
+ * 每条数据由 processor 归入一个类别。梯度 ladder 按丢弃的先后排列类别，
+ * 负载从 0 升到 1 的过程中梯度从前往后依次开始丢弃。不在梯度中的类别不丢弃，负载达到 1 时整个请求被拒绝，
+ * 由客户端退避后重试，没有配置梯度时与原来超过保留线即拒绝的行为一致。
+ * kept 中的类别从不丢弃也不拒绝，可以使用保留线以上的空间，直到 ringbuffer 真正写满才拒绝。
+ * <p>
+ * 负载取以下几项的最大值：
+ * <ul>
+ * <li>ringbuffer 占用率从 shedStartRate 到保留线（1 - ringBufferRemainRate）线性对应 0 到 1</li>
+ * <li>按最近一秒的消费速度排空当前积压需要的时间，与 maxDrainMillis 之比，反映 digester 的处理耗时</li>
+ * <li>有 digester 过载（{@link BackPressure}）时为 1</li>
+ * </ul>
+ * 负载大于 0 时给客户端返回退避时间，负载越高退避越久
+ *
+ * @author pamirs
+ */
+public class AdmissionController {
+
+    /**
+     * 未分类的数据
+     */
+    public static final String DEFAULT_CLASS = "default";
+
+    private final int bufferSize;
+    private final float limitRate;
+
+    private volatile String[] ladder = new String[0];
+    private volatile Set<String> kept = Collections.emptySet();
+    private volatile float shedStartRate;
+    private volatile long maxDrainMillis;
+    private volatile long minBackoffMillis = 200;
+    private volatile long maxBackoffMillis = 5000;
+
+    private String ladderText;
+    private String keptText;
+
+    /**
+     * 按消费速度估算的负载，由 {@link #refresh} 定时更新
+     */
+    private volatile double drainPressure;
+    private long lastConsumed = -1;
+    private long lastRefreshTime;
+
+    private final ConcurrentMap<String, LongAdder> dropped = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param bufferSize ringbuffer 大小，分片时为单个分片的大小
+     * @param remainRate ringbuffer 保留率，占用超过 1 - remainRate 时只接收 kept 类别
+     */
+    public AdmissionController(int bufferSize, float remainRate) {
+        this.bufferSize = bufferSize;
+        this.limitRate = Math.max(0f, Math.min(1f, 1 - remainRate));
+        this.shedStartRate = limitRate;
+    }
+
+    /**
+     * 更新配置，配置没有变化时不会重新解析
+     *
+     * @param ladder         逗号分隔的丢弃梯度，先丢弃的在前
+     * @param kept           逗号分隔的不丢弃类别
+     * @param shedStartRate  开始丢弃时的 ringbuffer 占用率，不大于保留线
+     * @param maxDrainMillis 积压排空时间达到该值时负载为 1，小于等于 0 时不按耗时计算
+     */
+    public synchronized void configure(String ladder, String kept, float shedStartRate, long maxDrainMillis) {
+        if (!Objects.equals(ladder, ladderText)) {
+            this.ladder = split(ladder).toArray(new String[0]);
+            this.ladderText = ladder;
+        }
+        if (!Objects.equals(kept, keptText)) {
+            this.kept = new HashSet<>(split(kept));
+            this.keptText = kept;
+        }
+        this.shedStartRate = Math.max(0f, Math.min(limitRate, shedStartRate));
+        this.maxDrainMillis = maxDrainMillis;
+    }
+
+    public void setBackoff(long minBackoffMillis, long maxBackoffMillis) {
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = Math.max(minBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * 根据 ringbuffer 消费进度估算排空积压的时间，每秒调用一次
+     *
+     * @param published 累计发布的条数，分片时为所有分片之和
+     * @param backlog   已发布未消费的条数，分片时为所有分片之和
+     * @param now       当前时间，毫秒
+     */
+    public synchronized void refresh(long published, long backlog, long now) {
+        long consumed = published - backlog;
+        if (lastConsumed >= 0 && now > lastRefreshTime && maxDrainMillis > 0) {
+            double rate = (consumed - lastConsumed) / (double) (now - lastRefreshTime);
+            if (backlog <= 0) {
+                drainPressure = 0;
+            } else if (rate <= 0) {
+                // 有积压但一秒内没有消费，digester 卡住了
+                drainPressure = 1;
+            } else {
+                drainPressure = Math.min(1, backlog / rate / maxDrainMillis);
+            }
+        }
+        lastConsumed = consumed;
+        lastRefreshTime = now;
+    }
+
+    /**
+     * 当前负载，[0, 1]
+     *
+     * @param remainingCapacity ringbuffer 剩余容量，分片时取最满的分片
+     * @param overloaded        是否有 digester 过载
+     */
+    public double pressure(long remainingCapacity, boolean overloaded) {
+        if (overloaded) {
+            return 1;
+        }
+        double occupancy = 1 - remainingCapacity / (double) bufferSize;
+        double occupancyPressure;
+        if (occupancy >= limitRate) {
+            occupancyPressure = 1;
+        } else if (occupancy <= shedStartRate) {
+            occupancyPressure = 0;
+        } else {
+            occupancyPressure = (occupancy - shedStartRate) / (limitRate - shedStartRate);
+        }
+        return Math.max(occupancyPressure, drainPressure);
+    }
+
+    /**
+     * 负载对应的丢弃级别，梯度中位置小于该级别的类别被丢弃，级别超过梯度长度时拒绝未列出的类别
+     */
+    public int shedLevel(double pressure) {
+        String[] ladder = this.ladder;
+        if (pressure >= 1) {
+            return ladder.length + 1;
+        }
+        return pressure <= 0 ? 0 : (int) Math.ceil(pressure * ladder.length);
+    }
+
+    /**
+     * 判断一条数据是否接收，不接收时计入丢弃计数
+     *
+     * @param dataClass 数据类别
+     * @param shedLevel {@link #shedLevel} 的结果，同一批数据使用同一个级别
+     */
+    public boolean admit(String dataClass, int shedLevel) {
+        if (shedLevel <= 0 || kept.contains(dataClass)) {
+            return true;
+        }
+        int rung = rung(dataClass);
+        if (rung < 0 || rung >= shedLevel) {
+            return true;
+        }
+        dropped.computeIfAbsent(dataClass, k -> new LongAdder()).increment();
+        return false;
+    }
+
+    /**
+     * 判断是否需要拒绝整个请求：不在梯度中的类别不能丢弃，超过保留线后退回到拒绝并让客户端重试
+     *
+     * @param dataClass 数据类别
+     * @param shedLevel {@link #shedLevel} 的结果
+     */
+    public boolean rejects(String dataClass, int shedLevel) {
+        return shedLevel > ladder.length && !kept.contains(dataClass) && rung(dataClass) < 0;
+    }
+
+    /**
+     * 类别在梯度中的位置，不在梯度中时返回 -1
+     */
+    private int rung(String dataClass) {
+        String[] ladder = this.ladder;
+        for (int i = 0; i < ladder.length; i++) {
+            if (ladder[i].equals(dataClass)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 记录一次整体拒绝的请求
+     */
+    public void reject() {
+        rejected.increment();
+    }
+
+    /**
+     * 建议客户端的退避时间，负载为 0 时为 0
+     */
+    public long backoffMillis(double pressure) {
+        if (pressure <= 0) {
+            return 0;
+        }
+        return minBackoffMillis + Math.round(Math.min(1, pressure) * (maxBackoffMillis - minBackoffMillis));
+    }
+
+    /**
+     * 各类别累计丢弃的条数
+     */
+    public Map<String, Long> getDropped() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : dropped.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * 累计整体拒绝的请求数
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private static List<String> split(String text) {
+        List<String> result = new ArrayList<>();
+        if (text != null) {
+            for (String item : text.split(",")) {
+                if (!item.trim().isEmpty()) {
+                    result.add(item.trim());
+                }
+            }
+        }
+        return result;
+    }
+}
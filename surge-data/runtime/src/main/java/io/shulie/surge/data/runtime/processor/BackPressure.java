@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+/**
+ * 下游写入能力不足时向上游反压。
+ * <p>
+ * 实现了该接口的 {@link io.shulie.surge.data.runtime.digest.DataDigester} 过载时，
+ * {@link DefaultProcessor} 只接收 {@link AdmissionController} 中不可丢弃类别的数据。
+ * 过载会影响同一 processor 的所有 digester，只作用于某一个存储的反压应在该存储的写入路径上处理
+ *
+ * @author pamirs
+ */
+public interface BackPressure {
+    /**
+     * 是否过载，会在每次发布前调用，实现需要足够轻量
+     *
+     * @return
+     */
+    boolean isOverloaded();
+}
@@ -38,6 +38,13 @@ public interface DataQueue<IN extends Serializable, OUT extends Serializable> ex
      */
     boolean canPublish(int size);
 
+    /**
+     * 建议发送方在下次发送前等待的时间，未过载时为 0
+     *
+     * @return 毫秒
+     */
+    long backoffMillis();
+
     /**
      * 移除延迟数据
      *
@@ -78,6 +85,17 @@ public interface DataQueue<IN extends Serializable, OUT extends Serializable> ex
      */
     void publish(Map<String, Object> header, List<IN> data) throws InterruptedException;
 
+    /**
+     * 按字节发布一个请求体。直接在请求体上按行切分并解析，
+     * 不再构造完整的字符串和行列表。如果队列已满，抛出异常
+     *
+     * @param header
+     * @param body     请求体
+     * @param dataType 数据类型，决定行分隔符
+     * @throws InterruptedException 阻塞期间被打断时抛出的异常
+     */
+    void publishBytes(Map<String, Object> header, byte[] body, Byte dataType) throws InterruptedException;
+
 
     /**
      * 检查延时日志
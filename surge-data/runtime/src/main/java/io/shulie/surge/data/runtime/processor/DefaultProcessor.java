@@ -18,7 +18,11 @@ package io.shulie.surge.data.runtime.processor;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.shulie.surge.data.common.aggregation.Scheduler;
+import io.shulie.surge.data.common.aggregation.metrics.ConcurrentLatencyHistogram;
+import io.shulie.surge.data.common.aggregation.metrics.LatencyHistogram;
 import io.shulie.surge.data.common.pool.DataPoolExecutors;
+import io.shulie.surge.data.common.utils.ByteLineScanner;
+import io.shulie.surge.data.common.utils.Bytes;
 import io.shulie.surge.data.common.utils.DateUtils;
 import io.shulie.surge.data.common.utils.FormatUtils;
 import io.shulie.surge.data.runtime.digest.DataDigester;
@@ -28,19 +32,20 @@ import io.shulie.surge.data.runtime.digest.handler.DigesterWorkerHanlder;
 import io.shulie.surge.data.runtime.disruptor.InsufficientCapacityException;
 import io.shulie.surge.data.runtime.disruptor.RingBuffer;
 import io.shulie.surge.data.runtime.disruptor.RingBufferIllegalStateException;
-import io.shulie.surge.data.runtime.disruptor.SleepingWaitStrategy;
+import io.shulie.surge.data.runtime.disruptor.Sequence;
 import io.shulie.surge.data.runtime.disruptor.dsl.Disruptor;
 import io.shulie.surge.data.runtime.disruptor.dsl.ProducerType;
+import io.shulie.surge.data.runtime.parser.BytesDataParser;
 import io.shulie.surge.data.runtime.parser.DataParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static io.shulie.surge.data.common.utils.CommonUtils.divide;
 
@@ -54,37 +59,83 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
 
     private static final Logger logger = LoggerFactory.getLogger(DefaultProcessor.class);
 
-    private long[] digesterTimeCost;
+    /**
+     * 分片时单个 ringbuffer 的最小长度
+     */
+    private static final int MIN_SHARD_RING_BUFFER_SIZE = 1024;
 
     private ProcessorConfigSpec processorConfig;
-    private RingBuffer<DigestJob> ringBuffer;
-    private Disruptor<DigestJob> disruptor;
-    private AtomicLong processCount = new AtomicLong(0);
+    private RingBuffer<DigestJob>[] ringBuffers;
+    private Disruptor<DigestJob>[] disruptors;
+    private AdmissionController admissionController;
+    private ProcessorMetrics metrics;
 
     /**
-     * 开始运行
+     * 开始运行。
+     * <p>
+     * 分片数大于 1 时创建多个独立的 ringbuffer，总长度与不分片时相同，每个分片有自己的 worker，
+     * 生产者按 {@link #partition} 分散到不同分片，不再竞争同一个游标；
+     * 每个 digester 在每个分片上的 worker 数为 threadCount / 分片数（向上取整），
+     * 分片数不小于 threadCount 时同一分片的数据只由一个线程处理
      */
     @Override
+    @SuppressWarnings("unchecked")
     public void start() throws Exception {
-        this.digesterTimeCost = new long[processorConfig.getDigesters().length];
-        // disruptor实现
-        ExecutorService es = DataPoolExecutors.newDefaultNoQueueExecutors(processorConfig.getExecuteSize(), processorConfig.getExecuteSize() * 2, 3, TimeUnit.SECONDS, new ThreadFactoryBuilder().setNameFormat(processorConfig.getName() + "-Processor_thread_-%d").build(), null);
-        disruptor = new Disruptor<>(DigestJob.EVENT_FACTORY, processorConfig.getRingBufferSize(), es, ProducerType.MULTI, new SleepingWaitStrategy());
+        this.metrics = new ProcessorMetrics(processorConfig.getName(), processorConfig.getDigesters());
+        int shardCount = processorConfig.getShardCount();
         int digesterCount = processorConfig.getDigesters().length;
-
-        for (int i = 0; i < digesterCount; i++) {
-            DataDigester digester = processorConfig.getDigesters()[i];
-            int poolSize = digester.threadCount();
-            DigesterWorkerHanlder[] workers = new DigesterWorkerHanlder[poolSize];
-            for (int j = 0; j < poolSize; j++) {
-                workers[j] = new DigesterWorkerHanlder(digester, i, digesterTimeCost);
+        int ringBufferSize = processorConfig.getRingBufferSize();
+        if (shardCount > 1) {
+            ringBufferSize = Integer.highestOneBit(Math.max(MIN_SHARD_RING_BUFFER_SIZE, ringBufferSize / shardCount));
+        }
+        int workerCount = 0;
+        for (DataDigester digester : processorConfig.getDigesters()) {
+            workerCount += workersPerShard(digester, shardCount) * shardCount;
+        }
+        // disruptor实现
+        ExecutorService es = DataPoolExecutors.newDefaultNoQueueExecutors(processorConfig.getExecuteSize(), Math.max(processorConfig.getExecuteSize() * 2, workerCount), 3, TimeUnit.SECONDS, new ThreadFactoryBuilder().setNameFormat(processorConfig.getName() + "-Processor_thread_-%d").build(), null);
+        String waitStrategy = waitStrategy(processorConfig);
+        logger.info("{} start with {} shards, ring buffer size {}, wait strategy {}", processorConfig.getName(), shardCount, ringBufferSize, waitStrategy);
+        disruptors = new Disruptor[shardCount];
+        ringBuffers = new RingBuffer[shardCount];
+        Sequence[][][] digesterSequences = new Sequence[shardCount][digesterCount][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            Disruptor<DigestJob> disruptor = new Disruptor<>(DigestJob.EVENT_FACTORY, ringBufferSize, es, ProducerType.MULTI, WaitStrategies.create(waitStrategy, workerCount));
+            for (int i = 0; i < digesterCount; i++) {
+                DataDigester digester = processorConfig.getDigesters()[i];
+                int poolSize = workersPerShard(digester, shardCount);
+                DigesterWorkerHanlder[] workers = new DigesterWorkerHanlder[poolSize];
+                for (int j = 0; j < poolSize; j++) {
+                    workers[j] = new DigesterWorkerHanlder(digester, metrics.getDigesterLatency(i));
+                }
+                digesterSequences[shard][i] = disruptor.handleEventsWithWorkerPool(workers).getSequences();
             }
-            disruptor.handleEventsWithWorkerPool(workers);
+            disruptors[shard] = disruptor;
+            ringBuffers[shard] = disruptor.start();
         }
 
-        ringBuffer = disruptor.start();
+        admissionController = new AdmissionController(ringBufferSize, processorConfig.getRingBufferRemainRate());
+        configureAdmission(admissionController);
+        metrics.bind(ringBuffers, digesterSequences, admissionController);
+        ProcessorMetrics.register(metrics);
 
-        monitor();
+        Scheduler scheduler = new Scheduler(1);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                configureAdmission(admissionController);
+                admissionController.refresh(metrics.published(), metrics.queueDepth(), System.currentTimeMillis());
+            } catch (Throwable e) {
+                logger.warn("refresh admission fail", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        monitor(scheduler);
+    }
+
+    private static int workersPerShard(DataDigester digester, int shardCount) {
+        if (shardCount == 1) {
+            return digester.threadCount();
+        }
+        return Math.max(1, (digester.threadCount() + shardCount - 1) / shardCount);
     }
 
     /**
@@ -93,7 +144,10 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
      */
     @Override
     public void stop() throws Exception {
-        disruptor.shutdown();
+        ProcessorMetrics.unregister(metrics);
+        for (Disruptor<DigestJob> disruptor : disruptors) {
+            disruptor.shutdown();
+        }
     }
 
     /**
@@ -105,19 +159,92 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
     }
 
     /**
-     * 判断是否还有空余空间提交数据条数
+     * 判断是否还有空余空间提交数据条数。
+     * 超过保留线之后由 {@link AdmissionController} 按类别丢弃或拒绝数据，这里只在 ringbuffer 真正放不下时拒绝。
+     * 分片时按数据均匀分布估算，要求最满的分片能放下 size / 分片数 条
      *
      * @param size
      * @return
      */
     @Override
     public boolean canPublish(int size) {
-        if (ringBuffer.hasAvailableCapacity((int) (processorConfig.getRingBufferRemainRate() * processorConfig.getRingBufferSize()))) {
+        int share = (size + ringBuffers.length - 1) / ringBuffers.length;
+        if (minRemainingCapacity() >= share) {
             return true;
         }
-        String logText = processorConfig.getName() + "ringbuffer remaining capacity:" + ringBuffer.remainingCapacity() + " total capacity:" + ringBuffer.getBufferSize();
+        throw reject();
+    }
+
+    private RingBufferIllegalStateException reject() {
+        admissionController.reject();
+        long remaining = 0;
+        long total = 0;
+        for (RingBuffer<DigestJob> ringBuffer : ringBuffers) {
+            remaining += ringBuffer.remainingCapacity();
+            total += ringBuffer.getBufferSize();
+        }
+        String logText = processorConfig.getName() + "ringbuffer remaining capacity:" + remaining + " total capacity:" + total
+                + (ringBuffers.length > 1 ? " shards:" + ringBuffers.length + " min remaining capacity:" + minRemainingCapacity() : "");
         logger.error(logText);
-        throw new RingBufferIllegalStateException(logText);
+        return new RingBufferIllegalStateException(logText);
+    }
+
+    /**
+     * 最满的分片的剩余容量
+     */
+    private long minRemainingCapacity() {
+        long min = Long.MAX_VALUE;
+        for (RingBuffer<DigestJob> ringBuffer : ringBuffers) {
+            min = Math.min(min, ringBuffer.remainingCapacity());
+        }
+        return min;
+    }
+
+    /**
+     * 下游写入过载时只接收不可丢弃的数据，避免数据在 digester 之后的写入队列里堆积
+     */
+    private boolean isOverloaded() {
+        for (DataDigester digester : processorConfig.getDigesters()) {
+            if (digester instanceof BackPressure && ((BackPressure) digester).isOverloaded()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 当前负载下的丢弃级别，同一批数据使用同一个级别
+     */
+    private int shedLevel() {
+        return admissionController.shedLevel(admissionController.pressure(minRemainingCapacity(), isOverloaded()));
+    }
+
+    /**
+     * 判断一条数据是否接收，不在丢弃梯度中的类别过载时拒绝整个请求，由客户端退避后重试
+     */
+    private boolean admit(DigestContext<OUT> context, int shedLevel) {
+        if (shedLevel <= 0) {
+            return true;
+        }
+        String dataClass = classify(context);
+        if (admissionController.rejects(dataClass, shedLevel)) {
+            throw reject();
+        }
+        return admissionController.admit(dataClass, shedLevel);
+    }
+
+    @Override
+    public long backoffMillis() {
+        return admissionController.backoffMillis(admissionController.pressure(minRemainingCapacity(), isOverloaded()));
+    }
+
+    private int shardOf(DigestContext<OUT> context) {
+        if (ringBuffers.length == 1) {
+            return 0;
+        }
+        int hash = partition(context);
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % ringBuffers.length;
     }
 
     /**
@@ -132,39 +259,90 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
         if (data == null || removeDelay(null, data.getEventTime(), data.getProcessTime(), String.valueOf(data))) {
             return;
         }
+        if (!admit(data, shedLevel())) {
+            return;
+        }
+        RingBuffer<DigestJob> ringBuffer = ringBuffers[shardOf(data)];
         long seq = ringBuffer.next();
         DigestJob job = ringBuffer.get(seq);
         job.context = data;
         ringBuffer.publish(seq);
-        processCount.incrementAndGet();
+        metrics.published(1);
     }
 
     /**
-     * 发布多个数据。如果队列已满，丢出异常
+     * 发布多个数据。如果队列已满，丢出异常。
+     * 分片时先在所有涉及的分片上申请位置，任一分片放不下时已申请的位置以空数据发布（worker 会跳过），
+     * 整个请求被拒绝，不会出现部分数据已发布、客户端重发后重复的情况
      *
      * @throws InterruptedException 阻塞期间被打断时抛出的异常
      */
     @Override
+    @SuppressWarnings("unchecked")
     public void publish(List<DigestContext<OUT>> datas) throws InterruptedException {
-        try {
-            if (datas.isEmpty()) {
-                return;
+        if (datas.isEmpty()) {
+            return;
+        }
+        if (ringBuffers.length == 1) {
+            long hi = claim(ringBuffers[0], datas.size());
+            fill(ringBuffers[0], hi, datas);
+            metrics.published(datas.size());
+            return;
+        }
+        List<DigestContext<OUT>>[] shards = new List[ringBuffers.length];
+        for (DigestContext<OUT> data : datas) {
+            int shard = shardOf(data);
+            if (shards[shard] == null) {
+                shards[shard] = Lists.newArrayList();
+            }
+            shards[shard].add(data);
+        }
+        long[] claimed = new long[shards.length];
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (shards[shard] == null) {
+                continue;
+            }
+            try {
+                claimed[shard] = claim(ringBuffers[shard], shards[shard].size());
+            } catch (RingBufferIllegalStateException e) {
+                for (int i = 0; i < shard; i++) {
+                    if (shards[i] != null) {
+                        fill(ringBuffers[i], claimed[i], Collections.<DigestContext<OUT>>nCopies(shards[i].size(), null));
+                    }
+                }
+                throw e;
             }
-            int size = datas.size();
-            long seq = ringBuffer.tryNext(size);
-            for (int i = 0; i < size; i++) {
-                DigestJob job = ringBuffer.get(seq - i);
-                job.context = datas.get(i);
-                ringBuffer.publish(seq - i);
-                processCount.incrementAndGet();
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (shards[shard] != null) {
+                fill(ringBuffers[shard], claimed[shard], shards[shard]);
             }
+        }
+        metrics.published(datas.size());
+    }
+
+    /**
+     * 申请 size 个位置，返回最后一个位置
+     */
+    private long claim(RingBuffer<DigestJob> ringBuffer, int size) {
+        try {
+            return ringBuffer.tryNext(size);
         } catch (InsufficientCapacityException e) {
-            String logText = processorConfig.getName() + "ringbuffer remaining capacity:" + ringBuffer.remainingCapacity() + " total capacity:" + ringBuffer.getBufferSize();
-            logger.error(logText);
-            throw new RingBufferIllegalStateException(logText);
+            throw reject();
         }
     }
 
+    /**
+     * 按顺序写入并发布已申请的位置
+     */
+    private void fill(RingBuffer<DigestJob> ringBuffer, long hi, List<DigestContext<OUT>> datas) {
+        long lo = hi - datas.size() + 1;
+        for (int i = 0; i < datas.size(); i++) {
+            ringBuffer.get(lo + i).context = datas.get(i);
+        }
+        ringBuffer.publish(lo, hi);
+    }
+
     /**
      * 发布一个数据。如果队列已满，丢出异常
      *
@@ -194,6 +372,7 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
 
         canPublish(datas.size());
         DataParser<IN, OUT> dataParser = getDataParser(header);
+        int shedLevel = shedLevel();
         List<DigestContext<OUT>> list = Lists.newArrayList();
         for (IN data : datas) {
             DigestContext<OUT> context = null;
@@ -202,9 +381,14 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
                 if (context == null || removeDelay(header, context.getEventTime(), context.getProcessTime(), String.valueOf(data))) {
                     continue;
                 }
+                if (!admit(context, shedLevel)) {
+                    continue;
+                }
                 //检查延时日志
                 checkDelay(header, context.getEventTime(), context.getProcessTime(), String.valueOf(data));
                 list.add(context);
+            } catch (RingBufferIllegalStateException e) {
+                throw e;
             } catch (Exception e) {
                 continue;
             }
@@ -213,24 +397,130 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
         publish(list);
     }
 
-    private void monitor() {
-        Scheduler scheduler = new Scheduler(1);
+    /**
+     * 按字节发布一个请求体。解析器实现了 {@link BytesDataParser} 时直接在字节上按行解析，
+     * 否则退回到字符串切分的方式
+     *
+     * @param header
+     * @param body
+     * @param dataType
+     * @throws InterruptedException 阻塞期间被打断时抛出的异常
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void publishBytes(Map<String, Object> header, byte[] body, Byte dataType) throws InterruptedException {
+        DataParser<IN, OUT> dataParser = getDataParser(header);
+        if (!(dataParser instanceof BytesDataParser)) {
+            publish(header, (List<IN>) (List) splitLog(new String(body, Bytes.UTF_8), dataType));
+            return;
+        }
+
+        ByteLineScanner scanner = new ByteLineScanner(body, lineDelimiter(dataType));
+        canPublish(scanner.remainingLines());
+        BytesDataParser<OUT> bytesDataParser = (BytesDataParser<OUT>) dataParser;
+        byte[] suffix = bytesDataParser.lineSuffix(header);
+        int shedLevel = shedLevel();
+        List<DigestContext<OUT>> list = Lists.newArrayList();
+        while (scanner.next()) {
+            try {
+                DigestContext<OUT> context = bytesDataParser.createContext(header, body, scanner.lineOffset(), scanner.lineLength(), suffix);
+                //字节路径不为每行额外构造原文字符串
+                if (context == null || removeDelay(header, context.getEventTime(), context.getProcessTime(), null)) {
+                    continue;
+                }
+                if (!admit(context, shedLevel)) {
+                    continue;
+                }
+                checkDelay(header, context.getEventTime(), context.getProcessTime(), null);
+                list.add(context);
+            } catch (RingBufferIllegalStateException e) {
+                throw e;
+            } catch (Exception e) {
+                continue;
+            }
+        }
+        publish(list);
+    }
+
+    /**
+     * 字节发布时使用的行分隔符，默认与 {@link #splitLog} 保持一致
+     *
+     * @param dataType
+     * @return
+     */
+    protected byte[] lineDelimiter(Byte dataType) {
+        return ByteLineScanner.CRLF;
+    }
+
+    /**
+     * 数据的类别，过载时按类别决定丢弃顺序，默认所有数据同一类别
+     *
+     * @param context
+     * @return
+     */
+    protected String classify(DigestContext<OUT> context) {
+        return AdmissionController.DEFAULT_CLASS;
+    }
+
+    /**
+     * 分片时数据的分区键，相同分区键的数据进入同一个分片，默认按对象随机分布
+     *
+     * @param context
+     * @return
+     */
+    protected int partition(DigestContext<OUT> context) {
+        return System.identityHashCode(context);
+    }
+
+    /**
+     * ringbuffer 的等待策略名称，启动时调用一次，默认使用 {@link ProcessorConfigSpec#getWaitStrategy}
+     *
+     * @param processorConfig
+     * @return
+     */
+    protected String waitStrategy(ProcessorConfigSpec processorConfig) {
+        return processorConfig.getWaitStrategy();
+    }
+
+    /**
+     * 更新准入配置，启动时和之后每秒调用一次，默认不按类别丢弃，超过保留线后拒绝请求
+     *
+     * @param admissionController
+     */
+    protected void configureAdmission(AdmissionController admissionController) {
+    }
+
+    private void monitor(Scheduler scheduler) {
         long interval = TimeUnit.MINUTES.toMillis(1);
         long now = System.currentTimeMillis();
         long delay = DateUtils.truncateToMinute(now + interval) - now;
+        int digesterCount = processorConfig.getDigesters().length;
         scheduler.scheduleAtFixedRate(new Runnable() {
+            // 上一次输出时的累计值，日志只输出一分钟内的增量
+            private final long[] lastCount = new long[digesterCount];
+            private final long[] lastSum = new long[digesterCount];
+
             @Override
             public void run() {
                 StringBuilder appender = new StringBuilder(256);
                 appender.append(processorConfig.getName() + " Process Time");
-                for (int i = 0; i < processorConfig.getDigesters().length; ++i) {
-                    long timeCost = digesterTimeCost[i];
+                for (int i = 0; i < digesterCount; ++i) {
+                    ConcurrentLatencyHistogram latency = metrics.getDigesterLatency(i);
+                    LatencyHistogram snapshot = latency.snapshot();
+                    long sum = latency.getSum();
+                    long count = snapshot.getTotalCount() - lastCount[i];
+                    long timeCostMicros = sum - lastSum[i];
+                    lastCount[i] = snapshot.getTotalCount();
+                    lastSum[i] = sum;
                     appender.append("\n  ").append(processorConfig.getDigesters()[i].getClass().getSimpleName()).append(": ")
-                            .append(FormatUtils.humanReadableTimeSpan(timeCost)).append(", about ")
-                            .append(FormatUtils.roundx4(divide(timeCost, processCount.get()))).append(" ms/line").append(" line:").append(processCount.get());
-                    digesterTimeCost[i] = 0;
+                            .append(FormatUtils.humanReadableTimeSpan(timeCostMicros / 1000)).append(", about ")
+                            .append(FormatUtils.roundx4(divide(timeCostMicros / 1000d, count))).append(" ms/line").append(" line:").append(count)
+                            .append(", p99 since start: ").append(FormatUtils.roundx4(snapshot.percentile(0.99) / 1000d)).append(" ms")
+                            .append(", lag: ").append(metrics.lag(i));
                 }
-                processCount = new AtomicLong(0);
+                appender.append("\n  queue depth: ").append(metrics.queueDepth());
+                appender.append("\n  dropped: ").append(admissionController.getDropped())
+                        .append(", rejected: ").append(admissionController.getRejected());
                 logger.warn(appender.toString());
             }
         }, delay, interval, TimeUnit.MILLISECONDS);
@@ -248,4 +538,12 @@ public abstract class DefaultProcessor<IN extends Serializable, OUT extends Seri
     public void setProcessorConfig(ProcessorConfigSpec processorConfig) {
         this.processorConfig = processorConfig;
     }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    public ProcessorMetrics getMetrics() {
+        return metrics;
+    }
 }
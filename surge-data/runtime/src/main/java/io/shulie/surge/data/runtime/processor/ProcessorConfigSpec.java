@@ -27,6 +27,10 @@ public abstract class ProcessorConfigSpec<T extends DefaultProcessor> implements
     private int ringBufferSize = 32768;
     //ringbuffer保留率
     private float ringBufferRemainRate = 0.2f;
+    //ringbuffer分片数,大于1时按 DefaultProcessor#partition 分到多个独立的ringbuffer,总长度不变
+    private int shardCount = 1;
+    //ringbuffer等待策略,见 WaitStrategies
+    private String waitStrategy = WaitStrategies.SLEEPING;
     //执行器名称
     private String name;
 
@@ -70,6 +74,24 @@ public abstract class ProcessorConfigSpec<T extends DefaultProcessor> implements
         this.ringBufferRemainRate = ringBufferRemainRate;
     }
 
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public void setShardCount(int shardCount) {
+        if (shardCount > 0) {
+            this.shardCount = shardCount;
+        }
+    }
+
+    public String getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public void setWaitStrategy(String waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+import io.shulie.surge.data.common.aggregation.metrics.ConcurrentLatencyHistogram;
+import io.shulie.surge.data.common.aggregation.metrics.LatencyHistogram;
+import io.shulie.surge.data.common.batch.SpillBuffer;
+import io.shulie.surge.data.runtime.digest.DataDigester;
+import io.shulie.surge.data.runtime.disruptor.RingBuffer;
+import io.shulie.surge.data.runtime.disruptor.Sequence;
+import io.shulie.surge.data.runtime.disruptor.util.Util;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个 {@link DefaultProcessor} 的运行指标：队列深度、每个 digester 的消费延迟和处理耗时分布、拒绝和丢弃条数。
+ * 处理器分片时队列深度、延迟和发布条数是所有分片之和，另外按分片输出队列深度，用于发现分片倾斜。
+ * <p>
+ * 处理器启动时注册到进程内的列表，{@link #writePrometheus} 按处理器名称合并后输出 Prometheus 文本格式，
+ * 同一进程内多个同名处理器（如多个 spout 任务）的计数相加、耗时分布合并。
+ * 耗时以微秒记录，输出时转换为秒，分位值是启动以来的累计分布。
+ * 同时输出进程内所有 {@link SpillBuffer} 的落盘积压和重放进度
+ *
+ * @author pamirs
+ */
+public class ProcessorMetrics {
+
+    private static final List<ProcessorMetrics> REGISTRY = new CopyOnWriteArrayList<>();
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String name;
+    private final String[] digesterNames;
+    private final ConcurrentLatencyHistogram[] digesterLatency;
+    private final LongAdder published = new LongAdder();
+
+    private volatile RingBuffer<?>[] ringBuffers;
+    private volatile Sequence[][][] digesterSequences;
+    private volatile AdmissionController admissionController;
+
+    public ProcessorMetrics(String name, DataDigester[] digesters) {
+        this.name = name;
+        this.digesterNames = new String[digesters.length];
+        this.digesterLatency = new ConcurrentLatencyHistogram[digesters.length];
+        for (int i = 0; i < digesters.length; i++) {
+            Class<?> type = digesters[i].getClass();
+            digesterNames[i] = type.getSimpleName().isEmpty() ? type.getName() : type.getSimpleName();
+            digesterLatency[i] = new ConcurrentLatencyHistogram();
+        }
+    }
+
+    /**
+     * 处理器启动后关联 ringbuffer 和各 digester 的消费进度
+     *
+     * @param ringBuffers         每个分片的 ringbuffer
+     * @param digesterSequences   每个分片中每个 digester 的 worker 消费进度
+     * @param admissionController 准入控制
+     */
+    void bind(RingBuffer<?>[] ringBuffers, Sequence[][][] digesterSequences, AdmissionController admissionController) {
+        this.ringBuffers = ringBuffers;
+        this.digesterSequences = digesterSequences;
+        this.admissionController = admissionController;
+    }
+
+    public static void register(ProcessorMetrics metrics) {
+        REGISTRY.add(metrics);
+    }
+
+    public static void unregister(ProcessorMetrics metrics) {
+        REGISTRY.remove(metrics);
+    }
+
+    /**
+     * 第 index 个 digester 的耗时分布，单位微秒
+     */
+    public ConcurrentLatencyHistogram getDigesterLatency(int index) {
+        return digesterLatency[index];
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 已发布但还没有被所有 digester 处理完的条数
+     */
+    public long queueDepth() {
+        RingBuffer<?>[] ringBuffers = this.ringBuffers;
+        long depth = 0;
+        for (int shard = 0; ringBuffers != null && shard < ringBuffers.length; shard++) {
+            depth += queueDepth(shard);
+        }
+        return depth;
+    }
+
+    /**
+     * 单个分片已发布但还没有被所有 digester 处理完的条数
+     */
+    public long queueDepth(int shard) {
+        RingBuffer<?> ringBuffer = ringBuffers[shard];
+        return ringBuffer.getBufferSize() - ringBuffer.remainingCapacity();
+    }
+
+    /**
+     * 分片数，启动前为 0
+     */
+    public int shards() {
+        RingBuffer<?>[] ringBuffers = this.ringBuffers;
+        return ringBuffers == null ? 0 : ringBuffers.length;
+    }
+
+    /**
+     * 第 index 个 digester 落后于发布位置的条数
+     */
+    public long lag(int index) {
+        RingBuffer<?>[] ringBuffers = this.ringBuffers;
+        Sequence[][][] sequences = this.digesterSequences;
+        if (ringBuffers == null || sequences == null) {
+            return 0;
+        }
+        long lag = 0;
+        for (int shard = 0; shard < ringBuffers.length; shard++) {
+            long cursor = ringBuffers[shard].getCursor();
+            lag += Math.max(0, cursor - Util.getMinimumSequence(sequences[shard][index], cursor));
+        }
+        return lag;
+    }
+
+    /**
+     * 记录发布到 ringbuffer 的数据条数，批量发布被拒绝时以空数据发布的位置不计入
+     */
+    void published(int count) {
+        published.add(count);
+    }
+
+    /**
+     * 累计发布到 ringbuffer 的条数，不包含批量发布被拒绝时以空数据占用的位置
+     */
+    public long published() {
+        return published.sum();
+    }
+
+    /**
+     * 以 Prometheus 文本格式输出所有已注册处理器的指标
+     *
+     * @param out 输出
+     * @throws IOException 写出失败
+     */
+    public static void writePrometheus(Appendable out) throws IOException {
+        Map<String, Merged> merged = new TreeMap<>();
+        for (ProcessorMetrics metrics : REGISTRY) {
+            merged.computeIfAbsent(metrics.name, Merged::new).add(metrics);
+        }
+
+        header(out, "surge_processor_queue_depth", "gauge", "events published to the ring buffer but not yet processed by every digester");
+        for (Merged m : merged.values()) {
+            sample(out, "surge_processor_queue_depth", labels("processor", m.name), m.queueDepth);
+        }
+        header(out, "surge_processor_shard_queue_depth", "gauge", "queue depth of each ring buffer shard");
+        for (Merged m : merged.values()) {
+            for (int shard = 0; shard < m.shardDepth.size(); shard++) {
+                sample(out, "surge_processor_shard_queue_depth", labels("processor", m.name, "shard", String.valueOf(shard)), m.shardDepth.get(shard));
+            }
+        }
+        header(out, "surge_processor_ring_buffer_size", "gauge", "ring buffer capacity of all shards");
+        for (Merged m : merged.values()) {
+            sample(out, "surge_processor_ring_buffer_size", labels("processor", m.name), m.bufferSize);
+        }
+        header(out, "surge_processor_published_total", "counter", "events published to the ring buffer");
+        for (Merged m : merged.values()) {
+            sample(out, "surge_processor_published_total", labels("processor", m.name), m.published);
+        }
+        header(out, "surge_processor_rejected_total", "counter", "publish requests rejected because the ring buffer was full");
+        for (Merged m : merged.values()) {
+            sample(out, "surge_processor_rejected_total", labels("processor", m.name), m.rejected);
+        }
+        header(out, "surge_processor_dropped_total", "counter", "events shed by admission control");
+        for (Merged m : merged.values()) {
+            for (Map.Entry<String, Long> entry : m.dropped.entrySet()) {
+                sample(out, "surge_processor_dropped_total", labels("processor", m.name, "class", entry.getKey()), entry.getValue());
+            }
+        }
+        header(out, "surge_digester_lag", "gauge", "events the digester is behind the ring buffer cursor");
+        for (Merged m : merged.values()) {
+            for (Map.Entry<String, Long> entry : m.lag.entrySet()) {
+                sample(out, "surge_digester_lag", labels("processor", m.name, "digester", entry.getKey()), entry.getValue());
+            }
+        }
+        header(out, "surge_digester_latency_seconds", "summary", "time spent in DataDigester.digest per event");
+        for (Merged m : merged.values()) {
+            for (Map.Entry<String, LatencyHistogram> entry : m.latency.entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                for (double quantile : QUANTILES) {
+                    sample(out, "surge_digester_latency_seconds",
+                            labels("processor", m.name, "digester", entry.getKey(), "quantile", String.valueOf(quantile)),
+                            histogram.percentile(quantile) / 1e6);
+                }
+                String labels = labels("processor", m.name, "digester", entry.getKey());
+                sample(out, "surge_digester_latency_seconds_sum", labels, m.latencySum.get(entry.getKey()) / 1e6);
+                sample(out, "surge_digester_latency_seconds_count", labels, histogram.getTotalCount());
+            }
+        }
+        writeSpill(out);
+    }
+
+    /**
+     * 存储不可用时落盘的批次和重放进度
+     */
+    private static void writeSpill(Appendable out) throws IOException {
+        List<SpillBuffer<?>> buffers = new ArrayList<>(SpillBuffer.all());
+        buffers.sort(Comparator.comparing(SpillBuffer::getName));
+        header(out, "surge_spill_pending_batches", "gauge", "spilled batches waiting to be replayed");
+        for (SpillBuffer<?> buffer : buffers) {
+            sample(out, "surge_spill_pending_batches", labels("buffer", buffer.getName()), buffer.getPendingBatches());
+        }
+        header(out, "surge_spill_pending_bytes", "gauge", "bytes of spilled batches waiting to be replayed");
+        for (SpillBuffer<?> buffer : buffers) {
+            sample(out, "surge_spill_pending_bytes", labels("buffer", buffer.getName()), buffer.getPendingBytes());
+        }
+        header(out, "surge_spill_disk_bytes", "gauge", "disk space used by spill segment files");
+        for (SpillBuffer<?> buffer : buffers) {
+            sample(out, "surge_spill_disk_bytes", labels("buffer", buffer.getName()), buffer.getDiskBytes());
+        }
+        header(out, "surge_spill_spilled_total", "counter", "batches spilled to disk since start");
+        for (SpillBuffer<?> buffer : buffers) {
+            sample(out, "surge_spill_spilled_total", labels("buffer", buffer.getName()), buffer.getSpilledBatches());
+        }
+        header(out, "surge_spill_replayed_total", "counter", "spilled batches replayed to the sink since start");
+        for (SpillBuffer<?> buffer : buffers) {
+            sample(out, "surge_spill_replayed_total", labels("buffer", buffer.getName()), buffer.getReplayedBatches());
+        }
+        header(out, "surge_spill_lost_total", "counter", "spilled batches lost by eviction, write failure or decode failure");
+        for (SpillBuffer<?> buffer : buffers) {
+            String name = buffer.getName();
+            sample(out, "surge_spill_lost_total", labels("buffer", name, "reason", "evicted"), buffer.getEvictedBatches());
+            sample(out, "surge_spill_lost_total", labels("buffer", name, "reason", "failed"), buffer.getFailedBatches());
+            sample(out, "surge_spill_lost_total", labels("buffer", name, "reason", "discarded"), buffer.getDiscardedBatches());
+        }
+    }
+
+    private static void header(Appendable out, String metric, String type, String help) throws IOException {
+        out.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String metric, String labels, long value) throws IOException {
+        out.append(metric).append(labels).append(' ').append(String.valueOf(value)).append('\n');
+    }
+
+    private static void sample(Appendable out, String metric, String labels, double value) throws IOException {
+        out.append(metric).append(labels).append(' ').append(String.valueOf(value)).append('\n');
+    }
+
+    private static String labels(String... pairs) {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(pairs[i]).append("=\"");
+            String value = pairs[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    builder.append('\\').append(c);
+                } else if (c == '\n') {
+                    builder.append("\\n");
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+        return builder.append('}').toString();
+    }
+
+    /**
+     * 同名处理器合并后的指标
+     */
+    private static final class Merged {
+        private final String name;
+        private long queueDepth;
+        private final List<Long> shardDepth = new ArrayList<>();
+        private long bufferSize;
+        private long published;
+        private long rejected;
+        private final Map<String, Long> dropped = new TreeMap<>();
+        private final Map<String, Long> lag = new LinkedHashMap<>();
+        private final Map<String, LatencyHistogram> latency = new LinkedHashMap<>();
+        private final Map<String, Long> latencySum = new HashMap<>();
+
+        Merged(String name) {
+            this.name = name;
+        }
+
+        void add(ProcessorMetrics metrics) {
+            RingBuffer<?>[] ringBuffers = metrics.ringBuffers;
+            for (int shard = 0; ringBuffers != null && shard < ringBuffers.length; shard++) {
+                bufferSize += ringBuffers[shard].getBufferSize();
+                long depth = metrics.queueDepth(shard);
+                if (shard < shardDepth.size()) {
+                    shardDepth.set(shard, shardDepth.get(shard) + depth);
+                } else {
+                    shardDepth.add(depth);
+                }
+            }
+            queueDepth += metrics.queueDepth();
+            published += metrics.published();
+            AdmissionController admissionController = metrics.admissionController;
+            if (admissionController != null) {
+                rejected += admissionController.getRejected();
+                for (Map.Entry<String, Long> entry : admissionController.getDropped().entrySet()) {
+                    dropped.merge(entry.getKey(), entry.getValue(), Long::sum);
+                }
+            }
+            for (int i = 0; i < metrics.digesterNames.length; i++) {
+                String digester = metrics.digesterNames[i];
+                lag.merge(digester, metrics.lag(i), Long::sum);
+                latency.computeIfAbsent(digester, k -> new LatencyHistogram()).merge(metrics.digesterLatency[i].snapshot());
+                latencySum.merge(digester, metrics.digesterLatency[i].getSum(), Long::sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+import io.shulie.surge.data.runtime.disruptor.*;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 按名称创建 ringbuffer 的等待策略：
+ * <ul>
+ * <li>sleeping：默认，自旋、yield 后 parkNanos(1)，空闲时仍持续占用少量 CPU</li>
+ * <li>blocking：锁和条件变量，空闲不占 CPU，每次发布都要加锁通知</li>
+ * <li>yielding：自旋后一直 yield，延迟低，空闲时占满 CPU</li>
+ * <li>busy-spin：一直自旋，只适合消费线程少于 CPU 核数的场景</li>
+ * <li>adaptive：{@link AdaptiveWaitStrategy}，按最近的等待时间在自旋、yield、park、阻塞之间切换</li>
+ * </ul>
+ *
+ * @author pamirs
+ */
+public final class WaitStrategies {
+    private static final Logger logger = LoggerFactory.getLogger(WaitStrategies.class);
+
+    public static final String SLEEPING = "sleeping";
+    public static final String BLOCKING = "blocking";
+    public static final String YIELDING = "yielding";
+    public static final String BUSY_SPIN = "busy-spin";
+    public static final String ADAPTIVE = "adaptive";
+
+    private WaitStrategies() {
+    }
+
+    /**
+     * 创建等待策略，名称无法识别时使用 sleeping
+     *
+     * @param name      策略名称
+     * @param consumers 使用该策略的消费线程总数，决定 adaptive 是否自旋
+     * @return
+     */
+    public static WaitStrategy create(String name, int consumers) {
+        String strategy = StringUtils.trimToEmpty(name).toLowerCase();
+        switch (strategy) {
+            case "":
+            case SLEEPING:
+                return new SleepingWaitStrategy();
+            case BLOCKING:
+                return new BlockingWaitStrategy();
+            case YIELDING:
+                return new YieldingWaitStrategy();
+            case BUSY_SPIN:
+                return new BusySpinWaitStrategy();
+            case ADAPTIVE:
+                return new AdaptiveWaitStrategy(consumers);
+            default:
+                logger.warn("unknown wait strategy {}, use {}", name, SLEEPING);
+                return new SleepingWaitStrategy();
+        }
+    }
+
+    /**
+     * 从配置中取出某个 processor 的等待策略。
+     * <p>
+     * 配置为逗号分隔的 processor=策略，不带 processor 的一项对所有 processor 生效，
+     * 如 {@code trace-log=adaptive,sleeping}
+     *
+     * @param config        配置
+     * @param processorName processor 名称
+     * @param defaultValue  配置中没有匹配项时的策略
+     * @return
+     */
+    public static String select(String config, String processorName, String defaultValue) {
+        String selected = defaultValue;
+        for (String item : StringUtils.split(StringUtils.trimToEmpty(config), ',')) {
+            int index = item.indexOf('=');
+            if (index < 0) {
+                selected = StringUtils.defaultIfBlank(item.trim(), selected);
+            } else if (StringUtils.equals(item.substring(0, index).trim(), processorName)) {
+                return item.substring(index + 1).trim();
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.disruptor;
+
+import io.shulie.surge.data.runtime.disruptor.dsl.Disruptor;
+import io.shulie.surge.data.runtime.disruptor.dsl.ProducerType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author pamirs
+ */
+public class AdaptiveWaitStrategyTest {
+
+    @Test
+    public void testWakeUpAfterIdle() throws Exception {
+        AdaptiveWaitStrategy strategy = new AdaptiveWaitStrategy(1);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        Disruptor<WaitStrategyBenchmark.Event> disruptor = new Disruptor<>(WaitStrategyBenchmark.Event.FACTORY, 64, executor, ProducerType.MULTI, strategy);
+        WaitStrategyBenchmark.LastSequenceHandler handler = new WaitStrategyBenchmark.LastSequenceHandler();
+        disruptor.handleEventsWith(handler);
+        RingBuffer<WaitStrategyBenchmark.Event> ringBuffer = disruptor.start();
+        try {
+            // 空闲一段时间后平均等待时间升高，消费线程进入阻塞，发布时仍能被及时唤醒
+            for (int i = 0; i < 20; i++) {
+                Thread.sleep(30);
+                long sequence = ringBuffer.next();
+                ringBuffer.publish(sequence);
+                waitConsumed(handler, sequence);
+            }
+            Assert.assertTrue(strategy.getAverageWaitNanos() > TimeUnit.MILLISECONDS.toNanos(10));
+
+            // 持续发布时平均等待时间下降
+            for (int i = 0; i < 100000; i++) {
+                long sequence = ringBuffer.next();
+                ringBuffer.publish(sequence);
+            }
+            waitConsumed(handler, ringBuffer.getCursor());
+            Assert.assertTrue(strategy.getAverageWaitNanos() < TimeUnit.MILLISECONDS.toNanos(10));
+        } finally {
+            disruptor.halt();
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    private static void waitConsumed(WaitStrategyBenchmark.LastSequenceHandler handler, long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (handler.last < sequence) {
+            Assert.assertTrue("not consumed in 1s", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
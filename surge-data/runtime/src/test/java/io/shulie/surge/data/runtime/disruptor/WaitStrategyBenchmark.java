@@ -0,0 +1,171 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.disruptor;
+
+import io.shulie.surge.data.runtime.disruptor.dsl.Disruptor;
+import io.shulie.surge.data.runtime.disruptor.dsl.ProducerType;
+import io.shulie.surge.data.runtime.processor.WaitStrategies;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 不同等待策略下发布到消费的往返延迟，以及 ringbuffer 空闲时消费线程的 CPU 占用。
+ * <p>
+ * gapMicros 为两次发布之间的空闲时间（不计入耗时），0 对应持续高负载，越大越接近低负载时的首条数据延迟；
+ * 空闲 CPU 在 {@link #main} 中用 {@link ThreadMXBean} 统计，不经过 JMH
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WaitStrategyBenchmark {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    @Param({WaitStrategies.SLEEPING, WaitStrategies.BLOCKING, WaitStrategies.YIELDING, WaitStrategies.ADAPTIVE})
+    private String strategy;
+
+    @Param({"0", "100", "1000"})
+    private long gapMicros;
+
+    private ExecutorService executor;
+    private Disruptor<Event> disruptor;
+    private RingBuffer<Event> ringBuffer;
+    private LastSequenceHandler handler;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executor = Executors.newCachedThreadPool();
+        disruptor = new Disruptor<>(Event.FACTORY, BUFFER_SIZE, executor, ProducerType.MULTI, WaitStrategies.create(strategy, 1));
+        handler = new LastSequenceHandler();
+        disruptor.handleEventsWith(handler);
+        ringBuffer = disruptor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        disruptor.halt();
+        executor.shutdownNow();
+    }
+
+    @Setup(Level.Invocation)
+    public void idle() {
+        if (gapMicros > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(gapMicros));
+        }
+    }
+
+    @Benchmark
+    public long roundTrip() {
+        long sequence = ringBuffer.next();
+        ringBuffer.get(sequence).value = sequence;
+        ringBuffer.publish(sequence);
+        while (handler.last < sequence) {
+            // 生产线程多于 CPU 核数时也不能饿死消费线程
+            Thread.yield();
+        }
+        return sequence;
+    }
+
+    /**
+     * 启动 consumers 个消费线程，发布一条数据后空闲 idleMillis，返回消费线程的 CPU 时间占空闲时间的比例，
+     * 1 表示平均占满一个核
+     */
+    public static double idleCpu(String strategy, int consumers, long idleMillis) throws InterruptedException {
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r);
+            threads.add(thread);
+            return thread;
+        });
+        Disruptor<Event> disruptor = new Disruptor<>(Event.FACTORY, BUFFER_SIZE, executor, ProducerType.MULTI, WaitStrategies.create(strategy, consumers));
+        LastSequenceHandler[] handlers = new LastSequenceHandler[consumers];
+        for (int i = 0; i < consumers; i++) {
+            handlers[i] = new LastSequenceHandler();
+        }
+        disruptor.handleEventsWith(handlers);
+        RingBuffer<Event> ringBuffer = disruptor.start();
+        long sequence = ringBuffer.next();
+        ringBuffer.publish(sequence);
+        for (LastSequenceHandler handler : handlers) {
+            while (handler.last < sequence) {
+                Thread.yield();
+            }
+        }
+        // 让自适应策略观察到空闲
+        Thread.sleep(200);
+
+        ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        long cpuBefore = 0;
+        for (Thread thread : threads) {
+            cpuBefore += mxBean.getThreadCpuTime(thread.getId());
+        }
+        long start = System.nanoTime();
+        Thread.sleep(idleMillis);
+        long cpuAfter = 0;
+        for (Thread thread : threads) {
+            cpuAfter += mxBean.getThreadCpuTime(thread.getId());
+        }
+        long elapsed = System.nanoTime() - start;
+
+        disruptor.halt();
+        executor.shutdownNow();
+        return (cpuAfter - cpuBefore) / (double) elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (String strategy : new String[]{WaitStrategies.SLEEPING, WaitStrategies.BLOCKING, WaitStrategies.YIELDING, WaitStrategies.ADAPTIVE}) {
+            for (int consumers : new int[]{1, 4, 16}) {
+                System.out.printf("idle cpu, strategy: %s, consumers: %d, cores: %.3f%n", strategy, consumers, idleCpu(strategy, consumers, 2000));
+            }
+        }
+        for (int threads : new int[]{1, 4, 16}) {
+            Options options = new OptionsBuilder()
+                    .include(WaitStrategyBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    static final class Event {
+        static final EventFactory<Event> FACTORY = Event::new;
+
+        long value;
+    }
+
+    static final class LastSequenceHandler implements EventHandler<Event> {
+        volatile long last = -1;
+
+        @Override
+        public void onEvent(Event event, long sequence, boolean endOfBatch) {
+            last = sequence;
+        }
+    }
+}
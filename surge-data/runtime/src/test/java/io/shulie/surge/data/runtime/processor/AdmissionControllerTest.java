@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author pamirs
+ */
+public class AdmissionControllerTest {
+
+    @Test
+    public void shedByLadderAndKeepKeptClasses() {
+        // 保留线为 80% 占用，50% 开始丢弃
+        AdmissionController controller = new AdmissionController(1000, 0.2f);
+        controller.configure("sampled,agent,trace", "error", 0.5f, 0);
+
+        Assert.assertEquals(0, controller.shedLevel(controller.pressure(600, false)));
+        Assert.assertTrue(controller.admit("sampled", 0));
+
+        // 占用 60%，负载 1/3，只丢弃梯度第一级
+        int level = controller.shedLevel(controller.pressure(400, false));
+        Assert.assertEquals(1, level);
+        Assert.assertFalse(controller.admit("sampled", level));
+        Assert.assertTrue(controller.admit("agent", level));
+        Assert.assertTrue(controller.admit("other", level));
+        Assert.assertFalse(controller.rejects("other", level));
+
+        // 超过保留线，梯度全部丢弃，未列出的类别拒绝整个请求
+        level = controller.shedLevel(controller.pressure(100, false));
+        Assert.assertFalse(controller.admit("trace", level));
+        Assert.assertFalse(controller.rejects("trace", level));
+        Assert.assertTrue(controller.rejects("other", level));
+        Assert.assertTrue(controller.admit("error", level));
+        Assert.assertFalse(controller.rejects("error", level));
+
+        // digester 过载等同于超过保留线
+        Assert.assertEquals(1, controller.pressure(1000, true), 0);
+        Assert.assertEquals(Long.valueOf(1), controller.getDropped().get("sampled"));
+        Assert.assertNull(controller.getDropped().get("other"));
+    }
+
+    @Test
+    public void rejectWithoutLadder() {
+        // 默认配置没有梯度，超过保留线时与原来一样拒绝，不丢弃数据
+        AdmissionController controller = new AdmissionController(1000, 0.2f);
+        int level = controller.shedLevel(controller.pressure(100, false));
+        Assert.assertTrue(level > 0);
+        Assert.assertTrue(controller.rejects(AdmissionController.DEFAULT_CLASS, level));
+        Assert.assertTrue(controller.admit(AdmissionController.DEFAULT_CLASS, level));
+        Assert.assertTrue(controller.getDropped().isEmpty());
+
+        // 保留线以下不拒绝
+        level = controller.shedLevel(controller.pressure(300, false));
+        Assert.assertFalse(controller.rejects(AdmissionController.DEFAULT_CLASS, level));
+
+        // kept 类别在超过保留线后仍然接收
+        controller.configure(null, "metrics", 0.8f, 0);
+        level = controller.shedLevel(controller.pressure(1000, true));
+        Assert.assertFalse(controller.rejects("metrics", level));
+        Assert.assertTrue(controller.rejects(AdmissionController.DEFAULT_CLASS, level));
+    }
+
+    @Test
+    public void drainTimeRaisesPressure() {
+        AdmissionController controller = new AdmissionController(1000, 0.2f);
+        controller.configure("", "", 0.5f, 1000);
+        // 积压 300 条，消费 100 条/秒，需要 3 秒排空
+        controller.refresh(300, 300, 0);
+        controller.refresh(400, 300, 1000);
+        Assert.assertEquals(1, controller.pressure(700, false), 0);
+        Assert.assertTrue(controller.backoffMillis(1) > controller.backoffMillis(0.1));
+        Assert.assertEquals(0, controller.backoffMillis(0));
+
+        // 积压消化后恢复
+        controller.refresh(400, 0, 2000);
+        Assert.assertEquals(0, controller.pressure(1000, false), 0);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+import io.shulie.surge.data.runtime.digest.DataDigester;
+import io.shulie.surge.data.runtime.digest.DigestContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author pamirs
+ */
+public class ProcessorMetricsTest {
+
+    @Test
+    public void sameNameProcessorsMerged() throws Exception {
+        ProcessorMetrics first = new ProcessorMetrics("trace-log", new DataDigester[]{new NoopDigester()});
+        ProcessorMetrics second = new ProcessorMetrics("trace-log", new DataDigester[]{new NoopDigester()});
+        ProcessorMetrics.register(first);
+        ProcessorMetrics.register(second);
+        try {
+            for (int i = 0; i < 90; i++) {
+                first.getDigesterLatency(0).record(100);
+            }
+            for (int i = 0; i < 10; i++) {
+                second.getDigesterLatency(0).record(10000);
+            }
+            first.published(3);
+            second.published(2);
+            StringBuilder out = new StringBuilder();
+            ProcessorMetrics.writePrometheus(out);
+            String text = out.toString();
+            Assert.assertTrue(text, text.contains("# TYPE surge_digester_latency_seconds summary\n"));
+            Assert.assertTrue(text, text.contains("surge_digester_latency_seconds_count{processor=\"trace-log\",digester=\"NoopDigester\"} 100\n"));
+            Assert.assertTrue(text, text.contains("surge_digester_latency_seconds_sum{processor=\"trace-log\",digester=\"NoopDigester\"} 0.109\n"));
+            Assert.assertTrue(text, text.contains("surge_processor_queue_depth{processor=\"trace-log\"} 0\n"));
+            Assert.assertTrue(text, text.contains("surge_processor_published_total{processor=\"trace-log\"} 5\n"));
+            String p99 = "surge_digester_latency_seconds{processor=\"trace-log\",digester=\"NoopDigester\",quantile=\"0.99\"} ";
+            int start = text.indexOf(p99) + p99.length();
+            double value = Double.parseDouble(text.substring(start, text.indexOf('\n', start)));
+            Assert.assertEquals(0.01, value, 0.0005);
+        } finally {
+            ProcessorMetrics.unregister(first);
+            ProcessorMetrics.unregister(second);
+        }
+    }
+
+    private static class NoopDigester implements DataDigester<String> {
+        @Override
+        public void digest(DigestContext<String> context) {
+        }
+
+        @Override
+        public int threadCount() {
+            return 1;
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.runtime.processor;
+
+import io.shulie.surge.data.runtime.digest.DataDigester;
+import io.shulie.surge.data.runtime.digest.DigestContext;
+import io.shulie.surge.data.runtime.disruptor.RingBufferIllegalStateException;
+import io.shulie.surge.data.runtime.parser.DataParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多个生产者并发发布时，单个 ringbuffer 与按 traceId 分片的多个 ringbuffer 的端到端吞吐。
+ * 队列满时生产者让出 CPU 后重试，因此吞吐受消费速度限制；digester 的总线程数在不同分片数下相同
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardedProcessorBenchmark {
+
+    private static final int BATCH = 64;
+    private static final int TRACES = 4096;
+
+    @Param({"1", "4", "16"})
+    private int shards;
+
+    private BenchProcessor processor;
+
+    private List<DigestContext<String>> contexts;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        contexts = new ArrayList<>(TRACES);
+        for (int i = 0; i < TRACES; i++) {
+            DigestContext<String> context = new DigestContext<>();
+            context.setContent("trace-" + i);
+            contexts.add(context);
+        }
+        BenchSpec spec = new BenchSpec();
+        spec.setName("bench");
+        spec.setShardCount(shards);
+        spec.setExecuteSize(16);
+        spec.setDigesters(new DataDigester[]{new HashDigester(16)});
+        processor = new BenchProcessor();
+        processor.setProcessorConfig(spec);
+        processor.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        processor.stop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void publishBatch() throws InterruptedException {
+        int offset = ThreadLocalRandom.current().nextInt(TRACES - BATCH);
+        List<DigestContext<String>> batch = contexts.subList(offset, offset + BATCH);
+        while (true) {
+            try {
+                processor.publish(batch);
+                return;
+            } catch (RingBufferIllegalStateException e) {
+                Thread.yield();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads : new int[]{1, 4, 16}) {
+            Options options = new OptionsBuilder()
+                    .include(ShardedProcessorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    /**
+     * 按 content 分片，对应 trace 日志按 traceId 分片
+     */
+    static final class BenchProcessor extends DefaultProcessor<String, String> {
+
+        @Override
+        protected int partition(DigestContext<String> context) {
+            return context.getContent().hashCode();
+        }
+
+        @Override
+        protected DataParser<String, String> getDataParser(Map<String, Object> header) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeDelay(Map<String, Object> header, long eventTime, long processTime, String log) {
+            return false;
+        }
+
+        @Override
+        public boolean checkDelay(Map<String, Object> header, long eventTime, long processTime, String log) {
+            return false;
+        }
+
+        @Override
+        public List<String> splitLog(String content, Byte dataType) {
+            return Collections.singletonList(content);
+        }
+    }
+
+    static final class BenchSpec extends ProcessorConfigSpec<BenchProcessor> {
+        @Override
+        public Class<BenchProcessor> productClass() {
+            return BenchProcessor.class;
+        }
+
+        @Override
+        public String factoryName() {
+            return "bench";
+        }
+    }
+
+    /**
+     * 少量计算，模拟一个轻量 digester
+     */
+    static final class HashDigester implements DataDigester<String> {
+        private final int threads;
+        private volatile int sink;
+
+        HashDigester(int threads) {
+            this.threads = threads;
+        }
+
+        @Override
+        public void digest(DigestContext<String> context) {
+            sink = context.getContent().hashCode() * 31;
+        }
+
+        @Override
+        public int threadCount() {
+            return threads;
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+/**
+ * clickhouse 列定义，用于 RowBinary 编码
+ *
+ * @author pamirs
+ */
+public final class ClickHouseColumn {
+
+    /**
+     * 支持的列类型
+     */
+    public enum Type {
+        STRING,
+        INT8,
+        INT32,
+        INT64,
+        /**
+         * 秒级时间，RowBinary 中为 UInt32
+         */
+        DATETIME
+    }
+
+    private final String name;
+    private final Type type;
+    private final boolean nullable;
+
+    private ClickHouseColumn(String name, Type type, boolean nullable) {
+        this.name = name;
+        this.type = type;
+        this.nullable = nullable;
+    }
+
+    public static ClickHouseColumn of(String name, Type type) {
+        return new ClickHouseColumn(name, type, false);
+    }
+
+    public static ClickHouseColumn nullable(String name, Type type) {
+        return new ClickHouseColumn(name, type, true);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isNullable() {
+        return nullable;
+    }
+
+    @Override
+    public String toString() {
+        return name + (nullable ? " Nullable(" + type + ")" : " " + type);
+    }
+}
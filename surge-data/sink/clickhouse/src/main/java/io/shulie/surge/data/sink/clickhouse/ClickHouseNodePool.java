@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.clickhouse.ClickHouseConnection;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个 clickhouse 节点的连接池与健康状态
+ * <p>
+ * 连续失败达到阈值后摘除一段时间，摘除时长按次数指数退避，成功一次即恢复
+ *
+ * @author pamirs
+ */
+public class ClickHouseNodePool {
+    private static final Logger logger = LoggerFactory.getLogger(ClickHouseNodePool.class);
+
+    private final String url;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final int failureThreshold;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private final ConcurrentLinkedDeque<IdleConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicInteger ejections = new AtomicInteger();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long ejectedUntil;
+
+    ClickHouseNodePool(String url, int maxIdle, long idleTimeoutMillis, int failureThreshold,
+                       long baseBackoffMillis, long maxBackoffMillis) {
+        this.url = url;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.failureThreshold = failureThreshold;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * 取一个空闲连接，没有时返回 null，由调用方新建。超过空闲时长的连接直接关闭
+     *
+     * @return
+     */
+    ClickHouseConnection pollIdle() {
+        long now = System.currentTimeMillis();
+        IdleConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (now - entry.since > idleTimeoutMillis || isClosed(entry.connection)) {
+                closeQuietly(entry.connection);
+                continue;
+            }
+            return entry.connection;
+        }
+        return null;
+    }
+
+    /**
+     * 归还连接，超过最大空闲数时直接关闭
+     *
+     * @param connection
+     */
+    void offerIdle(ClickHouseConnection connection) {
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            closeQuietly(connection);
+            return;
+        }
+        // 后进先出，空闲最久的连接留在队尾超时关闭
+        idle.offerFirst(new IdleConnection(connection, System.currentTimeMillis()));
+    }
+
+    void onBorrow() {
+        active.incrementAndGet();
+    }
+
+    void onRelease() {
+        active.decrementAndGet();
+    }
+
+    void onCreate() {
+        created.increment();
+    }
+
+    void onSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (ejectedUntil != 0) {
+            ejectedUntil = 0;
+            ejections.set(0);
+            logger.info("clickhouse node {} recovered", url);
+        }
+    }
+
+    void onFailure(Throwable e) {
+        failures.increment();
+        if (consecutiveFailures.incrementAndGet() < failureThreshold) {
+            return;
+        }
+        consecutiveFailures.set(0);
+        int times = Math.min(ejections.incrementAndGet(), 16);
+        long backoff = Math.min(maxBackoffMillis, baseBackoffMillis << (times - 1));
+        ejectedUntil = System.currentTimeMillis() + backoff;
+        // 摘除期间的空闲连接大概率也已失效
+        clearIdle();
+        logger.warn("clickhouse node {} ejected for {}ms, cause: {}", url, backoff, e == null ? null : e.toString());
+    }
+
+    /**
+     * @param now
+     * @return 是否处于摘除期，退避时间到了之后允许再次尝试
+     */
+    boolean isEjected(long now) {
+        long until = ejectedUntil;
+        return until != 0 && now < until;
+    }
+
+    long getEjectedUntil() {
+        return ejectedUntil;
+    }
+
+    void clearIdle() {
+        IdleConnection entry;
+        while ((entry = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            closeQuietly(entry.connection);
+        }
+    }
+
+    private static boolean isClosed(ClickHouseConnection connection) {
+        try {
+            return connection.isClosed();
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    static void closeQuietly(ClickHouseConnection connection) {
+        try {
+            connection.close();
+        } catch (Exception e) {
+            logger.debug("close clickhouse connection failed", e);
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return 已借出未归还的连接数，即该节点上的在途请求数
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    public int getIdle() {
+        return Math.max(0, idleCount.get());
+    }
+
+    public long getCreated() {
+        return created.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public boolean isEjected() {
+        return isEjected(System.currentTimeMillis());
+    }
+
+    @Override
+    public String toString() {
+        return "node=" + url + ", active=" + getActive() + ", idle=" + getIdle() + ", created=" + getCreated()
+                + ", failures=" + getFailures() + ", ejected=" + isEjected();
+    }
+
+    private static class IdleConnection {
+        private final ClickHouseConnection connection;
+        private final long since;
+
+        IdleConnection(ClickHouseConnection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+}
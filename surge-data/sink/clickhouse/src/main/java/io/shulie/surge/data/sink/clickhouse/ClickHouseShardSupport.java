@@ -15,15 +15,15 @@
 
 package io.shulie.surge.data.sink.clickhouse;
 
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
-import io.shulie.surge.data.common.batch.CountRotationPolicy;
-import io.shulie.surge.data.common.batch.RotationBatch;
-import io.shulie.surge.data.common.batch.TimedRotationPolicy;
+import io.shulie.surge.data.common.aggregation.Scheduler;
 import io.shulie.surge.data.common.lifecycle.Lifecycle;
 import io.shulie.surge.data.common.lifecycle.Stoppable;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
@@ -33,12 +33,13 @@ import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 import ru.yandex.clickhouse.settings.ClickHouseProperties;
 
 import javax.sql.DataSource;
+import java.io.File;
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -46,6 +47,10 @@ import java.util.stream.Collectors;
 
 /**
  * 基于 clickhouse 的异步实现-支持分片写入
+ * <p>
+ * 每个分片一个 {@link ClickHouseShardWriter}，写入不再加全局锁；分片写入过慢时只在写入路径上反压或落盘，
+ * 不影响同一 processor 中其他 digester 的数据。
+ * 配置了 /pradar/config/rt/spill/directory 时写入失败的批次落盘，恢复后重放
  *
  * @author zhouyuan
  */
@@ -53,11 +58,55 @@ public class ClickHouseShardSupport implements Lifecycle, Stoppable {
     private static final Logger logger = LoggerFactory.getLogger(ClickHouseShardSupport.class);
     private static final Pattern URL_TEMPLATE = Pattern.compile("jdbc:clickhouse://([a-zA-Z0-9_:,.-]+)(/[a-zA-Z0-9_]+([?][a-zA-Z0-9_]+[=][a-zA-Z0-9_]+([&][a-zA-Z0-9_]+[=][a-zA-Z0-9_]+)*)?)?");
     private List<String> urls;
+    private final List<DataSource> shardDataSources = new ArrayList<>();
     private int batchCount;
+    private String username;
+    private String password;
     private static int deleyTime = 5;
     private Map<String, String> urlMap = Maps.newHashMap();
     private Map<String, JdbcTemplate> shardJdbcTemplateMap = Maps.newHashMap();
-    private Map<String, RotationBatch<Object[]>> rotationPrepareSqlBatch = Maps.newHashMap();
+    private volatile Map<String, ClickHouseShardWriter> shardWriterMap;
+    private Scheduler scheduler;
+
+    /**
+     * 单条 sql 在单个分片上最多排队的行数
+     */
+    @Inject
+    @DefaultValue("40000")
+    @Named("/pradar/config/rt/clickhouseWriterQueueCapacity")
+    private Remote<Integer> queueCapacity;
+
+    /**
+     * 单个分片同时在途的写入批次数
+     */
+    @Inject
+    @DefaultValue("2")
+    @Named("/pradar/config/rt/clickhouseWriterInFlight")
+    private Remote<Integer> maxInFlight;
+
+    /**
+     * 队列满时写入的最长等待时间(毫秒)，超时丢弃
+     */
+    @Inject
+    @DefaultValue("100")
+    @Named("/pradar/config/rt/clickhouseWriterOfferTimeout")
+    private Remote<Integer> offerTimeout;
+
+    /**
+     * 写入失败的批次落盘目录，为空时不落盘，重启后继续重放目录中的数据
+     */
+    @Inject
+    @DefaultValue("")
+    @Named("/pradar/config/rt/spill/directory")
+    private Remote<String> spillDirectory;
+
+    /**
+     * 每个分片每条 sql 的落盘上限，单位字节
+     */
+    @Inject
+    @DefaultValue("268435456")
+    @Named("/pradar/config/rt/spill/maxBytes")
+    private Remote<Long> spillMaxBytes;
 
     public ClickHouseShardSupport() {
     }
@@ -81,15 +130,18 @@ public class ClickHouseShardSupport implements Lifecycle, Stoppable {
             for (int i = 0; i < urls.size(); i++) {
                 String urlParam = urls.get(i);
                 if (enableRound) {
-                    clickHouseDataSource = new RoundClickhouseDataSource(urlParam, clickHouseProperties, true);
+                    clickHouseDataSource = RoundClickhouseDataSource.shared(urlParam, clickHouseProperties, true);
                 } else {
                     clickHouseDataSource = new BalancedClickhouseDataSource(urlParam, clickHouseProperties);
                 }
+                shardDataSources.add(clickHouseDataSource);
                 JdbcTemplate jdbcTemplate = new JdbcTemplate(clickHouseDataSource);
 
                 shardJdbcTemplateMap.put(urlParam, jdbcTemplate);
             }
             this.batchCount = batchCount;
+            this.username = username;
+            this.password = password;
         } catch (Exception e) {
             logger.error("Init datasource failed.", e);
             throw e;
@@ -97,12 +149,63 @@ public class ClickHouseShardSupport implements Lifecycle, Stoppable {
     }
 
     @Override
-    public void start() {
+    public synchronized void start() {
+        if (shardWriterMap != null) {
+            return;
+        }
+        Map<String, ClickHouseShardWriter> writers = Maps.newHashMap();
+        String spillPath = spillDirectory == null ? null : spillDirectory.get();
+        for (Map.Entry<String, JdbcTemplate> entry : shardJdbcTemplateMap.entrySet()) {
+            ClickHouseShardWriter writer = new ClickHouseShardWriter(entry.getKey(), entry.getValue(),
+                    RowBinaryHttpInserter.fromJdbcUrl(entry.getKey(), username, password), batchCount,
+                    intValue(queueCapacity, 40000), intValue(maxInFlight, 2));
+            if (StringUtils.isNotBlank(spillPath)) {
+                String name = "clickhouse-shard-" + Hashing.murmur3_128().hashString(entry.getKey(), StandardCharsets.UTF_8);
+                writer.spill(new File(spillPath, name), spillMaxBytes.get());
+            }
+            writers.put(entry.getKey(), writer);
+        }
+        scheduler = new Scheduler(1);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (ClickHouseShardWriter writer : writers.values()) {
+                    try {
+                        writer.flush();
+                    } catch (Throwable e) {
+                        logger.error("flush clickhouse shard failed", e);
+                    }
+                }
+            }
+        }, deleyTime, deleyTime, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder appender = new StringBuilder(256);
+                appender.append("clickhouse shard writer stats");
+                for (ClickHouseShardWriter writer : writers.values()) {
+                    writer.getStats().roll();
+                    appender.append("\n  ").append(writer.getStats());
+                }
+                for (ClickHouseNodePool node : nodeStats()) {
+                    appender.append("\n  ").append(node);
+                }
+                logger.info(appender.toString());
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+        shardWriterMap = writers;
     }
 
     @Override
-    public void stop() throws Exception {
-
+    public synchronized void stop() throws Exception {
+        Map<String, ClickHouseShardWriter> writers = shardWriterMap;
+        if (writers == null) {
+            return;
+        }
+        scheduler.shutdown();
+        for (ClickHouseShardWriter writer : writers.values()) {
+            writer.stop(30, TimeUnit.SECONDS);
+        }
     }
 
     @Override
@@ -111,73 +214,125 @@ public class ClickHouseShardSupport implements Lifecycle, Stoppable {
     }
 
     /**
-     * 批量更新
+     * 是否有分片过载，用于监控
      *
-     * @param sql
-     * @param shardBatchArgs
+     * @return
      */
-    public synchronized void batchUpdate(final String sql, Map<String, List<Object[]>> shardBatchArgs) {
-        Map<String, List<Object[]>> shardBatchArgsMap = shardBatchArgs(shardBatchArgs);
-        for (Map.Entry<String, List<Object[]>> entry : shardBatchArgsMap.entrySet()) {
-            RotationBatch<Object[]> rotationBatch = null;
-            if (!rotationPrepareSqlBatch.containsKey(entry.getKey() + ":" + sql)) {
-                rotationBatch = new RotationBatch(entry.getKey(), new CountRotationPolicy(batchCount), new TimedRotationPolicy(deleyTime, TimeUnit.SECONDS));
-                rotationBatch.batchSaver(new RotationBatch.BatchSaver<Object[]>() {
-                    @Override
-                    public boolean saveBatch(LinkedBlockingQueue<Object[]> batchSql) {
-                        return true;
-                    }
+    public boolean isOverloaded() {
+        Map<String, ClickHouseShardWriter> writers = shardWriterMap;
+        if (writers == null) {
+            return false;
+        }
+        for (ClickHouseShardWriter writer : writers.values()) {
+            if (writer.isOverloaded()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                    @Override
-                    public boolean shardSaveBatch(String shardKey, LinkedBlockingQueue<Object[]> batchSql) {
-                        if (batchSql == null || batchSql.isEmpty()) {
-                            return true;
-                        }
-                        try {
-                            shardJdbcTemplate(shardKey).batchUpdate(sql, Lists.newArrayList(batchSql));
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            try {
-                                TimeUnit.MILLISECONDS.sleep(10L);
-                            } catch (InterruptedException interruptedException) {
-                                interruptedException.printStackTrace();
-                            }
-                            return false;
-                        }
-                        return true;
-                    }
-                });
-            } else {
-                rotationBatch = rotationPrepareSqlBatch.get(entry.getKey() + ":" + sql);
+    /**
+     * 各分片写入统计
+     *
+     * @return
+     */
+    public List<ShardWriterStats> shardStats() {
+        Map<String, ClickHouseShardWriter> writers = shardWriterMap;
+        List<ShardWriterStats> stats = new ArrayList<>();
+        if (writers != null) {
+            for (ClickHouseShardWriter writer : writers.values()) {
+                stats.add(writer.getStats());
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * 各分片 jdbc 连接池状态，未开启 enableRound 时为空
+     *
+     * @return
+     */
+    public List<ClickHouseNodePool> nodeStats() {
+        List<ClickHouseNodePool> stats = new ArrayList<>();
+        for (DataSource dataSource : shardDataSources) {
+            if (dataSource instanceof RoundClickhouseDataSource) {
+                stats.addAll(((RoundClickhouseDataSource) dataSource).nodeStats());
             }
+        }
+        return stats;
+    }
+
+    /**
+     * 批量更新
+     *
+     * @param sql
+     * @param shardBatchArgs 分片键 -> 行
+     */
+    public void batchUpdate(final String sql, Map<String, List<Object[]>> shardBatchArgs) {
+        for (Map.Entry<String, List<Object[]>> entry : shardBatchArgs.entrySet()) {
             for (Object[] args : entry.getValue()) {
-                rotationBatch.addBatch(args);
+                insert(sql, entry.getKey(), args);
             }
-            rotationPrepareSqlBatch.put(entry.getKey() + ":" + sql, rotationBatch);
         }
     }
 
-    private JdbcTemplate shardJdbcTemplate(String key) {
-        return shardJdbcTemplateMap.get(key);
+    /**
+     * 按分片键写入一行，分片写入过慢时最多阻塞 offerTimeout 毫秒，之后丢弃并计入分片统计
+     *
+     * @param sql
+     * @param shardKey
+     * @param args
+     * @return 是否写入成功
+     */
+    public boolean insert(final String sql, String shardKey, Object[] args) {
+        try {
+            return shardWriter(shardKey).offer(sql, args, intValue(offerTimeout, 100));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
     /**
-     * 按url-> args拆分
+     * 按分片键写入一行，按 RowBinary 格式经 HTTP 接口批量写入，不经过 jdbc 驱动的文本序列化
      *
-     * @param batchArgsMap
-     * @return
+     * @param table
+     * @param shardKey
+     * @param args     与 table 的列一一对应
+     * @return 是否写入成功
      */
-    private Map<String, List<Object[]>> shardBatchArgs(final Map<String, List<Object[]>> batchArgsMap) {
-        Map<String, List<Object[]>> shardBatchArgsMap = Maps.newHashMap();
-        for (Map.Entry<String, List<Object[]>> entry : batchArgsMap.entrySet()) {
-            int idx = (entry.getKey().hashCode() & Integer.MAX_VALUE) % this.urls.size();
-            if (shardBatchArgsMap.containsKey(urls.get(idx))) {
-                shardBatchArgsMap.get(urls.get(idx)).addAll(entry.getValue());
-            } else {
-                shardBatchArgsMap.put(urls.get(idx), entry.getValue());
-            }
+    public boolean insert(RowBinaryTable table, String shardKey, Object[] args) {
+        try {
+            return shardWriter(shardKey).offer(table, args, intValue(offerTimeout, 100));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private ClickHouseShardWriter shardWriter(String shardKey) {
+        Map<String, ClickHouseShardWriter> writers = shardWriterMap;
+        if (writers == null) {
+            start();
+            writers = shardWriterMap;
         }
-        return shardBatchArgsMap;
+        return writers.get(shardUrl(shardKey));
+    }
+
+    private static int intValue(Remote<Integer> remote, int defaultValue) {
+        Integer value = remote == null ? null : remote.get();
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
+    /**
+     * 分片键 -> url
+     *
+     * @param shardKey
+     * @return
+     */
+    private String shardUrl(String shardKey) {
+        int idx = (shardKey.hashCode() & Integer.MAX_VALUE) % this.urls.size();
+        return urls.get(idx);
     }
 
     public List<String> splitUrl(String url) {
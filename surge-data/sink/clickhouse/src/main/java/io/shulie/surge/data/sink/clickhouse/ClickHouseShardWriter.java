@@ -0,0 +1,385 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.shulie.surge.data.common.batch.SpillBuffer;
+import io.shulie.surge.data.common.pool.DataPoolExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 单个分片的流水线写入器
+ * <p>
+ * 每条 sql 一个有界队列（{@link ArrayBlockingQueue}，生产者和写入线程共用队列的锁），多个生产者并发写入；
+ * 攒够一批或定时触发时由分片专属线程池写入，同一分片最多 maxInFlight 个批次同时在途。
+ * <p>
+ * 队列写满时反压只作用在写入方：配置了落盘目录则把队列中最老的一批连同当前行落盘，不阻塞写入方；
+ * 否则写入方最多等待 timeoutMillis，仍然写不进去则拒绝。队列水位超过阈值时 {@link #isOverloaded()} 返回 true，用于监控
+ * <p>
+ * 写入失败时：配置了落盘目录则重试几次后落盘，由落盘缓冲在 clickhouse 恢复后重放；
+ * 否则持有在途名额退避重试最多 {@link #MAX_BLOCK_MILLIS}，队列随之堆积并触发反压，超时后才丢弃
+ *
+ * @author pamirs
+ */
+public class ClickHouseShardWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ClickHouseShardWriter.class);
+
+    private static final int MAX_RETRIES = 3;
+    private static final long MIN_BACKOFF_MILLIS = 10;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+
+    /**
+     * 未开启落盘时单个批次最长的重试时间
+     */
+    private static final long MAX_BLOCK_MILLIS = 60000;
+
+    private final String shard;
+    private final JdbcTemplate jdbcTemplate;
+    private final RowBinaryHttpInserter rowBinaryInserter;
+    private final int batchCount;
+    private final int queueCapacity;
+    private final int highWatermark;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private final ConcurrentMap<String, StatementQueue> queues = Maps.newConcurrentMap();
+    private final ShardWriterStats stats;
+    private volatile File spillDirectory;
+    private volatile long spillMaxBytes;
+    private volatile long stopDeadline = Long.MAX_VALUE;
+
+    public ClickHouseShardWriter(String shard, JdbcTemplate jdbcTemplate, RowBinaryHttpInserter rowBinaryInserter,
+                                 int batchCount, int queueCapacity, int maxInFlight) {
+        this.shard = shard;
+        this.jdbcTemplate = jdbcTemplate;
+        this.rowBinaryInserter = rowBinaryInserter;
+        this.batchCount = batchCount;
+        this.queueCapacity = Math.max(queueCapacity, batchCount);
+        this.highWatermark = (int) (this.queueCapacity * 0.8);
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = DataPoolExecutors.newDefaultQueueExecutors(maxInFlight, maxInFlight, 60, maxInFlight, TimeUnit.SECONDS,
+                new ThreadFactoryBuilder().setNameFormat("clickhouse-writer-" + shard + "-%d").setDaemon(true).build(), null);
+        this.stats = new ShardWriterStats(shard);
+    }
+
+    /**
+     * 开启落盘，需要在写入数据前调用。每条 sql 在 directory 下一个子目录，
+     * 重启后该 sql 第一次写入时继续重放上次未写完的数据
+     *
+     * @param directory 落盘目录，多个分片不能共用
+     * @param maxBytes  每条 sql 的磁盘占用上限
+     */
+    public void spill(File directory, long maxBytes) {
+        this.spillMaxBytes = maxBytes;
+        this.spillDirectory = directory;
+    }
+
+    /**
+     * 写入一行，队列已满时开启了落盘则落盘，否则最多等待 timeoutMillis，仍然写不进去则丢弃并计数
+     *
+     * @param sql
+     * @param args
+     * @param timeoutMillis
+     * @return 是否写入队列
+     */
+    public boolean offer(String sql, Object[] args, long timeoutMillis) throws InterruptedException {
+        return offer(sql, null, args, timeoutMillis);
+    }
+
+    /**
+     * 写入一行，按 RowBinary 格式通过 HTTP 接口批量写入
+     *
+     * @param table
+     * @param args  与 table 的列一一对应
+     * @param timeoutMillis
+     * @return 是否写入队列
+     */
+    public boolean offer(RowBinaryTable table, Object[] args, long timeoutMillis) throws InterruptedException {
+        return offer(table.getInsertQuery(), table, args, timeoutMillis);
+    }
+
+    private boolean offer(String sql, RowBinaryTable table, Object[] args, long timeoutMillis) throws InterruptedException {
+        StatementQueue statementQueue = statementQueue(sql, table);
+        SpillBuffer<ArrayList<Object[]>> spillBuffer = statementQueue.spillBuffer;
+        if (!statementQueue.offer(args, spillBuffer != null ? 0 : timeoutMillis)) {
+            if (spillBuffer != null && spillOverflow(statementQueue, spillBuffer, args)) {
+                return true;
+            }
+            stats.recordRejected(1);
+            return false;
+        }
+        if (statementQueue.depth() >= batchCount) {
+            flush(statementQueue, false);
+        }
+        return true;
+    }
+
+    /**
+     * 定时刷新，把所有队列中不足一批的数据也写出去
+     */
+    public void flush() {
+        long depth = 0;
+        for (StatementQueue statementQueue : queues.values()) {
+            flush(statementQueue, true);
+            depth += statementQueue.depth();
+        }
+        stats.updateQueueDepth(depth);
+    }
+
+    private void flush(StatementQueue statementQueue, boolean force) {
+        while ((force ? statementQueue.depth() > 0 : statementQueue.depth() >= batchCount) && inFlight.tryAcquire()) {
+            final List<Object[]> batch = statementQueue.drain(batchCount);
+            if (batch.isEmpty()) {
+                inFlight.release();
+                return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            insert(statementQueue, batch);
+                        } finally {
+                            inFlight.release();
+                        }
+                        // 写完一批后如果队列里又攒够了一批，继续写，不等定时器
+                        flush(statementQueue, false);
+                    }
+                });
+            } catch (Throwable e) {
+                inFlight.release();
+                stats.recordFlush(batch.size(), 0, false);
+                logger.error("submit clickhouse batch failed, shard:" + shard, e);
+                return;
+            }
+        }
+    }
+
+    private void insert(StatementQueue statementQueue, List<Object[]> batch) {
+        long start = System.currentTimeMillis();
+        SpillBuffer<ArrayList<Object[]>> spillBuffer = statementQueue.spillBuffer;
+        // 落盘数据还没重放完时 clickhouse 多半还没恢复，新批次直接落盘，保证写入顺序
+        if (spillBuffer != null && spillBuffer.hasPending() && spill(spillBuffer, batch)) {
+            return;
+        }
+        long deadline = start + (spillBuffer != null ? 0 : MAX_BLOCK_MILLIS);
+        long backoff = MIN_BACKOFF_MILLIS;
+        Throwable failure;
+        for (int i = 1; ; i++) {
+            try {
+                write(statementQueue, batch);
+                stats.recordFlush(batch.size(), System.currentTimeMillis() - start, true);
+                return;
+            } catch (Throwable e) {
+                failure = e;
+            }
+            if (i >= MAX_RETRIES && System.currentTimeMillis() >= Math.min(deadline, stopDeadline)) {
+                break;
+            }
+            if (i == MAX_RETRIES) {
+                logger.warn("write clickhouse failed, shard:{}, rows:{}, retry for at most {}ms: {}",
+                        shard, batch.size(), deadline - start, failure.toString());
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException interruptedException) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+        if (spillBuffer != null && spill(spillBuffer, batch)) {
+            logger.warn("write clickhouse failed, shard:{}, spill {} rows: {}", shard, batch.size(), failure.toString());
+            return;
+        }
+        logger.error("write clickhouse failed, shard:" + shard + ", rows:" + batch.size(), failure);
+        stats.recordFlush(batch.size(), System.currentTimeMillis() - start, false);
+    }
+
+    private void write(StatementQueue statementQueue, List<Object[]> batch) throws Exception {
+        if (statementQueue.table != null) {
+            rowBinaryInserter.insert(statementQueue.table, batch);
+        } else {
+            jdbcTemplate.batchUpdate(statementQueue.sql, batch);
+        }
+    }
+
+    private boolean spill(SpillBuffer<ArrayList<Object[]>> spillBuffer, List<Object[]> batch) {
+        if (!spillBuffer.spill(new ArrayList<Object[]>(batch))) {
+            return false;
+        }
+        stats.recordSpilled(batch.size());
+        return true;
+    }
+
+    /**
+     * 队列写满时把最老的一批连同当前行落盘，落盘之后的批次也会先落盘，由落盘缓冲按 clickhouse 的写入速度重放
+     *
+     * @return 落盘失败时返回 false，取出的数据计入拒绝
+     */
+    private boolean spillOverflow(StatementQueue statementQueue, SpillBuffer<ArrayList<Object[]>> spillBuffer, Object[] args) {
+        List<Object[]> batch = statementQueue.drain(batchCount);
+        batch.add(args);
+        if (spill(spillBuffer, batch)) {
+            return true;
+        }
+        stats.recordRejected(batch.size() - 1);
+        return false;
+    }
+
+    /**
+     * 落盘缓冲重放时调用，失败抛出异常由落盘缓冲退避后重试
+     */
+    private boolean replay(StatementQueue statementQueue, List<Object[]> batch) throws Exception {
+        long start = System.currentTimeMillis();
+        write(statementQueue, batch);
+        stats.recordFlush(batch.size(), System.currentTimeMillis() - start, true);
+        return true;
+    }
+
+    private StatementQueue statementQueue(String sql, RowBinaryTable table) {
+        StatementQueue statementQueue = queues.get(sql);
+        if (statementQueue == null) {
+            // 落盘缓冲按名称全局唯一，同一条 sql 只能打开一次
+            synchronized (queues) {
+                statementQueue = queues.get(sql);
+                if (statementQueue == null) {
+                    statementQueue = new StatementQueue(sql, table, queueCapacity);
+                    openSpill(statementQueue);
+                    queues.put(sql, statementQueue);
+                }
+            }
+        }
+        return statementQueue;
+    }
+
+    private void openSpill(final StatementQueue statementQueue) {
+        File directory = spillDirectory;
+        if (directory == null) {
+            return;
+        }
+        String name = directory.getName() + "-" + Hashing.murmur3_128().hashString(statementQueue.sql, StandardCharsets.UTF_8);
+        try {
+            statementQueue.spillBuffer = new SpillBuffer<ArrayList<Object[]>>(name, new File(directory, name), spillMaxBytes,
+                    SpillBuffer.<ArrayList<Object[]>>javaSerialization(), new SpillBuffer.Replayer<ArrayList<Object[]>>() {
+                @Override
+                public boolean replay(ArrayList<Object[]> batch) throws Exception {
+                    return ClickHouseShardWriter.this.replay(statementQueue, batch);
+                }
+            });
+        } catch (IOException e) {
+            logger.error("open spill buffer " + name + " fail, failed batches will be dropped", e);
+        }
+    }
+
+    /**
+     * 任意一条 sql 的队列超过高水位即认为分片过载
+     *
+     * @return
+     */
+    public boolean isOverloaded() {
+        for (StatementQueue statementQueue : queues.values()) {
+            if (statementQueue.depth() >= highWatermark) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public ShardWriterStats getStats() {
+        return stats;
+    }
+
+    /**
+     * 写出剩余数据并等待在途批次完成
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void stop(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        stopDeadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (System.nanoTime() < deadline) {
+            flush();
+            if (stats.getQueueDepth() == 0 && inFlight.availablePermits() == maxInFlight) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(50L);
+        }
+        executor.shutdown();
+        executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        for (StatementQueue statementQueue : queues.values()) {
+            if (statementQueue.spillBuffer != null) {
+                statementQueue.spillBuffer.close();
+            }
+        }
+    }
+
+    /**
+     * 单条 sql 的有界队列，table 不为空时按 RowBinary 写入。
+     * 基于 {@link ArrayBlockingQueue}，多个生产者和写入线程共用一把锁，depth 单独计数避免读取长度时加锁
+     */
+    private static final class StatementQueue {
+        private final String sql;
+        private final RowBinaryTable table;
+        private final ArrayBlockingQueue<Object[]> queue;
+        private final AtomicInteger depth = new AtomicInteger();
+        private volatile SpillBuffer<ArrayList<Object[]>> spillBuffer;
+
+        StatementQueue(String sql, RowBinaryTable table, int capacity) {
+            this.sql = sql;
+            this.table = table;
+            this.queue = new ArrayBlockingQueue<Object[]>(capacity);
+        }
+
+        boolean offer(Object[] args, long timeoutMillis) throws InterruptedException {
+            if (queue.offer(args) || (timeoutMillis > 0 && queue.offer(args, timeoutMillis, TimeUnit.MILLISECONDS))) {
+                depth.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        List<Object[]> drain(int max) {
+            List<Object[]> batch = Lists.newArrayListWithCapacity(Math.max(0, Math.min(max, depth.get())));
+            int count = queue.drainTo(batch, max);
+            depth.addAndGet(-count);
+            return batch;
+        }
+
+        int depth() {
+            return depth.get();
+        }
+    }
+}
@@ -19,6 +19,7 @@ import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import io.shulie.surge.data.common.batch.CountRotationPolicy;
@@ -26,6 +27,8 @@ import io.shulie.surge.data.common.batch.RotationBatch;
 import io.shulie.surge.data.common.batch.TimedRotationPolicy;
 import io.shulie.surge.data.common.lifecycle.Lifecycle;
 import io.shulie.surge.data.common.lifecycle.Stoppable;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +37,9 @@ import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 import ru.yandex.clickhouse.settings.ClickHouseProperties;
 
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -56,6 +62,22 @@ public class ClickHouseSupport implements Lifecycle, Stoppable {
 
     private int batchCount;
 
+    /**
+     * 写入失败的批次落盘目录，为空时不落盘，重启后继续重放目录中的数据
+     */
+    @Inject
+    @DefaultValue("")
+    @Named("/pradar/config/rt/spill/directory")
+    private Remote<String> spillDirectory;
+
+    /**
+     * 每个批次队列的落盘上限，单位字节
+     */
+    @Inject
+    @DefaultValue("268435456")
+    @Named("/pradar/config/rt/spill/maxBytes")
+    private Remote<Long> spillMaxBytes;
+
     @Inject
     public ClickHouseSupport(@Named("config.clickhouse.url") String url,
                              @Named("config.clickhouse.userName") String username,
@@ -71,7 +93,7 @@ public class ClickHouseSupport implements Lifecycle, Stoppable {
                 clickHouseProperties.setPassword(password);
             }
             if (enableRound) {
-                clickHouseDataSource = new RoundClickhouseDataSource(url, clickHouseProperties, false);
+                clickHouseDataSource = RoundClickhouseDataSource.shared(url, clickHouseProperties, false);
             } else {
                 clickHouseDataSource = new BalancedClickhouseDataSource(url, clickHouseProperties);
             }
@@ -111,9 +133,28 @@ public class ClickHouseSupport implements Lifecycle, Stoppable {
                 return false;
             }
         });
+        spill(rotationSqlBatch, "sql");
         rotationPrepareSqlBatch = Maps.newHashMap();
     }
 
+    /**
+     * 配置了落盘目录时，批次队列写入失败的数据落盘，clickhouse 恢复后按顺序重放
+     *
+     * @param rotationBatch
+     * @param key           同一个目录下区分不同批次队列
+     */
+    private void spill(RotationBatch<?> rotationBatch, String key) {
+        if (spillDirectory == null || StringUtils.isBlank(spillDirectory.get())) {
+            return;
+        }
+        String name = "clickhouse-" + key;
+        try {
+            rotationBatch.spill(name, new File(spillDirectory.get(), name), spillMaxBytes.get());
+        } catch (IOException e) {
+            logger.error("open spill buffer {} fail, failed batches will be dropped", name, e);
+        }
+    }
+
     @Override
     public void stop() throws Exception {
     }
@@ -165,6 +206,7 @@ public class ClickHouseSupport implements Lifecycle, Stoppable {
                     return false;
                 }
             });
+            spill(rotationBatch, Hashing.murmur3_128().hashString(sql, StandardCharsets.UTF_8).toString());
         } else {
             rotationBatch = rotationPrepareSqlBatch.get(sql);
         }
@@ -226,4 +268,31 @@ public class ClickHouseSupport implements Lifecycle, Stoppable {
     public List<Map<String, Object>> queryForList(String sql) {
         return jdbcTemplate.queryForList(sql);
     }
+
+    /**
+     * 带参数查询list
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public List<Map<String, Object>> queryForList(String sql, Object... args) {
+        return jdbcTemplate.queryForList(sql, args);
+    }
+
+    /**
+     * 带参数查询list
+     *
+     * @param sql
+     * @param clazz
+     * @param args
+     * @return
+     */
+    public <T> List<T> queryForList(String sql, Class<T> clazz, Object... args) {
+        List<Map<String, Object>> resultList = queryForList(sql, args);
+        if (resultList == null) {
+            return null;
+        }
+        return resultList.stream().map(result -> JSONObject.parseObject(JSON.toJSON(result).toString(), clazz)).collect(Collectors.toList());
+    }
 }
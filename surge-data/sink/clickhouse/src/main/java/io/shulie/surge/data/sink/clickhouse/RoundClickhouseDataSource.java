@@ -15,84 +15,356 @@
 
 package io.shulie.surge.data.sink.clickhouse;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.apache.commons.lang3.ClassUtils;
 import ru.yandex.clickhouse.BalancedClickhouseDataSource;
 import ru.yandex.clickhouse.ClickHouseConnection;
 import ru.yandex.clickhouse.ClickHouseDriver;
 import ru.yandex.clickhouse.settings.ClickHouseProperties;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * @Author: xingchen
  * @ClassName: BalancedClickhouseDataSourceExt
  * @Package: io.shulie.surge.data.sink.clickhouse
  * @Date: 2021/3/2920:10
- * @Description:
+ * @Description: 带连接池和节点健康检查的 clickhouse 数据源
+ * <p>
+ * 每个节点一个连接池，连接关闭时归还到所属节点；节点选择使用全局计数器轮询或最少在途请求，
+ * 连接或执行出现网络异常时记入节点失败次数，连续失败的节点按退避时长摘除
  */
 public class RoundClickhouseDataSource extends BalancedClickhouseDataSource {
-    private final ClickHouseDriver driver = new ClickHouseDriver();
-    private ThreadLocal<LongAdder> currentIndex = ThreadLocal.withInitial(LongAdder::new);
+    private static final Pattern URL_TEMPLATE = Pattern.compile("jdbc:clickhouse://([a-zA-Z0-9_:,.-]+)(/.*)?");
+    private static final ConcurrentMap<String, RoundClickhouseDataSource> SHARED = Maps.newConcurrentMap();
+
+    private static final int DEFAULT_MAX_IDLE = 16;
+    private static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+    private static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_BASE_BACKOFF = TimeUnit.SECONDS.toMillis(2);
+    private static final long DEFAULT_MAX_BACKOFF = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * 节点选择策略
+     */
+    public enum BalanceStrategy {
+        /**
+         * 全局轮询
+         */
+        ROUND_ROBIN,
+        /**
+         * 在途请求最少的节点，相同时按轮询顺序
+         */
+        LEAST_OUTSTANDING
+    }
+
+    /**
+     * 建立物理连接，便于测试替换
+     */
+    interface ConnectionFactory {
+        ClickHouseConnection connect(String url, ClickHouseProperties properties) throws SQLException;
+    }
+
+    private final ConnectionFactory connectionFactory;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private final ClickHouseNodePool[] nodes;
     // 是否分片,分片的时候URL已经在前面给拆过来。获取URL的时候直接返回
     private boolean isShard = false;
+    private volatile BalanceStrategy strategy = BalanceStrategy.LEAST_OUTSTANDING;
 
     public RoundClickhouseDataSource(String url) {
-        super(url);
+        this(url, new ClickHouseProperties(), false);
     }
 
     public RoundClickhouseDataSource(String url, Properties properties) {
-        super(url, properties);
+        this(url, new ClickHouseProperties(properties), false);
     }
 
     public RoundClickhouseDataSource(String url, ClickHouseProperties properties, boolean isShard) {
+        this(url, properties, isShard, new ClickHouseDriver()::connect);
+    }
+
+    RoundClickhouseDataSource(String url, ClickHouseProperties properties, boolean isShard, ConnectionFactory connectionFactory) {
         super(url, properties);
         this.isShard = isShard;
+        this.connectionFactory = connectionFactory;
+        List<String> nodeUrls = splitUrl(url);
+        if (isShard) {
+            nodeUrls = nodeUrls.subList(0, 1);
+        }
+        this.nodes = new ClickHouseNodePool[nodeUrls.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new ClickHouseNodePool(nodeUrls.get(i), DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT,
+                    DEFAULT_FAILURE_THRESHOLD, DEFAULT_BASE_BACKOFF, DEFAULT_MAX_BACKOFF);
+        }
+    }
+
+    /**
+     * 相同地址和账号共用一个数据源，ClickHouseSupport 和 ClickHouseShardSupport 每次注入都会新建，
+     * 共用后连接池不会随实例数膨胀
+     *
+     * @param url
+     * @param properties
+     * @param isShard
+     * @return
+     */
+    public static RoundClickhouseDataSource shared(String url, ClickHouseProperties properties, boolean isShard) {
+        String key = url + '|' + properties.getUser() + '|' + properties.getPassword() + '|' + isShard;
+        RoundClickhouseDataSource dataSource = SHARED.get(key);
+        if (dataSource == null) {
+            RoundClickhouseDataSource created = new RoundClickhouseDataSource(url, properties, isShard);
+            dataSource = SHARED.putIfAbsent(key, created);
+            if (dataSource == null) {
+                dataSource = created;
+            }
+        }
+        return dataSource;
+    }
+
+    public RoundClickhouseDataSource withStrategy(BalanceStrategy strategy) {
+        this.strategy = strategy;
+        return this;
     }
 
     @Override
     public ClickHouseConnection getConnection() throws SQLException {
-        return driver.connect(getRoundUrl(), super.getProperties());
+        ClickHouseNodePool node = select();
+        ClickHouseConnection connection = node.pollIdle();
+        if (connection == null) {
+            connection = connect(node, super.getProperties());
+        }
+        return wrap(node, connection, true);
     }
 
+    /**
+     * 指定账号的连接不进入连接池
+     */
     @Override
     public ClickHouseConnection getConnection(String username, String password) throws SQLException {
-        return driver.connect(getRoundUrl(), super.getProperties().withCredentials(username, password));
+        ClickHouseNodePool node = select();
+        ClickHouseConnection connection = connect(node, super.getProperties().withCredentials(username, password));
+        return wrap(node, connection, false);
     }
 
-    private String getRoundUrl() throws SQLException {
-        List<String> localEnabledUrls = super.getEnabledClickHouseUrls();
-        if (localEnabledUrls.isEmpty()) {
-            throw new SQLException("Unable to get connection: there are no enabled urls");
+    private ClickHouseConnection connect(ClickHouseNodePool node, ClickHouseProperties properties) throws SQLException {
+        try {
+            ClickHouseConnection connection = connectionFactory.connect(node.getUrl(), properties);
+            node.onCreate();
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            node.onFailure(e);
+            throw e;
         }
-        if (isShard) {
-            return localEnabledUrls.get(0);
-        }
-        currentIndex.get().increment();
-        int index = currentIndex.get().intValue() % localEnabledUrls.size();
-        if (currentIndex.get().intValue() == localEnabledUrls.size()) {
-            currentIndex.get().reset();
-        }
-        return localEnabledUrls.get(index);
-    }
-
-    public static void main(String[] args) throws SQLException {
-        ClickHouseProperties clickHouseProperties = new ClickHouseProperties();
-        RoundClickhouseDataSource clickHouseDataSource = new RoundClickhouseDataSource("jdbc:clickhouse://pradar.host.clickhouse01:8123,pradar.host.clickhouse02:8123,pradar.host.clickhouse03:8123/default", clickHouseProperties,false);
-        ExecutorService service = Executors.newFixedThreadPool(4);
-        while (true) {
-            service.execute(() -> {
-                try {
-                    if (Thread.currentThread().getName().endsWith("1")) {
-                        System.out.println(Thread.currentThread().getName() + "---" + clickHouseDataSource.getRoundUrl());
-                    }
-                } catch (Throwable e) {
-                }
-            });
+    }
+
+    ClickHouseNodePool select() {
+        ClickHouseNodePool[] nodes = this.nodes;
+        if (nodes.length == 1) {
+            return nodes[0];
         }
+        long now = System.currentTimeMillis();
+        int start = (cursor.getAndIncrement() & Integer.MAX_VALUE) % nodes.length;
+        boolean roundRobin = strategy == BalanceStrategy.ROUND_ROBIN;
+        ClickHouseNodePool best = null;
+        for (int i = 0; i < nodes.length; i++) {
+            ClickHouseNodePool node = nodes[(start + i) % nodes.length];
+            if (node.isEjected(now)) {
+                continue;
+            }
+            if (roundRobin) {
+                return node;
+            }
+            if (best == null || node.getActive() < best.getActive()) {
+                best = node;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        // 全部节点都被摘除时选最早恢复的节点，不直接拒绝
+        best = nodes[start];
+        for (ClickHouseNodePool node : nodes) {
+            if (node.getEjectedUntil() < best.getEjectedUntil()) {
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private ClickHouseConnection wrap(ClickHouseNodePool node, ClickHouseConnection connection, boolean pooled) {
+        node.onBorrow();
+        PooledConnection handler = new PooledConnection(node, connection, pooled);
+        handler.self = (ClickHouseConnection) Proxy.newProxyInstance(RoundClickhouseDataSource.class.getClassLoader(),
+                new Class[]{ClickHouseConnection.class}, handler);
+        return handler.self;
+    }
+
+    /**
+     * 各节点连接数与健康状态
+     *
+     * @return
+     */
+    public List<ClickHouseNodePool> nodeStats() {
+        return ImmutableList.copyOf(nodes);
     }
 
+    /**
+     * 关闭所有空闲连接，已借出的连接归还时仍会进入连接池
+     */
+    public void close() {
+        for (ClickHouseNodePool node : nodes) {
+            node.clearIdle();
+        }
+    }
+
+    static List<String> splitUrl(String url) {
+        Matcher m = URL_TEMPLATE.matcher(url);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Incorrect url: " + url);
+        }
+        String suffix = m.group(2) == null ? "" : m.group(2);
+        String[] hosts = m.group(1).split(",");
+        List<String> result = new ArrayList<>(hosts.length);
+        for (String host : hosts) {
+            result.add("jdbc:clickhouse://" + host + suffix);
+        }
+        return result;
+    }
+
+    /**
+     * 网络异常才算节点故障，sql 本身的错误不影响节点状态
+     */
+    static boolean isTransportFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 连接代理，close 时归还连接，执行结果回写节点健康状态
+     */
+    private static class PooledConnection implements InvocationHandler {
+        private final ClickHouseNodePool node;
+        private final ClickHouseConnection target;
+        private final boolean pooled;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean broken;
+        private ClickHouseConnection self;
+
+        PooledConnection(ClickHouseNodePool node, ClickHouseConnection target, boolean pooled) {
+            this.node = node;
+            this.target = target;
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed.get() || target.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled[" + node.getUrl() + "]";
+                default:
+            }
+            if (closed.get()) {
+                throw new SQLException("Connection has been returned to pool");
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                onFailure(e.getCause());
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                return Proxy.newProxyInstance(RoundClickhouseDataSource.class.getClassLoader(),
+                        ClassUtils.getAllInterfaces(result.getClass()).toArray(new Class[0]),
+                        new TrackedStatement(this, result));
+            }
+            return result;
+        }
+
+        void onFailure(Throwable e) {
+            if (isTransportFailure(e)) {
+                broken = true;
+                node.onFailure(e);
+            }
+        }
+
+        void onSuccess() {
+            node.onSuccess();
+        }
+
+        private void release() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            node.onRelease();
+            if (broken || !pooled) {
+                ClickHouseNodePool.closeQuietly(target);
+            } else {
+                node.offerIdle(target);
+            }
+        }
+    }
+
+    /**
+     * statement 代理，只负责把执行结果记入节点状态
+     */
+    private static class TrackedStatement implements InvocationHandler {
+        private final PooledConnection connection;
+        private final Object target;
+
+        TrackedStatement(PooledConnection connection, Object target) {
+            this.connection = connection;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getConnection".equals(method.getName())) {
+                return connection.self;
+            }
+            try {
+                Object result = method.invoke(target, args);
+                if (method.getName().startsWith("execute")) {
+                    connection.onSuccess();
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                connection.onFailure(e.getCause());
+                throw e.getCause();
+            }
+        }
+    }
 }
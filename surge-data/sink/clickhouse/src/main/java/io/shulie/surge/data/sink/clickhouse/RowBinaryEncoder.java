@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 按 clickhouse RowBinary 格式把行编码到输出流，内部带缓冲，字符串直接按 UTF-8 写入缓冲区，不生成中间字节数组。
+ * <p>
+ * 取值与 jdbc 驱动的文本格式保持一致：布尔写为 "1"/"0"，非空字符串列遇到 null 写空串，非空数值列遇到 null 写 0。
+ * 非线程安全
+ *
+ * @author pamirs
+ */
+public final class RowBinaryEncoder {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final byte[] buf;
+    private int count;
+    private OutputStream out;
+    private long written;
+
+    public RowBinaryEncoder() {
+        this(BUFFER_SIZE);
+    }
+
+    public RowBinaryEncoder(int bufferSize) {
+        // 至少能放下一个 LEB128 长度和一个 4 字节字符
+        this.buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    /**
+     * 绑定输出流，复用同一个编码器时每批调用一次
+     *
+     * @param out
+     * @return
+     */
+    public RowBinaryEncoder reset(OutputStream out) {
+        this.out = out;
+        this.count = 0;
+        this.written = 0;
+        return this;
+    }
+
+    public void writeRow(List<ClickHouseColumn> columns, Object[] row) throws IOException {
+        if (row.length != columns.size()) {
+            throw new IllegalArgumentException("row has " + row.length + " values, but " + columns.size() + " columns expected");
+        }
+        for (int i = 0; i < row.length; i++) {
+            writeValue(columns.get(i), row[i]);
+        }
+    }
+
+    public void writeValue(ClickHouseColumn column, Object value) throws IOException {
+        if (column.isNullable()) {
+            if (value == null) {
+                writeByte(1);
+                return;
+            }
+            writeByte(0);
+        }
+        switch (column.getType()) {
+            case STRING:
+                writeString(toText(value));
+                break;
+            case INT8:
+                writeByte((int) toLong(value));
+                break;
+            case INT32:
+                writeInt32((int) toLong(value));
+                break;
+            case INT64:
+                writeInt64(toLong(value));
+                break;
+            case DATETIME:
+                writeInt32((int) (toMillis(value) / 1000));
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported column " + column);
+        }
+    }
+
+    private static String toText(Object value) {
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? "1" : "0";
+        }
+        return String.valueOf(value);
+    }
+
+    private static long toLong(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        String text = value.toString().trim();
+        return text.isEmpty() ? 0 : Long.parseLong(text);
+    }
+
+    private static long toMillis(Object value) {
+        if (value instanceof Date) {
+            return ((Date) value).getTime();
+        }
+        return toLong(value);
+    }
+
+    public void writeString(String value) throws IOException {
+        int length = value.length();
+        writeVarInt(utf8Length(value));
+        for (int i = 0; i < length; i++) {
+            if (buf.length - count < 4) {
+                flushBuffer();
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[count++] = (byte) (0xf0 | (cp >> 18));
+                buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符，与 String.getBytes(UTF_8) 一样替换为 '?'
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    public void writeVarInt(long value) throws IOException {
+        if (buf.length - count < 10) {
+            flushBuffer();
+        }
+        while ((value & ~0x7FL) != 0) {
+            buf[count++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte) value;
+    }
+
+    public void writeByte(int value) throws IOException {
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) value;
+    }
+
+    public void writeInt32(int value) throws IOException {
+        if (buf.length - count < 4) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) value;
+        buf[count++] = (byte) (value >>> 8);
+        buf[count++] = (byte) (value >>> 16);
+        buf[count++] = (byte) (value >>> 24);
+    }
+
+    public void writeInt64(long value) throws IOException {
+        if (buf.length - count < 8) {
+            flushBuffer();
+        }
+        for (int i = 0; i < 8; i++) {
+            buf[count++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    /**
+     * 把缓冲区写到输出流，不关闭输出流
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            written += count;
+            count = 0;
+        }
+    }
+
+    /**
+     * @return 已编码的字节数(压缩前)
+     */
+    public long written() {
+        return written + count;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import io.shulie.surge.data.common.utils.Bytes;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 通过 clickhouse HTTP 接口以 RowBinary 格式写入，请求体 gzip 压缩并分块流式发送
+ *
+ * @author pamirs
+ */
+public class RowBinaryHttpInserter {
+
+    private static final Pattern JDBC_URL = Pattern.compile("jdbc:clickhouse://([^/?]+)(/([a-zA-Z0-9_]+))?.*");
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String endpoint;
+    private final String database;
+    private final String user;
+    private final String password;
+    private int connectTimeout = 10000;
+    private int readTimeout = 60000;
+
+    private final ThreadLocal<RowBinaryEncoder> encoders = new ThreadLocal<RowBinaryEncoder>() {
+        @Override
+        protected RowBinaryEncoder initialValue() {
+            return new RowBinaryEncoder();
+        }
+    };
+
+    public RowBinaryHttpInserter(String endpoint, String database, String user, String password) {
+        this.endpoint = StringUtils.removeEnd(endpoint, "/");
+        this.database = StringUtils.defaultIfBlank(database, "default");
+        this.user = user;
+        this.password = password;
+    }
+
+    /**
+     * 由分片的 jdbc url 生成，jdbc:clickhouse://host:port/db -> http://host:port
+     *
+     * @param jdbcUrl
+     * @param user
+     * @param password
+     * @return
+     */
+    public static RowBinaryHttpInserter fromJdbcUrl(String jdbcUrl, String user, String password) {
+        Matcher m = JDBC_URL.matcher(jdbcUrl);
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Incorrect url " + jdbcUrl);
+        }
+        return new RowBinaryHttpInserter("http://" + m.group(1), m.group(3), user, password);
+    }
+
+    public RowBinaryHttpInserter timeout(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * 写入一批数据
+     *
+     * @param table
+     * @param rows
+     * @return 压缩前的字节数
+     * @throws IOException 写入失败或 clickhouse 返回非 200
+     */
+    public long insert(RowBinaryTable table, List<Object[]> rows) throws IOException {
+        URL url = new URL(endpoint + "/?database=" + URLEncoder.encode(database, "UTF-8")
+                + "&query=" + URLEncoder.encode(table.getInsertQuery(), "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            if (StringUtils.isNotBlank(user)) {
+                connection.setRequestProperty("X-ClickHouse-User", user);
+            }
+            if (StringUtils.isNotBlank(password)) {
+                connection.setRequestProperty("X-ClickHouse-Key", password);
+            }
+            RowBinaryEncoder encoder = encoders.get();
+            long written;
+            try (OutputStream out = new GZIPOutputStream(connection.getOutputStream(), CHUNK_SIZE)) {
+                encoder.reset(out);
+                List<ClickHouseColumn> columns = table.getColumns();
+                for (Object[] row : rows) {
+                    encoder.writeRow(columns, row);
+                }
+                encoder.flush();
+                written = encoder.written();
+            } finally {
+                encoder.reset(null);
+            }
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("clickhouse insert failed, code:" + code + ", message:" + readError(connection));
+            }
+            // 读完响应才能复用 keep-alive 连接
+            try (InputStream in = connection.getInputStream()) {
+                IOUtils.toByteArray(in);
+            }
+            return written;
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static String readError(HttpURLConnection connection) {
+        try (InputStream in = connection.getErrorStream()) {
+            return in == null ? "" : StringUtils.abbreviate(new String(IOUtils.toByteArray(in), Bytes.UTF_8), 1024);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 以 RowBinary 格式写入的表：表名和按写入顺序排列的列
+ *
+ * @author pamirs
+ */
+public final class RowBinaryTable {
+
+    private final String table;
+    private final List<ClickHouseColumn> columns;
+    private final String insertQuery;
+
+    public RowBinaryTable(String table, List<ClickHouseColumn> columns) {
+        this.table = table;
+        this.columns = ImmutableList.copyOf(columns);
+        List<String> names = new ArrayList<>(columns.size());
+        for (ClickHouseColumn column : columns) {
+            names.add(column.getName());
+        }
+        this.insertQuery = "INSERT INTO " + table + " (" + Joiner.on(',').join(names) + ") FORMAT RowBinary";
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public List<ClickHouseColumn> getColumns() {
+        return columns;
+    }
+
+    public String getInsertQuery() {
+        return insertQuery;
+    }
+}
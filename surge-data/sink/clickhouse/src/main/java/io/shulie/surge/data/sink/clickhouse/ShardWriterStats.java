@@ -0,0 +1,138 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单个分片的写入统计
+ *
+ * @author pamirs
+ */
+public class ShardWriterStats {
+
+    private final String shard;
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder failedRows = new LongAdder();
+    private final LongAdder rejectedRows = new LongAdder();
+    private final LongAdder spilledRows = new LongAdder();
+    private final LongAdder flushCount = new LongAdder();
+    private final LongAdder flushCostMillis = new LongAdder();
+    private final AtomicLong maxFlushCostMillis = new AtomicLong();
+    private volatile long queueDepth;
+    private volatile long rowsPerSecond;
+    private long lastRows;
+    private long lastRollTime = System.currentTimeMillis();
+
+    public ShardWriterStats(String shard) {
+        this.shard = shard;
+    }
+
+    void recordFlush(int rowCount, long costMillis, boolean success) {
+        if (success) {
+            rows.add(rowCount);
+        } else {
+            failedRows.add(rowCount);
+        }
+        flushCount.increment();
+        flushCostMillis.add(costMillis);
+        long max;
+        while (costMillis > (max = maxFlushCostMillis.get())) {
+            if (maxFlushCostMillis.compareAndSet(max, costMillis)) {
+                break;
+            }
+        }
+    }
+
+    void recordRejected(int rowCount) {
+        rejectedRows.add(rowCount);
+    }
+
+    void recordSpilled(int rowCount) {
+        spilledRows.add(rowCount);
+    }
+
+    void updateQueueDepth(long queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * 按统计周期计算写入速率，由单个定时线程调用
+     */
+    synchronized void roll() {
+        long now = System.currentTimeMillis();
+        long total = rows.sum();
+        long elapsed = now - lastRollTime;
+        if (elapsed > 0) {
+            rowsPerSecond = (total - lastRows) * 1000 / elapsed;
+        }
+        lastRows = total;
+        lastRollTime = now;
+    }
+
+    public String getShard() {
+        return shard;
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+
+    public long getFailedRows() {
+        return failedRows.sum();
+    }
+
+    public long getRejectedRows() {
+        return rejectedRows.sum();
+    }
+
+    /**
+     * 写入失败后落盘的行数，重放成功后计入 rows
+     */
+    public long getSpilledRows() {
+        return spilledRows.sum();
+    }
+
+    public long getFlushCount() {
+        return flushCount.sum();
+    }
+
+    public long getFlushCostMillis() {
+        return flushCostMillis.sum();
+    }
+
+    public long getMaxFlushCostMillis() {
+        return maxFlushCostMillis.get();
+    }
+
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    public long getRowsPerSecond() {
+        return rowsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        long flushes = getFlushCount();
+        return shard + " queueDepth:" + queueDepth + " rows/s:" + rowsPerSecond + " rows:" + getRows()
+                + " failedRows:" + getFailedRows() + " rejectedRows:" + getRejectedRows() + " spilledRows:" + getSpilledRows()
+                + " flushes:" + flushes + " avgFlushCost:" + (flushes == 0 ? 0 : getFlushCostMillis() / flushes) + "ms"
+                + " maxFlushCost:" + getMaxFlushCostMillis() + "ms";
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.clickhouse;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ru.yandex.clickhouse.ClickHouseConnection;
+import ru.yandex.clickhouse.settings.ClickHouseProperties;
+
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RoundClickhouseDataSourceTest {
+
+    private static final String URL = "jdbc:clickhouse://127.0.0.1:8123,127.0.0.2:8123,127.0.0.3:8123/default";
+
+    @Test
+    public void roundRobinAcrossThreadsIsGlobal() {
+        RoundClickhouseDataSource dataSource = new RoundClickhouseDataSource(URL, new ClickHouseProperties(), false,
+                (url, properties) -> fakeConnection(false)).withStrategy(RoundClickhouseDataSource.BalanceStrategy.ROUND_ROBIN);
+        Map<String, Integer> hits = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            hits.merge(dataSource.select().getUrl(), 1, Integer::sum);
+        }
+        Assert.assertEquals(3, hits.size());
+        for (Integer count : hits.values()) {
+            Assert.assertEquals(100, count.intValue());
+        }
+    }
+
+    @Test
+    public void closedConnectionIsReused() throws SQLException {
+        RoundClickhouseDataSource dataSource = new RoundClickhouseDataSource("jdbc:clickhouse://127.0.0.1:8123/default",
+                new ClickHouseProperties(), true, (url, properties) -> fakeConnection(false));
+        for (int i = 0; i < 10; i++) {
+            Connection connection = dataSource.getConnection();
+            Assert.assertEquals(1, dataSource.nodeStats().get(0).getActive());
+            connection.close();
+        }
+        ClickHouseNodePool node = dataSource.nodeStats().get(0);
+        Assert.assertEquals(1, node.getCreated());
+        Assert.assertEquals(0, node.getActive());
+        Assert.assertEquals(1, node.getIdle());
+    }
+
+    @Test
+    public void failingNodeIsEjected() throws SQLException {
+        RoundClickhouseDataSource dataSource = new RoundClickhouseDataSource(URL, new ClickHouseProperties(), false,
+                (url, properties) -> fakeConnection(url.contains("127.0.0.2")));
+        for (int i = 0; i < 30; i++) {
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("select 1");
+            } catch (SQLException ignore) {
+            }
+        }
+        for (ClickHouseNodePool node : dataSource.nodeStats()) {
+            Assert.assertEquals(node.getUrl().contains("127.0.0.2"), node.isEjected());
+            Assert.assertEquals(0, node.getActive());
+        }
+        for (int i = 0; i < 30; i++) {
+            Assert.assertFalse(dataSource.select().getUrl().contains("127.0.0.2"));
+        }
+    }
+
+    private static ClickHouseConnection fakeConnection(boolean unreachable) {
+        Statement statement = (Statement) Proxy.newProxyInstance(RoundClickhouseDataSourceTest.class.getClassLoader(),
+                new Class[]{Statement.class}, (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute")) {
+                        if (unreachable) {
+                            throw new SQLException("connect failed", new ConnectException("Connection refused"));
+                        }
+                        return false;
+                    }
+                    return null;
+                });
+        boolean[] closed = new boolean[1];
+        return (ClickHouseConnection) Proxy.newProxyInstance(RoundClickhouseDataSourceTest.class.getClassLoader(),
+                new Class[]{ClickHouseConnection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "createStatement":
+                            return statement;
+                        case "close":
+                            closed[0] = true;
+                            return null;
+                        case "isClosed":
+                            return closed[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -15,6 +15,7 @@
 
 package io.shulie.surge.data.sink.influxdb;
 
+import io.shulie.surge.data.common.batch.SpillBuffer;
 import io.shulie.surge.data.common.pool.NamedThreadFactory;
 import okhttp3.OkHttpClient;
 import org.apache.commons.collections.CollectionUtils;
@@ -32,6 +33,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.*;
+import java.io.*;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
@@ -50,6 +52,10 @@ public class DefaultInfluxDBSupport implements InfluxDBSupport {
 
     private InfluxDB influxDB;
 
+    private LineProtocolWriter lineProtocolWriter;
+
+    private volatile SpillBuffer<SpilledLines> spillBuffer;
+
     public DefaultInfluxDBSupport(String url, String username, String password) {
         try {
             if (StringUtils.isBlank(url)) {
@@ -64,8 +70,11 @@ public class DefaultInfluxDBSupport implements InfluxDBSupport {
                 client.sslSocketFactory(defaultSslSocketFactory(), defaultTrustManager());
                 client.hostnameVerifier(noopHostnameVerifier());
                 influxDB = InfluxDBFactory.connect(url, username, password, client);
+                lineProtocolWriter = new LineProtocolWriter(url, username, password)
+                        .ssl(defaultSslSocketFactory(), noopHostnameVerifier());
             } else {
                 influxDB = InfluxDBFactory.connect(url, username, password);
+                lineProtocolWriter = new LineProtocolWriter(url, username, password);
             }
             influxDB.enableBatch(BatchOptions.DEFAULTS.actions(1000).flushDuration(500).bufferLimit(5000).exceptionHandler(((points, e) ->
             {
@@ -125,6 +134,48 @@ public class DefaultInfluxDBSupport implements InfluxDBSupport {
         }
     }
 
+    @Override
+    public boolean writeLines(String dataBase, LineProtocolBatch batch) {
+        SpillBuffer<SpilledLines> spill = spillBuffer;
+        if (spill != null && spill.hasPending()) {
+            // 前面的数据还没重放完，直接落盘保证顺序
+            return spill.spill(new SpilledLines(dataBase, batch));
+        }
+        try {
+            lineProtocolWriter.write(dataBase, batch);
+            return true;
+        } catch (IOException e) {
+            if (spill != null && (!(e instanceof LineProtocolWriter.WriteException) || ((LineProtocolWriter.WriteException) e).isRetryable())
+                    && spill.spill(new SpilledLines(dataBase, batch))) {
+                logger.warn("write influxDB lines fail, spilled to disk, database:{}, points:{}, bytes:{}: {}", dataBase, batch.points(), batch.size(), e.toString());
+                return true;
+            }
+            logger.error("write influxDB lines fail, database:{}, points:{}, bytes:{}", dataBase, batch.points(), batch.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 开启落盘：{@link #writeLines} 重试耗尽的数据写入本地文件，influxdb 恢复后按顺序重放，重启后继续重放
+     *
+     * @param directory 落盘目录
+     * @param maxBytes  磁盘占用上限
+     */
+    public void spill(File directory, long maxBytes) throws IOException {
+        spillBuffer = new SpillBuffer<>("influxdb", directory, maxBytes, SpilledLines.CODEC, lines -> {
+            try {
+                lineProtocolWriter.write(lines.database, LineProtocolBatch.wrap(lines.lines, lines.points));
+            } catch (LineProtocolWriter.WriteException e) {
+                if (e.isRetryable()) {
+                    throw e;
+                }
+                // 数据本身有问题，重放多少次都不会成功
+                logger.error("drop spilled influxDB lines, database:{}, points:{}", lines.database, lines.points, e);
+            }
+            return true;
+        });
+    }
+
     /**
      * 创建默认保留策略
      *
@@ -141,6 +192,9 @@ public class DefaultInfluxDBSupport implements InfluxDBSupport {
 
     @Override
     public void stop() {
+        if (spillBuffer != null) {
+            spillBuffer.close();
+        }
         try {
             if (influxDB != null) {
                 influxDB.close();
@@ -232,4 +286,46 @@ public class DefaultInfluxDBSupport implements InfluxDBSupport {
             }
         };
     }
+
+    /**
+     * 落盘的一批行协议数据
+     */
+    static final class SpilledLines {
+        static final SpillBuffer.Codec<SpilledLines> CODEC = new SpillBuffer.Codec<SpilledLines>() {
+            @Override
+            public byte[] encode(SpilledLines value) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.lines.length + 64);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeUTF(value.database);
+                out.writeInt(value.points);
+                out.write(value.lines);
+                out.flush();
+                return bytes.toByteArray();
+            }
+
+            @Override
+            public SpilledLines decode(byte[] bytes) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                String database = in.readUTF();
+                int points = in.readInt();
+                byte[] lines = new byte[in.available()];
+                in.readFully(lines);
+                return new SpilledLines(database, lines, points);
+            }
+        };
+
+        private final String database;
+        private final byte[] lines;
+        private final int points;
+
+        SpilledLines(String database, LineProtocolBatch batch) {
+            this(database, batch.toByteArray(), batch.points());
+        }
+
+        SpilledLines(String database, byte[] lines, int points) {
+            this.database = database;
+            this.lines = lines;
+            this.points = points;
+        }
+    }
 }
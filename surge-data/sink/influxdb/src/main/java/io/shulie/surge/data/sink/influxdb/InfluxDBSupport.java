@@ -46,6 +46,15 @@ public interface InfluxDBSupport extends Stoppable {
      */
     void write(String dataBase,String measurement, Map<String, String> tags, Map<String, Object> fields, long time);
 
+    /**
+     * 一次请求写入整批行协议数据，失败时按 {@link LineProtocolWriter} 的规则重试
+     *
+     * @param dataBase 库名
+     * @param batch    行协议数据，写入后不会被清空
+     * @return 是否写入成功或已落盘等待重放，失败已记录日志，数据被丢弃
+     */
+    boolean writeLines(String dataBase, LineProtocolBatch batch);
+
     /**
      * 创建默认保留策略
      *
@@ -19,9 +19,14 @@ import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+
 
 /**
  * 返回单例的 {@link InfluxDBSupportProvider} 对象
@@ -34,6 +39,19 @@ public class InfluxDBSupportProvider implements Provider<InfluxDBSupport> {
 
     private InfluxDBSupport singleton;
 
+    /**
+     * 写入失败的数据落盘目录，为空时不落盘
+     */
+    @Inject
+    @DefaultValue("")
+    @Named("/pradar/config/rt/spill/directory")
+    private Remote<String> spillDirectory;
+
+    @Inject
+    @DefaultValue("268435456")
+    @Named("/pradar/config/rt/spill/maxBytes")
+    private Remote<Long> spillMaxBytes;
+
     @Inject
     public InfluxDBSupportProvider(@Named("config.influxdb.url") String url,
                                    @Named("config.influxdb.username") String username,
@@ -65,6 +83,21 @@ public class InfluxDBSupportProvider implements Provider<InfluxDBSupport> {
         }
     }
 
+    /**
+     * 字段注入完成后开启落盘
+     */
+    @Inject
+    void initSpill() {
+        if (StringUtils.isBlank(spillDirectory.get()) || !(singleton instanceof DefaultInfluxDBSupport)) {
+            return;
+        }
+        try {
+            ((DefaultInfluxDBSupport) singleton).spill(new File(spillDirectory.get(), "influxdb"), spillMaxBytes.get());
+        } catch (IOException e) {
+            logger.error("open influxdb spill buffer fail, failed batches will be dropped", e);
+        }
+    }
+
     @Override
     public InfluxDBSupport get() {
         return this.singleton;
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.influxdb;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 直接拼接 influxdb 行协议的写缓冲，可在多次提交之间复用，不为每个点创建 Point 和 map。
+ * <p>
+ * measurement 和 tag 部分通过 {@link #prefix} 预先转义好，同一个指标可以缓存复用。
+ * 用法：{@code batch.point(prefix).field("a", 1L).field("b", 0.5).end(time)}，
+ * 没有任何 field 的点会被丢弃。时间精度为毫秒
+ * <p>
+ * 非线程安全
+ *
+ * @author pamirs
+ */
+public class LineProtocolBatch {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * reset 时超过该大小的缓冲区会被释放，避免一次大批量后长期占用内存
+     */
+    private static final int RETAIN_CAPACITY = 8 * 1024 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size;
+    private int points;
+    private int pointStart = -1;
+    private int fields;
+
+    /**
+     * 生成 measurement 和 tag 部分，tag 按 key 排序，值为空的 tag 会被忽略
+     *
+     * @param measurement 表名
+     * @param tags        tag 带索引
+     */
+    public static byte[] prefix(String measurement, Map<String, String> tags) {
+        LineProtocolBatch batch = new LineProtocolBatch(measurement.length() + tags.size() * 32);
+        batch.writeEscaped(measurement, true, false);
+        for (Map.Entry<String, String> entry : new TreeMap<>(tags).entrySet()) {
+            if (StringUtils.isEmpty(entry.getKey()) || StringUtils.isEmpty(entry.getValue())) {
+                continue;
+            }
+            batch.write(',');
+            batch.writeEscaped(entry.getKey(), false, true);
+            batch.write('=');
+            batch.writeEscaped(entry.getValue(), false, true);
+        }
+        return Arrays.copyOf(batch.buffer, batch.size);
+    }
+
+    /**
+     * 已编码好的行协议数据，用于重放落盘的批次
+     *
+     * @param lines  {@link #toByteArray} 的结果
+     * @param points 点数
+     */
+    public static LineProtocolBatch wrap(byte[] lines, int points) {
+        LineProtocolBatch batch = new LineProtocolBatch(0);
+        batch.buffer = lines;
+        batch.size = lines.length;
+        batch.points = points;
+        return batch;
+    }
+
+    public LineProtocolBatch() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private LineProtocolBatch(int capacity) {
+        this.buffer = new byte[Math.max(16, capacity)];
+    }
+
+    /**
+     * 开始一个点
+     *
+     * @param prefix {@link #prefix} 生成的 measurement 和 tag
+     */
+    public LineProtocolBatch point(byte[] prefix) {
+        if (pointStart >= 0) {
+            throw new IllegalStateException("previous point not ended");
+        }
+        pointStart = size;
+        fields = 0;
+        ensure(prefix.length);
+        System.arraycopy(prefix, 0, buffer, size, prefix.length);
+        size += prefix.length;
+        return this;
+    }
+
+    public LineProtocolBatch field(String key, long value) {
+        fieldKey(key);
+        writeLong(value);
+        write('i');
+        return this;
+    }
+
+    /**
+     * NaN 和无穷大在行协议中不合法，直接忽略
+     */
+    public LineProtocolBatch field(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this;
+        }
+        fieldKey(key);
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            writeLong((long) value);
+        } else {
+            writeAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    public LineProtocolBatch field(String key, boolean value) {
+        fieldKey(key);
+        write(value ? 't' : 'f');
+        return this;
+    }
+
+    /**
+     * 值为 null 时忽略
+     */
+    public LineProtocolBatch field(String key, String value) {
+        if (value == null) {
+            return this;
+        }
+        fieldKey(key);
+        write('"');
+        writeEscaped(value, false, false);
+        write('"');
+        return this;
+    }
+
+    /**
+     * 结束当前点
+     *
+     * @param timeMillis 毫秒时间戳，小于等于 0 时由服务端取当前时间
+     */
+    public LineProtocolBatch end(long timeMillis) {
+        if (pointStart < 0) {
+            throw new IllegalStateException("point not started");
+        }
+        if (fields == 0) {
+            size = pointStart;
+        } else {
+            if (timeMillis > 0) {
+                write(' ');
+                writeLong(timeMillis);
+            }
+            write('\n');
+            points++;
+        }
+        pointStart = -1;
+        return this;
+    }
+
+    public int points() {
+        return points;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return points == 0;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, size);
+    }
+
+    public void reset() {
+        size = 0;
+        points = 0;
+        pointStart = -1;
+        if (buffer.length > RETAIN_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, size, java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    private void fieldKey(String key) {
+        if (pointStart < 0) {
+            throw new IllegalStateException("point not started");
+        }
+        write(fields++ == 0 ? ' ' : ',');
+        writeEscaped(key, false, true);
+        write('=');
+    }
+
+    private void write(char c) {
+        ensure(1);
+        buffer[size++] = (byte) c;
+    }
+
+    private void writeAscii(String s) {
+        ensure(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buffer[size++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        ensure(20);
+        if (value < 0) {
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+    }
+
+    /**
+     * 按行协议转义并以 UTF-8 写入
+     *
+     * @param measurement measurement 转义逗号和空格
+     * @param tag         tag 和 field 的 key、tag 的值转义逗号、等号和空格，否则为字符串 field 值，转义双引号和反斜杠
+     */
+    private void writeEscaped(String s, boolean measurement, boolean tag) {
+        ensure(s.length() * 4);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (measurement || tag) {
+                    if (c == ',' || c == ' ' || (tag && c == '=')) {
+                        buffer[size++] = '\\';
+                    } else if (c == '\n') {
+                        // 换行会截断当前点，只能替换掉
+                        c = ' ';
+                        buffer[size++] = '\\';
+                    }
+                } else if (c == '"' || c == '\\') {
+                    buffer[size++] = '\\';
+                }
+                buffer[size++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[size++] = (byte) (0xc0 | (c >> 6));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer[size++] = (byte) (0xf0 | (cp >> 18));
+                buffer[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                buffer[size++] = '?';
+            } else {
+                buffer[size++] = (byte) (0xe0 | (c >> 12));
+                buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void ensure(int length) {
+        if (size + length > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.influxdb;
+
+import io.shulie.surge.data.common.utils.Bytes;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * 通过 influxdb HTTP /write 接口一次写入一整批行协议数据。
+ * <p>
+ * 失败处理：连接异常、超时、5xx 和 429 会按指数退避重试；
+ * 其余 4xx 是数据本身的问题（如字段类型冲突，服务端已写入合法的点），重试没有意义，直接抛出
+ *
+ * @author pamirs
+ */
+public class LineProtocolWriter {
+    private static final Logger logger = LoggerFactory.getLogger(LineProtocolWriter.class);
+
+    private final String endpoint;
+    private final String username;
+    private final String password;
+    private int connectTimeout = 10000;
+    private int readTimeout = 60000;
+    private int maxAttempts = 3;
+    private long backoffMillis = 200;
+    private SSLSocketFactory sslSocketFactory;
+    private HostnameVerifier hostnameVerifier;
+
+    public LineProtocolWriter(String endpoint, String username, String password) {
+        this.endpoint = StringUtils.removeEnd(endpoint, "/");
+        this.username = username;
+        this.password = password;
+    }
+
+    public LineProtocolWriter timeout(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * @param maxAttempts   最多尝试次数，包含第一次
+     * @param backoffMillis 第一次重试前的等待时间，之后每次翻倍
+     */
+    public LineProtocolWriter retry(int maxAttempts, long backoffMillis) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffMillis = Math.max(0, backoffMillis);
+        return this;
+    }
+
+    public LineProtocolWriter ssl(SSLSocketFactory sslSocketFactory, HostnameVerifier hostnameVerifier) {
+        this.sslSocketFactory = sslSocketFactory;
+        this.hostnameVerifier = hostnameVerifier;
+        return this;
+    }
+
+    /**
+     * 写入一批数据，可重试的失败会在当前线程内重试
+     *
+     * @param database 库名
+     * @param batch    行协议数据，写入后不会被清空
+     * @throws IOException 重试耗尽或不可重试的失败
+     */
+    public void write(String database, LineProtocolBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long backoff = backoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                post(database, batch);
+                return;
+            } catch (WriteException e) {
+                if (!e.retryable || attempt >= maxAttempts) {
+                    throw e;
+                }
+                logger.warn("influxdb write failed, attempt {}/{}, points:{}, retry in {}ms: {}",
+                        attempt, maxAttempts, batch.points(), backoff, e.getMessage());
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                logger.warn("influxdb write failed, attempt {}/{}, points:{}, retry in {}ms: {}",
+                        attempt, maxAttempts, batch.points(), backoff, e.toString());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while retrying influxdb write", e);
+            }
+            backoff *= 2;
+        }
+    }
+
+    private void post(String database, LineProtocolBatch batch) throws IOException {
+        StringBuilder query = new StringBuilder(endpoint).append("/write?precision=ms&db=").append(URLEncoder.encode(database, "UTF-8"));
+        if (StringUtils.isNotBlank(username)) {
+            query.append("&u=").append(URLEncoder.encode(username, "UTF-8"));
+        }
+        if (StringUtils.isNotBlank(password)) {
+            query.append("&p=").append(URLEncoder.encode(password, "UTF-8"));
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(query.toString()).openConnection();
+        try {
+            if (connection instanceof HttpsURLConnection && sslSocketFactory != null) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+                ((HttpsURLConnection) connection).setHostnameVerifier(hostnameVerifier);
+            }
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+            connection.setFixedLengthStreamingMode(batch.size());
+            connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                batch.writeTo(out);
+            }
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new WriteException("influxdb write failed, code:" + code + ", message:" + readError(connection),
+                        code >= 500 || code == 429);
+            }
+            // 读完响应才能复用 keep-alive 连接
+            try (InputStream in = connection.getInputStream()) {
+                IOUtils.toByteArray(in);
+            }
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static String readError(HttpURLConnection connection) {
+        try (InputStream in = connection.getErrorStream()) {
+            return in == null ? "" : StringUtils.abbreviate(new String(IOUtils.toByteArray(in), Bytes.UTF_8), 1024);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * 服务端返回的失败
+     */
+    public static class WriteException extends IOException {
+        private final boolean retryable;
+
+        public WriteException(String message, boolean retryable) {
+            super(message);
+            this.retryable = retryable;
+        }
+
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.influxdb;
+
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpServer;
+import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBFactory;
+import org.influxdb.dto.BatchPoints;
+import org.influxdb.dto.Point;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * reduce bolt 一个时间窗口的 trace_metrics 写入对比：
+ * 客户端 Point 路径(每个点两个 HashMap + Point.Builder + BatchPoints) 与行协议路径(缓存的 tag 前缀 + 复用缓冲区)
+ * <p>
+ * 服务端是本地的 HTTP 替身，只读完请求体并返回 204，每次迭代结束打印两条路径每个点实际发送的字节数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LineProtocolWriteBenchmark {
+
+    @Param({"5000"})
+    private int points;
+
+    private HttpServer server;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private InfluxDB influxDB;
+    private LineProtocolWriter writer;
+    private LineProtocolBatch batch;
+    private String[][] tags;
+    private byte[][] prefixes;
+    private long pointBytes;
+    private long pointCount;
+    private long lineBytes;
+    private long lineCount;
+
+    @Setup
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            long count = 0;
+            byte[] buf = new byte[64 * 1024];
+            try (InputStream in = exchange.getRequestBody()) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    count += n;
+                }
+            }
+            receivedBytes.addAndGet(count);
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+        String endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+        influxDB = InfluxDBFactory.connect(endpoint, "pradar", "pradar");
+        writer = new LineProtocolWriter(endpoint, "pradar", "pradar");
+        batch = new LineProtocolBatch();
+        tags = new String[points][];
+        prefixes = new byte[points][];
+        for (int i = 0; i < points; i++) {
+            tags[i] = new String[]{"edgeId", "edge-" + i, "clusterTest", String.valueOf(i % 2),
+                    "service", "/api/user/query/" + (i % 50), "method", "GET", "appName", "pradar-demo-" + (i % 20),
+                    "rpcType", "0", "middlewareName", "tomcat", "tenantAppKey", "ed45ef6b-bf94-48fa-b0c0-15e0285365d2", "envCode", "test"};
+            prefixes[i] = LineProtocolBatch.prefix("trace_metrics", toMap(tags[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        influxDB.close();
+        server.stop(0);
+        if (pointCount > 0) {
+            System.out.println("point api bytes/point: " + pointBytes / pointCount);
+        }
+        if (lineCount > 0) {
+            System.out.println("line protocol bytes/point: " + lineBytes / lineCount);
+        }
+    }
+
+    @Benchmark
+    public void pointApi(Blackhole blackhole) {
+        BatchPoints batchPoints = BatchPoints.database("pradar").build();
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < points; i++) {
+            Map<String, Object> fields = Maps.newHashMap();
+            fillFields(fields, i);
+            batchPoints.point(Point.measurement("trace_metrics").tag(toMap(tags[i])).fields(fields)
+                    .time(time, TimeUnit.MILLISECONDS).build());
+        }
+        long before = receivedBytes.get();
+        influxDB.write(batchPoints);
+        pointBytes += receivedBytes.get() - before;
+        pointCount += points;
+        blackhole.consume(batchPoints);
+    }
+
+    @Benchmark
+    public void lineProtocol() throws IOException {
+        long time = System.currentTimeMillis();
+        for (int i = 0; i < points; i++) {
+            batch.point(prefixes[i])
+                    .field("totalCount", 100L + i).field("successCount", 99L).field("totalRt", 1234L + i)
+                    .field("errorCount", 1L).field("hitCount", 0L).field("totalTps", 100L).field("total", 100L)
+                    .field("e2eSuccessCount", 0L).field("e2eErrorCount", 0L).field("maxRt", 87L)
+                    .field("avgRt", (1234.0 + i) / (100 + i)).field("avgTps", 100 / 5.0)
+                    .field("traceId", "0ab2efc1624358761231100118869").field("sqlStatement", "null")
+                    .field("log_time", "2021-06-22 18:46:01")
+                    .end(time);
+        }
+        long before = receivedBytes.get();
+        writer.write("pradar", batch);
+        batch.reset();
+        lineBytes += receivedBytes.get() - before;
+        lineCount += points;
+    }
+
+    private static void fillFields(Map<String, Object> fields, int i) {
+        fields.put("totalCount", 100L + i);
+        fields.put("successCount", 99L);
+        fields.put("totalRt", 1234L + i);
+        fields.put("errorCount", 1L);
+        fields.put("hitCount", 0L);
+        fields.put("totalTps", 100L);
+        fields.put("total", 100L);
+        fields.put("e2eSuccessCount", 0L);
+        fields.put("e2eErrorCount", 0L);
+        fields.put("maxRt", 87L);
+        fields.put("avgRt", (1234.0 + i) / (100 + i));
+        fields.put("avgTps", 100 / 5.0);
+        fields.put("traceId", "0ab2efc1624358761231100118869");
+        fields.put("sqlStatement", "null");
+        fields.put("log_time", "2021-06-22 18:46:01");
+    }
+
+    private static Map<String, String> toMap(String[] keyValues) {
+        Map<String, String> map = Maps.newHashMap();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return map;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(LineProtocolWriteBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.sink.mysql;
+
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 配置表的增量拉取，要求表有自增主键 id 和 gmt_modify 更新时间
+ * <p>
+ * 每次先查询 count(id)、sum(id)、max(gmt_modify)：
+ * 行数或主键和变化说明有新增或删除，做一次全量拉取；只有 gmt_modify 前进时只拉取变更的行；都没变化时不再查询。
+ * gmt_modify 只精确到秒，水位所在的那一秒内之后还可能有修改，因此在数据库时间越过这一秒之前，
+ * max(gmt_modify) 等于水位时仍按 gmt_modify >= 水位 重新拉取，只有行内容确实变化才算变更。
+ * 另外每隔一段时间强制全量一次兜底。非线程安全，由单个刷新线程调用
+ *
+ * @author pamirs
+ */
+public class IncrementalTableLoader {
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalTableLoader.class);
+
+    private static final long DEFAULT_FULL_RELOAD_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+
+    private final String table;
+    private final int limit;
+    private final long fullReloadInterval;
+
+    private Map<Long, Map<String, Object>> rows = Collections.emptyMap();
+    private long idSum;
+    private Timestamp watermark;
+    /**
+     * 最近一次拉取时数据库时间已越过水位所在的秒，水位之前的修改都已拉到
+     */
+    private boolean watermarkSettled;
+    private long lastFullReload;
+    private long fullReloadCount;
+    private long deltaReloadCount;
+
+    public IncrementalTableLoader(String table, int limit) {
+        this(table, limit, DEFAULT_FULL_RELOAD_INTERVAL);
+    }
+
+    public IncrementalTableLoader(String table, int limit, long fullReloadInterval) {
+        this.table = table;
+        this.limit = limit;
+        this.fullReloadInterval = fullReloadInterval;
+    }
+
+    /**
+     * 拉取变更
+     *
+     * @param mysqlSupport
+     * @return 表内容是否有变化，没有变化时调用方不需要重建快照
+     */
+    public boolean poll(MysqlSupport mysqlSupport) {
+        Map<String, Object> stat = mysqlSupport.queryForMap(
+                "select count(id) as cnt, coalesce(sum(id), 0) as id_sum, max(gmt_modify) as max_modify, now() as db_now from "
+                        + table);
+        long count = toLong(stat.get("cnt"));
+        long sum = toLong(stat.get("id_sum"));
+        Timestamp maxModify = toTimestamp(stat.get("max_modify"));
+        boolean settled = isSettled(maxModify, toTimestamp(stat.get("db_now")));
+        long now = System.currentTimeMillis();
+        if (count != rows.size() || sum != idSum || now - lastFullReload >= fullReloadInterval) {
+            fullReload(mysqlSupport, maxModify, settled, now);
+            return true;
+        }
+        if (maxModify == null || (watermark != null && maxModify.before(watermark))) {
+            return false;
+        }
+        if (watermark != null && maxModify.equals(watermark) && watermarkSettled) {
+            return false;
+        }
+        List<Map<String, Object>> changed = watermark == null
+                ? mysqlSupport.queryForList("select * from " + table + " limit " + limit)
+                : mysqlSupport.queryForList("select * from " + table + " where gmt_modify >= ? limit " + limit, watermark);
+        Map<Long, Map<String, Object>> next = null;
+        for (Map<String, Object> row : changed) {
+            Long id = toLong(row.get("id"));
+            // 水位那一秒的行每轮都会重复拉到，内容没变的不算变更
+            if (row.equals(rows.get(id))) {
+                continue;
+            }
+            if (next == null) {
+                next = Maps.newLinkedHashMap(rows);
+            }
+            next.put(id, row);
+        }
+        // 取统计查询时的最大值，之后的修改下一轮会再次拉到，重复应用是幂等的
+        watermark = maxModify;
+        watermarkSettled = settled;
+        if (next == null) {
+            return false;
+        }
+        rows = next;
+        deltaReloadCount++;
+        logger.debug("{} delta reload rows:{}", table, changed.size());
+        return true;
+    }
+
+    /**
+     * 统计查询时数据库时间已到水位的下一秒，之后不会再有 gmt_modify 等于水位的修改
+     */
+    private static boolean isSettled(Timestamp maxModify, Timestamp dbNow) {
+        if (maxModify == null || dbNow == null) {
+            return false;
+        }
+        return TimeUnit.MILLISECONDS.toSeconds(dbNow.getTime()) > TimeUnit.MILLISECONDS.toSeconds(maxModify.getTime());
+    }
+
+    private void fullReload(MysqlSupport mysqlSupport, Timestamp maxModify, boolean settled, long now) {
+        List<Map<String, Object>> all = mysqlSupport.queryForList("select * from " + table + " limit " + limit);
+        Map<Long, Map<String, Object>> next = Maps.newLinkedHashMapWithExpectedSize(all.size());
+        long sum = 0;
+        for (Map<String, Object> row : all) {
+            long id = toLong(row.get("id"));
+            next.put(id, row);
+            sum += id;
+        }
+        rows = next;
+        idSum = sum;
+        watermark = maxModify;
+        watermarkSettled = settled;
+        lastFullReload = now;
+        fullReloadCount++;
+    }
+
+    private static Timestamp toTimestamp(Object value) {
+        if (value == null || value instanceof Timestamp) {
+            return (Timestamp) value;
+        }
+        if (value instanceof Date) {
+            return new Timestamp(((Date) value).getTime());
+        }
+        if (value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value);
+        }
+        throw new IllegalArgumentException("unsupported gmt_modify type " + value.getClass());
+    }
+
+    private static long toLong(Object value) {
+        return value == null ? 0L : ((Number) value).longValue();
+    }
+
+    /**
+     * @return 当前表内容，返回值不会再被修改
+     */
+    public Collection<Map<String, Object>> rows() {
+        return Collections.unmodifiableCollection(rows.values());
+    }
+
+    public long getFullReloadCount() {
+        return fullReloadCount;
+    }
+
+    public long getDeltaReloadCount() {
+        return deltaReloadCount;
+    }
+}
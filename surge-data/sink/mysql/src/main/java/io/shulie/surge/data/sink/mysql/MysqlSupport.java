@@ -18,7 +18,8 @@ package io.shulie.surge.data.sink.mysql;
 
 import com.alibaba.druid.pool.DruidDataSource;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import io.shulie.surge.data.common.batch.CountRotationPolicy;
 import io.shulie.surge.data.common.batch.RotationBatch;
@@ -26,9 +27,13 @@ import io.shulie.surge.data.common.batch.TimedRotationPolicy;
 import io.shulie.surge.data.common.lifecycle.Lifecycle;
 import io.shulie.surge.data.common.lifecycle.Stoppable;
 import io.shulie.surge.data.common.utils.Pair;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.datasource.DataSourceTransactionManager;
 import org.springframework.transaction.TransactionStatus;
@@ -36,10 +41,20 @@ import org.springframework.transaction.support.TransactionCallback;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 
 /**
@@ -52,13 +67,41 @@ public class MysqlSupport implements Lifecycle, Stoppable {
 
     private static final Logger logger = LoggerFactory.getLogger(MysqlSupport.class);
 
+    /**
+     * 预编译 sql 的批次队列，按 sql 进程内共享：各处注入的 MysqlSupport 是不同实例，
+     * 同一条 sql 的落盘目录只能由一个批次队列打开，并发写入时也只能创建一个队列
+     */
+    private static final ConcurrentMap<String, RotationBatch<Object[]>> rotationPrepareSqlBatch = new ConcurrentHashMap<>();
+
+    /**
+     * 预编译 sql 落盘目录中保存 sql 原文的文件，启动时据此重放 sql 已经不再使用的目录
+     */
+    private static final String SPILL_STATEMENT_FILE = "statement.sql";
+    private static final Pattern PREPARE_SPILL_NAME = Pattern.compile("mysql-[0-9a-f]{32}");
+    private static final AtomicBoolean spillRecovered = new AtomicBoolean(false);
+
     private DataSource dataSource;
     private JdbcTemplate jdbcTemplate;
     private RotationBatch<String> rotationSqlBatch;
-    private Map<String, RotationBatch<Object[]>> rotationPrepareSqlBatch = Maps.newHashMap();
     private DataSourceTransactionManager transactionManager;
     private TransactionTemplate transactionTemplate;
 
+    /**
+     * 写入失败的批次落盘目录，为空时不落盘，重启后继续重放目录中的数据
+     */
+    @Inject
+    @DefaultValue("")
+    @Named("/pradar/config/rt/spill/directory")
+    private Remote<String> spillDirectory;
+
+    /**
+     * 每个批次队列的落盘上限，单位字节
+     */
+    @Inject
+    @DefaultValue("268435456")
+    @Named("/pradar/config/rt/spill/maxBytes")
+    private Remote<Long> spillMaxBytes;
+
     public MysqlSupport(@Named("config.mysql.url") String url,
                         @Named("config.mysql.userName") String username,
                         @Named("config.mysql.password") String password,
@@ -108,7 +151,63 @@ public class MysqlSupport implements Lifecycle, Stoppable {
                 return false;
             }
         });
-        rotationPrepareSqlBatch = Maps.newHashMap();
+        spill(rotationSqlBatch, "sql");
+    }
+
+    /**
+     * 配置了落盘目录时，批次队列写入失败的数据落盘，mysql 恢复后按顺序重放
+     *
+     * @param rotationBatch
+     * @param key           同一个目录下区分不同批次队列
+     */
+    private File spill(RotationBatch<?> rotationBatch, String key) {
+        if (spillDirectory == null || StringUtils.isBlank(spillDirectory.get())) {
+            return null;
+        }
+        String name = "mysql-" + key;
+        File directory = new File(spillDirectory.get(), name);
+        try {
+            rotationBatch.spill(name, directory, spillMaxBytes.get());
+            return directory;
+        } catch (IOException e) {
+            logger.error("open spill buffer {} fail, failed batches will be dropped", name, e);
+            return null;
+        }
+    }
+
+    /**
+     * 启动时检查落盘目录，重放 sql 已经不再使用的预编译 sql 目录，进程内只执行一次。
+     * 这类目录不会再被 {@link #batchUpdate(String, List)} 打开，例如 sql 改了表名或字段；
+     * 没有保存 sql 原文的目录无法重放，只输出日志
+     */
+    public void recoverSpill() {
+        if (spillDirectory == null || StringUtils.isBlank(spillDirectory.get()) || !spillRecovered.compareAndSet(false, true)) {
+            return;
+        }
+        File[] directories = new File(spillDirectory.get()).listFiles(
+                file -> file.isDirectory() && PREPARE_SPILL_NAME.matcher(file.getName()).matches());
+        if (directories == null) {
+            return;
+        }
+        for (File directory : directories) {
+            File statementFile = new File(directory, SPILL_STATEMENT_FILE);
+            if (!statementFile.isFile()) {
+                logger.warn("spill directory {} has no {}, it will be replayed only when its sql is written again",
+                        directory, SPILL_STATEMENT_FILE);
+                continue;
+            }
+            try {
+                String sql = new String(Files.readAllBytes(statementFile.toPath()), StandardCharsets.UTF_8);
+                if (!directory.getName().equals("mysql-" + spillKey(sql))) {
+                    logger.warn("spill directory {} does not match its {}, skip", directory, SPILL_STATEMENT_FILE);
+                    continue;
+                }
+                prepareSqlBatch(sql);
+                logger.info("spill directory {} opened for replay, sql: {}", directory, sql);
+            } catch (IOException e) {
+                logger.error("read spill directory {} fail", directory, e);
+            }
+        }
     }
 
     @Override
@@ -144,9 +243,21 @@ public class MysqlSupport implements Lifecycle, Stoppable {
      */
 
     public void batchUpdate(final String sql, final List<Object[]> batchArgs) {
-        RotationBatch<Object[]> rotationBatch = null;
-        if (!rotationPrepareSqlBatch.containsKey(sql)) {
-            rotationBatch = new RotationBatch(new CountRotationPolicy(200), new TimedRotationPolicy(2, TimeUnit.SECONDS));
+        RotationBatch<Object[]> rotationBatch = prepareSqlBatch(sql);
+        for (Object[] args : batchArgs) {
+            rotationBatch.addBatch(args);
+        }
+    }
+
+    /**
+     * 获取 sql 对应的批次队列，没有时创建并打开落盘目录，同一条 sql 只会创建一次
+     *
+     * @param sql
+     * @return
+     */
+    private RotationBatch<Object[]> prepareSqlBatch(final String sql) {
+        return rotationPrepareSqlBatch.computeIfAbsent(sql, key -> {
+            RotationBatch<Object[]> rotationBatch = new RotationBatch(new CountRotationPolicy(200), new TimedRotationPolicy(2, TimeUnit.SECONDS));
             rotationBatch.batchSaver(new RotationBatch.BatchSaver<Object[]>() {
                 @Override
                 public boolean saveBatch(LinkedBlockingQueue<Object[]> batchSql) {
@@ -159,20 +270,37 @@ public class MysqlSupport implements Lifecycle, Stoppable {
                     return false;
                 }
             });
-        } else {
-            rotationBatch = rotationPrepareSqlBatch.get(sql);
-        }
-        for (Object[] args : batchArgs) {
-            rotationBatch.addBatch(args);
-        }
-        rotationPrepareSqlBatch.put(sql, rotationBatch);
+            File directory = spill(rotationBatch, spillKey(sql));
+            if (directory != null) {
+                File statementFile = new File(directory, SPILL_STATEMENT_FILE);
+                try {
+                    if (!statementFile.isFile()) {
+                        Files.write(statementFile.toPath(), sql.getBytes(StandardCharsets.UTF_8));
+                    }
+                } catch (IOException e) {
+                    logger.warn("write {} fail, the directory can not be replayed if the sql changes", statementFile, e);
+                }
+            }
+            return rotationBatch;
+        });
+    }
+
+    private static String spillKey(String sql) {
+        return Hashing.murmur3_128().hashString(sql, StandardCharsets.UTF_8).toString();
     }
 
-    public void updateBatch(final String sql, final List<Object[]> batchArgs) {
+    /**
+     * 同步批量更新
+     *
+     * @param sql
+     * @param batchArgs
+     * @return 每条语句影响的行数
+     */
+    public int[] updateBatch(final String sql, final List<Object[]> batchArgs) {
         if (jdbcTemplate == null) {
             jdbcTemplate = new JdbcTemplate(dataSource);
         }
-        jdbcTemplate.batchUpdate(sql, batchArgs);
+        return jdbcTemplate.batchUpdate(sql, batchArgs);
     }
 
     public void update(final String sql, final Object[] args) {
@@ -294,10 +422,49 @@ public class MysqlSupport implements Lifecycle, Stoppable {
         return jdbcTemplate.queryForList(sql);
     }
 
+    /**
+     * 带参数查询list
+     *
+     * @param sql
+     * @param args
+     * @return
+     */
+    public List<Map<String, Object>> queryForList(String sql, Object... args) {
+        if (jdbcTemplate == null) {
+            jdbcTemplate = new JdbcTemplate(dataSource);
+        }
+        return jdbcTemplate.queryForList(sql, args);
+    }
+
     public <T> List<T> query(String sql, RowMapper<T> rowMapper) {
         if (jdbcTemplate == null) {
             jdbcTemplate = new JdbcTemplate(dataSource);
         }
         return jdbcTemplate.query(sql, rowMapper);
     }
+
+    public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) {
+        if (jdbcTemplate == null) {
+            jdbcTemplate = new JdbcTemplate(dataSource);
+        }
+        return jdbcTemplate.query(sql, rowMapper, args);
+    }
+
+    /**
+     * 逐行处理结果，不在内存中保留整个结果集。
+     * fetchSize 设为 Integer.MIN_VALUE 让 MySQL 驱动流式读取，否则驱动会先把整个结果集读进内存
+     *
+     * @param sql
+     * @param rowCallbackHandler
+     */
+    public void query(String sql, RowCallbackHandler rowCallbackHandler) {
+        if (jdbcTemplate == null) {
+            jdbcTemplate = new JdbcTemplate(dataSource);
+        }
+        jdbcTemplate.query(con -> {
+            PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(Integer.MIN_VALUE);
+            return ps;
+        }, rowCallbackHandler);
+    }
 }
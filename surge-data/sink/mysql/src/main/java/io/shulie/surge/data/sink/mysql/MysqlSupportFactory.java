@@ -46,6 +46,7 @@ public class MysqlSupportFactory implements GenericFactory<MysqlSupport, MysqlSu
                     spec.getMaxActive());
             runtime.inject(clickHouseSupport);
             runtime.registShutdownCall(clickHouseSupport, StopLevel.SUPPORT);
+            clickHouseSupport.recoverSpill();
             return clickHouseSupport;
         }
     }
@@ -30,6 +30,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.shulie.surge.data.common.lifecycle.LifecycleObserver;
 import io.shulie.surge.data.common.pool.DataPoolExecutors;
 import io.shulie.surge.data.common.utils.IpAddressUtils;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import io.shulie.surge.data.runtime.common.utils.ApiProcessor;
 import io.shulie.surge.data.runtime.disruptor.RingBufferIllegalStateException;
 import io.shulie.surge.data.runtime.processor.DataQueue;
@@ -65,6 +67,14 @@ public final class NettyRemotingSupplier extends DefaultMultiProcessorSupplier {
     @Named("netty.remoting.server.processCores")
     private int coreSize = 4;
 
+    /**
+     * 按字节切分解析请求体，关闭后退回到字符串切分
+     */
+    @Inject
+    @DefaultValue("true")
+    @Named("/pradar/config/rt/bytesIngestEnable")
+    private Remote<Boolean> bytesIngestEnable;
+
     private RemotingServer remotingServer;
 
     // 外部设置的端口段映射
@@ -122,6 +132,7 @@ public final class NettyRemotingSupplier extends DefaultMultiProcessorSupplier {
 
                 Response response = new Response();
                 response.setSuccess(true);
+                DataQueue queue = null;
                 ProtocolFactory factory = selector.select(req.getProtocolCode());
                 try {
                     Request request = factory.decode(Request.class, req);
@@ -130,21 +141,30 @@ public final class NettyRemotingSupplier extends DefaultMultiProcessorSupplier {
                         responseCommand.setVersion(CommandVersion.V1);
                         return responseCommand;
                     }
-                    String content = new String(request.getBody());
                     String hostIp = request.getHostIp();
                     String dataVersion = request.getVersion();
                     Byte dataType = request.getDataType();
-                    DataQueue queue = queueMap.get(String.valueOf(dataType));
+                    queue = queueMap.get(String.valueOf(dataType));
                     Map<String, Object> header = Maps.newHashMap();
                     header.put("hostIp", hostIp);
                     header.put("dataVersion", dataVersion);
                     header.put("dataType", dataType);
                     header.put("receiveHttpTime", receiveHttpTime);
-                    queue.publish(header, queue.splitLog(content, dataType));
+                    if (bytesIngestEnable.get()) {
+                        queue.publishBytes(header, request.getBody(), dataType);
+                    } else {
+                        queue.publish(header, queue.splitLog(new String(request.getBody()), dataType));
+                    }
+                    //过载时被丢弃的数据也按成功返回，避免客户端重试，通过退避时间让客户端降低发送频率
+                    long backoffMillis = queue.backoffMillis();
+                    if (backoffMillis > 0) {
+                        response.setErrorMsg("backoff=" + backoffMillis + "ms");
+                    }
                 } catch (RingBufferIllegalStateException e) {
                     logger.error(e.getMessage());
                     response.setSuccess(false);
-                    response.setErrorMsg(e.getMessage());
+                    // 协议中没有单独的字段，退避时间放在错误信息里
+                    response.setErrorMsg(e.getMessage() + ", backoff=" + queue.backoffMillis() + "ms");
                     responseCommand.setCode(CommandCode.SYSTEM_BUSY);
                 } catch (Throwable e) {
                     logger.error("logProcessor fail " + ExceptionUtils.getStackTrace(e));
@@ -19,14 +19,15 @@ import com.google.common.collect.Maps;
 import com.pamirs.pradar.log.parser.constant.TenantConstants;
 import io.shulie.surge.data.deploy.pradar.parser.DefaultRpcBasedParser;
 import io.shulie.surge.data.runtime.common.utils.ApiProcessor;
+import io.shulie.surge.data.sink.mysql.IncrementalTableLoader;
 import io.shulie.surge.data.sink.mysql.MysqlSupport;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -45,7 +46,12 @@ public abstract class AbstractLinkCache {
 
     private static final String LINKID_CONFIG_TABLENAME = "t_amdb_pradar_link_config";
 
-    private LinkedHashMap<String, Map<String, Object>> linkConfig = Maps.newLinkedHashMap();
+    private final IncrementalTableLoader linkConfigLoader = new IncrementalTableLoader(LINKID_CONFIG_TABLENAME, 9999);
+
+    /**
+     * 不可变快照，刷新线程构建好后整体替换
+     */
+    private volatile Map<String, Map<String, Object>> linkConfig = Collections.emptyMap();
 
     /**
      * 增加链路时低延时更新队列
@@ -68,12 +74,19 @@ public abstract class AbstractLinkCache {
         }, 0, 5, TimeUnit.SECONDS);
     }
 
-    protected void refresh(MysqlSupport mysqlSupport) {
+    /**
+     * 只在表有变化时重建快照，变化的行按 gmt_modify 增量拉取
+     *
+     * @param mysqlSupport
+     */
+    protected synchronized void refresh(MysqlSupport mysqlSupport) {
         try {
+            if (!linkConfigLoader.poll(mysqlSupport)) {
+                return;
+            }
             LinkedHashMap<String, Map<String, Object>> tmpLinkConfig = Maps.newLinkedHashMap();
             DefaultRpcBasedParser defaultRpcBasedParser = new DefaultRpcBasedParser();
-            List<Map<String, Object>> linkConfigModels = mysqlSupport.queryForList("select * from " + LINKID_CONFIG_TABLENAME + " limit 9999");
-            for (Map<String, Object> linkConf : linkConfigModels) {
+            for (Map<String, Object> linkConf : linkConfigLoader.rows()) {
                 Map<String, Object> linkConfMap = Maps.newHashMap();
                 for (String key : linkConf.keySet()) {
                     linkConfMap.put(lineToHump(key), linkConf.get(key));
@@ -89,9 +102,9 @@ public abstract class AbstractLinkCache {
                 result.put("userAppKey", StringUtils.isBlank(userAppKey) ? StringUtils.defaultString(ApiProcessor.staticDefaultTenantAppKey, TenantConstants.DEFAULT_USER_APP_KEY) : userAppKey);
                 result.put("envCode", StringUtils.isBlank(envCode) ? TenantConstants.DEFAULT_ENV_CODE : envCode);
                 result.put("userId", StringUtils.isBlank(userId) ? TenantConstants.DEFAULT_USERID : userId);
-                tmpLinkConfig.put(linkId, result);
+                tmpLinkConfig.put(linkId, Collections.unmodifiableMap(result));
             }
-            linkConfig = tmpLinkConfig;
+            linkConfig = Collections.unmodifiableMap(tmpLinkConfig);
         } catch (Exception e) {
             logger.error("Query linkId configuration faild.", e);
         }
@@ -99,7 +112,10 @@ public abstract class AbstractLinkCache {
 
     public abstract void save(String linkId, LinkedBlockingQueue<String> linkedBlockingQueue);
 
-    public LinkedHashMap<String, Map<String, Object>> getLinkConfig() {
+    /**
+     * @return 当前快照，不可修改
+     */
+    public Map<String, Map<String, Object>> getLinkConfig() {
         return linkConfig;
     }
 
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 带虚拟节点的一致性哈希环，不可变
+ * <p>
+ * 成员增减时只有落在变化成员区间上的 key 会换归属，其余 key 保持不变
+ *
+ * @author pamirs
+ */
+public final class ConsistentHashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    public static final ConsistentHashRing EMPTY = new ConsistentHashRing(Collections.emptyList(), DEFAULT_VIRTUAL_NODES);
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    private final List<String> members;
+
+    public ConsistentHashRing(Collection<String> members, int virtualNodes) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(members)));
+        for (String member : this.members) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+    }
+
+    /**
+     * @return key 的归属成员，环为空时返回 null
+     */
+    public String owner(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+    }
+
+    public List<String> members() {
+        return members;
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    /**
+     * FNV-1a 后再做一次 murmur3 的 fmix64，保证虚拟节点在环上分布均匀
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link;
+
+/**
+ * 按 key 提交的独立任务，每个应用或业务活动是一个 key
+ *
+ * @author pamirs
+ */
+public interface KeyedTaskExecutor {
+
+    /**
+     * 提交一个 key 的处理任务
+     *
+     * @param key  应用或业务活动标识，用于日志和统计
+     * @param task 任务
+     */
+    void execute(String key, Runnable task);
+}
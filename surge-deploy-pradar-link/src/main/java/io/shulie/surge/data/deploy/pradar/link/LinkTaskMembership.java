@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link;
+
+import com.alibaba.fastjson.JSON;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.shulie.surge.data.common.utils.IpAddressUtils;
+import io.shulie.surge.data.common.zk.ZkClient;
+import io.shulie.surge.data.common.zk.ZkHeartbeatNode;
+import io.shulie.surge.data.common.zk.ZkPathChildrenCache;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 链路梳理实例的成员关系，每个实例在 zk 上注册心跳节点，按存活实例构建一致性哈希环分配应用和业务活动。
+ * <p>
+ * 成员变化后，原归属实例在宽限期内继续处理移走的 key，新归属实例立即接手，
+ * 写入都是幂等的，短暂重叠比交接期间漏处理更安全。
+ * zk 不可用时退化为按启动参数中的任务列表构建哈希环。
+ * <p>
+ * 每个实例当前处理的 key 会写到自己的心跳节点上，可直接在 zk 上查看归属
+ *
+ * @author pamirs
+ */
+@Singleton
+public class LinkTaskMembership {
+    private static final Logger logger = LoggerFactory.getLogger(LinkTaskMembership.class);
+
+    public static final String MEMBERS_PATH = "/pradar/link/members";
+
+    /**
+     * 心跳节点上每组最多展示的 key 数，避免超过 zk 节点大小限制
+     */
+    private static final int MAX_PUBLISH_KEYS = 2000;
+
+    @Inject
+    private ZkClient zkClient;
+
+    /**
+     * 成员变化后原归属实例继续处理的时间，单位秒
+     */
+    @Inject
+    @DefaultValue("120")
+    @Named("/pradar/config/rt/linkTask/handoffGraceSeconds")
+    private Remote<Integer> handoffGraceSeconds;
+
+    @Inject
+    @DefaultValue("160")
+    @Named("/pradar/config/rt/linkTask/virtualNodes")
+    private Remote<Integer> virtualNodes;
+
+    private volatile Assignment assignment = new Assignment(ConsistentHashRing.EMPTY, null, ConsistentHashRing.EMPTY, null, 0);
+
+    private final Map<String, List<String>> ownedKeys = new ConcurrentHashMap<>();
+
+    private String memberId;
+
+    private ZkHeartbeatNode heartbeatNode;
+
+    private ZkPathChildrenCache membersCache;
+
+    private ScheduledExecutorService publisher;
+
+    public LinkTaskMembership() {
+    }
+
+    LinkTaskMembership(ZkClient zkClient, Remote<Integer> handoffGraceSeconds, Remote<Integer> virtualNodes) {
+        this.zkClient = zkClient;
+        this.handoffGraceSeconds = handoffGraceSeconds;
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * 注册当前实例并开始监听成员变化
+     *
+     * @param currentTaskId 当前任务编号
+     * @param allTaskIds    全部任务编号，zk 不可用时使用
+     */
+    public synchronized void start(String currentTaskId, List<String> allTaskIds) {
+        update(allTaskIds, currentTaskId, false);
+        if (membersCache != null) {
+            return;
+        }
+        memberId = IpAddressUtils.getLocalAddress() + "_" + currentTaskId;
+        try {
+            zkClient.ensureDirectoryExists(MEMBERS_PATH);
+            heartbeatNode = zkClient.createHeartbeatNode(MEMBERS_PATH + "/" + memberId);
+            heartbeatNode.start();
+            membersCache = zkClient.createPathChildrenCache(MEMBERS_PATH);
+            membersCache.setUpdateListener(this::onMembersChanged);
+            membersCache.startAndRefresh();
+            onMembersChanged();
+        } catch (Throwable e) {
+            logger.warn("register link task member {} fail, use static members {}", memberId, allTaskIds, e);
+        }
+        publisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LinkTaskMembership-%d").setDaemon(true).build());
+        publisher.scheduleWithFixedDelay(this::publish, 30, 30, TimeUnit.SECONDS);
+    }
+
+    private void onMembersChanged() {
+        List<String> children = membersCache.getChildren();
+        // 自己的心跳节点还没出现时保持现状，避免短暂地把所有 key 让出去
+        if (children == null || !children.contains(memberId)) {
+            return;
+        }
+        // 从启动参数的静态环切换到 zk 成员时编号体系不同，不做交接
+        update(children, memberId, memberId.equals(assignment.self));
+    }
+
+    private synchronized void update(Collection<String> members, String self, boolean handoff) {
+        Assignment current = assignment;
+        if (Objects.equals(self, current.self) && new TreeSet<>(members).equals(new TreeSet<>(current.ring.members()))) {
+            return;
+        }
+        ConsistentHashRing ring = new ConsistentHashRing(members, Math.max(1, virtualNodes.get()));
+        assignment = handoff ? new Assignment(ring, self, current.ring, current.self, System.currentTimeMillis())
+                : new Assignment(ring, self, ConsistentHashRing.EMPTY, null, 0);
+        logger.info("link task members changed, self:{}, members:{}, previous:{}", self, ring.members(), current.ring.members());
+    }
+
+    /**
+     * 当前实例是否需要处理该 key
+     */
+    public boolean owns(String key) {
+        Assignment current = assignment;
+        if (current.ring.isEmpty()) {
+            return true;
+        }
+        if (current.self.equals(current.ring.owner(key))) {
+            return true;
+        }
+        long grace = TimeUnit.SECONDS.toMillis(handoffGraceSeconds.get());
+        return current.previousSelf != null && System.currentTimeMillis() - current.changedTime < grace
+                && current.previousSelf.equals(current.previousRing.owner(key));
+    }
+
+    /**
+     * 记录当前实例本轮处理的 key，定期写到心跳节点
+     *
+     * @param group 处理器名称
+     * @param keys  本实例处理的 key
+     */
+    public void report(String group, List<String> keys) {
+        ownedKeys.put(group, keys);
+    }
+
+    /**
+     * 按当前哈希环计算每个实例负责的 key
+     *
+     * @return key 为实例，value 为其负责的 key
+     */
+    public Map<String, List<String>> ownership(Collection<String> keys) {
+        ConsistentHashRing ring = assignment.ring;
+        Map<String, List<String>> result = new TreeMap<>();
+        for (String key : keys) {
+            result.computeIfAbsent(String.valueOf(ring.owner(key)), k -> new ArrayList<>()).add(key);
+        }
+        return result;
+    }
+
+    public List<String> members() {
+        return assignment.ring.members();
+    }
+
+    public String self() {
+        return assignment.self;
+    }
+
+    private void publish() {
+        try {
+            Map<String, Object> view = new LinkedHashMap<>();
+            view.put("member", assignment.self);
+            view.put("members", members());
+            view.put("updateTime", System.currentTimeMillis());
+            Map<String, Object> groups = new TreeMap<>();
+            for (Map.Entry<String, List<String>> entry : ownedKeys.entrySet()) {
+                List<String> keys = entry.getValue();
+                Map<String, Object> group = new LinkedHashMap<>();
+                group.put("count", keys.size());
+                group.put("keys", keys.size() > MAX_PUBLISH_KEYS ? keys.subList(0, MAX_PUBLISH_KEYS) : keys);
+                groups.put(entry.getKey(), group);
+            }
+            view.put("groups", groups);
+            if (heartbeatNode != null) {
+                heartbeatNode.setData(JSON.toJSONString(view).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (Throwable e) {
+            logger.warn("publish link task ownership fail", e);
+        }
+    }
+
+    public synchronized void stop() {
+        try {
+            if (publisher != null) {
+                publisher.shutdown();
+            }
+            if (membersCache != null) {
+                membersCache.stop();
+            }
+            if (heartbeatNode != null) {
+                heartbeatNode.stop();
+            }
+        } catch (Throwable e) {
+            logger.warn("stop link task membership fail", e);
+        }
+    }
+
+    /**
+     * 当前和上一次的哈希环，整体替换
+     */
+    private static final class Assignment {
+        private final ConsistentHashRing ring;
+        private final String self;
+        private final ConsistentHashRing previousRing;
+        private final String previousSelf;
+        private final long changedTime;
+
+        Assignment(ConsistentHashRing ring, String self, ConsistentHashRing previousRing, String previousSelf, long changedTime) {
+            this.ring = ring;
+            this.self = self;
+            this.previousRing = previousRing;
+            this.previousSelf = previousSelf;
+            this.changedTime = changedTime;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.shulie.surge.data.deploy.pradar.link.processor.AbstractProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 链路梳理各处理器共用的调度器
+ * <p>
+ * 定时线程只负责触发周期，周期内每个 key 作为独立任务提交到有界的 work-stealing 线程池。
+ * 上一个周期还没结束时本次触发直接跳过并记录，不会堆积；
+ * key 在截止时间前未开始执行的同样跳过，避免一个慢周期拖住后续周期。
+ *
+ * @author pamirs
+ */
+public class LinkTaskScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(LinkTaskScheduler.class);
+
+    private final ForkJoinPool pool;
+
+    private final ScheduledExecutorService timer;
+
+    private final Map<String, CycleStat> stats = new ConcurrentHashMap<>();
+
+    public LinkTaskScheduler(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("LinkTask-" + thread.getPoolIndex());
+                return thread;
+            }
+        }, null, true);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LinkTaskScheduler-%d").build());
+        this.timer.scheduleAtFixedRate(this::logStats, 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * 周期执行处理器，周期内通过 {@link AbstractProcessor#execute(String, Runnable)} 提交的任务并行执行，
+     * 每个 key 的截止时间为提交后一个周期
+     *
+     * @param name      处理器名称
+     * @param processor 处理器
+     * @param cycle     周期任务，一般是 share 方法
+     */
+    public void scheduleAtFixedRate(String name, AbstractProcessor processor, Runnable cycle, long initialDelay, long period, TimeUnit unit) {
+        CycleStat stat = stats.computeIfAbsent(name, CycleStat::new);
+        long keyTimeout = unit.toMillis(period);
+        timer.scheduleAtFixedRate(() -> launch(stat, processor, cycle, keyTimeout), initialDelay, period, unit);
+    }
+
+    private void launch(CycleStat stat, AbstractProcessor processor, Runnable body, long keyTimeout) {
+        if (!stat.running.compareAndSet(false, true)) {
+            stat.skipped.increment();
+            logger.warn("{} previous cycle is still running, skip this cycle. backlog:{}", stat.name, stat.backlog.get());
+            return;
+        }
+        Cycle cycle = new Cycle(stat, keyTimeout);
+        try {
+            pool.execute(() -> {
+                try {
+                    if (processor != null) {
+                        processor.setKeyedTaskExecutor(cycle);
+                    }
+                    body.run();
+                } catch (Throwable e) {
+                    logger.error("do {} task error!", stat.name, e);
+                } finally {
+                    if (processor != null) {
+                        processor.setKeyedTaskExecutor(null);
+                    }
+                    cycle.done();
+                }
+            });
+        } catch (Throwable e) {
+            logger.error("submit {} cycle error!", stat.name, e);
+            stat.running.set(false);
+        }
+    }
+
+    /**
+     * @return 各处理器的周期统计，key 为处理器名称
+     */
+    public Map<String, Map<String, Object>> stats() {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        for (CycleStat stat : stats.values()) {
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("cycles", stat.cycles.sum());
+            values.put("skippedCycles", stat.skipped.sum());
+            values.put("lastCycleMillis", stat.lastCycleMillis.get());
+            values.put("maxCycleMillis", stat.maxCycleMillis.get());
+            values.put("backlog", stat.backlog.get());
+            values.put("keys", stat.keys.sum());
+            values.put("expiredKeys", stat.expiredKeys.sum());
+            values.put("slowKeys", stat.slowKeys.sum());
+            values.put("failedKeys", stat.failedKeys.sum());
+            result.put(stat.name, values);
+        }
+        return result;
+    }
+
+    private void logStats() {
+        for (Map.Entry<String, Map<String, Object>> entry : stats().entrySet()) {
+            logger.info("link task {} stats: {}", entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void shutdown() {
+        timer.shutdown();
+        pool.shutdown();
+    }
+
+    /**
+     * 一次周期执行，提交的任务全部结束后周期才结束
+     */
+    private final class Cycle implements KeyedTaskExecutor {
+        private final CycleStat stat;
+        private final long keyTimeout;
+        private final long startTime = System.currentTimeMillis();
+        /**
+         * 周期任务本身也算一个
+         */
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        Cycle(CycleStat stat, long keyTimeout) {
+            this.stat = stat;
+            this.keyTimeout = keyTimeout;
+        }
+
+        @Override
+        public void execute(String key, Runnable task) {
+            long deadline = System.currentTimeMillis() + keyTimeout;
+            pending.incrementAndGet();
+            stat.backlog.incrementAndGet();
+            stat.keys.increment();
+            try {
+                pool.execute(() -> run(key, task, deadline));
+            } catch (Throwable e) {
+                stat.failedKeys.increment();
+                stat.backlog.decrementAndGet();
+                done();
+                logger.error("submit {} task error! key:{}", stat.name, key, e);
+            }
+        }
+
+        private void run(String key, Runnable task, long deadline) {
+            try {
+                long start = System.currentTimeMillis();
+                if (start > deadline) {
+                    stat.expiredKeys.increment();
+                    return;
+                }
+                task.run();
+                long cost = System.currentTimeMillis() - start;
+                if (cost > keyTimeout) {
+                    stat.slowKeys.increment();
+                    logger.warn("{} key {} cost {}ms, exceeds {}ms", stat.name, key, cost, keyTimeout);
+                }
+            } catch (Throwable e) {
+                stat.failedKeys.increment();
+                logger.error("do {} task error! key:{}", stat.name, key, e);
+            } finally {
+                stat.backlog.decrementAndGet();
+                done();
+            }
+        }
+
+        void done() {
+            if (pending.decrementAndGet() != 0) {
+                return;
+            }
+            long cost = System.currentTimeMillis() - startTime;
+            stat.cycles.increment();
+            stat.lastCycleMillis.set(cost);
+            stat.maxCycleMillis.accumulateAndGet(cost, Math::max);
+            stat.running.set(false);
+        }
+    }
+
+    private static final class CycleStat {
+        private final String name;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private final AtomicInteger backlog = new AtomicInteger();
+        private final AtomicLong lastCycleMillis = new AtomicLong();
+        private final AtomicLong maxCycleMillis = new AtomicLong();
+        private final LongAdder cycles = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder keys = new LongAdder();
+        private final LongAdder expiredKeys = new LongAdder();
+        private final LongAdder slowKeys = new LongAdder();
+        private final LongAdder failedKeys = new LongAdder();
+
+        CycleStat(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -16,11 +16,13 @@
 package io.shulie.surge.data.deploy.pradar.link;
 
 import com.google.common.collect.Maps;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * @Author: xingchen
@@ -31,6 +33,39 @@ import java.util.Map;
  */
 @Singleton
 public class TaskManager<T1, T2> {
+
+    @Inject
+    private LinkTaskMembership membership;
+
+    /**
+     * 按一致性哈希分配任务，只返回当前实例需要处理的部分
+     *
+     * @param group       处理器名称，用于展示归属
+     * @param tasks       全部任务
+     * @param keyFunction 任务的归属 key
+     * @return
+     */
+    public List<T2> allotOfConsistentHash(String group, List<T2> tasks, Function<T2, String> keyFunction) {
+        List<T2> owned = new ArrayList<>();
+        List<String> ownedKeys = new ArrayList<>();
+        for (T2 task : tasks) {
+            String key = keyFunction.apply(task);
+            if (membership.owns(key)) {
+                owned.add(task);
+                ownedKeys.add(key);
+            }
+        }
+        membership.report(group, ownedKeys);
+        return owned;
+    }
+
+    /**
+     * 当前实例是否需要处理该 key
+     */
+    public boolean owns(String key) {
+        return membership.owns(key);
+    }
+
     /*
      * 平均分配任务
      */
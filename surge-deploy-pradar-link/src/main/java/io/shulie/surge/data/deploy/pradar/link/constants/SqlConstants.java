@@ -12,11 +12,11 @@ public class SqlConstants {
 
     //入口查询
     //入口日志无需保存upAppName,只有服务端日志需要保存upAppName
-    public static final String QUERY_ENTRANCE_SQL = "select distinct parsedServiceName as serviceName,appName,rpcType,parsedMethod as methodName,parsedMiddlewareName,parsedExtend as extend,'0' as linkType,case when logType = '3' then upAppName else '' end as upAppName,middlewareName as middlewareDetail,'' as downAppName,'' as defaultWhiteInfo from t_trace_all where ";
+    public static final String QUERY_ENTRANCE_SQL = "select distinct userAppKey,envCode,parsedServiceName as serviceName,appName,rpcType,parsedMethod as methodName,parsedMiddlewareName,parsedExtend as extend,'0' as linkType,case when logType = '3' then upAppName else '' end as upAppName,middlewareName as middlewareDetail,'' as downAppName,'' as defaultWhiteInfo from t_trace_all where ";
 
     //出口查询,下面三个
-    public static final String QUERY_EXIT_SQL = "select distinct parsedServiceName as serviceName,appName,rpcType,parsedMethod as methodName,parsedMiddlewareName,parsedExtend as extend,'1' as linkType,'' as upAppName,middlewareName as middlewareDetail,'' as downAppName,'' as defaultWhiteInfo from t_trace_all where ";
-    public static final String QUERY_DEFAULT_WHITE_SQL = "select distinct parsedServiceName as serviceName,appName,rpcType,parsedMethod as methodName,parsedMiddlewareName,parsedExtend as extend,'1' as linkType,'' as upAppName,middlewareName as middlewareDetail,'' as downAppName,flagMessage as defaultWhiteInfo from t_trace_all where ";
+    public static final String QUERY_EXIT_SQL = "select distinct userAppKey,envCode,parsedServiceName as serviceName,appName,rpcType,parsedMethod as methodName,parsedMiddlewareName,parsedExtend as extend,'1' as linkType,'' as upAppName,middlewareName as middlewareDetail,'' as downAppName,'' as defaultWhiteInfo from t_trace_all where ";
+    public static final String QUERY_DEFAULT_WHITE_SQL = "select distinct userAppKey,envCode,parsedServiceName as serviceName,appName,rpcType,parsedMethod as methodName,parsedMiddlewareName,parsedExtend as extend,'1' as linkType,'' as upAppName,middlewareName as middlewareDetail,'' as downAppName,flagMessage as defaultWhiteInfo from t_trace_all where ";
     //这里不能查询parsedService和method,如果服务端匹配上了入口规则,则会导致误匹配
-    public static final String QUERY_ALL_SQL = "select distinct serviceName,appName,rpcType,methodName,parsedMiddlewareName,parsedExtend as extend,case when logType = 3 then 'server' else 'client' end as linkType,upAppName,middlewareName as middlewareDetail,'' as downAppName,parsedServiceName as defaultWhiteInfo from t_trace_all where ";
+    public static final String QUERY_ALL_SQL = "select distinct userAppKey,envCode,serviceName,appName,rpcType,methodName,parsedMiddlewareName,parsedExtend as extend,case when logType = 3 then 'server' else 'client' end as linkType,upAppName,middlewareName as middlewareDetail,'' as downAppName,parsedServiceName as defaultWhiteInfo from t_trace_all where ";
 }
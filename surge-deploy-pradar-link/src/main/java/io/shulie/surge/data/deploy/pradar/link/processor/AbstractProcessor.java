@@ -15,6 +15,7 @@
 
 package io.shulie.surge.data.deploy.pradar.link.processor;
 
+import io.shulie.surge.data.deploy.pradar.link.KeyedTaskExecutor;
 import io.shulie.surge.deploy.pradar.common.CommonStat;
 
 /**
@@ -32,6 +33,11 @@ public abstract class AbstractProcessor implements Processor {
      */
     private long delayTime = System.currentTimeMillis();
 
+    /**
+     * 由调度器在每个周期设置，未设置时在当前线程执行
+     */
+    private volatile KeyedTaskExecutor keyedTaskExecutor;
+
     public boolean isHandler(long intervalTime) {
         if (intervalTime == 0) {
             return true;
@@ -44,6 +50,25 @@ public abstract class AbstractProcessor implements Processor {
         return flag;
     }
 
+    /**
+     * 提交单个应用或业务活动的处理任务
+     *
+     * @param key
+     * @param task
+     */
+    protected void execute(String key, Runnable task) {
+        KeyedTaskExecutor executor = keyedTaskExecutor;
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(key, task);
+        }
+    }
+
+    public void setKeyedTaskExecutor(KeyedTaskExecutor keyedTaskExecutor) {
+        this.keyedTaskExecutor = keyedTaskExecutor;
+    }
+
     public String getDataSourceType() {
         return dataSourceType;
     }
@@ -16,6 +16,7 @@
 package io.shulie.surge.data.deploy.pradar.link.processor;
 
 
+import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
 import io.shulie.surge.data.common.utils.DateUtils;
@@ -23,6 +24,7 @@ import io.shulie.surge.data.common.utils.Pair;
 import io.shulie.surge.data.deploy.pradar.link.TaskManager;
 import io.shulie.surge.data.deploy.pradar.link.constants.SqlConstants;
 import io.shulie.surge.data.deploy.pradar.link.model.LinkEntranceModel;
+import io.shulie.surge.data.deploy.pradar.link.util.SqlUtil;
 import io.shulie.surge.data.deploy.pradar.link.util.StringUtil;
 import io.shulie.surge.data.deploy.pradar.parser.MiddlewareType;
 import io.shulie.surge.data.deploy.pradar.parser.PradarLogType;
@@ -83,6 +85,19 @@ public class EntranceProcessor extends AbstractProcessor {
     @Named("/pradar/config/rt/entranceProcess/expireDays")
     private Remote<String> expireDays;
 
+    /**
+     * 每次批量查询入口的应用数
+     */
+    @Inject
+    @DefaultValue("50")
+    @Named("/pradar/config/rt/entranceProcess/batchSize")
+    private Remote<Integer> batchSize;
+
+    /**
+     * 每个应用最多查询的入口数
+     */
+    private static final int APP_ENTRANCE_LIMIT = 100;
+
     String linkEntranceInsertSql = "";
     String linkEntranceDeleteSql = "";
 
@@ -121,10 +136,7 @@ public class EntranceProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            appNames.stream().forEach(appNameMap -> {
-                String key = appNameMap.get("userAppKey") + "#" + appNameMap.get("envCode") + "#" + appNameMap.get("appName");
-                saveEntrance(key, timePair);
-            });
+            saveEntranceInBatch(toAppKeys(appNames), timePair);
         }
     }
 
@@ -149,12 +161,7 @@ public class EntranceProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            appNames.stream().forEach(appNameMap -> {
-                String key = appNameMap.get("userAppKey") + "#" + appNameMap.get("envCode") + "#" + appNameMap.get("appName");
-                if (key.hashCode() % taskId == 0) {
-                    saveEntrance(key, timePair);
-                }
-            });
+            saveEntranceInBatch(toAppKeys(appNames).stream().filter(taskManager::owns).collect(Collectors.toList()), timePair);
         }
     }
 
@@ -175,10 +182,7 @@ public class EntranceProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            appNames.stream().forEach(appNameMap -> {
-                String key = appNameMap.get("userAppKey") + "#" + appNameMap.get("envCode") + "#" + appNameMap.get("appName");
-                saveEntrance(key, timePair);
-            });
+            saveEntranceInBatch(toAppKeys(appNames), timePair);
         }
     }
 
@@ -204,19 +208,22 @@ public class EntranceProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            Map<String, List<Map<String, Object>>> nameMap = appNames.stream().collect(
-                    Collectors.groupingBy(name -> name.get("userAppKey") + "#" + name.get("envCode") + "#" + name.get("appName")));
-            List<String> nameList = new ArrayList<>(nameMap.keySet());
-            Map<String, List<String>> idMap = taskManager.allotOfAverage(taskIds, nameList);
-            List<String> avgList = idMap.get(currentId);
-            if (CollectionUtils.isNotEmpty(avgList)) {
-                avgList.stream().forEach(avg -> {
-                    Optional<Map<String, Object>> appMap = nameMap.get(avg).stream().findFirst();
-                    if (appMap.isPresent()) {
-                        saveEntrance(appMap.get().get("userAppKey") + "#" + appMap.get().get("envCode") + "#" + appMap.get().get("appName"), timePair);
-                    }
-                });
-            }
+            List<String> avgList = taskManager.allotOfConsistentHash("EntranceProcessor", toAppKeys(appNames), name -> name);
+            saveEntranceInBatch(avgList, timePair);
+        }
+    }
+
+    private List<String> toAppKeys(List<Map<String, Object>> appNames) {
+        return appNames.stream().map(name -> SqlUtil.appKey(name.get("userAppKey"), name.get("envCode"), name.get("appName")))
+                .distinct().collect(Collectors.toList());
+    }
+
+    /**
+     * 按批提交入口处理任务,每批只查询一次 trace 表
+     */
+    private void saveEntranceInBatch(List<String> keys, Pair timePair) {
+        for (List<String> batch : Lists.partition(keys, Math.max(1, batchSize.get()))) {
+            execute(batch.get(0), () -> saveEntrance(batch, timePair));
         }
     }
 
@@ -229,12 +236,8 @@ public class EntranceProcessor extends AbstractProcessor {
     public List<Map<String, Object>> queryAppNames(Pair timePair) {
         try {
             //统计当前时间往前两分钟到当前时间往前5s期间有服务端和入口日志的应用列表
-            String appNameSql = "select userAppKey,envCode,appName from t_trace_all where startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and logType in (1,3) and clusterTest = '0' group by userAppKey,envCode,appName";
-            if (isUseCk()) {
-                return clickHouseSupport.queryForList(appNameSql);
-            } else {
-                return mysqlSupport.queryForList(appNameSql);
-            }
+            String appNameSql = "select userAppKey,envCode,appName from t_trace_all where startDate between ? and ? and logType in (1,3) and clusterTest = '0' group by userAppKey,envCode,appName";
+            return queryForList(appNameSql, timePair.getFirst(), timePair.getSecond());
         } catch (Throwable e) {
             logger.error("query appNames error " + ExceptionUtils.getStackTrace(e));
         }
@@ -247,46 +250,56 @@ public class EntranceProcessor extends AbstractProcessor {
      * 保存链路入口信息
      */
     public void saveEntrance(String key, Pair timePair) {
+        saveEntrance(Collections.singletonList(key), timePair);
+    }
+
+    /**
+     * 批量保存链路入口信息
+     */
+    public void saveEntrance(List<String> keys, Pair timePair) {
         //压测引擎的不处理
-        if (key.contains("pressure-engine")) {
+        List<String> appKeys = keys.stream().filter(key -> !key.contains("pressure-engine")).collect(Collectors.toList());
+        if (appKeys.isEmpty()) {
             return;
         }
         if (logger.isDebugEnabled()) {
-            logger.debug("saveEntrance:{},startTime,endTime:{}", key, timePair);
+            logger.debug("saveEntrance:{},startTime,endTime:{}", appKeys, timePair);
         }
         try {
-            List<Map<String, Object>> entranceMapList = queryEntrance(key, timePair);
-            if (CollectionUtils.isEmpty(entranceMapList)) {
+            Map<String, List<Map<String, Object>>> entrances = queryEntrance(appKeys, timePair);
+            if (entrances.isEmpty()) {
                 return;
             }
-            //对于serviceName和methodName超过256的入口,采取截断方式
-            entranceMapList = entranceMapList.stream().map(entranceMap -> {
-                //parsedMiddlewareName改名为middlewareName
-                entranceMap.put("middlewareName", StringUtil.formatString(entranceMap.get("parsedMiddlewareName")));
-                entranceMap.remove("parsedMiddlewareName");
-                entranceMap.put("userAppKey", key.split("#")[0]);
-                entranceMap.put("envCode", key.split("#")[1]);
-
-                String oriServiceName = StringUtil.formatString(entranceMap.get("serviceName"));
-                String oriMethodName = StringUtil.formatString(entranceMap.get("methodName"));
-                if (oriServiceName.length() > SERVICE_LENGTH_FIELD) {
-                    logger.warn("detect illegal service:{}", entranceMap);
-                    entranceMap.put("serviceName", oriServiceName.substring(0, SERVICE_LENGTH_FIELD));
-                }
-                if (oriMethodName.length() > SERVICE_LENGTH_FIELD) {
-                    logger.warn("detect illegal method:{}", entranceMap);
-                    entranceMap.put("methodName", oriMethodName.substring(0, SERVICE_LENGTH_FIELD));
-                }
-                return entranceMap;
-            }).collect(Collectors.toList());
-
-            List<LinkEntranceModel> linkEntranceModels = entranceMapList.stream().map(
-                            LinkEntranceModel::parseFromDataMap)
-                    .collect(Collectors.toList()).stream().collect(Collectors.collectingAndThen(Collectors.toCollection(()
-                            -> new TreeSet<>(Comparator.comparing(LinkEntranceModel::getEntranceId))), ArrayList::new));
-            mysqlSupport.batchUpdate(linkEntranceInsertSql, new ArrayList<>(
-                    linkEntranceModels.stream().map(LinkEntranceModel::getValues).collect(Collectors.toSet())));
-            logger.info("{} saveEntrance is ok,size: {}", key, entranceMapList.size());
+            List<Object[]> values = new ArrayList<>();
+            int size = 0;
+            for (List<Map<String, Object>> entranceMapList : entrances.values()) {
+                //对于serviceName和methodName超过256的入口,采取截断方式
+                entranceMapList.forEach(entranceMap -> {
+                    //parsedMiddlewareName改名为middlewareName
+                    entranceMap.put("middlewareName", StringUtil.formatString(entranceMap.get("parsedMiddlewareName")));
+                    entranceMap.remove("parsedMiddlewareName");
+
+                    String oriServiceName = StringUtil.formatString(entranceMap.get("serviceName"));
+                    String oriMethodName = StringUtil.formatString(entranceMap.get("methodName"));
+                    if (oriServiceName.length() > SERVICE_LENGTH_FIELD) {
+                        logger.warn("detect illegal service:{}", entranceMap);
+                        entranceMap.put("serviceName", oriServiceName.substring(0, SERVICE_LENGTH_FIELD));
+                    }
+                    if (oriMethodName.length() > SERVICE_LENGTH_FIELD) {
+                        logger.warn("detect illegal method:{}", entranceMap);
+                        entranceMap.put("methodName", oriMethodName.substring(0, SERVICE_LENGTH_FIELD));
+                    }
+                });
+                //entranceId 不含租户信息,按应用分别去重
+                List<LinkEntranceModel> linkEntranceModels = entranceMapList.stream().map(
+                                LinkEntranceModel::parseFromDataMap)
+                        .collect(Collectors.toList()).stream().collect(Collectors.collectingAndThen(Collectors.toCollection(()
+                                -> new TreeSet<>(Comparator.comparing(LinkEntranceModel::getEntranceId))), ArrayList::new));
+                linkEntranceModels.forEach(model -> values.add(model.getValues()));
+                size += entranceMapList.size();
+            }
+            mysqlSupport.batchUpdate(linkEntranceInsertSql, values);
+            logger.info("{} saveEntrance is ok,size: {}", appKeys, size);
         } catch (Throwable e) {
             logger.error("saveEntrance error!" + ExceptionUtils.getStackTrace(e));
             //ignore
@@ -303,31 +316,53 @@ public class EntranceProcessor extends AbstractProcessor {
      * @param key,timePair
      */
     public List<Map<String, Object>> queryEntrance(String key, Pair timePair) {
-        List<Map<String, Object>> entranceList;
-        StringBuilder entranceSql = new StringBuilder();
-        String[] arr = key.split("#");
-        String userAppKey = arr[0];
-        String envCode = arr[1];
-        String appName = arr[2];
+        return queryEntrance(Collections.singletonList(key), timePair).getOrDefault(key, Collections.EMPTY_LIST);
+    }
+
+    /**
+     * 一次查询一批应用的入口,按应用拆分
+     *
+     * @param keys     userAppKey#envCode#appName
+     * @param timePair
+     * @return key为应用标识
+     */
+    public Map<String, List<Map<String, Object>>> queryEntrance(List<String> keys, Pair timePair) {
+        List<Object> args = new ArrayList<>();
+        String entranceSql = buildQuerySql(keys, timePair, args);
         try {
-            buildQueryCkSql(appName, userAppKey, envCode, timePair, entranceSql);
-            logger.info("queryEntrance:{}", entranceSql);
-            if (this.isUseCk()) {
-                entranceList = clickHouseSupport.queryForList(entranceSql.toString());
-            } else {
-                entranceList = mysqlSupport.queryForList(entranceSql.toString());
-            }
-            return entranceList;
+            logger.info("queryEntrance:{},{}", entranceSql, args);
+            List<Map<String, Object>> entranceList = queryForList(entranceSql, args.toArray());
+            return entranceList.stream().collect(Collectors.groupingBy(
+                    entrance -> SqlUtil.appKey(entrance.get("userAppKey"), entrance.get("envCode"), entrance.get("appName"))));
         } catch (Throwable e) {
             logger.error("query queryEntrance error " + ExceptionUtils.getStackTrace(e));
         }
-        return Collections.EMPTY_LIST;
+        return Collections.emptyMap();
     }
 
-    private void buildQueryCkSql(String appName, String userAppKey, String envCode, Pair timePair, StringBuilder entranceSql) {
+    private String buildQuerySql(List<String> keys, Pair timePair, List<Object> args) {
         //查询入口数据(HTTP/DUBBO/JOB)
         //排除压测流量
-        entranceSql.append(SqlConstants.QUERY_ENTRANCE_SQL + "startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and parsedServiceName != '' and clusterTest = '0' and " + "(rpcType in ('" + MiddlewareType.TYPE_WEB_SERVER + "','" + MiddlewareType.TYPE_JOB + "') or logType in ('" + PradarLogType.LOG_TYPE_RPC_SERVER + "','" + PradarLogType.LOG_TYPE_TRACE + "'))  and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "'  limit 100 ");
+        args.add(timePair.getFirst());
+        args.add(timePair.getSecond());
+        StringBuilder entranceSql = new StringBuilder(SqlConstants.QUERY_ENTRANCE_SQL)
+                .append("startDate between ? and ? and ").append(SqlUtil.appKeyIn("appName", keys, args))
+                .append(" and parsedServiceName != '' and clusterTest = '0' and (rpcType in ('" + MiddlewareType.TYPE_WEB_SERVER + "','" + MiddlewareType.TYPE_JOB + "') or logType in ('" + PradarLogType.LOG_TYPE_RPC_SERVER + "','" + PradarLogType.LOG_TYPE_TRACE + "'))");
+        //每个应用最多取100条,mysql不支持limit by,只限制总数
+        if (this.isUseCk()) {
+            entranceSql.append(" limit " + APP_ENTRANCE_LIMIT + " by userAppKey,envCode,appName");
+        } else {
+            entranceSql.append(" limit " + APP_ENTRANCE_LIMIT * keys.size());
+        }
+        return entranceSql.toString();
+    }
+
+    private List<Map<String, Object>> queryForList(String sql, Object... args) {
+        if (this.isUseCk()) {
+            return clickHouseSupport.queryForList(sql, args);
+        } else {
+            return mysqlSupport.queryForList(sql, args);
+        }
     }
 
     /**
@@ -24,6 +24,7 @@ import io.shulie.surge.data.common.utils.Pair;
 import io.shulie.surge.data.deploy.pradar.link.TaskManager;
 import io.shulie.surge.data.deploy.pradar.link.constants.SqlConstants;
 import io.shulie.surge.data.deploy.pradar.link.model.LinkEntranceModel;
+import io.shulie.surge.data.deploy.pradar.link.util.SqlUtil;
 import io.shulie.surge.data.deploy.pradar.link.util.StringUtil;
 import io.shulie.surge.data.runtime.common.remote.DefaultValue;
 import io.shulie.surge.data.runtime.common.remote.Remote;
@@ -75,6 +76,19 @@ public class ExitProcessor extends AbstractProcessor {
     @Named("/pradar/config/rt/exitProcess/delayTime")
     private Remote<Long> intervalTime;
 
+    /**
+     * 每次批量查询出口的应用数
+     */
+    @Inject
+    @DefaultValue("50")
+    @Named("/pradar/config/rt/exitProcess/batchSize")
+    private Remote<Integer> batchSize;
+
+    /**
+     * 每个应用每类出口最多查询的条数
+     */
+    private static final int APP_EXIT_LIMIT = 100;
+
     String linkEntranceInsertSql = "";
     String linkEntranceDeleteSql = "";
 
@@ -113,10 +127,7 @@ public class ExitProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            appNames.stream().forEach(appNameMap -> {
-                String key = appNameMap.get("userAppKey") + "#" + appNameMap.get("envCode") + "#" + appNameMap.get("appName");
-                saveExit(key, timePair);
-            });
+            saveExitInBatch(toAppKeys(appNames), timePair);
         }
     }
 
@@ -141,12 +152,7 @@ public class ExitProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            appNames.stream().forEach(appNameMap -> {
-                String key = appNameMap.get("userAppKey") + "#" + appNameMap.get("envCode") + "#" + appNameMap.get("appName");
-                if (key.hashCode() % taskId == 0) {
-                    saveExit(key, timePair);
-                }
-            });
+            saveExitInBatch(toAppKeys(appNames).stream().filter(taskManager::owns).collect(Collectors.toList()), timePair);
         }
     }
 
@@ -167,10 +173,7 @@ public class ExitProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            appNames.stream().forEach(appNameMap -> {
-                String key = appNameMap.get("userAppKey") + "#" + appNameMap.get("envCode") + "#" + appNameMap.get("appName");
-                saveExit(key, timePair);
-            });
+            saveExitInBatch(toAppKeys(appNames), timePair);
         }
     }
 
@@ -196,19 +199,22 @@ public class ExitProcessor extends AbstractProcessor {
         Pair<String, String> timePair = getStartAndEndTime();
         List<Map<String, Object>> appNames = queryAppNames(timePair);
         if (CollectionUtils.isNotEmpty(appNames)) {
-            Map<String, List<Map<String, Object>>> nameMap = appNames.stream().collect(
-                    Collectors.groupingBy(name -> name.get("userAppKey") + "#" + name.get("envCode") + "#" + name.get("appName")));
-            List<String> nameList = new ArrayList<>(nameMap.keySet());
-            Map<String, List<String>> idMap = taskManager.allotOfAverage(taskIds, nameList);
-            List<String> avgList = idMap.get(currentId);
-            if (CollectionUtils.isNotEmpty(avgList)) {
-                avgList.stream().forEach(avg -> {
-                    Optional<Map<String, Object>> appMap = nameMap.get(avg).stream().findFirst();
-                    if (appMap.isPresent()) {
-                        saveExit(appMap.get().get("userAppKey") + "#" + appMap.get().get("envCode") + "#" + appMap.get().get("appName"), timePair);
-                    }
-                });
-            }
+            List<String> avgList = taskManager.allotOfConsistentHash("ExitProcessor", toAppKeys(appNames), name -> name);
+            saveExitInBatch(avgList, timePair);
+        }
+    }
+
+    private List<String> toAppKeys(List<Map<String, Object>> appNames) {
+        return appNames.stream().map(name -> SqlUtil.appKey(name.get("userAppKey"), name.get("envCode"), name.get("appName")))
+                .distinct().collect(Collectors.toList());
+    }
+
+    /**
+     * 按批提交出口处理任务,每批只查询一次 trace 表
+     */
+    private void saveExitInBatch(List<String> keys, Pair timePair) {
+        for (List<String> batch : Lists.partition(keys, Math.max(1, batchSize.get()))) {
+            execute(batch.get(0), () -> saveExit(batch, timePair));
         }
     }
 
@@ -221,12 +227,8 @@ public class ExitProcessor extends AbstractProcessor {
     public List<Map<String, Object>> queryAppNames(Pair timePair) {
         try {
             //统计当前时间往前两分钟到当前时间往前5s期间所有远程调用日志的应用列表
-            String appNameSql = "select userAppKey,envCode,appName  from t_trace_all where startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and logType=2 and clusterTest = '0' group by userAppKey,envCode,appName";
-            if (isUseCk()) {
-                return clickHouseSupport.queryForList(appNameSql);
-            } else {
-                return mysqlSupport.queryForList(appNameSql);
-            }
+            String appNameSql = "select userAppKey,envCode,appName  from t_trace_all where startDate between ? and ? and logType=2 and clusterTest = '0' group by userAppKey,envCode,appName";
+            return queryForList(appNameSql, timePair.getFirst(), timePair.getSecond());
         } catch (Throwable e) {
             logger.error("query appNames error " + ExceptionUtils.getStackTrace(e));
         }
@@ -239,43 +241,52 @@ public class ExitProcessor extends AbstractProcessor {
      * 保存链路出口(远程调用)/出口信息
      */
     public void saveExit(String key, Pair timePair) {
+        saveExit(Collections.singletonList(key), timePair);
+    }
+
+    /**
+     * 批量保存链路出口(远程调用)/出口信息
+     */
+    public void saveExit(List<String> keys, Pair timePair) {
         //压测引擎的不处理
-        if (key.contains("pressure-engine")) {
+        List<String> appKeys = keys.stream().filter(key -> !key.contains("pressure-engine")).collect(Collectors.toList());
+        if (appKeys.isEmpty()) {
             return;
         }
         if (logger.isDebugEnabled()) {
-            logger.debug("saveExit:{},startTime,endTime:{}", key, timePair);
+            logger.debug("saveExit:{},startTime,endTime:{}", appKeys, timePair);
         }
         try {
-            List<Map<String, Object>> exitMapList = queryExit(key, timePair);
-            if (CollectionUtils.isEmpty(exitMapList)) {
+            Map<String, List<Map<String, Object>>> exits = queryExit(appKeys, timePair);
+            if (exits.isEmpty()) {
                 return;
             }
-            //对于serviceName和methodName超过256的出口(远程调用),采取截断方式
-            exitMapList = exitMapList.stream().map(exitMap -> {
-                exitMap.put("userAppKey", key.split("#")[0]);
-                exitMap.put("envCode", key.split("#")[1]);
-
-                String oriServiceName = StringUtil.formatString(exitMap.get("serviceName"));
-                String oriMethodName = StringUtil.formatString(exitMap.get("methodName"));
-                if (oriServiceName.length() > SERVICE_LENGTH_FIELD) {
-                    logger.warn("detect illegal service:{}", exitMap);
-                    exitMap.put("serviceName", oriServiceName.substring(0, SERVICE_LENGTH_FIELD));
-                }
-                if (oriMethodName.length() > SERVICE_LENGTH_FIELD) {
-                    logger.warn("detect illegal method:{}", exitMap);
-                    exitMap.put("methodName", oriMethodName.substring(0, SERVICE_LENGTH_FIELD));
-                }
-                return exitMap;
-            }).collect(Collectors.toList());
-
-            List<LinkEntranceModel> linkEntranceModels = exitMapList.stream().map(
-                            LinkEntranceModel::parseFromDataMap)
-                    .collect(Collectors.toList()).stream().collect(Collectors.collectingAndThen(Collectors.toCollection(()
-                            -> new TreeSet<>(Comparator.comparing(LinkEntranceModel::getEntranceId))), ArrayList::new));
-            mysqlSupport.batchUpdate(linkEntranceInsertSql, new ArrayList<>(
-                    linkEntranceModels.stream().map(LinkEntranceModel::getValues).collect(Collectors.toSet())));
-            logger.info("{} saveExit is ok,size: {}", key, exitMapList.size());
+            List<Object[]> values = new ArrayList<>();
+            int size = 0;
+            for (List<Map<String, Object>> exitMapList : exits.values()) {
+                //对于serviceName和methodName超过256的出口(远程调用),采取截断方式
+                exitMapList.forEach(exitMap -> {
+                    String oriServiceName = StringUtil.formatString(exitMap.get("serviceName"));
+                    String oriMethodName = StringUtil.formatString(exitMap.get("methodName"));
+                    if (oriServiceName.length() > SERVICE_LENGTH_FIELD) {
+                        logger.warn("detect illegal service:{}", exitMap);
+                        exitMap.put("serviceName", oriServiceName.substring(0, SERVICE_LENGTH_FIELD));
+                    }
+                    if (oriMethodName.length() > SERVICE_LENGTH_FIELD) {
+                        logger.warn("detect illegal method:{}", exitMap);
+                        exitMap.put("methodName", oriMethodName.substring(0, SERVICE_LENGTH_FIELD));
+                    }
+                });
+                //entranceId 不含租户信息,按应用分别去重
+                List<LinkEntranceModel> linkEntranceModels = exitMapList.stream().map(
+                                LinkEntranceModel::parseFromDataMap)
+                        .collect(Collectors.toList()).stream().collect(Collectors.collectingAndThen(Collectors.toCollection(()
+                                -> new TreeSet<>(Comparator.comparing(LinkEntranceModel::getEntranceId))), ArrayList::new));
+                linkEntranceModels.forEach(model -> values.add(model.getValues()));
+                size += exitMapList.size();
+            }
+            mysqlSupport.batchUpdate(linkEntranceInsertSql, values);
+            logger.info("{} saveExit is ok,size: {}", appKeys, size);
         } catch (Throwable e) {
             logger.error("saveExit error!" + ExceptionUtils.getStackTrace(e));
             //ignore
@@ -288,102 +299,157 @@ public class ExitProcessor extends AbstractProcessor {
      * @return
      */
     public List<Map<String, Object>> queryExit(String appNameKey, Pair timePair) {
+        return queryExit(Collections.singletonList(appNameKey), timePair).getOrDefault(appNameKey, Collections.EMPTY_LIST);
+    }
+
+    /**
+     * 一次查询一批应用的出口,按应用拆分后分别匹配客户端和服务端日志
+     *
+     * @param appNameKeys userAppKey#envCode#appName
+     * @param timePair
+     * @return key为应用标识
+     */
+    public Map<String, List<Map<String, Object>>> queryExit(List<String> appNameKeys, Pair timePair) {
+        List<Object> args = new ArrayList<>();
+        String exitSql = this.isUseCk() ? buildQueryCkSql(appNameKeys, timePair, args) : buildQueryMysqlSql(appNameKeys, timePair, args);
+        try {
+            logger.info("queryExit:{},{}", exitSql, args);
+            List<Map<String, Object>> exitList = queryForList(exitSql, args.toArray());
+            //服务端日志归属于上游应用,其余归属于当前应用
+            Map<String, List<Map<String, Object>>> appExits = exitList.stream().collect(Collectors.groupingBy(exit -> SqlUtil.appKey(exit.get("userAppKey"), exit.get("envCode"),
+                    "server".equals(exit.get("linkType")) ? exit.get("upAppName") : exit.get("appName"))));
+            Map<String, List<Map<String, Object>>> result = Maps.newHashMap();
+            appExits.forEach((appNameKey, exits) -> {
+                if (appNameKeys.contains(appNameKey)) {
+                    result.put(appNameKey, mergeExit(exits));
+                }
+            });
+            return result;
+        } catch (Throwable e) {
+            logger.error("query queryEntrance error " + ExceptionUtils.getStackTrace(e));
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * 用服务端日志补全客户端出口
+     *
+     * @param exitList 单个应用的出口日志
+     * @return
+     */
+    private List<Map<String, Object>> mergeExit(List<Map<String, Object>> exitList) {
         List<Map<String, Object>> result = Lists.newArrayList();
-        List<Map<String, Object>> exitList;
         Map<String, Map<String, Object>> clientMap = Maps.newHashMap();
         Map<String, Map<String, Object>> serverMap = Maps.newHashMap();
-        StringBuilder exitSql = new StringBuilder();
+        exitList = exitList.stream().filter(exit -> {
+            //parsedMiddlewareName改名为middlewareName
+            exit.put("middlewareName", StringUtil.formatString(exit.get("parsedMiddlewareName")));
+            exit.remove("parsedMiddlewareName");
+
+            //过滤所有非默认白名单(flagMessage为空)的出口和所有上游应用名称是目前客户端应用的服务端出口(远程调用)
+            if ("server".equals(exit.get("linkType"))) {
+                String key = StringUtil.formatString(exit.get("serviceName")) + "#" + StringUtil.formatString(exit.get("methodName"));
+                serverMap.put(key, exit);
+                return false;
+            }
+            if ("client".equals(exit.get("linkType"))) {
+                String key = StringUtil.formatString(exit.get("serviceName")) + "#" + StringUtil.formatString(exit.get("methodName")) + "#" + StringUtil.formatString(exit.get("middlewareDetail"));
+                //设置为远程调用
+                exit.put("linkType", "1");
+                //对于远程调用,上游应用名称不需要,给空
+                exit.put("upAppName", "");
+                clientMap.put(key, exit);
+                return false;
+            }
+            return true;
+        }).collect(Collectors.toList());
 
-        String[] arr = appNameKey.split("#");
-        String userAppKey = arr[0];
-        String envCode = arr[1];
-        String appName = arr[2];
+        //保存dubbo/feign/grpc等rpc类型的远程调用以及默认白名单远程调用
+        if (!exitList.isEmpty()) {
+            result.addAll(exitList);
+        }
 
-        try {
-            if (this.isUseCk()) {
-                buildQueryCkSql(appName, userAppKey, envCode, timePair, exitSql);
-                exitList = clickHouseSupport.queryForList(exitSql.toString());
+        clientMap.forEach((key, value) -> {
+            //遍历所有出口,匹配入口
+            if (serverMap.containsKey(key.substring(0, key.lastIndexOf("#")))) {
+                //如果有对应的服务端,用服务端日志的parsedServiceName替换客户端日志
+                value.put("serviceName", serverMap.get(key.substring(0, key.lastIndexOf("#"))).get("defaultWhiteInfo"));
+                //更新下游应用为服务端应用
+                value.put("downAppName", serverMap.get(key.substring(0, key.lastIndexOf("#"))).get("appName"));
             } else {
-                buildQueryMysqlSql(appName, userAppKey, envCode, timePair, exitSql);
-                exitList = mysqlSupport.queryForList(exitSql.toString());
+                //fix 对于服务端接不了探针的第三方应用,如果配置了出口规则,则需要用出口规则替换
+                value.put("serviceName", value.get("defaultWhiteInfo"));
+                logger.info("external service invoke detect:{}", value);
             }
-            logger.info("queryExit:{}", exitSql);
-
-            exitList = exitList.stream().filter(exit -> {
-                //parsedMiddlewareName改名为middlewareName
-                exit.put("middlewareName", StringUtil.formatString(exit.get("parsedMiddlewareName")));
-                exit.remove("parsedMiddlewareName");
-
-                //过滤所有非默认白名单(flagMessage为空)的出口和所有上游应用名称是目前客户端应用的服务端出口(远程调用)
-                if ("server".equals(exit.get("linkType"))) {
-                    String key = StringUtil.formatString(exit.get("serviceName")) + "#" + StringUtil.formatString(exit.get("methodName"));
-                    serverMap.put(key, exit);
-                    return false;
-                }
-                if ("client".equals(exit.get("linkType"))) {
-                    String key = StringUtil.formatString(exit.get("serviceName")) + "#" + StringUtil.formatString(exit.get("methodName")) + "#" + StringUtil.formatString(exit.get("middlewareDetail"));
-                    //设置为远程调用
-                    exit.put("linkType", "1");
-                    //对于远程调用,上游应用名称不需要,给空
-                    exit.put("upAppName", "");
-                    clientMap.put(key, exit);
-                    return false;
-                }
-                return true;
-            }).collect(Collectors.toList());
 
-            //保存dubbo/feign/grpc等rpc类型的远程调用以及默认白名单远程调用
-            if (!exitList.isEmpty()) {
-                result.addAll(exitList);
-            }
+            //使用defaultWhiteInfo临时保存了parsedServiceName,为了不影响结果,还需要置为空
+            value.put("defaultWhiteInfo", "");
+            result.add(value);
+        });
 
-            clientMap.forEach((key, value) -> {
-                //遍历所有出口,匹配入口
-                if (serverMap.containsKey(key.substring(0, key.lastIndexOf("#")))) {
-                    //如果有对应的服务端,用服务端日志的parsedServiceName替换客户端日志
-                    value.put("serviceName", serverMap.get(key.substring(0, key.lastIndexOf("#"))).get("defaultWhiteInfo"));
-                    //更新下游应用为服务端应用
-                    value.put("downAppName", serverMap.get(key.substring(0, key.lastIndexOf("#"))).get("appName"));
-                } else {
-                    //fix 对于服务端接不了探针的第三方应用,如果配置了出口规则,则需要用出口规则替换
-                    value.put("serviceName", value.get("defaultWhiteInfo"));
-                    logger.info("external service invoke detect:{}", value);
-                }
-
-                //使用defaultWhiteInfo临时保存了parsedServiceName,为了不影响结果,还需要置为空
-                value.put("defaultWhiteInfo", "");
-                result.add(value);
-            });
-
-            return result;
-        } catch (Throwable e) {
-            logger.error("query queryEntrance error " + ExceptionUtils.getStackTrace(e));
-        }
-        return Collections.EMPTY_LIST;
+        return result;
     }
 
-    private void buildQueryCkSql(String appName, String userAppKey, String envCode, Pair timePair, StringBuilder exitSql) {
+    private String buildQueryCkSql(List<String> appNameKeys, Pair timePair, List<Object> args) {
+        StringBuilder exitSql = new StringBuilder();
+        String limit = " limit " + APP_EXIT_LIMIT + " by userAppKey,envCode,appName ";
         //查询DUBBO,FEIGN以及GRPC的出口数据
-        exitSql.append(SqlConstants.QUERY_EXIT_SQL + "startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and parsedServiceName != '' and logType=2 and clusterTest = '0' and parsedMiddlewareName in ('DUBBO','FEIGN','GRPC') and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "' limit 100 ").append(SqlConstants.UNION_ALL);
+        exitSql.append(buildExitSql(appNameKeys, timePair, args)).append(limit).append(SqlConstants.UNION_ALL);
         //查询默认白名单(flagMessage不为空)的HTTP出口数据
-        exitSql.append(SqlConstants.QUERY_DEFAULT_WHITE_SQL + "startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and parsedServiceName != '' and logType=2 and clusterTest = '0' and parsedMiddlewareName = 'HTTP' and flagMessage != '' and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "' limit 100 ").append(SqlConstants.UNION_ALL);
+        exitSql.append(buildDefaultWhiteSql(appNameKeys, timePair, args)).append(limit).append(SqlConstants.UNION_ALL);
         //查询所有非默认白名单(flagMessage为空)的出口(2分钟前到现在往前5s)和所有上游应用名称是目前客户端应用的服务端出口(远程调用)
         //可能存在客户端日志已经产生了,但是服务端日志还没有产生或者写入ck,此时会把这种有服务端的日志标识成第三方服务
-        exitSql.append(SqlConstants.QUERY_ALL_SQL + " (( startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and logType=2 and flagMessage='') or (startDate >= '" + timePair.getFirst() + "' and upAppName='" + appName + "' and logType=3 )) and parsedServiceName != '' and parsedMiddlewareName = 'HTTP' and clusterTest = '0' and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "' ");
+        exitSql.append(buildAllSql(appNameKeys, timePair, args));
+        return exitSql.toString();
     }
 
-    private void buildQueryMysqlSql(String appName, String userAppKey, String envCode, Pair timePair, StringBuilder exitSql) {
+    private String buildQueryMysqlSql(List<String> appNameKeys, Pair timePair, List<Object> args) {
         /**
          * mysql的UNION ALL必须把语句用括号包裹
+         * mysql不支持limit by,只限制总数
          */
+        StringBuilder exitSql = new StringBuilder();
+        String limit = " limit " + APP_EXIT_LIMIT * appNameKeys.size() + " ";
 
         //查询DUBBO,FEIGN以及GRPC的出口数据
-        exitSql.append(SqlConstants.BRACKETS_LEFT).append(SqlConstants.QUERY_EXIT_SQL + "startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and parsedServiceName != '' and logType=2 and clusterTest = '0' and parsedMiddlewareName in ('DUBBO','FEIGN','GRPC') and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "'  limit 100 ").append(SqlConstants.BRACKETS_RIGHT).append(SqlConstants.UNION_ALL);
+        exitSql.append(SqlConstants.BRACKETS_LEFT).append(buildExitSql(appNameKeys, timePair, args)).append(limit).append(SqlConstants.BRACKETS_RIGHT).append(SqlConstants.UNION_ALL);
         //查询默认白名单(flagMessage不为空)的HTTP出口数据
-        exitSql.append(SqlConstants.BRACKETS_LEFT).append(SqlConstants.QUERY_DEFAULT_WHITE_SQL + "startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and parsedServiceName != '' and logType=2 and clusterTest = '0' and parsedMiddlewareName = 'HTTP' and flagMessage != '' and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "'  limit 100 ").append(SqlConstants.BRACKETS_RIGHT).append(SqlConstants.UNION_ALL);
+        exitSql.append(SqlConstants.BRACKETS_LEFT).append(buildDefaultWhiteSql(appNameKeys, timePair, args)).append(limit).append(SqlConstants.BRACKETS_RIGHT).append(SqlConstants.UNION_ALL);
         //查询所有非默认白名单(flagMessage为空)的出口(2分钟前到现在往前5s)和所有上游应用名称是目前客户端应用的服务端出口(远程调用)
         //可能存在客户端日志已经产生了,但是服务端日志还没有产生或者写入ck,此时会把这种有服务端的日志标识成第三方服务
-        exitSql.append(SqlConstants.BRACKETS_LEFT).append(SqlConstants.QUERY_ALL_SQL + " (( startDate between '" + timePair.getFirst() + "' and '" + timePair.getSecond() + "' and appName='" + appName + "' and logType=2 and flagMessage='') or (startDate >= '" + timePair.getFirst() + "' and upAppName='" + appName + "' and logType=3 )) and parsedServiceName != '' and parsedMiddlewareName = 'HTTP' and clusterTest = '0' and userAppKey = '" + userAppKey + "' and envCode = '" + envCode + "' ").append(SqlConstants.BRACKETS_RIGHT);
+        exitSql.append(SqlConstants.BRACKETS_LEFT).append(buildAllSql(appNameKeys, timePair, args)).append(SqlConstants.BRACKETS_RIGHT);
+        return exitSql.toString();
+    }
+
+    private String buildExitSql(List<String> appNameKeys, Pair timePair, List<Object> args) {
+        args.add(timePair.getFirst());
+        args.add(timePair.getSecond());
+        return SqlConstants.QUERY_EXIT_SQL + "startDate between ? and ? and " + SqlUtil.appKeyIn("appName", appNameKeys, args)
+                + " and parsedServiceName != '' and logType=2 and clusterTest = '0' and parsedMiddlewareName in ('DUBBO','FEIGN','GRPC')";
+    }
+
+    private String buildDefaultWhiteSql(List<String> appNameKeys, Pair timePair, List<Object> args) {
+        args.add(timePair.getFirst());
+        args.add(timePair.getSecond());
+        return SqlConstants.QUERY_DEFAULT_WHITE_SQL + "startDate between ? and ? and " + SqlUtil.appKeyIn("appName", appNameKeys, args)
+                + " and parsedServiceName != '' and logType=2 and clusterTest = '0' and parsedMiddlewareName = 'HTTP' and flagMessage != ''";
     }
 
+    private String buildAllSql(List<String> appNameKeys, Pair timePair, List<Object> args) {
+        args.add(timePair.getFirst());
+        args.add(timePair.getSecond());
+        String clientCondition = SqlUtil.appKeyIn("appName", appNameKeys, args);
+        args.add(timePair.getFirst());
+        String serverCondition = SqlUtil.appKeyIn("upAppName", appNameKeys, args);
+        return SqlConstants.QUERY_ALL_SQL + " (( startDate between ? and ? and " + clientCondition + " and logType=2 and flagMessage='') or (startDate >= ? and "
+                + serverCondition + " and logType=3 )) and parsedServiceName != '' and parsedMiddlewareName = 'HTTP' and clusterTest = '0' ";
+    }
+
+    private List<Map<String, Object>> queryForList(String sql, Object... args) {
+        if (this.isUseCk()) {
+            return clickHouseSupport.queryForList(sql, args);
+        } else {
+            return mysqlSupport.queryForList(sql, args);
+        }
+    }
 }
@@ -112,6 +112,8 @@ public class LinkProcessor extends AbstractProcessor {
         }
     };
 
+    private boolean linkCacheRefreshing = false;
+
     String linkNodeInsertSql = "";
     String linkEdgeInsertSql = "";
 
@@ -134,13 +136,12 @@ public class LinkProcessor extends AbstractProcessor {
             return;
         }
         Set<String> linkIdSet = linkConfig.keySet();
-        Map<String, List<String>> avgMap = taskManager.allotOfAverage(taskIds, new ArrayList<>(linkIdSet));
-        List<String> avgList = avgMap.get(currentTaskId);
+        List<String> avgList = taskManager.allotOfConsistentHash("LinkProcessor", new ArrayList<>(linkIdSet), linkId -> linkId);
         if (CollectionUtils.isNotEmpty(avgList)) {
             for (int i = 0; i < avgList.size(); i++) {
                 String linkId = avgList.get(i);
                 Map<String, Object> link = linkConfig.get(avgList.get(i));
-                saveLink(linkId, link);
+                execute(linkId, () -> saveLink(linkId, link));
             }
         }
     }
@@ -224,8 +225,22 @@ public class LinkProcessor extends AbstractProcessor {
             logger.warn("LinkProcessor is empty  {}, {}", linkId, linkConfig);
             return;
         }
+        saveNodes(linkNodeModels);
+        saveEdges(linkEdgeModels);
+    }
+
+    public void saveNodes(Collection<LinkNodeModel> linkNodeModels) {
+        if (CollectionUtils.isEmpty(linkNodeModels)) {
+            return;
+        }
         mysqlSupport.batchUpdate(linkNodeInsertSql,
                 linkNodeModels.stream().map(LinkNodeModel::getValues).collect(Collectors.toList()));
+    }
+
+    public void saveEdges(Collection<LinkEdgeModel> linkEdgeModels) {
+        if (CollectionUtils.isEmpty(linkEdgeModels)) {
+            return;
+        }
         mysqlSupport.batchUpdate(linkEdgeInsertSql,
                 linkEdgeModels.stream().map(LinkEdgeModel::getValues).collect(Collectors.toList()));
     }
@@ -275,8 +290,6 @@ public class LinkProcessor extends AbstractProcessor {
 
     public Pair<List<RpcBased>, Map<String, String>> getTraceLog(Map<String, Object> linkConfig, TraceLogQueryScopeEnum queryScope) {
         Map<String, String> traceFilter = new HashMap<>();
-        //是否TAKIN相关应用的业务活动
-        Boolean isTakinConcerndFlag = false;
         String method = String.valueOf(linkConfig.get("method"));
         String appName = String.valueOf(linkConfig.get("appName"));
         String rpcType = String.valueOf(linkConfig.get("rpcType"));
@@ -287,27 +300,11 @@ public class LinkProcessor extends AbstractProcessor {
         String userAppKey = String.valueOf(linkConfig.get("userAppKey"));
         String envCode = String.valueOf(linkConfig.get("envCode"));
 
-        //如果业务活动的应用名称含有TAKIN关键字,说明是TAKIN相关的业务活动,此时不用在链路图中过滤TAKIN相关的边
-        List<String> filterTakinAppList = null;
-        if (isFilterTakinFlag != null && isFilterTakinFlag.get()) {
-            String[] filterTakinApps = filterTakinConfig.get().split(",");
-            if (filterTakinApps.length != 0) {
-                filterTakinAppList = Arrays.asList(filterTakinApps);
-                if (filterTakinAppList.contains(appName.toLowerCase())) {
-                    isTakinConcerndFlag = true;
-                }
-            } else {
-                filterTakinAppList = Lists.newArrayList();
-            }
-        }
+        Set<String> filterTakinApps = filterTakinApps(appName);
 
         // k=traceId v=rpcId  用来截取从当前rpcId开始的下游节点
-        String simpleSql = "select traceId,rpcId,logType from t_trace_all where appName='" + appName +
-                "' and parsedMethod = '" + method +
-                "' and rpcType = '" + rpcType +
-                "' and parsedServiceName = '" + service +
-                "' and userAppKey = '" + userAppKey +
-                "' and envCode = '" + envCode + "'";
+        String simpleSql = "select traceId,rpcId,logType from t_trace_all where appName = ? and parsedMethod = ? and rpcType = ?"
+                + " and parsedServiceName = ? and userAppKey = ? and envCode = ?";
         Calendar beginCalendar = Calendar.getInstance();
         switch (queryScope) {
             case WEEK:
@@ -325,18 +322,20 @@ public class LinkProcessor extends AbstractProcessor {
         }
         Calendar endCalendar = Calendar.getInstance();
         endCalendar.add(Calendar.MINUTE, -1);
-        simpleSql += " and startDate>='" + DateFormatUtils.format(beginCalendar.getTime(), "yyyy-MM-dd HH:mm:ss")
-                + "' and startDate <='" + DateFormatUtils.format(endCalendar, "yyyy-MM-dd HH:mm:ss")
-                + "' order by startDate desc limit 2";
+        String beginTime = DateFormatUtils.format(beginCalendar.getTime(), "yyyy-MM-dd HH:mm:ss");
+        simpleSql += " and startDate >= ? and startDate <= ? order by startDate desc limit 2";
+        Object[] simpleArgs = new Object[]{appName, method, rpcType, service, userAppKey, envCode,
+                beginTime, DateFormatUtils.format(endCalendar, "yyyy-MM-dd HH:mm:ss")};
 
         List<Map<String, Object>> traceMaps = Lists.newArrayList();
         if (this.isUseCk()) {
-            traceMaps = clickHouseSupport.queryForList(simpleSql);
+            traceMaps = clickHouseSupport.queryForList(simpleSql, simpleArgs);
         } else {
-            traceMaps = mysqlSupport.queryForList(simpleSql);
+            traceMaps = mysqlSupport.queryForList(simpleSql, simpleArgs);
         }
 
         StringBuilder sql = new StringBuilder();
+        List<Object> args = new ArrayList<>();
         for (Map<String, Object> traceIdMap : traceMaps) {
             if (traceIdMap.containsKey("logType") && "5".equals(traceIdMap.get("logType"))) {
                 continue;
@@ -350,8 +349,9 @@ public class LinkProcessor extends AbstractProcessor {
             if (!this.isUseCk()) {
                 sql.append("(");
             }
-            sql.append("select " + LINK_TOPOLOGY_SQL + " from t_trace_all where traceId ='" + traceId + "'");
-            sql.append(" and startDate>='" + DateFormatUtils.format(beginCalendar.getTime(), "yyyy-MM-dd HH:mm:ss") + "'");
+            sql.append("select " + LINK_TOPOLOGY_SQL + " from t_trace_all where traceId = ? and startDate >= ?");
+            args.add(traceId);
+            args.add(beginTime);
             sql.append(" order by rpcId asc limit " + ("".equals(traceQuerylimit) ? "500" : traceQuerylimit));
             if (!this.isUseCk()) {
                 sql.append(")");
@@ -369,9 +369,9 @@ public class LinkProcessor extends AbstractProcessor {
 
         List<TTrackClickhouseModel> modelList = Lists.newArrayList();
         if (this.isUseCk()) {
-            modelList = clickHouseSupport.queryForList(sql.toString(), TTrackClickhouseModel.class);
+            modelList = clickHouseSupport.queryForList(sql.toString(), TTrackClickhouseModel.class, args.toArray());
         } else {
-            modelList = mysqlSupport.query(sql.toString(), new BeanPropertyRowMapper(TTrackClickhouseModel.class));
+            modelList = mysqlSupport.query(sql.toString(), new BeanPropertyRowMapper(TTrackClickhouseModel.class), args.toArray());
         }
 
         TTrackClickhouseModel tmpModel = null;
@@ -387,15 +387,13 @@ public class LinkProcessor extends AbstractProcessor {
             }
         }
 
-        Boolean finalIsTakinConcerndFlag = isTakinConcerndFlag;
-        List<String> finalFilterTakinAppList = filterTakinAppList;
         modelList = modelList.stream().filter(model -> {
             String ary[] = traceFilter.get(model.getTraceId()).split("#");
             String filterRpcId = ary[0];
             String filterLogType = ary[1];
 
             //如果过滤开关打开,并且是非TAKIN相关业务活动,过滤调用链中TAKIN相关应用的边
-            if (isFilterTakinFlag != null && isFilterTakinFlag.get() && !finalIsTakinConcerndFlag && (finalFilterTakinAppList.contains(model.getAppName().toLowerCase()) || finalFilterTakinAppList.contains(model.getUpAppName().toLowerCase()))) {
+            if (!filterTakinApps.isEmpty() && (filterTakinApps.contains(model.getAppName().toLowerCase()) || filterTakinApps.contains(model.getUpAppName().toLowerCase()))) {
                 return false;
             }
 
@@ -416,6 +414,24 @@ public class LinkProcessor extends AbstractProcessor {
         return Pair.of(modelList.stream().map(TTrackClickhouseModel::getRpcBased).collect(Collectors.toList()), traceFilter);
     }
 
+    /**
+     * 需要从链路图中过滤掉的TAKIN相关应用,未开启过滤或业务活动本身是TAKIN相关应用时返回空集合
+     *
+     * @param appName 业务活动入口应用
+     * @return
+     */
+    public Set<String> filterTakinApps(String appName) {
+        if (isFilterTakinFlag == null || !isFilterTakinFlag.get()) {
+            return Collections.emptySet();
+        }
+        Set<String> filterTakinApps = new HashSet<>(Arrays.asList(filterTakinConfig.get().split(",")));
+        //如果业务活动的应用名称含有TAKIN关键字,说明是TAKIN相关的业务活动,此时不用在链路图中过滤TAKIN相关的边
+        if (filterTakinApps.contains(appName.toLowerCase())) {
+            return Collections.emptySet();
+        }
+        return filterTakinApps;
+    }
+
     public static ThreadLocal<String> threadLocal = new ThreadLocal<String>();
 
     public List<RpcBased> getTraceLog(Map<String, String> param) {
@@ -435,15 +451,15 @@ public class LinkProcessor extends AbstractProcessor {
         traceFilter.put(traceId, rpcId + "#" + logType);
 
         StringBuilder sql = new StringBuilder();
-        sql.append("select " + LINK_TOPOLOGY_SQL + " from t_trace_all where startDate between '" + startTime + "' and '" + endTime + "' and traceId = '" + traceId + "' and logType != 5");
+        sql.append("select " + LINK_TOPOLOGY_SQL + " from t_trace_all where startDate between ? and ? and traceId = ? and logType != 5");
         sql.append(" order by rpcId asc limit " + ("".equals(traceQuerylimit) ? "500" : traceQuerylimit));
         logger.info("LinkProcessor query traceIds:{},sql:{}", traceFilter, sql);
 
         List<TTrackClickhouseModel> modelList = Lists.newArrayList();
         if (this.isUseCk()) {
-            modelList = clickHouseSupport.queryForList(sql.toString(), TTrackClickhouseModel.class);
+            modelList = clickHouseSupport.queryForList(sql.toString(), TTrackClickhouseModel.class, startTime, endTime, traceId);
         } else {
-            modelList = mysqlSupport.query(sql.toString(), new BeanPropertyRowMapper(TTrackClickhouseModel.class));
+            modelList = mysqlSupport.query(sql.toString(), new BeanPropertyRowMapper(TTrackClickhouseModel.class), startTime, endTime, traceId);
         }
 
         modelList = modelList.stream().filter(model -> {
@@ -509,8 +525,8 @@ public class LinkProcessor extends AbstractProcessor {
             if (rpcBasedParser == null) {
                 continue;
             }
-            String edgeId = rpcBasedParser.edgeId("", rpcBased);
             Map<String, Object> edgeTags = rpcBasedParser.edgeTags("", rpcBased);
+            String edgeId = rpcBasedParser.edgeId(edgeTags);
             String fromAppId = rpcBasedParser.fromAppId(linkId, rpcBased);
             String toAppId = rpcBasedParser.toAppId(linkId, rpcBased);
             Map<String, Object> fromAppTags = rpcBasedParser.fromAppTags(linkId, rpcBased);
@@ -574,15 +590,36 @@ public class LinkProcessor extends AbstractProcessor {
      * 更新链路信息
      */
     public void init(String dataSourceType) {
+        init(dataSourceType, true);
+    }
+
+    /**
+     * @param dataSourceType
+     * @param autoRefresh    是否立即开始定时刷新链路配置，为 false 时在需要链路配置时再调用 {@link #startLinkCacheRefresh()}
+     */
+    public void init(String dataSourceType, boolean autoRefresh) {
         //设置数据源
         this.setDataSourceType(dataSourceType);
-        linkCache.autoRefresh(mysqlSupport);
+        if (autoRefresh) {
+            startLinkCacheRefresh();
+        }
         linkNodeInsertSql = "INSERT INTO " + LINKNODE_TABLENAME + LinkNodeModel.getCols() + " VALUES " + LinkNodeModel
                 .getParamCols() + LinkNodeModel.getOnDuplicateCols();
         linkEdgeInsertSql = "INSERT INTO " + LINKEDGE_TABLENAME + LinkEdgeModel.getCols() + " VALUES " + LinkEdgeModel
                 .getParamCols() + LinkEdgeModel.getOnDuplicateCols();
     }
 
+    /**
+     * 开始定时刷新链路配置，重复调用只启动一次
+     */
+    public synchronized void startLinkCacheRefresh() {
+        if (linkCacheRefreshing) {
+            return;
+        }
+        linkCacheRefreshing = true;
+        linkCache.autoRefresh(mysqlSupport);
+    }
+
     public AbstractLinkCache getLinkCache() {
         return linkCache;
     }
@@ -48,7 +48,7 @@ import static io.shulie.surge.data.deploy.pradar.link.LinkSqlContants.UNKNOW_APP
  * @Date: 2021/1/2010:08
  * @Description:
  */
-public class LinkUnKnowMQProcessor implements Processor {
+public class LinkUnKnowMQProcessor extends AbstractProcessor {
 
     private static Logger logger = LoggerFactory.getLogger(LinkUnKnowMQProcessor.class);
 
@@ -188,13 +188,12 @@ public class LinkUnKnowMQProcessor implements Processor {
             return;
         }
         Set<String> linkIdSet = linkConfig.keySet();
-        Map<String, List<String>> avgMap = taskManager.allotOfAverage(taskIds, new ArrayList<>(linkIdSet));
-        List<String> avgList = avgMap.get(currentTaskId);
+        List<String> avgList = taskManager.allotOfConsistentHash("LinkUnKnowMQProcessor", new ArrayList<>(linkIdSet), linkId -> linkId);
         if (CollectionUtils.isNotEmpty(avgList)) {
             for (int i = 0; i < avgList.size(); i++) {
                 String linkId = avgList.get(i);
                 Map<String, Object> link = linkConfig.get(avgList.get(i));
-                processUnKnownNodeMq(linkId, link);
+                execute(linkId, () -> processUnKnownNodeMq(linkId, link));
             }
         }
     }
@@ -100,12 +100,11 @@ public class LinkUnKnowNodeCleanProcessor extends AbstractProcessor {
             return;
         }
         Set<String> linkIdSet = linkConfig.keySet();
-        Map<String, List<String>> avgMap = taskManager.allotOfAverage(taskIds, new ArrayList<>(linkIdSet));
-        List<String> avgList = avgMap.get(currentTaskId);
+        List<String> avgList = taskManager.allotOfConsistentHash("LinkUnKnowNodeCleanProcessor", new ArrayList<>(linkIdSet), linkId -> linkId);
         if (CollectionUtils.isNotEmpty(avgList)) {
             for (int i = 0; i < avgList.size(); i++) {
                 String linkId = avgList.get(i);
-                clearUnknownNode(linkId);
+                execute(linkId, () -> clearUnknownNode(linkId));
             }
         }
     }
@@ -165,8 +165,8 @@ public class LinkUnKnowNodeProcessor extends AbstractProcessor {
 
     private Pair<LinkNodeModel, LinkEdgeModel> analyseLinkCommon(String linkId, RpcBased rpcBased) {
         RpcBasedParser rpcBasedParser = new UnknownNodeRpcBasedParser();
-        String edgeId = rpcBasedParser.edgeId("", rpcBased);
         Map<String, Object> edgeTags = rpcBasedParser.edgeTags("", rpcBased);
+        String edgeId = rpcBasedParser.edgeId(edgeTags);
         String fromAppId = rpcBasedParser.fromAppId(linkId, rpcBased);
 
         Map<String, Object> toAppTags = rpcBasedParser.toAppTags(linkId, rpcBased);
@@ -216,13 +216,12 @@ public class LinkUnKnowNodeProcessor extends AbstractProcessor {
             return;
         }
         Set<String> linkIdSet = linkConfig.keySet();
-        Map<String, List<String>> avgMap = taskManager.allotOfAverage(taskIds, new ArrayList<>(linkIdSet));
-        List<String> avgList = avgMap.get(currentTaskId);
+        List<String> avgList = taskManager.allotOfConsistentHash("LinkUnKnowNodeProcessor", new ArrayList<>(linkIdSet), linkId -> linkId);
         if (CollectionUtils.isNotEmpty(avgList)) {
             for (int i = 0; i < avgList.size(); i++) {
                 String linkId = avgList.get(i);
                 Map<String, Object> link = linkConfig.get(avgList.get(i));
-                processUnKnowNodeCommon(linkId, link);
+                execute(linkId, () -> processUnKnowNodeCommon(linkId, link));
             }
         }
     }
@@ -15,11 +15,13 @@
 
 package io.shulie.surge.data.deploy.pradar.link.processor;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import io.shulie.surge.data.common.utils.DateUtils;
 import io.shulie.surge.data.deploy.pradar.link.TaskManager;
-import io.shulie.surge.data.deploy.pradar.link.enums.TraceLogQueryScopeEnum;
 import io.shulie.surge.data.deploy.pradar.link.model.ShadowBizTableModel;
 import io.shulie.surge.data.deploy.pradar.link.model.ShadowDatabaseModel;
 import io.shulie.surge.data.deploy.pradar.link.model.TTrackClickhouseModel;
@@ -39,10 +41,13 @@ import org.slf4j.LoggerFactory;
 import org.springframework.jdbc.core.BeanPropertyRowMapper;
 
 import java.io.Serializable;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 public class ShadowDatabaseProcessor extends AbstractProcessor {
@@ -69,15 +74,51 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
     @Named("/pradar/config/rt/shadowDatabaseProcess/delayTime")
     private Remote<Long> analysisShadowDatabaseInterval;
 
+    /**
+     * 增量扫描只扫到当前时间往前的秒数,给 trace 入库留出延迟
+     */
+    @Inject
+    @DefaultValue("60")
+    @Named("/pradar/config/rt/shadowDatabaseProcess/scanLagSeconds")
+    private Remote<Integer> scanLagSeconds;
+
+    /**
+     * 每次扫描从水位再往前重叠的秒数,补上比 scanLagSeconds 更晚入库的 trace,重复的由已解析缓存去重
+     */
+    @Inject
+    @DefaultValue("300")
+    @Named("/pradar/config/rt/shadowDatabaseProcess/lateWindowSeconds")
+    private Remote<Integer> lateWindowSeconds;
+
+    /**
+     * 水位落后太多时(如停机后重启)最多往前补扫的分钟数
+     */
+    @Inject
+    @DefaultValue("60")
+    @Named("/pradar/config/rt/shadowDatabaseProcess/maxCatchUpMinutes")
+    private Remote<Integer> maxCatchUpMinutes;
+
+    /**
+     * 没有水位的应用首次扫描的分钟数
+     */
+    private static final int DEFAULT_SCAN_MINUTES = 5;
+
+    /**
+     * 已处理过的 trace 和数据源在内存中保留的时间,过期后重新解析和写入一次,需要大于 lateWindowSeconds
+     */
+    private static final int SEEN_EXPIRE_MINUTES = 60;
+
+    private static final int SEEN_MAX_SIZE = 200000;
+
     private static final String ANALYSIS_RPC_TYPE = StringUtils.join(
             new String[]{String.valueOf(MiddlewareType.TYPE_DB), String.valueOf(MiddlewareType.TYPE_CACHE),
                     String.valueOf(MiddlewareType.TYPE_SEARCH), String.valueOf(MiddlewareType.TYPE_FS)}, "','");
 
-    // 查询 数据库、缓存、搜索、文件 等类型的 且 attachment不为空 的业务trace
+    // 查询 数据库、缓存、搜索、文件 等类型的 且 attachment不为空 的业务trace,相同配置只取一条
     private static final String QUERY_SQL =
-            "select appName,rpcType,parsedMethod,parsedMiddlewareName as middlewareName,flagMessage,userAppKey,envCode "
-                    + "from t_trace_all where rpcType in ('" + ANALYSIS_RPC_TYPE + "') and startDate >= '%s' "
-                    + "and appName = '%s' and userAppKey = '%s' and envCode = '%s' "
+            "select distinct appName,rpcType,parsedMethod,parsedMiddlewareName as middlewareName,flagMessage,userAppKey,envCode "
+                    + "from t_trace_all where rpcType in ('" + ANALYSIS_RPC_TYPE + "') and startDate >= ? and startDate < ? "
+                    + "and appName = ? and userAppKey = ? and envCode = ? "
                     + "and clusterTest = '0' and flagMessage is not null and flagMessage != ''";
 
     // 表名  插入列  插入数据
@@ -89,6 +130,24 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
 
     private final AbstractAppCache appCache = new AbstractAppCache();
 
+    private final WatermarkStore watermarkStore = new WatermarkStore();
+
+    /**
+     * 已解析过的 trace,相同的 trace 不再解析
+     */
+    private final Cache<String, Boolean> parsedTraces = CacheBuilder.newBuilder().maximumSize(SEEN_MAX_SIZE)
+            .expireAfterWrite(SEEN_EXPIRE_MINUTES, TimeUnit.MINUTES).build();
+
+    /**
+     * 已写入的影子库/表唯一键,相同的不再访问 mysql
+     */
+    private final Cache<String, Boolean> savedKeys = CacheBuilder.newBuilder().maximumSize(SEEN_MAX_SIZE)
+            .expireAfterWrite(SEEN_EXPIRE_MINUTES, TimeUnit.MINUTES).build();
+
+    private final LongAdder scannedCount = new LongAdder();
+    private final LongAdder parsedCount = new LongAdder();
+    private final LongAdder insertedCount = new LongAdder();
+
     @Inject
     private ClickHouseSupport clickHouseSupport;
 
@@ -108,11 +167,13 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
         if (CollectionUtils.isEmpty(entityCache)) {
             return;
         }
-        Map<String, List<InnerEntity>> avgMap = taskManager.allotOfAverage(taskIds, entityCache);
-        List<InnerEntity> avgList = avgMap.get(currentTaskId);
+        logCycleStat();
+        // 应用可能在实例间迁移,每轮重新读取水位
+        watermarkStore.reload(mysqlSupport);
+        List<InnerEntity> avgList = taskManager.allotOfConsistentHash("ShadowDatabaseProcessor", entityCache, InnerEntity::getKey);
         if (CollectionUtils.isNotEmpty(avgList)) {
-            for (int i = 0, size = avgList.size(); i < size; i++) {
-                analysisAndSave(entityCache.get(i));
+            for (InnerEntity innerEntity : avgList) {
+                execute(innerEntity.getKey(), () -> analysisAndSave(innerEntity));
             }
         }
     }
@@ -147,14 +208,45 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
         }
     }
 
-    // 查询5分钟内的trace日志并进行解析
+    /**
+     * 输出上一轮的扫描、解析和实际写入条数
+     */
+    private void logCycleStat() {
+        long scanned = scannedCount.sumThenReset();
+        long parsed = parsedCount.sumThenReset();
+        long inserted = insertedCount.sumThenReset();
+        if (scanned > 0) {
+            logger.info("ShadowDatabaseProcessor last cycle scanned:{}, parsed:{}, inserted:{}", scanned, parsed, inserted);
+        }
+    }
+
+    // 从水位往前重叠 lateWindowSeconds 查询trace日志并进行解析,保存成功后推进水位
     public void analysisAndSave(InnerEntity innerEntity) {
         if (logger.isDebugEnabled()) {
             logger.debug("ShadowDatabaseProcessor execute： {}", innerEntity);
         }
         try {
-            List<TTrackClickhouseModel> models = queryTraceLog(innerEntity, TraceLogQueryScopeEnum.build(5));
+            Date end = DateUtils.addSeconds(new Date(), -scanLagSeconds.get());
+            Date watermark = watermarkStore.get(innerEntity.getKey());
+            Date earliest = DateUtils.addMinutes(end, -maxCatchUpMinutes.get());
+            Date start;
+            if (watermark == null) {
+                start = DateUtils.addMinutes(end, -DEFAULT_SCAN_MINUTES);
+            } else if (watermark.before(earliest)) {
+                start = earliest;
+            } else {
+                start = watermark;
+            }
+            if (!start.before(end)) {
+                return;
+            }
+            // 已有水位时重叠扫描,迟到的 trace 仍能扫到,已解析过的在 analysisAndSave 中跳过
+            if (watermark != null) {
+                start = DateUtils.addSeconds(start, -lateWindowSeconds.get());
+            }
+            List<TTrackClickhouseModel> models = queryTraceLog(innerEntity, start, end);
             analysisAndSave(models);
+            watermarkStore.save(mysqlSupport, innerEntity, end);
         } catch (Exception e) {
             logger.error("Save to {}/{} error! innerEntity：[{}]", SHADOW_DATABASE, BIZ_TABLE, innerEntity, e);
         }
@@ -164,9 +256,17 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
         if (CollectionUtils.isEmpty(traceModels)) {
             return;
         }
+        scannedCount.add(traceModels.size());
+        List<String> traceKeys = new ArrayList<>();
         List<ShadowDatabaseModel> databaseModelList = new ArrayList<>();
         List<ShadowBizTableModel> bizTableModelList = new ArrayList<>();
         for (TTrackClickhouseModel traceModel : traceModels) {
+            String traceKey = traceKey(traceModel);
+            if (parsedTraces.getIfPresent(traceKey) != null) {
+                continue;
+            }
+            traceKeys.add(traceKey);
+            parsedCount.increment();
             ShadowDatabaseParseResult parseResult = TemplateParseHandler.analysisTraceModel(traceModel);
             if (parseResult != null) {
                 ShadowDatabaseModel databaseModel = parseResult.getDatabaseModel();
@@ -190,21 +290,37 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
         // 因为 data_source 长度问题，所以通过增加 uniqueKey 字段为唯一键，对应值为md5(真实唯一索引)
         uniqueSaveDatabase(databaseModelList);
         uniqueSaveBizTable(bizTableModelList);
+        // 保存成功后才记录,失败时下次重新解析
+        traceKeys.forEach(traceKey -> parsedTraces.put(traceKey, Boolean.TRUE));
+    }
+
+    private static String traceKey(TTrackClickhouseModel traceModel) {
+        return Md5Utils.md5(traceModel.getUserAppKey() + "#" + traceModel.getEnvCode() + "#" + traceModel.getAppName() + "#"
+                + traceModel.getRpcType() + "#" + traceModel.getParsedMethod() + "#" + traceModel.getMiddlewareName() + "#"
+                + traceModel.getFlagMessage());
     }
 
     private void uniqueSaveDatabase(List<ShadowDatabaseModel> databaseModelList) {
         if (CollectionUtils.isNotEmpty(databaseModelList)) {
             Set<String> uniqueKeySet = new HashSet<>();
+            List<String> saveKeys = new ArrayList<>();
             databaseModelList = databaseModelList.stream().filter(model -> {
                 String uniqueKey = model.generateUniqueIndex();
-                boolean isUnique = uniqueKeySet.add(uniqueKey);
+                String saveKey = model.getUserAppKey() + "#" + model.getEnvCode() + "#" + uniqueKey;
+                boolean isUnique = uniqueKeySet.add(uniqueKey) && savedKeys.getIfPresent(saveKey) == null;
                 if (isUnique) {
                     model.setUniqueKey(Md5Utils.md5(uniqueKey));
+                    saveKeys.add(saveKey);
                 }
                 return isUnique;
             }).collect(Collectors.toList());
-            mysqlSupport.batchUpdate(insertShadowDatabaseSql,
+            if (databaseModelList.isEmpty()) {
+                return;
+            }
+            int[] rows = mysqlSupport.updateBatch(insertShadowDatabaseSql,
                     databaseModelList.stream().map(ShadowDatabaseModel::getValues).collect(Collectors.toList()));
+            insertedCount.add(inserted(rows));
+            saveKeys.forEach(saveKey -> savedKeys.put(saveKey, Boolean.TRUE));
             if (logger.isDebugEnabled()) {
                 logger.debug("ShadowDatabaseProcessor save is ok. databaseSize：[{}]", databaseModelList.size());
             }
@@ -214,44 +330,51 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
     private void uniqueSaveBizTable(List<ShadowBizTableModel> bizTableModelList) {
         if (CollectionUtils.isNotEmpty(bizTableModelList)) {
             Set<String> uniqueKeySet = new HashSet<>();
+            List<String> saveKeys = new ArrayList<>();
             bizTableModelList = bizTableModelList.stream().filter(model -> {
                 String uniqueKey = model.generateUniqueIndex();
-                boolean isUnique = uniqueKeySet.add(uniqueKey);
+                String saveKey = model.getUserAppKey() + "#" + model.getEnvCode() + "#" + uniqueKey;
+                boolean isUnique = uniqueKeySet.add(uniqueKey) && savedKeys.getIfPresent(saveKey) == null;
                 if (isUnique) {
                     model.setUniqueKey(Md5Utils.md5(uniqueKey));
+                    saveKeys.add(saveKey);
                 }
                 return isUnique;
             }).collect(Collectors.toList());
-            mysqlSupport.batchUpdate(insertShadowBizTableSql,
+            if (bizTableModelList.isEmpty()) {
+                return;
+            }
+            int[] rows = mysqlSupport.updateBatch(insertShadowBizTableSql,
                     bizTableModelList.stream().map(ShadowBizTableModel::getValues).collect(Collectors.toList()));
+            insertedCount.add(inserted(rows));
+            saveKeys.forEach(saveKey -> savedKeys.put(saveKey, Boolean.TRUE));
             if (logger.isDebugEnabled()) {
                 logger.debug("ShadowDatabaseProcessor save is ok. bizTableSize：[{}]", bizTableModelList.size());
             }
         }
     }
 
-    // 查询对应应用的trace日志
-    private List<TTrackClickhouseModel> queryTraceLog(InnerEntity innerEntity, TraceLogQueryScopeEnum timeScope) {
-        Calendar startDate = Calendar.getInstance();
-        switch (timeScope) {
-            case WEEK:
-                startDate.add(Calendar.DATE, (int) (-1 * timeScope.getTime()));
-                break;
-            case DAY:
-                startDate.add(Calendar.DATE, (int) (-1 * timeScope.getTime()));
-                break;
-            case MINUTE:
-            case MIN_CUS:
-                startDate.add(Calendar.MINUTE, (int) (-1 * timeScope.getTime()));
-                break;
-            default:
+    /**
+     * INSERT IGNORE 忽略的行影响行数为0;驱动改写批量语句时只返回 SUCCESS_NO_INFO,按成功一行计
+     */
+    private static int inserted(int[] rows) {
+        int inserted = 0;
+        for (int row : rows) {
+            if (row > 0) {
+                inserted += row;
+            } else if (row == Statement.SUCCESS_NO_INFO) {
+                inserted++;
+            }
         }
+        return inserted;
+    }
 
-        String querySql = String.format(QUERY_SQL,
-                DateFormatUtils.format(startDate.getTime(), "yyyy-MM-dd HH:mm:ss")
-                , innerEntity.getAppName(), innerEntity.getUserAppKey(), innerEntity.getEnvCode());
-        return this.isUseCk() ? clickHouseSupport.queryForList(querySql, TTrackClickhouseModel.class)
-                : mysqlSupport.queryForList(querySql, TTrackClickhouseModel.class);
+    // 查询对应应用[start,end)的trace日志
+    private List<TTrackClickhouseModel> queryTraceLog(InnerEntity innerEntity, Date start, Date end) {
+        Object[] args = new Object[]{DateFormatUtils.format(start, "yyyy-MM-dd HH:mm:ss"), DateFormatUtils.format(end, "yyyy-MM-dd HH:mm:ss"),
+                innerEntity.getAppName(), innerEntity.getUserAppKey(), innerEntity.getEnvCode()};
+        return this.isUseCk() ? clickHouseSupport.queryForList(QUERY_SQL, TTrackClickhouseModel.class, args)
+                : mysqlSupport.query(QUERY_SQL, new BeanPropertyRowMapper<>(TTrackClickhouseModel.class), args);
     }
 
     private boolean executeDisabled() {
@@ -296,6 +419,44 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
         }
     }
 
+    /**
+     * 每个应用已扫描到的 trace 时间,持久化到 mysql,重启或应用迁移到其他实例后从水位继续扫描
+     */
+    static class WatermarkStore {
+
+        private static final Logger logger = LoggerFactory.getLogger(WatermarkStore.class);
+
+        private static final String SELECT_SQL = "select user_app_key userAppKey, env_code envCode, app_name appName, watermark from t_amdb_app_shadow_watermark";
+
+        private static final String UPSERT_SQL = "INSERT INTO t_amdb_app_shadow_watermark (user_app_key, env_code, app_name, watermark) VALUES (?,?,?,?) "
+                + "ON DUPLICATE KEY UPDATE watermark=VALUES(watermark)";
+
+        private final Map<String, Date> watermarks = new ConcurrentHashMap<>();
+
+        public void reload(MysqlSupport mysqlSupport) {
+            try {
+                for (Map<String, Object> row : mysqlSupport.queryForList(SELECT_SQL)) {
+                    Object watermark = row.get("watermark");
+                    if (watermark instanceof Date) {
+                        watermarks.merge(row.get("userAppKey") + "#" + row.get("envCode") + "#" + row.get("appName"), (Date) watermark,
+                                (current, stored) -> current.after(stored) ? current : stored);
+                    }
+                }
+            } catch (Exception e) {
+                logger.error("Query shadow watermark failed.", e);
+            }
+        }
+
+        public Date get(String key) {
+            return watermarks.get(key);
+        }
+
+        public void save(MysqlSupport mysqlSupport, InnerEntity innerEntity, Date watermark) {
+            mysqlSupport.update(UPSERT_SQL, new Object[]{innerEntity.getUserAppKey(), innerEntity.getEnvCode(), innerEntity.getAppName(), watermark});
+            watermarks.put(innerEntity.getKey(), watermark);
+        }
+    }
+
     static class InnerEntity implements Serializable {
         private String appName;
         private String userAppKey;
@@ -324,5 +485,12 @@ public class ShadowDatabaseProcessor extends AbstractProcessor {
         public void setEnvCode(String envCode) {
             this.envCode = envCode;
         }
+
+        /**
+         * @return 任务分配使用的应用标识
+         */
+        public String getKey() {
+            return userAppKey + "#" + envCode + "#" + appName;
+        }
     }
 }
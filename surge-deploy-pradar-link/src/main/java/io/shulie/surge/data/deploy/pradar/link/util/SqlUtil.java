@@ -0,0 +1,61 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link.util;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 按应用批量查询 trace 时的条件拼接，应用标识统一为 userAppKey#envCode#appName，值全部走绑定参数
+ *
+ * @author pamirs
+ */
+public class SqlUtil {
+
+    private static final String SEPARATOR = "#";
+
+    public static String appKey(Object userAppKey, Object envCode, Object appName) {
+        return userAppKey + SEPARATOR + envCode + SEPARATOR + appName;
+    }
+
+    /**
+     * 拆分应用标识，应用名中可能含有分隔符，最多拆成三段
+     */
+    public static String[] splitAppKey(String appKey) {
+        return appKey.split(SEPARATOR, 3);
+    }
+
+    /**
+     * 构造 (userAppKey,envCode,appColumn) in ((?,?,?),...) 条件，参数按顺序追加到 args
+     *
+     * @param appColumn 应用名所在列,如 appName、upAppName
+     * @param appKeys   应用标识
+     * @param args      绑定参数
+     * @return
+     */
+    public static String appKeyIn(String appColumn, Collection<String> appKeys, List<Object> args) {
+        StringBuilder condition = new StringBuilder("(userAppKey,envCode,").append(appColumn).append(") in (");
+        for (String appKey : appKeys) {
+            String[] arr = splitAppKey(appKey);
+            args.add(arr[0]);
+            args.add(arr[1]);
+            args.add(arr[2]);
+            condition.append("(?,?,?),");
+        }
+        condition.setCharAt(condition.length() - 1, ')');
+        return condition.toString();
+    }
+}
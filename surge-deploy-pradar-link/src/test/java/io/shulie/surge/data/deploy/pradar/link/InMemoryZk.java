@@ -0,0 +1,346 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link;
+
+import com.netflix.curator.framework.recipes.locks.InterProcessMutex;
+import io.shulie.surge.data.common.zk.ZkClient;
+import io.shulie.surge.data.common.zk.ZkHeartbeatNode;
+import io.shulie.surge.data.common.zk.ZkNodeCache;
+import io.shulie.surge.data.common.zk.ZkNodeStat;
+import io.shulie.surge.data.common.zk.ZkPathChildrenCache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * 进程内的 zk 替身，只实现成员关系用到的心跳节点和子节点监听。
+ * 多个 {@link Session} 共享同一份节点数据，关闭 session 时删除其临时节点，模拟实例下线
+ */
+class InMemoryZk {
+
+    private final Map<String, byte[]> nodes = new ConcurrentSkipListMap<>();
+
+    private final List<Children> watchers = new CopyOnWriteArrayList<>();
+
+    Session newSession() {
+        return new Session();
+    }
+
+    private void create(String path, byte[] data) {
+        nodes.put(path, data == null ? new byte[0] : data);
+        fire(path);
+    }
+
+    private void delete(String path) {
+        if (nodes.remove(path) != null) {
+            fire(path);
+        }
+    }
+
+    private void fire(String path) {
+        String parent = path.substring(0, path.lastIndexOf('/'));
+        for (Children watcher : watchers) {
+            if (watcher.path.equals(parent) && watcher.listener != null) {
+                watcher.listener.run();
+            }
+        }
+    }
+
+    private List<String> children(String path) {
+        List<String> children = new ArrayList<>();
+        String prefix = path + "/";
+        for (String node : nodes.keySet()) {
+            if (node.startsWith(prefix) && node.indexOf('/', prefix.length()) < 0) {
+                children.add(node.substring(prefix.length()));
+            }
+        }
+        return children;
+    }
+
+    byte[] data(String path) {
+        return nodes.get(path);
+    }
+
+    final class Session implements ZkClient {
+        private final List<Heartbeat> ephemerals = new CopyOnWriteArrayList<>();
+
+        /**
+         * 模拟 session 过期，临时节点全部消失
+         */
+        void expire() {
+            for (Heartbeat heartbeat : ephemerals) {
+                heartbeat.stop();
+            }
+        }
+
+        @Override
+        public void ensureDirectoryExists(String path) {
+        }
+
+        @Override
+        public ZkHeartbeatNode createHeartbeatNode(String path) {
+            Heartbeat heartbeat = new Heartbeat(path);
+            ephemerals.add(heartbeat);
+            return heartbeat;
+        }
+
+        @Override
+        public ZkPathChildrenCache createPathChildrenCache(String path) {
+            return new Children(path);
+        }
+
+        @Override
+        public void createDirectory(String path, CreateMode createMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void ensureParentExists(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int createNode(String path, byte[] data, CreateMode createMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int updateData(String path, byte[] data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int saveData(String path, byte[] data, CreateMode createMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int createCompressedNode(String path, byte[] data, CreateMode createMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int updateCompressedData(String path, byte[] data) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int saveCompressedData(String path, byte[] data, CreateMode createMode) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean exists(String path) {
+            return nodes.containsKey(path);
+        }
+
+        @Override
+        public ZkNodeStat getStat(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getData(String path) {
+            return nodes.get(path);
+        }
+
+        @Override
+        public byte[] getDecompressedData(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public byte[] getDataQuietly(String path) {
+            return nodes.get(path);
+        }
+
+        @Override
+        public byte[] getDecompressedDataQuietly(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> listChildren(String path) {
+            return children(path);
+        }
+
+        @Override
+        public List<String> listChildrenQuietly(String path) {
+            return children(path);
+        }
+
+        @Override
+        public void delete(String path, boolean recursive) {
+            InMemoryZk.this.delete(path);
+        }
+
+        @Override
+        public boolean deleteQuietly(String path) {
+            InMemoryZk.this.delete(path);
+            return true;
+        }
+
+        @Override
+        public boolean deleteQuietly(String path, boolean recursive) {
+            InMemoryZk.this.delete(path);
+            return true;
+        }
+
+        @Override
+        public boolean cleanDirectoryQuietly(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getZkServers() {
+            return "in-memory";
+        }
+
+        @Override
+        public ZkNodeCache createZkNodeCache(String path, boolean isDataCompressed) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public InterProcessMutex createLock(String path) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void stop() {
+            expire();
+        }
+    }
+
+    private final class Heartbeat implements ZkHeartbeatNode {
+        private final String path;
+        private volatile byte[] data;
+        private volatile boolean alive;
+
+        Heartbeat(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public void setData(byte[] data) {
+            this.data = data;
+            if (alive) {
+                nodes.put(path, data);
+            }
+        }
+
+        @Override
+        public byte[] getData() {
+            return data;
+        }
+
+        @Override
+        public boolean isAlive() {
+            return alive;
+        }
+
+        @Override
+        public void start() {
+            alive = true;
+            create(path, data);
+        }
+
+        @Override
+        public void stop() {
+            alive = false;
+            delete(path);
+        }
+
+        @Override
+        public boolean isRunning() {
+            return alive;
+        }
+    }
+
+    private final class Children implements ZkPathChildrenCache {
+        private final String path;
+        private volatile Runnable listener;
+        private volatile boolean running;
+
+        Children(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public List<String> getChildren() {
+            return children(path);
+        }
+
+        @Override
+        public List<String> getAddChildren() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<String> getDeleteChildren() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public void setUpdateListener(Runnable runnable) {
+            this.listener = runnable;
+        }
+
+        @Override
+        public void setUpdateExecutor(Executor executor) {
+        }
+
+        @Override
+        public void start() {
+            startAndRefresh();
+        }
+
+        @Override
+        public void startAndRefresh() {
+            running = true;
+            watchers.add(this);
+        }
+
+        @Override
+        public void stop() {
+            running = false;
+            watchers.remove(this);
+        }
+
+        @Override
+        public void refresh() {
+        }
+
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+    }
+}
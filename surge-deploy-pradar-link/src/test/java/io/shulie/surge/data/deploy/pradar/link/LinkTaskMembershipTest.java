@@ -0,0 +1,152 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.link;
+
+import io.shulie.surge.data.runtime.common.remote.Remote;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author pamirs
+ */
+public class LinkTaskMembershipTest {
+
+    private static final int KEYS = 10000;
+
+    @Test
+    public void addMemberOnlyMovesKeysToNewMember() {
+        ConsistentHashRing before = new ConsistentHashRing(Arrays.asList("a", "b", "c"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        ConsistentHashRing after = new ConsistentHashRing(Arrays.asList("a", "b", "c", "d"), ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+        int moved = 0;
+        for (String key : keys()) {
+            String owner = after.owner(key);
+            if (!before.owner(key).equals(owner)) {
+                Assert.assertEquals("d", owner);
+                moved++;
+            }
+        }
+        // 理想情况迁移 1/4
+        Assert.assertTrue("moved " + moved, moved > KEYS * 0.15 && moved < KEYS * 0.35);
+    }
+
+    @Test
+    public void everyKeyOwnedByExactlyOneMember() {
+        InMemoryZk zk = new InMemoryZk();
+        List<LinkTaskMembership> members = start(zk, new MutableRemote<>(0), "1", "2", "3");
+        try {
+            Assert.assertEquals(3, members.get(0).members().size());
+            for (String key : keys()) {
+                Assert.assertEquals(key, 1, owners(members, key));
+            }
+        } finally {
+            stop(members);
+        }
+    }
+
+    @Test
+    public void movedKeysOverlapDuringGraceAndAreTakenOverWhenMemberLost() {
+        InMemoryZk zk = new InMemoryZk();
+        MutableRemote<Integer> grace = new MutableRemote<>(600);
+        List<LinkTaskMembership> members = start(zk, grace, "1", "2");
+        InMemoryZk.Session session = zk.newSession();
+        LinkTaskMembership joining = new LinkTaskMembership(session, grace, new MutableRemote<>(ConsistentHashRing.DEFAULT_VIRTUAL_NODES));
+        joining.start("3", Arrays.asList("1", "2", "3"));
+        members.add(joining);
+        try {
+            int overlap = 0;
+            for (String key : keys()) {
+                int owners = owners(members, key);
+                Assert.assertTrue(key, owners >= 1);
+                if (owners > 1) {
+                    // 宽限期内原归属实例和新实例同时处理
+                    Assert.assertTrue(joining.owns(key));
+                    overlap++;
+                }
+            }
+            Assert.assertTrue("overlap " + overlap, overlap > 0 && overlap < KEYS / 2);
+
+            grace.set(0);
+            for (String key : keys()) {
+                Assert.assertEquals(key, 1, owners(members, key));
+            }
+
+            session.expire();
+            members.remove(joining);
+            for (String key : keys()) {
+                Assert.assertEquals(key, 1, owners(members, key));
+            }
+        } finally {
+            joining.stop();
+            stop(members);
+        }
+    }
+
+    private static List<LinkTaskMembership> start(InMemoryZk zk, Remote<Integer> grace, String... taskIds) {
+        List<LinkTaskMembership> members = new ArrayList<>();
+        for (String taskId : taskIds) {
+            LinkTaskMembership membership = new LinkTaskMembership(zk.newSession(), grace, new MutableRemote<>(ConsistentHashRing.DEFAULT_VIRTUAL_NODES));
+            membership.start(taskId, Arrays.asList(taskIds));
+            members.add(membership);
+        }
+        return members;
+    }
+
+    private static void stop(List<LinkTaskMembership> members) {
+        for (LinkTaskMembership membership : members) {
+            membership.stop();
+        }
+    }
+
+    private static int owners(List<LinkTaskMembership> members, String key) {
+        int owners = 0;
+        for (LinkTaskMembership membership : members) {
+            if (membership.owns(key)) {
+                owners++;
+            }
+        }
+        return owners;
+    }
+
+    private static List<String> keys() {
+        List<String> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add("app-" + i + "#service-" + (i % 37));
+        }
+        return keys;
+    }
+
+    private static final class MutableRemote<T> implements Remote<T> {
+        private volatile T value;
+
+        MutableRemote(T value) {
+            this.value = value;
+        }
+
+        @Override
+        public T get() {
+            return value;
+        }
+
+        @Override
+        public void set(T value) {
+            this.value = value;
+        }
+    }
+}
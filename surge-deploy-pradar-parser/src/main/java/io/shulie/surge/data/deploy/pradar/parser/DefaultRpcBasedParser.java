@@ -28,13 +28,40 @@ import java.util.stream.Collectors;
  * @author vincent
  */
 public class DefaultRpcBasedParser implements RpcBasedParser {
+    /**
+     * 按 edgeTags 的字段顺序直接写入摘要，不构造 map，两者需要保持一致
+     *
+     * @param linkId
+     * @param rpcBased
+     * @return
+     */
     @Override
     public String edgeId(String linkId, RpcBased rpcBased) {
-        Map<String, Object> map = edgeTags(linkId, rpcBased);
-        if (map == null || map.isEmpty()) {
+        String entranceId = rpcBased.getEntranceId();
+        if (StringUtils.isBlank(entranceId)) {
+            entranceId = "";
+        }
+        return Md5Utils.hasher()
+                .append(linkId).append('|')
+                .append(serviceParse(rpcBased)).append('|')
+                .append(methodParse(rpcBased)).append('|')
+                .append(extendParse(rpcBased)).append('|')
+                .append(appNameParse(rpcBased)).append('|')
+                .append("").append('|')
+                .append(serverAppNameParse(rpcBased)).append('|')
+                .append(rpcBased.getRpcType()).append('|')
+                .append(rpcBased.getLogType()).append('|')
+                .append(rpcBased.getMiddlewareName()).append('|')
+                .append(entranceId)
+                .hex();
+    }
+
+    @Override
+    public String edgeId(Map<String, Object> edgeTags) {
+        if (edgeTags == null || edgeTags.isEmpty()) {
             return "";
         }
-        return mapToKey(map);
+        return mapToKey(edgeTags);
     }
 
     /**
@@ -106,10 +133,21 @@ public class DefaultRpcBasedParser implements RpcBasedParser {
     }
 
 
+    /**
+     * 按 linkTags 的字段顺序直接写入摘要
+     *
+     * @param rpcBased
+     * @return
+     */
     @Override
     public String linkId(RpcBased rpcBased) {
-        Map<String, Object> map = linkTags(rpcBased);
-        return mapToKey(map);
+        return Md5Utils.hasher()
+                .append(serviceParse(rpcBased)).append('|')
+                .append(methodParse(rpcBased)).append('|')
+                .append(appNameParse(rpcBased)).append('|')
+                .append(rpcBased.getRpcType()).append('|')
+                .append(extendParse(rpcBased))
+                .hex();
     }
 
     @Override
@@ -153,12 +191,16 @@ public class DefaultRpcBasedParser implements RpcBasedParser {
     }
 
     protected String mapToKey(Map<String, Object> map) {
-        StringBuilder sb = new StringBuilder();
+        Md5Utils.Hasher hasher = Md5Utils.hasher();
+        boolean first = true;
         for (Object object : map.values()) {
-            sb.append(object).append('|');
+            if (!first) {
+                hasher.append('|');
+            }
+            hasher.append(object);
+            first = false;
         }
-        sb.deleteCharAt(sb.length() - 1);
-        return Md5Utils.md5(sb.toString());
+        return hasher.hex();
     }
 
     /**
@@ -36,6 +36,14 @@ public interface RpcBasedParser {
      */
     String edgeId(String linkId, RpcBased rpcBased);
 
+    /**
+     * 由已经计算好的边tags生成边编号，与 edgeId(linkId, rpcBased) 结果一致，同一条日志既要编号又要tags时使用
+     *
+     * @param edgeTags
+     * @return
+     */
+    String edgeId(Map<String, Object> edgeTags);
+
     /**
      * 边tags
      *
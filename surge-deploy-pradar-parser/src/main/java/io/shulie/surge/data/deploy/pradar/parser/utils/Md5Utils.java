@@ -16,31 +16,175 @@
 package io.shulie.surge.data.deploy.pradar.parser.utils;
 
 
-import io.shulie.surge.data.common.utils.Bytes;
-
+import java.security.DigestException;
 import java.security.MessageDigest;
-import java.util.Locale;
+import java.security.NoSuchAlgorithmException;
 
 /**
  * Created by xiaobin on 2017/1/15.
+ * <p>
+ * md5 摘要使用线程内复用的 MessageDigest，字符串按 UTF-8 直接编码进缓冲区，十六进制用查表输出，
+ * 结果与 {@code String.getBytes(UTF-8)} 后取 md5 再逐字节 "%02x" 完全一致
  */
 public class Md5Utils {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<Hasher> HASHER = ThreadLocal.withInitial(Hasher::new);
+
+    /**
+     * @param text 不能为空
+     * @throws NullPointerException text 为空时抛出，与原先 getBytes 的行为一致
+     */
     public static String md5(String text) {
-        MessageDigest md5 = null;
-        try {
-            md5 = MessageDigest.getInstance("MD5");
-        } catch (Exception e) {
-            e.printStackTrace();
-            return text;
-        }
-
-        byte[] byteArray = Bytes.toBytes(text);
-        byte[] md5Bytes = md5.digest(byteArray);
-        StringBuffer hexValue = new StringBuffer();
-        for (int i = 0; i < md5Bytes.length; i++) {
-            int val = ((int) md5Bytes[i]) & 0xff;
-            hexValue.append(String.format("%02X", val).toLowerCase(Locale.ROOT));
-        }
-        return hexValue.toString();
+        if (text == null) {
+            throw new NullPointerException("text");
+        }
+        return hasher().append(text).hex();
+    }
+
+    /**
+     * 获取当前线程的摘要器，多个字段可以直接追加，不需要先拼接成字符串。
+     * 同一线程内不能嵌套使用，{@link Hasher#hex()} 之前不能再次调用本方法
+     *
+     * @return
+     */
+    public static Hasher hasher() {
+        Hasher hasher = HASHER.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    /**
+     * 流式 md5，追加的内容等价于把各字段 {@code String.valueOf} 后拼接
+     */
+    public static final class Hasher {
+        private final MessageDigest digest;
+        private final byte[] buf = new byte[512];
+        private final byte[] out = new byte[16];
+        private final char[] hex = new char[32];
+        private final char[] digits = new char[11];
+        private int pos;
+
+        private Hasher() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void reset() {
+            digest.reset();
+            pos = 0;
+        }
+
+        public Hasher append(Object value) {
+            if (value instanceof String) {
+                return append((String) value);
+            }
+            if (value instanceof Integer) {
+                return append(((Integer) value).intValue());
+            }
+            return append(String.valueOf(value));
+        }
+
+        /**
+         * 与字符串拼接一致，null 按 "null" 追加
+         */
+        public Hasher append(String text) {
+            if (text == null) {
+                text = "null";
+            }
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (pos + 4 > buf.length) {
+                    drain();
+                }
+                if (c < 0x80) {
+                    buf[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[pos++] = (byte) (0xC0 | (c >> 6));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    char low;
+                    if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(low = text.charAt(i + 1))) {
+                        int codePoint = Character.toCodePoint(c, low);
+                        buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                        buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+                        i++;
+                    } else {
+                        // 与 String.getBytes 一致，不成对的代理字符编码为 '?'
+                        buf[pos++] = '?';
+                    }
+                } else {
+                    buf[pos++] = (byte) (0xE0 | (c >> 12));
+                    buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return this;
+        }
+
+        public Hasher append(char c) {
+            if (c < 0x80) {
+                if (pos == buf.length) {
+                    drain();
+                }
+                buf[pos++] = (byte) c;
+                return this;
+            }
+            return append(String.valueOf(c));
+        }
+
+        public Hasher append(int value) {
+            if (value == Integer.MIN_VALUE) {
+                return append(String.valueOf(value));
+            }
+            if (pos + digits.length > buf.length) {
+                drain();
+            }
+            if (value < 0) {
+                buf[pos++] = '-';
+                value = -value;
+            }
+            int i = digits.length;
+            do {
+                digits[--i] = (char) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            while (i < digits.length) {
+                buf[pos++] = (byte) digits[i++];
+            }
+            return this;
+        }
+
+        /**
+         * 结束摘要并输出 32 位小写十六进制
+         *
+         * @return
+         */
+        public String hex() {
+            drain();
+            try {
+                digest.digest(out, 0, out.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < out.length; i++) {
+                int v = out[i] & 0xFF;
+                hex[i << 1] = HEX[v >>> 4];
+                hex[(i << 1) + 1] = HEX[v & 0x0F];
+            }
+            return new String(hex);
+        }
+
+        private void drain() {
+            if (pos > 0) {
+                digest.update(buf, 0, pos);
+                pos = 0;
+            }
+        }
     }
 }
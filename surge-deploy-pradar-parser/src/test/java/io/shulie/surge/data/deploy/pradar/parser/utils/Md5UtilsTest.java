@@ -0,0 +1,114 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.parser.utils;
+
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.deploy.pradar.parser.DefaultRpcBasedParser;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 固定 md5 的输出：边和链路 id 已经存储并与已有配置比对，必须与原先
+ * {@code MessageDigest.digest(text.getBytes(UTF-8))} 再按 "%02x" 输出的结果逐字节一致
+ *
+ * @author pamirs
+ */
+public class Md5UtilsTest {
+
+    @Test
+    public void knownDigests() {
+        Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", Md5Utils.md5(""));
+        Assert.assertEquals("5d41402abc4b2a76b9719d911017c592", Md5Utils.md5("hello"));
+        Assert.assertEquals("b076cba80bcb42f08f7239899cbeb1d1", Md5Utils.md5("中文链路"));
+        Assert.assertEquals("9036ed5e434dc42cf1f0a3016655126d", Md5Utils.md5("emoji😀end"));
+        // 不成对的代理字符按 '?' 编码
+        Assert.assertEquals("a6ca7423a52c7a120143360299e750fe", Md5Utils.md5("lone\uD800high"));
+        Assert.assertEquals("a6ca7423a52c7a120143360299e750fe", Md5Utils.md5("lone?high"));
+    }
+
+    @Test
+    public void longTextCrossesBuffer() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 600; i++) {
+            text.append('a');
+        }
+        for (int i = 0; i < 200; i++) {
+            text.append('中');
+        }
+        Assert.assertEquals("9593d365eed67159374215a5c0d9ed5d", Md5Utils.md5(text.toString()));
+    }
+
+    @Test
+    public void hasherEqualsConcatenation() {
+        Assert.assertEquals("67b6e7c49b889e8b951abef4416e20c3",
+                Md5Utils.hasher().append("app").append('|').append(-12).append('|').append(Integer.MAX_VALUE)
+                        .append('|').append((Object) "x").hex());
+        Assert.assertEquals(Md5Utils.md5("app|-12|2147483647|x"),
+                Md5Utils.hasher().append("app|").append(Integer.valueOf(-12)).append("|2147483647|x").hex());
+        // 连续使用时每次都从头开始
+        Assert.assertEquals("5d41402abc4b2a76b9719d911017c592", Md5Utils.hasher().append("hello").hex());
+        Assert.assertEquals("5d41402abc4b2a76b9719d911017c592", Md5Utils.hasher().append("hello").hex());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void md5OfNull() {
+        Md5Utils.md5(null);
+    }
+
+    @Test
+    public void edgeAndLinkIds() {
+        DefaultRpcBasedParser parser = new DefaultRpcBasedParser();
+        RpcBased rpcBased = new RpcBased();
+        rpcBased.setAppName("pradar-demo");
+        rpcBased.setUpAppName("pradar-gateway");
+        rpcBased.setServiceName("/api/user/query/{id}");
+        rpcBased.setMethodName("GET");
+        rpcBased.setMiddlewareName("tomcat");
+        rpcBased.setRpcType(1);
+        rpcBased.setLogType(3);
+        rpcBased.setEntranceId("e3b0c44298fc1c149afbf4c8996fb924");
+        // linkId|service|method|extend|appName|traceAppName|serverAppName|rpcType|logType|middlewareName|entranceId
+        String edgeId = "ef0fa09db09802a47bd06cdf8963e5fd";
+        Assert.assertEquals(edgeId, parser.edgeId("link-1", rpcBased));
+        Assert.assertEquals(edgeId, parser.edgeId(parser.edgeTags("link-1", rpcBased)));
+
+        // service|method|appName|rpcType|extend
+        String linkId = "fda1946cdb5c24a44bec019dc24c45b1";
+        Assert.assertEquals(linkId, parser.linkId(rpcBased));
+        Map<String, Object> tags = new HashMap<String, Object>(parser.linkTags(rpcBased));
+        Assert.assertEquals(linkId, parser.linkId(tags));
+    }
+
+    /**
+     * 原先拼接字符串时空字段写作 "null"，空的 entranceId 写作 ""
+     */
+    @Test
+    public void edgeIdWithNullFields() {
+        DefaultRpcBasedParser parser = new DefaultRpcBasedParser();
+        RpcBased rpcBased = new RpcBased();
+        rpcBased.setAppName("app");
+        rpcBased.setServiceName("svc");
+        rpcBased.setMethodName("m");
+        rpcBased.setRpcType(2);
+        rpcBased.setLogType(1);
+        String edgeId = "f38c7758d790f41c7dd0db8b11981371";
+        Assert.assertEquals(edgeId, parser.edgeId("link-1", rpcBased));
+        Assert.assertEquals(edgeId, parser.edgeId(parser.edgeTags("link-1", rpcBased)));
+    }
+}
@@ -15,8 +15,9 @@
 
 package io.shulie.surge.data.deploy.pradar;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.inject.Injector;
 import io.shulie.surge.data.common.aggregation.AggregateSlot;
 import io.shulie.surge.data.common.aggregation.Aggregation;
@@ -28,9 +29,8 @@ import io.shulie.surge.data.common.utils.Pair;
 import io.shulie.surge.data.deploy.pradar.common.PradarRtConstant;
 import io.shulie.surge.data.deploy.pradar.common.PradarStormConfigHolder;
 import io.shulie.surge.data.deploy.pradar.config.PradarSupplierConfiguration;
-import io.shulie.surge.data.deploy.pradar.model.AmdbAppModel;
-import io.shulie.surge.data.deploy.pradar.model.AmdbAppRelationModel;
 import io.shulie.surge.data.sink.influxdb.InfluxDBSupport;
+import io.shulie.surge.data.sink.influxdb.LineProtocolBatch;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.BasicOutputCollector;
@@ -42,7 +42,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author pamirs
@@ -99,9 +99,25 @@ public class E2ETraceReduceBolt extends BaseBasicBolt {
      * APP指标计算提交
      */
     static class TraceMetricsCommitAction implements Aggregation.CommitAction<Metric, CallStat> {
+        /**
+         * 单次请求最多写入的点数，超过后分多次写入
+         */
+        private static final int MAX_BATCH_POINTS = 5000;
+
         private InfluxDBSupport influxDbSupport;
         private String metricsDataBase;
 
+        /**
+         * 提交在调度线程上串行执行，缓冲区跨时间窗口复用
+         */
+        private final LineProtocolBatch batch = new LineProtocolBatch();
+
+        /**
+         * 指标对应的 measurement 和 tag 部分，转义后缓存
+         */
+        private final Cache<Metric, byte[]> prefixes = CacheBuilder.newBuilder()
+                .maximumSize(200000).expireAfterAccess(10, TimeUnit.MINUTES).build();
+
         public TraceMetricsCommitAction(InfluxDBSupport influxDbSupport, String metricsDataBase) {
             this.influxDbSupport = influxDbSupport;
             this.metricsDataBase = metricsDataBase;
@@ -109,52 +125,67 @@ public class E2ETraceReduceBolt extends BaseBasicBolt {
 
         @Override
         public void commit(long slotKey, AggregateSlot<Metric, CallStat> slot) {
-            try {
-                Set<AmdbAppModel> appSet = Sets.newHashSet();
-                Set<AmdbAppRelationModel> appRelationSet = Sets.newHashSet();
-
-                slot.toMap().entrySet().forEach(metricCallStatEntry -> {
-                    Metric metric = metricCallStatEntry.getKey();
-                    CallStat callStat = metricCallStatEntry.getValue();
-                    String metricsId = metric.getMetricId();
-                    String[] tags = metric.getPrefixes();
-                    Map<String, String> influxdbTags = Maps.newHashMap();
-                    influxdbTags.put("nodeId", tags[0]);
-                    influxdbTags.put("parsedAppName", tags[1]);
-                    influxdbTags.put("parsedServiceName", tags[2]);
-                    influxdbTags.put("parsedMethod", tags[3]);
-                    influxdbTags.put("rpcType", tags[4]);
-                    influxdbTags.put("clusterTest", tags[5]);
-                    influxdbTags.put("exceptionType", tags[6]);
-                    //放入租户标识
-                    influxdbTags.put("tenantAppKey", tags[7]);
-                    //放入环境标识
-                    influxdbTags.put("envCode", tags[8]);
-                    
-                    // 总次数/成功次数/totalRt/错误次数/totalQps
-                    Map<String, Object> fields = Maps.newHashMap();
-                    fields.put("totalCount", callStat.get(0));
-                    fields.put("successCount", callStat.get(1));
-                    fields.put("totalRt", callStat.get(2));
-                    fields.put("errorCount", callStat.get(3));
-                    fields.put("totalQps", callStat.get(4));
-                    // 总QPS/时间窗口
-                    fields.put("qps", (double) callStat.get(4) / PradarRtConstant.AGG_TRACE_SECONDS_INTERVAL);
-                    if (callStat.get(0) == 0) {
-                        // 平均
-                        fields.put("rt", (double) callStat.get(2));
-                    } else {
-                        fields.put("rt", callStat.get(2) / (double) callStat.get(0));
+            synchronized (batch) {
+                try {
+                    long time = slotKey * 1000;
+                    int failed = 0;
+                    for (Map.Entry<Metric, CallStat> metricCallStatEntry : slot.toMap().entrySet()) {
+                        Metric metric = metricCallStatEntry.getKey();
+                        CallStat callStat = metricCallStatEntry.getValue();
+
+                        // 总次数/成功次数/totalRt/错误次数/totalQps
+                        batch.point(prefixes.get(metric, () -> prefix(metric)))
+                                .field("totalCount", callStat.get(0))
+                                .field("successCount", callStat.get(1))
+                                .field("totalRt", callStat.get(2))
+                                .field("errorCount", callStat.get(3))
+                                .field("totalQps", callStat.get(4))
+                                // 总QPS/时间窗口
+                                .field("qps", (double) callStat.get(4) / PradarRtConstant.AGG_TRACE_SECONDS_INTERVAL)
+                                // 平均
+                                .field("rt", callStat.get(0) == 0 ? (double) callStat.get(2) : callStat.get(2) / (double) callStat.get(0))
+                                .field("traceId", callStat.getTraceId())
+                                .end(time);
+                        if (batch.points() >= MAX_BATCH_POINTS) {
+                            failed += flush();
+                        }
+                    }
+                    failed += flush();
+                    if (failed > 0) {
+                        logger.error("write fail influxdb, slot:{}, dropped points:{}", FormatUtils.toSecondTimeString(time), failed);
                     }
-                    fields.put("traceId", callStat.getTraceId());
+                } catch (Throwable e) {
+                    batch.reset();
+                    logger.error("write fail influxdb " + ExceptionUtils.getStackTrace(e));
+                }
+            }
+        }
 
-                    // 写入influxDB
-                    influxDbSupport.write(metricsDataBase, metricsId, influxdbTags, fields, slotKey * 1000);
-                });
+        /**
+         * @return 写入失败被丢弃的点数
+         */
+        private int flush() {
+            int points = batch.points();
+            boolean success = influxDbSupport.writeLines(metricsDataBase, batch);
+            batch.reset();
+            return success ? 0 : points;
+        }
 
-            } catch (Throwable e) {
-                logger.error("write fail influxdb " + ExceptionUtils.getStackTrace(e));
-            }
+        private static byte[] prefix(Metric metric) {
+            String[] tags = metric.getPrefixes();
+            Map<String, String> influxdbTags = Maps.newHashMap();
+            influxdbTags.put("nodeId", tags[0]);
+            influxdbTags.put("parsedAppName", tags[1]);
+            influxdbTags.put("parsedServiceName", tags[2]);
+            influxdbTags.put("parsedMethod", tags[3]);
+            influxdbTags.put("rpcType", tags[4]);
+            influxdbTags.put("clusterTest", tags[5]);
+            influxdbTags.put("exceptionType", tags[6]);
+            //放入租户标识
+            influxdbTags.put("tenantAppKey", tags[7]);
+            //放入环境标识
+            influxdbTags.put("envCode", tags[8]);
+            return LineProtocolBatch.prefix(metric.getMetricId(), influxdbTags);
         }
     }
 }
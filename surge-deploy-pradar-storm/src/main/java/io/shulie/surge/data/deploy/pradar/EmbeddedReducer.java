@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar;
+
+import io.shulie.surge.data.common.aggregation.AggregateSlot;
+import io.shulie.surge.data.common.aggregation.Aggregation;
+import io.shulie.surge.data.common.aggregation.Scheduler;
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.lifecycle.Stoppable;
+import io.shulie.surge.data.common.utils.FormatUtils;
+import io.shulie.surge.data.common.utils.Pair;
+import io.shulie.surge.data.deploy.pradar.agg.ReduceJobEmitter;
+import io.shulie.surge.data.deploy.pradar.common.MetricBatch;
+import io.shulie.surge.data.deploy.pradar.common.PradarRtConstant;
+import io.shulie.surge.data.sink.influxdb.InfluxDBSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * 不依赖 storm 的本地 reduce，用于单机部署。
+ * <p>
+ * spout 端预合并后的任务按指标哈希分给本进程内的 N 个 reducer，每个 reducer 和 reduce bolt 一样
+ * 维护自己的聚合窗口，使用 bolt 相同的提交逻辑写入相同的存储。
+ * 任务的合并和窗口的提交都在 reducer 自己的线程上执行，reducer 之间不共享状态
+ *
+ * @author pamirs
+ */
+public class EmbeddedReducer implements ReduceJobEmitter, Stoppable {
+    private static Logger logger = LoggerFactory.getLogger(EmbeddedReducer.class);
+
+    private final String name;
+    private final Reducer[] reducers;
+
+    /**
+     * @param name                名称，用于日志
+     * @param parallelism         reducer 线程数
+     * @param commitActionFactory 为每个 reducer 创建提交逻辑
+     */
+    public EmbeddedReducer(String name, int parallelism,
+                           Supplier<Aggregation.CommitAction<Metric, CallStat>> commitActionFactory) {
+        this.name = name;
+        this.reducers = new Reducer[Math.max(1, parallelism)];
+        for (int i = 0; i < reducers.length; ++i) {
+            reducers[i] = new Reducer(commitActionFactory.get());
+        }
+        logger.info("{} started with {} reducers", name, reducers.length);
+    }
+
+    /**
+     * 链路指标，对应 {@link PradarTraceReduceBolt}
+     */
+    public static EmbeddedReducer traceMetrics(InfluxDBSupport influxDbSupport, int parallelism) {
+        return new EmbeddedReducer(PradarTraceReduceBolt.class.getSimpleName(), parallelism,
+                () -> new PradarTraceReduceBolt.TraceMetricsCommitAction(influxDbSupport));
+    }
+
+    /**
+     * E2E 断言指标，对应 {@link E2ETraceReduceBolt}
+     */
+    public static EmbeddedReducer e2eTraceMetrics(InfluxDBSupport influxDbSupport, int parallelism) {
+        return new EmbeddedReducer(E2ETraceReduceBolt.class.getSimpleName(), parallelism,
+                () -> new E2ETraceReduceBolt.TraceMetricsCommitAction(influxDbSupport, "pradar"));
+    }
+
+    @Override
+    public int reducerCount() {
+        return reducers.length;
+    }
+
+    @Override
+    public void emit(int reducer, long windowTime, MetricBatch job) {
+        reducers[reducer].submit(windowTime, job);
+    }
+
+    /**
+     * 停止接收任务，处理完已提交的任务后把所有窗口立即写入。
+     * 需要先停止发送任务的聚合，之后收到的任务只记录日志后丢弃
+     */
+    @Override
+    public void stop() throws Exception {
+        for (Reducer reducer : reducers) {
+            reducer.scheduler.shutdown();
+        }
+        for (Reducer reducer : reducers) {
+            reducer.scheduler.awaitTermination(10, TimeUnit.SECONDS);
+            reducer.aggregation.stop();
+        }
+        logger.info("{} stopped", name);
+    }
+
+    private static final class Reducer {
+        private final Scheduler scheduler = new Scheduler(1);
+        private final Aggregation<Metric, CallStat> aggregation = new Aggregation<>(
+                PradarRtConstant.REDUCE_TRACE_SECONDS_INTERVAL,
+                PradarRtConstant.REDUCE_TRACE_SECONDS_LOWER_LIMIT);
+
+        Reducer(Aggregation.CommitAction<Metric, CallStat> commitAction) {
+            // 关闭后不再执行周期提交，由 stop 统一提交剩余窗口
+            scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+            aggregation.start(scheduler, commitAction);
+        }
+
+        void submit(long windowTime, MetricBatch job) {
+            if (scheduler.isShutdown()) {
+                dropped(windowTime, job);
+                return;
+            }
+            try {
+                scheduler.execute(() -> {
+                    AggregateSlot<Metric, CallStat> slot = aggregation.getSlotByTimestamp(windowTime);
+                    if (slot == null) {
+                        logger.info("no slot for " + windowTime + ": " + FormatUtils.toSecondTimeString(windowTime));
+                        return;
+                    }
+                    for (Pair<Metric, CallStat> pair : job) {
+                        slot.addToSlot(pair.getFirst(), pair.getSecond());
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                dropped(windowTime, job);
+            }
+        }
+
+        private void dropped(long windowTime, MetricBatch job) {
+            logger.warn("reducer stopped, drop " + job.size() + " metrics of " + FormatUtils.toSecondTimeString(windowTime));
+        }
+    }
+}
@@ -26,6 +26,7 @@ import io.shulie.surge.data.deploy.pradar.common.*;
 import io.shulie.surge.data.deploy.pradar.config.PradarSupplierConfiguration;
 import io.shulie.surge.data.runtime.common.DataRuntime;
 import io.shulie.surge.data.suppliers.nettyremoting.NettyRemotingSupplier;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -35,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static io.shulie.surge.data.JettySupplier.registedPort;
 
@@ -53,9 +55,15 @@ public class PradarLogSpout extends BaseRichSpout {
     @Inject
     private RuleLoader ruleLoader;
 
+    private transient SpoutEmitQueue emitQueue;
+
+    private transient SpoutOutputCollector collector;
+
     @Override
     public void open(Map map, TopologyContext topologyContext, SpoutOutputCollector spoutOutputCollector) {
         PradarStormConfigHolder.init(map);
+        this.collector = spoutOutputCollector;
+        this.emitQueue = new SpoutEmitQueue();
         PradarSupplierConfiguration pradarSupplierConfiguration =
                 new PradarSupplierConfiguration(
                         topologyContext.getThisWorkerPort(),
@@ -74,6 +82,7 @@ public class PradarLogSpout extends BaseRichSpout {
                     pradarSupplierConfiguration.getDataSourceType(),
                     pradarSupplierConfiguration.getServerPortsMap(),
                     pradarSupplierConfiguration.isGeneralVersion());
+            pradarStormSupplierConfiguration.setShardCount(NumberUtils.toInt(String.valueOf(map.get(ParamUtil.SHARDS)), 1));
 
             NettyRemotingSupplier nettyRemotingSupplier = pradarStormSupplierConfiguration.buildSupplier(dataRuntime, true);
             Injector injector = dataRuntime.getInstance(Injector.class);
@@ -82,9 +91,9 @@ public class PradarLogSpout extends BaseRichSpout {
              * 初始化metrics聚合任务。此处注入和diggest同一个对象
              */
             if (!pradarSupplierConfiguration.isGeneralVersion()) {
-                traceMetricsAggarator.init(new Scheduler(1), spoutOutputCollector, topologyContext);
+                traceMetricsAggarator.init(new Scheduler(1), emitQueue, topologyContext);
             }
-            e2eTraceMetricsAggarator.init(new Scheduler(1), spoutOutputCollector, topologyContext);
+            e2eTraceMetricsAggarator.init(new Scheduler(1), emitQueue, topologyContext);
             // 初始化边缓存
             eagleLoader.init();
             ruleLoader.init();
@@ -101,13 +110,8 @@ public class PradarLogSpout extends BaseRichSpout {
 
     @Override
     public void nextTuple() {
-        try {
-            synchronized (this) {
-                this.wait(1000);
-            }
-        } catch (InterruptedException e1) {
-            logger.warn("nextTuple() is interrupted");
-        }
+        // 聚合结果只在 spout 执行线程上发送，collector 不需要加锁
+        emitQueue.drainTo(collector, 1, TimeUnit.SECONDS);
     }
 
     @Override
@@ -30,6 +30,7 @@ import io.shulie.surge.data.deploy.pradar.digester.MetricsReduceDigester;
 import io.shulie.surge.data.deploy.pradar.digester.TraceMetricsDiggester;
 import io.shulie.surge.data.deploy.pradar.servlet.EngineDataWriteServlet;
 import io.shulie.surge.data.deploy.pradar.servlet.HealthCheckServlet;
+import io.shulie.surge.data.deploy.pradar.servlet.PipelineMetricsServlet;
 import io.shulie.surge.data.deploy.pradar.servlet.LogWriteServlet;
 import io.shulie.surge.data.runtime.common.DataBootstrap;
 import io.shulie.surge.data.runtime.common.DataRuntime;
@@ -70,6 +71,7 @@ public class PradarStormSupplierConfiguration {
     private boolean registerZk;
     private boolean generalVersion;
     private int coreSize;
+    private int shardCount = 1;
 
     public PradarStormSupplierConfiguration(Map<String, String> netMap, Map<String, String> hostNameMap,
                                             boolean registerZk, int coreSize, String dataSourceType,
@@ -105,6 +107,17 @@ public class PradarStormSupplierConfiguration {
         this.dataSourceType = Objects.toString(dataSourceType);
     }
 
+    /**
+     * trace 日志处理器的 ringbuffer 分片数，按 traceId 分片
+     *
+     * @param shardCount 小于等于 0 时不生效
+     */
+    public void setShardCount(int shardCount) {
+        if (shardCount > 0) {
+            this.shardCount = shardCount;
+        }
+    }
+
     /**
      * 创建订阅器
      *
@@ -129,6 +142,7 @@ public class PradarStormSupplierConfiguration {
                     ArrayUtils.addAll(conf.buildTraceLogProcess(dataRuntime),
                             isDistributed ? buildTraceLogComplexProcess(dataRuntime) : buildE2EProcessByStandadlone(dataRuntime)));
             traceLogProcessorConfigSpec.setExecuteSize(coreSize);
+            traceLogProcessorConfigSpec.setShardCount(shardCount);
             PradarProcessor traceLogProcessor = dataRuntime.createGenericInstance(traceLogProcessorConfigSpec);
 
             /**
@@ -186,6 +200,7 @@ public class PradarStormSupplierConfiguration {
                     ArrayUtils.addAll(conf.buildTraceLogProcess(dataRuntime),
                             isDistributed ? buildTraceLogComplexProcess(dataRuntime) : buildE2EProcessByStandadlone(dataRuntime)));
             traceLogProcessorConfigSpec.setExecuteSize(coreSize);
+            traceLogProcessorConfigSpec.setShardCount(shardCount);
             PradarProcessor traceLogProcessor = dataRuntime.createGenericInstance(traceLogProcessorConfigSpec);
 
             /**
@@ -215,6 +230,7 @@ public class PradarStormSupplierConfiguration {
             jettySupplier.setQueue(queueMap);
             jettySupplier.addServlet("/takin-surge/log/engine/metrics/upload", dataRuntime.getInstance(EngineDataWriteServlet.class));
             jettySupplier.addServlet("/takin-surge/health", dataRuntime.getInstance(HealthCheckServlet.class));
+            jettySupplier.addServlet("/takin-surge/metrics", dataRuntime.getInstance(PipelineMetricsServlet.class));
             LogWriteServlet logWriteServlet = dataRuntime.getInstance(LogWriteServlet.class);
             logWriteServlet.setQueueMap(queueMap);
             jettySupplier.addServlet("/takin-surge/log/link/upload", logWriteServlet);
@@ -15,6 +15,8 @@
 
 package io.shulie.surge.data.deploy.pradar;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
@@ -30,6 +32,7 @@ import io.shulie.surge.data.deploy.pradar.common.PradarStormConfigHolder;
 import io.shulie.surge.data.deploy.pradar.common.StringUtil;
 import io.shulie.surge.data.deploy.pradar.config.PradarSupplierConfiguration;
 import io.shulie.surge.data.sink.influxdb.InfluxDBSupport;
+import io.shulie.surge.data.sink.influxdb.LineProtocolBatch;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.BasicOutputCollector;
@@ -41,6 +44,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -97,77 +101,119 @@ public class PradarTraceReduceBolt extends BaseBasicBolt {
     static class TraceMetricsCommitAction implements Aggregation.CommitAction<Metric, CallStat> {
         private static Logger logger = LoggerFactory.getLogger(TraceMetricsCommitAction.class);
 
+        /**
+         * 单次请求最多写入的点数，超过后分多次写入
+         */
+        private static final int MAX_BATCH_POINTS = 5000;
+
         private InfluxDBSupport influxDbSupport;
 
+        /**
+         * 提交在调度线程上串行执行，缓冲区跨时间窗口复用
+         */
+        private final LineProtocolBatch batch = new LineProtocolBatch();
+
+        /**
+         * 指标对应的 measurement 和 tag 部分，转义后缓存
+         */
+        private final Cache<Metric, byte[]> prefixes = CacheBuilder.newBuilder()
+                .maximumSize(200000).expireAfterAccess(10, TimeUnit.MINUTES).build();
+
         public TraceMetricsCommitAction(InfluxDBSupport influxDbSupport) {
             this.influxDbSupport = influxDbSupport;
         }
 
         @Override
         public void commit(long slotKey, AggregateSlot<Metric, CallStat> slot) {
-            try {
-                slot.toMap().entrySet().forEach(metricCallStatEntry -> {
-                    Metric metric = metricCallStatEntry.getKey();
-                    CallStat callStat = metricCallStatEntry.getValue();
-
-                    String metricsId = metric.getMetricId();
-                    String[] tags = metric.getPrefixes();
-                    Map<String, String> influxdbTags = Maps.newHashMap();
-                    influxdbTags.put("edgeId", tags[0]);
-                    influxdbTags.put("clusterTest", tags[1]);
-                    //influxdbTags.put("linkId", tags[2]);
-                    influxdbTags.put("service", tags[3]);
-                    influxdbTags.put("method", tags[4]);
-                    //influxdbTags.put("extend", StringUtil.formatString(tags[5]));
-                    influxdbTags.put("appName", StringUtil.formatString(tags[6]));
-                    //influxdbTags.put("traceAppName", StringUtil.formatString(tags[7]));
-                    //influxdbTags.put("serverAppName", StringUtil.formatString(tags[8]));
-                    influxdbTags.put("rpcType", tags[9]);
-                    //influxdbTags.put("logType", tags[10]);
-                    influxdbTags.put("middlewareName", tags[11]);
-                    //influxdbTags.put("entranceId", tags[12]);
-                    //使用sql的md5值作为分组字段,防止sql过长导致分组性能过差
-                    //influxdbTags.put("sqlStatementMd5", tags[13]);
-                    //放入租户标识
-                    influxdbTags.put("tenantAppKey", tags[14]);
-                    //放入环境标识
-                    influxdbTags.put("envCode", tags[15]);
-
-                    // 总次数/成功次数/totalRt/错误次数/hitCount/totalQps/totalTps/总次数(不计算采样率)/e2e成功次数/e2e失败次数/maxRt
-                    Map<String, Object> fields = Maps.newHashMap();
-                    fields.put("totalCount", callStat.get(0));
-                    fields.put("successCount", callStat.get(1));
-                    fields.put("totalRt", callStat.get(2));
-                    fields.put("errorCount", callStat.get(3));
-                    fields.put("hitCount", callStat.get(4));
-                    fields.put("totalTps", callStat.get(5));
-                    fields.put("total", callStat.get(6));
-                    fields.put("e2eSuccessCount", callStat.get(7));
-                    fields.put("e2eErrorCount", callStat.get(8));
-                    fields.put("maxRt", callStat.get(9));
-                    //计算平均耗时
-                    if (callStat.get(0) == 0) {
-                        // 如果总调用次数为0,直接取总耗时
-                        fields.put("avgRt", (double) callStat.get(2));
-                    } else {
-                        fields.put("avgRt", callStat.get(2) / (double) callStat.get(0));
+            synchronized (batch) {
+                try {
+                    long time = slotKey * 1000;
+                    String logTime = FormatUtils.toDateTimeSecondString(time);
+                    int failed = 0;
+                    for (Map.Entry<Metric, CallStat> metricCallStatEntry : slot.toMap().entrySet()) {
+                        Metric metric = metricCallStatEntry.getKey();
+                        CallStat callStat = metricCallStatEntry.getValue();
+
+                        // 总次数/成功次数/totalRt/错误次数/hitCount/totalQps/totalTps/总次数(不计算采样率)/e2e成功次数/e2e失败次数/maxRt
+                        batch.point(prefixes.get(metric, () -> prefix(metric)))
+                                .field("totalCount", callStat.get(0))
+                                .field("successCount", callStat.get(1))
+                                .field("totalRt", callStat.get(2))
+                                .field("errorCount", callStat.get(3))
+                                .field("hitCount", callStat.get(4))
+                                .field("totalTps", callStat.get(5))
+                                .field("total", callStat.get(6))
+                                .field("e2eSuccessCount", callStat.get(7))
+                                .field("e2eErrorCount", callStat.get(8))
+                                .field("maxRt", callStat.get(9))
+                                //耗时分位值,各 reducer 合并后的耗时分布计算
+                                .field("p50Rt", callStat.getPercentile(0.5))
+                                .field("p90Rt", callStat.getPercentile(0.9))
+                                .field("p99Rt", callStat.getPercentile(0.99))
+                                .field("p999Rt", callStat.getPercentile(0.999))
+                                //计算平均耗时,如果总调用次数为0,直接取总耗时
+                                .field("avgRt", callStat.get(0) == 0 ? (double) callStat.get(2) : callStat.get(2) / (double) callStat.get(0))
+                                .field("avgTps", (double) callStat.get(5) / PradarRtConstant.REDUCE_TRACE_SECONDS_INTERVAL)
+                                .field("traceId", callStat.getTraceId())
+                                //放入真实的sql语句
+                                .field("sqlStatement", callStat.getSqlStatement())
+                                .field("log_time", logTime)
+                                .end(time);
+                        if (batch.points() >= MAX_BATCH_POINTS) {
+                            failed += flush();
+                        }
                     }
-                    fields.put("avgTps", (double) callStat.get(5) / PradarRtConstant.REDUCE_TRACE_SECONDS_INTERVAL);
-                    fields.put("traceId", callStat.getTraceId());
-                    //放入真实的sql语句
-                    fields.put("sqlStatement", callStat.getSqlStatement());
-                    fields.put("log_time", FormatUtils.toDateTimeSecondString(slotKey * 1000));
-
-                    //华为云saas环境发现存在measurement名称非法的问题(\u001d\u001ctrace_metrics),推测是反序列化问题导致的
-                    if (!metricsId.equals(PradarRtConstant.METRICS_ID_TRACE)) {
-                        logger.warn("measurement is illegal:{}", metricsId);
-                        metricsId = PradarRtConstant.METRICS_ID_TRACE;
+                    failed += flush();
+                    if (failed > 0) {
+                        logger.error("write fail influxdb, slot:{}, dropped points:{}", FormatUtils.toSecondTimeString(time), failed);
                     }
-                    influxDbSupport.write("pradar", metricsId, influxdbTags, fields, slotKey * 1000);
-                });
-            } catch (Throwable e) {
-                logger.error("write fail influxdb " + ExceptionUtils.getStackTrace(e));
+                } catch (Throwable e) {
+                    batch.reset();
+                    logger.error("write fail influxdb " + ExceptionUtils.getStackTrace(e));
+                }
+            }
+        }
+
+        /**
+         * @return 写入失败被丢弃的点数
+         */
+        private int flush() {
+            int points = batch.points();
+            boolean success = influxDbSupport.writeLines("pradar", batch);
+            batch.reset();
+            return success ? 0 : points;
+        }
+
+        private static byte[] prefix(Metric metric) {
+            String metricsId = metric.getMetricId();
+            String[] tags = metric.getPrefixes();
+            Map<String, String> influxdbTags = Maps.newHashMap();
+            influxdbTags.put("edgeId", tags[0]);
+            influxdbTags.put("clusterTest", tags[1]);
+            //influxdbTags.put("linkId", tags[2]);
+            influxdbTags.put("service", tags[3]);
+            influxdbTags.put("method", tags[4]);
+            //influxdbTags.put("extend", StringUtil.formatString(tags[5]));
+            influxdbTags.put("appName", StringUtil.formatString(tags[6]));
+            //influxdbTags.put("traceAppName", StringUtil.formatString(tags[7]));
+            //influxdbTags.put("serverAppName", StringUtil.formatString(tags[8]));
+            influxdbTags.put("rpcType", tags[9]);
+            //influxdbTags.put("logType", tags[10]);
+            influxdbTags.put("middlewareName", tags[11]);
+            //influxdbTags.put("entranceId", tags[12]);
+            //使用sql的md5值作为分组字段,防止sql过长导致分组性能过差
+            //influxdbTags.put("sqlStatementMd5", tags[13]);
+            //放入租户标识
+            influxdbTags.put("tenantAppKey", tags[14]);
+            //放入环境标识
+            influxdbTags.put("envCode", tags[15]);
+
+            //华为云saas环境发现存在measurement名称非法的问题(\u001d\u001ctrace_metrics),推测是反序列化问题导致的
+            if (!metricsId.equals(PradarRtConstant.METRICS_ID_TRACE)) {
+                logger.warn("measurement is illegal:{}", metricsId);
+                metricsId = PradarRtConstant.METRICS_ID_TRACE;
             }
+            return LineProtocolBatch.prefix(metricsId, influxdbTags);
         }
     }
 }
@@ -21,21 +21,17 @@ import io.shulie.surge.data.common.aggregation.Aggregator;
 import io.shulie.surge.data.common.aggregation.Scheduler;
 import io.shulie.surge.data.common.aggregation.metrics.CallStat;
 import io.shulie.surge.data.common.aggregation.metrics.Metric;
-import io.shulie.surge.data.common.utils.Pair;
+import io.shulie.surge.data.deploy.pradar.common.SpoutEmitQueue;
 import org.apache.commons.lang3.math.NumberUtils;
-import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
-import org.apache.storm.tuple.Values;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import static io.shulie.surge.data.common.utils.CommonUtils.divide;
 import static io.shulie.surge.data.deploy.pradar.common.PradarRtConstant.AGG_TRACE_SECONDS_INTERVAL;
 import static io.shulie.surge.data.deploy.pradar.common.PradarRtConstant.AGG_TRACE_SECONDS_LOWER_LIMIT;
+import static io.shulie.surge.data.deploy.pradar.common.PradarRtConstant.REDUCE_TRACE_SECONDS_INTERVAL;
 
 /**
  * @author shulie
@@ -46,6 +42,8 @@ public class BaseTraceMetricsAggarator implements Aggregator {
 
     private final Aggregation<Metric, CallStat> aggregation = new Aggregation<>(
             AGG_TRACE_SECONDS_INTERVAL, AGG_TRACE_SECONDS_LOWER_LIMIT);
+    private Scheduler scheduler;
+    private ReduceJobCombiner combiner;
 
     private String reduceBoltClassName;
     private String metricsStreamId;
@@ -58,51 +56,42 @@ public class BaseTraceMetricsAggarator implements Aggregator {
     /**
      * init
      *
-     * @param scheduler
-     * @param collector
+     * @param scheduler       单线程调度，提交和定时发送都在该线程上执行
+     * @param emitQueue       由 spout 执行线程发送的队列
      * @param topologyContext
      */
     public void init(Scheduler scheduler,
-                     final SpoutOutputCollector collector,
+                     final SpoutEmitQueue emitQueue,
                      final TopologyContext topologyContext) {
+        init(scheduler, new StormReduceJobEmitter(topologyContext, reduceBoltClassName, metricsStreamId, emitQueue));
+    }
+
+    /**
+     * init
+     *
+     * @param scheduler 单线程调度，提交和定时发送都在该线程上执行
+     * @param emitter   reduce 任务的发送目标
+     */
+    public synchronized void init(Scheduler scheduler, final ReduceJobEmitter emitter) {
+        // 每个 reducer 负责处理一组 Pair<Metric, CallStat> 的汇总任务 Job
+        // 直接 emit 出去由 Storm 进行分配，会导致消息丢失率很高，所以打包发送。
+        // 同一个 reducer 窗口内的多次提交先在 spout 端合并，窗口结束后再发送
+        final ReduceJobCombiner combiner = this.combiner = new ReduceJobCombiner(AGG_TRACE_SECONDS_INTERVAL,
+                REDUCE_TRACE_SECONDS_INTERVAL, emitter);
         aggregation.start(scheduler, new Aggregation.CommitAction<Metric, CallStat>() {
             @Override
             public void commit(long slotKey, AggregateSlot<Metric, CallStat> slot) {
-                int size = slot.size();
-                if (size > 0) {
-                    Map<Metric, CallStat> map = slot.toMap();
-                    // 每个 reducer 负责处理一组 Pair<Metric, CallStat> 的汇总任务 Job
-                    // 直接 emit 出去由 Storm 进行分配，会导致消息丢失率很高，所以打包发送。
-                    List<Integer> reducerIds = topologyContext.getComponentTasks(reduceBoltClassName);
-                    final int reducerCount = reducerIds.size();
-                    List<Pair<Metric, CallStat>>[] jobs = new List[reducerCount];
-                    int jobSize = (int) divide(size, reducerCount - 1); // 估值
-                    for (int i = 0; i < reducerCount; ++i) {
-                        jobs[i] = new ArrayList<>(jobSize);
-                    }
-                    // 将汇总任务按照 reducer 的数量哈希分配
-                    // 哈希策略必须全局一致，使同一个 metric 落在同一个 reducer 上面
-                    for (Map.Entry<Metric, CallStat> entry : map.entrySet()) {
-                        int jobId = Math.abs(entry.getKey().hashCode()) % reducerCount;
-                        List<Pair<Metric, CallStat>> job = jobs[jobId];
-                        job.add(new Pair<>(entry.getKey(), entry.getValue()));
-                    }
-                    // 将 Job 直接发送给 reducer
-                    for (int i = 0; i < reducerCount; ++i) {
-                        int reducerId = reducerIds.get(i).intValue();
-                        List<Pair<Metric, CallStat>> job = jobs[i];
-                        if (!job.isEmpty()) {
-                            synchronized (SpoutOutputCollector.class) {
-                                collector.emitDirect(reducerId,
-                                        metricsStreamId
-                                        ,
-                                        new Values(slotKey * 1000, job));
-                            }
-                        }
-                    }
-                }
+                combiner.commit(slotKey, slot);
             }
         });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                combiner.flushCommitted(System.currentTimeMillis(), AGG_TRACE_SECONDS_LOWER_LIMIT);
+            } catch (Throwable e) {
+                logger.warn("flush combined metrics fail", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        this.scheduler = scheduler;
     }
 
     /**
@@ -176,9 +165,20 @@ public class BaseTraceMetricsAggarator implements Aggregator {
     public void start() throws Exception {
     }
 
+    /**
+     * 停止定时提交，提交所有时间槽并发送所有已合并的窗口，需要在 reduce 任务的接收方停止之前调用
+     */
     @Override
-    public void stop() throws Exception {
-
+    public synchronized void stop() throws Exception {
+        if (combiner == null) {
+            return;
+        }
+        scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        aggregation.stop();
+        combiner.flushAll();
+        combiner = null;
     }
 
     @Override
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.agg;
+
+import io.shulie.surge.data.common.aggregation.AggregateSlot;
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.utils.Pair;
+import io.shulie.surge.data.deploy.pradar.common.MetricBatch;
+
+import java.util.*;
+
+/**
+ * spout 端的预合并：spout 每 {@code aggInterval} 秒提交一次，reducer 按 {@code reduceInterval} 秒聚合，
+ * 落在同一个 reducer 时间窗口内的多次提交先按 reducer 分组、相同指标合并，窗口结束后每个 reducer 只发一个 tuple。
+ * <p>
+ * 迟到数据对应的窗口已经结束，合并后立即发送。没有新数据时由 {@link #flushCommitted} 定时发送已结束的窗口。
+ * reducer 数量变化时，已合并的数据按新的数量重新分组，不会丢弃
+ *
+ * @author pamirs
+ */
+public class ReduceJobCombiner {
+
+    private final int aggInterval;
+    private final int reduceInterval;
+    private final ReduceJobEmitter emitter;
+
+    /**
+     * reducer 窗口起始秒 -> 每个 reducer 待发送的指标
+     */
+    private final TreeMap<Long, Map<Metric, CallStat>[]> pending = new TreeMap<>();
+
+    /**
+     * 已提交的最新时间槽，迟到的时间槽按它判断窗口是否结束
+     */
+    private long latestSlotKey = Long.MIN_VALUE;
+
+    public ReduceJobCombiner(int aggInterval, int reduceInterval, ReduceJobEmitter emitter) {
+        this.aggInterval = aggInterval;
+        this.reduceInterval = Math.max(aggInterval, reduceInterval);
+        this.emitter = emitter;
+    }
+
+    /**
+     * 合并一个时间槽，并发送已经结束的窗口
+     *
+     * @param slotKey 时间槽起始秒
+     * @param slot    时间槽
+     */
+    public synchronized void commit(long slotKey, AggregateSlot<Metric, CallStat> slot) {
+        int reducerCount = emitter.reducerCount();
+        if (slot.size() > 0 && reducerCount > 0) {
+            combine(slotKey, slot.toMap(), reducerCount);
+        }
+        latestSlotKey = Math.max(latestSlotKey, slotKey);
+        flush(latestSlotKey, reducerCount);
+    }
+
+    /**
+     * 聚合延时 delay 秒提交，当前时间减去延时之前的时间槽都已提交过，发送其中已结束的窗口
+     *
+     * @param now   当前时间，毫秒
+     * @param delay 聚合的提交延时，秒
+     */
+    public synchronized void flushCommitted(long now, int delay) {
+        if (!pending.isEmpty()) {
+            long committed = now / 1000 - delay - aggInterval;
+            flush(committed - committed % aggInterval, emitter.reducerCount());
+        }
+    }
+
+    /**
+     * 停止时调用，发送所有待发送的窗口，包括还没有结束的窗口
+     */
+    public synchronized void flushAll() {
+        emit(Long.MAX_VALUE, emitter.reducerCount());
+    }
+
+    void combine(long slotKey, Map<Metric, CallStat> map, int reducerCount) {
+        long windowKey = slotKey - slotKey % reduceInterval;
+        Map<Metric, CallStat>[] jobs = pending.get(windowKey);
+        if (jobs == null) {
+            jobs = newJobs(reducerCount, map.size() / reducerCount + 1);
+            pending.put(windowKey, jobs);
+        } else if (jobs.length != reducerCount) {
+            jobs = regroup(jobs, reducerCount);
+            pending.put(windowKey, jobs);
+        }
+        merge(jobs, map);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<Metric, CallStat>[] newJobs(int reducerCount, int jobSize) {
+        Map<Metric, CallStat>[] jobs = new Map[reducerCount];
+        for (int i = 0; i < reducerCount; ++i) {
+            jobs[i] = new HashMap<>(jobSize * 2);
+        }
+        return jobs;
+    }
+
+    /**
+     * 按新的 reducer 数量重新分组已合并的数据
+     */
+    private static Map<Metric, CallStat>[] regroup(Map<Metric, CallStat>[] jobs, int reducerCount) {
+        int size = 0;
+        for (Map<Metric, CallStat> job : jobs) {
+            size += job.size();
+        }
+        Map<Metric, CallStat>[] regrouped = newJobs(reducerCount, size / reducerCount + 1);
+        for (Map<Metric, CallStat> job : jobs) {
+            merge(regrouped, job);
+        }
+        return regrouped;
+    }
+
+    private static void merge(Map<Metric, CallStat>[] jobs, Map<Metric, CallStat> map) {
+        int reducerCount = jobs.length;
+        // 哈希策略必须全局一致，使同一个 metric 落在同一个 reducer 上面
+        for (Map.Entry<Metric, CallStat> entry : map.entrySet()) {
+            Map<Metric, CallStat> job = jobs[Math.abs(entry.getKey().hashCode()) % reducerCount];
+            CallStat existing = job.putIfAbsent(entry.getKey(), entry.getValue());
+            if (existing != null) {
+                existing.aggregateFrom(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 发送结束时间不晚于当前时间槽结束时间的窗口
+     */
+    void flush(long slotKey, int reducerCount) {
+        emit(slotKey + aggInterval - reduceInterval, reducerCount);
+    }
+
+    /**
+     * 发送起始时间不晚于 completed 的窗口
+     */
+    private void emit(long completed, int reducerCount) {
+        Iterator<Map.Entry<Long, Map<Metric, CallStat>[]>> iterator = pending.headMap(completed, true).entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Map<Metric, CallStat>[]> window = iterator.next();
+            iterator.remove();
+            Map<Metric, CallStat>[] jobs = window.getValue();
+            if (reducerCount <= 0) {
+                continue;
+            }
+            if (jobs.length != reducerCount) {
+                jobs = regroup(jobs, reducerCount);
+            }
+            for (int i = 0; i < jobs.length; ++i) {
+                if (jobs[i].isEmpty()) {
+                    continue;
+                }
+                MetricBatch batch = new MetricBatch(jobs[i].size());
+                for (Map.Entry<Metric, CallStat> entry : jobs[i].entrySet()) {
+                    batch.add(new Pair<>(entry.getKey(), entry.getValue()));
+                }
+                emitter.emit(i, window.getKey() * 1000, batch);
+            }
+        }
+    }
+
+    synchronized int pendingWindows() {
+        return pending.size();
+    }
+}
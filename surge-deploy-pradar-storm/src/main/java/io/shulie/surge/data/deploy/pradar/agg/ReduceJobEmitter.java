@@ -0,0 +1,42 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.agg;
+
+import io.shulie.surge.data.deploy.pradar.common.MetricBatch;
+
+/**
+ * 预合并后的 reduce 任务的发送目标，reducer 按编号区分，同一个指标总是发给同一个编号。
+ * <p>
+ * storm 模式下对应 reduce bolt 的 task，嵌入模式下对应本进程内的 reducer 线程
+ *
+ * @author pamirs
+ */
+public interface ReduceJobEmitter {
+
+    /**
+     * @return 当前的 reducer 数量，为 0 时不发送
+     */
+    int reducerCount();
+
+    /**
+     * 发送一个 reducer 窗口的任务，由聚合的调度线程调用
+     *
+     * @param reducer    reducer 编号，[0, reducerCount)
+     * @param windowTime reducer 窗口起始时间，毫秒
+     * @param job        该 reducer 负责的指标
+     */
+    void emit(int reducer, long windowTime, MetricBatch job);
+}
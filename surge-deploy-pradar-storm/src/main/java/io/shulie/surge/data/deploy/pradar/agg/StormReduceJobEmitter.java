@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.agg;
+
+import io.shulie.surge.data.deploy.pradar.common.MetricBatch;
+import io.shulie.surge.data.deploy.pradar.common.SpoutEmitQueue;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Values;
+
+import java.util.List;
+
+/**
+ * 通过 spout 的发送队列，把任务 direct 发送给 reduce bolt 的 task
+ *
+ * @author pamirs
+ */
+public class StormReduceJobEmitter implements ReduceJobEmitter {
+
+    private final TopologyContext topologyContext;
+    private final String reduceBoltName;
+    private final String streamId;
+    private final SpoutEmitQueue emitQueue;
+
+    public StormReduceJobEmitter(TopologyContext topologyContext, String reduceBoltName, String streamId,
+                                 SpoutEmitQueue emitQueue) {
+        this.topologyContext = topologyContext;
+        this.reduceBoltName = reduceBoltName;
+        this.streamId = streamId;
+        this.emitQueue = emitQueue;
+    }
+
+    @Override
+    public int reducerCount() {
+        return topologyContext.getComponentTasks(reduceBoltName).size();
+    }
+
+    @Override
+    public void emit(int reducer, long windowTime, MetricBatch job) {
+        List<Integer> reducerIds = topologyContext.getComponentTasks(reduceBoltName);
+        emitQueue.emitDirect(reducerIds.get(reducer), streamId, new Values(windowTime, job));
+    }
+}
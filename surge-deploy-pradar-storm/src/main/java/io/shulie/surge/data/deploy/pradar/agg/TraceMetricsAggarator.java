@@ -22,22 +22,15 @@ import io.shulie.surge.data.common.aggregation.Aggregator;
 import io.shulie.surge.data.common.aggregation.Scheduler;
 import io.shulie.surge.data.common.aggregation.metrics.CallStat;
 import io.shulie.surge.data.common.aggregation.metrics.Metric;
-import io.shulie.surge.data.common.utils.FormatUtils;
-import io.shulie.surge.data.common.utils.Pair;
 import io.shulie.surge.data.deploy.pradar.PradarTraceReduceBolt;
 import io.shulie.surge.data.deploy.pradar.common.PradarRtConstant;
+import io.shulie.surge.data.deploy.pradar.common.SpoutEmitQueue;
 import org.apache.commons.lang3.math.NumberUtils;
-import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.task.TopologyContext;
-import org.apache.storm.tuple.Values;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-
-import static io.shulie.surge.data.common.utils.CommonUtils.divide;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @Author: xingchen
@@ -52,55 +45,48 @@ public class TraceMetricsAggarator implements Aggregator {
     private final Aggregation<Metric, CallStat> aggregation = new Aggregation<>(
             PradarRtConstant.AGG_TRACE_SECONDS_INTERVAL,
             PradarRtConstant.AGG_TRACE_SECONDS_LOWER_LIMIT);
+    private Scheduler scheduler;
+    private ReduceJobCombiner combiner;
 
     /**
      * init
      *
-     * @param scheduler
-     * @param collector
+     * @param scheduler       单线程调度，提交和定时发送都在该线程上执行
+     * @param emitQueue       由 spout 执行线程发送的队列
      * @param topologyContext
      */
     public void init(Scheduler scheduler,
-                     final SpoutOutputCollector collector,
+                     final SpoutEmitQueue emitQueue,
                      final TopologyContext topologyContext) {
+        init(scheduler, new StormReduceJobEmitter(topologyContext, PradarTraceReduceBolt.class.getSimpleName(), PradarRtConstant.REDUCE_TRACE_METRICS_STREAM_ID, emitQueue));
+    }
+
+    /**
+     * init
+     *
+     * @param scheduler 单线程调度，提交和定时发送都在该线程上执行
+     * @param emitter   reduce 任务的发送目标
+     */
+    public synchronized void init(Scheduler scheduler, final ReduceJobEmitter emitter) {
+        // 每个 reducer 负责处理一组 Pair<Metric, CallStat> 的汇总任务 Job
+        // 直接 emit 出去由 Storm 进行分配，会导致消息丢失率很高，所以打包发送。
+        // 同一个 reducer 窗口内的多次提交先在 spout 端合并，窗口结束后再发送
+        final ReduceJobCombiner combiner = this.combiner = new ReduceJobCombiner(PradarRtConstant.AGG_TRACE_SECONDS_INTERVAL,
+                PradarRtConstant.REDUCE_TRACE_SECONDS_INTERVAL, emitter);
         aggregation.start(scheduler, new Aggregation.CommitAction<Metric, CallStat>() {
             @Override
             public void commit(long slotKey, AggregateSlot<Metric, CallStat> slot) {
-                int size = slot.size();
-                if (size > 0) {
-                    Map<Metric, CallStat> map = slot.toMap();
-                    // 每个 reducer 负责处理一组 Pair<Metric, CallStat> 的汇总任务 Job
-                    // 直接 emit 出去由 Storm 进行分配，会导致消息丢失率很高，所以打包发送。
-                    List<Integer> reducerIds = topologyContext.getComponentTasks(PradarTraceReduceBolt.class.getSimpleName());
-                    final int reducerCount = reducerIds.size();
-                    List<Pair<Metric, CallStat>>[] jobs = new List[reducerCount];
-                    int jobSize = (int) divide(size, reducerCount - 1); // 估值
-                    for (int i = 0; i < reducerCount; ++i) {
-                        jobs[i] = new ArrayList<>(jobSize);
-                    }
-                    // 将汇总任务按照 reducer 的数量哈希分配
-                    // 哈希策略必须全局一致，使同一个 metric 落在同一个 reducer 上面
-                    for (Map.Entry<Metric, CallStat> entry : map.entrySet()) {
-                        int jobId = Math.abs(entry.getKey().hashCode()) % reducerCount;
-                        List<Pair<Metric, CallStat>> job = jobs[jobId];
-                        job.add(new Pair<>(entry.getKey(), entry.getValue()));
-                    }
-                    // 将 Job 直接发送给 reducer
-                    final String slotKeyTime = FormatUtils.toSecondTimeString(slotKey * 1000);
-                    for (int i = 0; i < reducerCount; ++i) {
-                        int reducerId = reducerIds.get(i).intValue();
-                        List<Pair<Metric, CallStat>> job = jobs[i];
-                        if (!job.isEmpty()) {
-                            //storm 2.1.0's collector is Thread-no-safe that cause kyro deserialize fail.need to add mutex.more detail can view STORM-3582
-                            synchronized (SpoutOutputCollector.class) {
-                                collector.emitDirect(reducerId, PradarRtConstant.REDUCE_TRACE_METRICS_STREAM_ID, new Values(slotKey * 1000, job));
-                            }
-                        }
-                    }
-                    //logger.info("emit " + slotKeyTime + " to " + reducerIds.size() + " reducers, size=" + size);
-                }
+                combiner.commit(slotKey, slot);
             }
         });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                combiner.flushCommitted(System.currentTimeMillis(), PradarRtConstant.AGG_TRACE_SECONDS_LOWER_LIMIT);
+            } catch (Throwable e) {
+                logger.warn("flush combined metrics fail", e);
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        this.scheduler = scheduler;
     }
 
     /**
@@ -174,9 +160,20 @@ public class TraceMetricsAggarator implements Aggregator {
     public void start() throws Exception {
     }
 
+    /**
+     * 停止定时提交，提交所有时间槽并发送所有已合并的窗口，需要在 reduce 任务的接收方停止之前调用
+     */
     @Override
-    public void stop() throws Exception {
-
+    public synchronized void stop() throws Exception {
+        if (combiner == null) {
+            return;
+        }
+        scheduler.setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+        scheduler.shutdown();
+        scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        aggregation.stop();
+        combiner.flushAll();
+        combiner = null;
     }
 
     @Override
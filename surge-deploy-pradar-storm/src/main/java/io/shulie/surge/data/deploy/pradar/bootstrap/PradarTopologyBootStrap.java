@@ -16,10 +16,19 @@
 package io.shulie.surge.data.deploy.pradar.bootstrap;
 
 import com.google.common.collect.Maps;
+import io.shulie.surge.data.common.aggregation.Scheduler;
+import io.shulie.surge.data.deploy.pradar.EmbeddedReducer;
 import io.shulie.surge.data.deploy.pradar.PradarStormSupplierConfiguration;
+import io.shulie.surge.data.deploy.pradar.agg.E2ETraceMetricsAggarator;
+import io.shulie.surge.data.deploy.pradar.agg.TraceMetricsAggarator;
+import io.shulie.surge.data.deploy.pradar.common.EagleLoader;
 import io.shulie.surge.data.deploy.pradar.common.ParamUtil;
+import io.shulie.surge.data.deploy.pradar.common.RuleLoader;
 import io.shulie.surge.data.deploy.pradar.config.PradarLinkConfiguration;
 import io.shulie.surge.data.runtime.common.DataRuntime;
+import io.shulie.surge.data.sink.influxdb.InfluxDBSupport;
+import io.shulie.surge.data.suppliers.nettyremoting.NettyRemotingSupplier;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -39,6 +48,9 @@ public class PradarTopologyBootStrap {
         ParamUtil.parseInputParam(inputMap, args);
         //移除无关参数
         inputMap.remove(ParamUtil.WORKERS);
+        //本地reduce线程数,不设置时不计算trace指标
+        int reducers = NumberUtils.toInt(inputMap.remove(ParamUtil.REDUCERS), 0);
+        int shards = NumberUtils.toInt(inputMap.remove(ParamUtil.SHARDS), 1);
         //默认指定数据源是MYSQL
         //inputMap.put(ParamUtil.DATA_SOURCE_TYPE, CommonStat.MYSQL);
 
@@ -50,9 +62,14 @@ public class PradarTopologyBootStrap {
                         inputMap.getOrDefault(ParamUtil.CORE_SIZE, "0"),
                         inputMap.get(ParamUtil.DATA_SOURCE_TYPE),
                         inputMap.get(ParamUtil.PORTS));
+        pradarStormSupplierConfiguration.setShardCount(shards);
         try {
             DataRuntime dataRuntime = pradarStormSupplierConfiguration.initDataRuntime();
-            pradarStormSupplierConfiguration.buildSupplier(dataRuntime, false).start();
+            NettyRemotingSupplier nettyRemotingSupplier = pradarStormSupplierConfiguration.buildSupplier(dataRuntime, reducers > 0);
+            if (reducers > 0) {
+                startEmbeddedReduce(dataRuntime, reducers);
+            }
+            nettyRemotingSupplier.start();
         } catch (Throwable e) {
             throw new RuntimeException("fail to start PradarLog", e);
         }
@@ -70,4 +87,40 @@ public class PradarTopologyBootStrap {
         }
         logger.info("PradarLink start successful...");
     }
+
+    /**
+     * 在本进程内完成 trace 指标的 reduce，替代 storm 的 reduce bolt，结果写入相同的存储
+     *
+     * @param dataRuntime
+     * @param reducers    每种指标的 reduce 线程数
+     */
+    private static void startEmbeddedReduce(DataRuntime dataRuntime, int reducers) {
+        InfluxDBSupport influxDbSupport = dataRuntime.getInstance(InfluxDBSupport.class);
+        EmbeddedReducer traceReducer = EmbeddedReducer.traceMetrics(influxDbSupport, reducers);
+        EmbeddedReducer e2eReducer = EmbeddedReducer.e2eTraceMetrics(influxDbSupport, reducers);
+        // 与 digester 注入的是同一个对象
+        TraceMetricsAggarator traceAggarator = dataRuntime.getInstance(TraceMetricsAggarator.class);
+        E2ETraceMetricsAggarator e2eAggarator = dataRuntime.getInstance(E2ETraceMetricsAggarator.class);
+        traceAggarator.init(new Scheduler(1), traceReducer);
+        e2eAggarator.init(new Scheduler(1), e2eReducer);
+        // 初始化边缓存
+        dataRuntime.getInstance(EagleLoader.class).init();
+        dataRuntime.getInstance(RuleLoader.class).init();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // 先停止聚合，把未提交的时间槽和已合并的窗口发给 reducer，再停止 reducer 写入存储
+            try {
+                traceAggarator.stop();
+                e2eAggarator.stop();
+            } catch (Exception e) {
+                logger.warn("stop trace metrics aggarator fail", e);
+            }
+            try {
+                traceReducer.stop();
+                e2eReducer.stop();
+            } catch (Exception e) {
+                logger.warn("stop embedded reducer fail", e);
+            }
+        }, "embedded-reducer-shutdown"));
+        logger.info("embedded reduce started, reducers:{}", reducers);
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.utils.Pair;
+
+import java.util.ArrayList;
+
+/**
+ * 发给一个 reducer 的一批指标，注册了 {@link MetricKryoSerializers.MetricBatchSerializer}，
+ * 批内重复的字符串只传输一次。reducer 端仍按 {@code List<Pair<Metric, CallStat>>} 读取
+ *
+ * @author pamirs
+ */
+public class MetricBatch extends ArrayList<Pair<Metric, CallStat>> {
+
+    private static final long serialVersionUID = 6107829745530731478L;
+
+    public MetricBatch() {
+    }
+
+    public MetricBatch(int initialCapacity) {
+        super(initialCapacity);
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.LatencyHistogram;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.utils.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * spout 发往 reducer 的指标的紧凑序列化，不写类名和字段名，数值都用变长编码。
+ * <p>
+ * {@link MetricBatch} 内的 metricId、tag、sql 等字符串按字典编码，同一批内重复的字符串只写一次，
+ * 之后只写编号。traceId 基本不重复，直接写入
+ *
+ * @author pamirs
+ */
+public final class MetricKryoSerializers {
+
+    private MetricKryoSerializers() {
+    }
+
+    public static class MetricSerializer extends Serializer<Metric> {
+        public MetricSerializer() {
+            setImmutable(true);
+        }
+
+        @Override
+        public void write(Kryo kryo, Output output, Metric metric) {
+            writeMetric(output, metric, null);
+        }
+
+        @Override
+        public Metric read(Kryo kryo, Input input, Class<Metric> type) {
+            return readMetric(input, null);
+        }
+    }
+
+    public static class CallStatSerializer extends Serializer<CallStat> {
+        @Override
+        public void write(Kryo kryo, Output output, CallStat callStat) {
+            writeCallStat(output, callStat, null);
+        }
+
+        @Override
+        public CallStat read(Kryo kryo, Input input, Class<CallStat> type) {
+            return readCallStat(input, null);
+        }
+    }
+
+    public static class MetricBatchSerializer extends Serializer<MetricBatch> {
+        @Override
+        public void write(Kryo kryo, Output output, MetricBatch batch) {
+            output.writeVarInt(batch.size(), true);
+            Map<String, Integer> dictionary = new HashMap<>(256);
+            for (Pair<Metric, CallStat> pair : batch) {
+                writeMetric(output, pair.getFirst(), dictionary);
+                writeCallStat(output, pair.getSecond(), dictionary);
+            }
+        }
+
+        @Override
+        public MetricBatch read(Kryo kryo, Input input, Class<MetricBatch> type) {
+            int size = input.readVarInt(true);
+            MetricBatch batch = new MetricBatch(size);
+            List<String> dictionary = new ArrayList<>(256);
+            for (int i = 0; i < size; i++) {
+                Metric metric = readMetric(input, dictionary);
+                batch.add(new Pair<>(metric, readCallStat(input, dictionary)));
+            }
+            return batch;
+        }
+    }
+
+    private static void writeMetric(Output output, Metric metric, Map<String, Integer> dictionary) {
+        writeString(output, metric.getMetricId(), dictionary);
+        writeStrings(output, metric.getPrefixes(), dictionary);
+        writeString(output, metric.getTime(), dictionary);
+        writeStrings(output, metric.getSuffixes(), dictionary);
+    }
+
+    private static Metric readMetric(Input input, List<String> dictionary) {
+        String metricId = readString(input, dictionary);
+        String[] prefixes = readStrings(input, dictionary);
+        String time = readString(input, dictionary);
+        return Metric.of(metricId, prefixes, time, readStrings(input, dictionary));
+    }
+
+    private static void writeCallStat(Output output, CallStat callStat, Map<String, Integer> dictionary) {
+        output.writeString(callStat.getTraceId());
+        writeString(output, callStat.getSqlStatement(), dictionary);
+        int length = callStat.length();
+        output.writeVarInt(length, true);
+        for (int i = 0; i < length; i++) {
+            output.writeVarLong(callStat.get(i), true);
+        }
+        LatencyHistogram histogram = callStat.getHistogram();
+        if (histogram == null) {
+            output.writeVarInt(0, true);
+        } else {
+            long[] counts = histogram.getCounts();
+            output.writeVarInt(counts.length + 1, true);
+            for (long count : counts) {
+                output.writeVarLong(count, true);
+            }
+        }
+    }
+
+    private static CallStat readCallStat(Input input, List<String> dictionary) {
+        String traceId = input.readString();
+        String sqlStatement = readString(input, dictionary);
+        long[] values = new long[input.readVarInt(true)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = input.readVarLong(true);
+        }
+        CallStat callStat = new CallStat(traceId, sqlStatement, values);
+        int histogramLength = input.readVarInt(true);
+        if (histogramLength > 0) {
+            long[] counts = new long[histogramLength - 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = input.readVarLong(true);
+            }
+            callStat.setHistogram(LatencyHistogram.fromCounts(counts));
+        }
+        return callStat;
+    }
+
+    private static void writeStrings(Output output, String[] values, Map<String, Integer> dictionary) {
+        if (values == null) {
+            output.writeVarInt(0, true);
+            return;
+        }
+        output.writeVarInt(values.length + 1, true);
+        for (String value : values) {
+            writeString(output, value, dictionary);
+        }
+    }
+
+    private static String[] readStrings(Input input, List<String> dictionary) {
+        int length = input.readVarInt(true);
+        if (length == 0) {
+            return null;
+        }
+        String[] values = new String[length - 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(input, dictionary);
+        }
+        return values;
+    }
+
+    /**
+     * 0 表示 null，1 表示新字符串紧跟其后，n >= 2 表示字典中第 n - 2 个字符串。
+     * 没有字典时 1 后面直接是字符串
+     */
+    private static void writeString(Output output, String value, Map<String, Integer> dictionary) {
+        if (value == null) {
+            output.writeVarInt(0, true);
+            return;
+        }
+        if (dictionary != null) {
+            Integer id = dictionary.get(value);
+            if (id != null) {
+                output.writeVarInt(id + 2, true);
+                return;
+            }
+            dictionary.put(value, dictionary.size());
+        }
+        output.writeVarInt(1, true);
+        output.writeString(value);
+    }
+
+    private static String readString(Input input, List<String> dictionary) {
+        int code = input.readVarInt(true);
+        if (code == 0) {
+            return null;
+        }
+        if (code > 1) {
+            return dictionary.get(code - 2);
+        }
+        String value = input.readString();
+        if (dictionary != null) {
+            dictionary.add(value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 聚合线程产生的 tuple 先放入队列，由 spout 在 nextTuple 中取出发送。
+ * <p>
+ * SpoutOutputCollector 不是线程安全的，原来多个聚合线程在 {@code SpoutOutputCollector.class} 上加锁发送，
+ * 同一 worker 内所有 spout 都会竞争这把锁。改为单消费者队列后只有 spout 自己的执行线程调用 collector，
+ * 生产者之间、spout 之间都不需要加锁。
+ * <p>
+ * 队列有容量上限，spout 执行线程卡住时超出的 tuple 丢弃并计数，避免聚合结果在内存中无限堆积
+ *
+ * @author pamirs
+ */
+public class SpoutEmitQueue {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpoutEmitQueue.class);
+
+    /**
+     * 默认容量，每个 tuple 是一个 reducer 窗口的一批指标
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final long LOG_INTERVAL_MILLIS = 60000;
+
+    private final ConcurrentLinkedQueue<DirectTuple> queue = new ConcurrentLinkedQueue<>();
+    private final int capacity;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+    private volatile long lastDropLogTime;
+
+    private volatile Thread consumer;
+
+    public SpoutEmitQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SpoutEmitQueue(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * 由聚合线程调用，队列已满时丢弃
+     *
+     * @param taskId   目标 task
+     * @param streamId 流
+     * @param tuple    数据
+     * @return 是否放入队列
+     */
+    public boolean emitDirect(int taskId, String streamId, List<Object> tuple) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.increment();
+            long now = System.currentTimeMillis();
+            if (now - lastDropLogTime >= LOG_INTERVAL_MILLIS) {
+                lastDropLogTime = now;
+                logger.warn("spout emit queue is full, capacity:{}, stream:{}, total dropped:{}", capacity, streamId, dropped.sum());
+            }
+            return false;
+        }
+        queue.offer(new DirectTuple(taskId, streamId, tuple));
+        Thread waiting = consumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+        return true;
+    }
+
+    /**
+     * 在 spout 执行线程上发送所有排队的 tuple，队列为空时最多等待 maxWait
+     *
+     * @return 发送的 tuple 数
+     */
+    public int drainTo(SpoutOutputCollector collector, long maxWait, TimeUnit unit) {
+        if (queue.isEmpty()) {
+            consumer = Thread.currentThread();
+            if (queue.isEmpty()) {
+                LockSupport.parkNanos(this, unit.toNanos(maxWait));
+            }
+            consumer = null;
+        }
+        int count = 0;
+        DirectTuple tuple;
+        while ((tuple = queue.poll()) != null) {
+            size.decrementAndGet();
+            collector.emitDirect(tuple.taskId, tuple.streamId, tuple.values);
+            count++;
+        }
+        return count;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 队列已满而丢弃的 tuple 数
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private static final class DirectTuple {
+        private final int taskId;
+        private final String streamId;
+        private final List<Object> values;
+
+        DirectTuple(int taskId, String streamId, List<Object> values) {
+            this.taskId = taskId;
+            this.streamId = streamId;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.shulie.surge.data.common.aggregation.metrics.HeavyHitters;
+import io.shulie.surge.data.common.utils.FormatUtils;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按应用统计 sql 语句的高频项，限制 trace 指标中 sql 分组的数量。
+ * <p>
+ * 每个应用每个窗口只有最多 topN 条高频 sql 单独分组，其余 sql 归入 {@link #OTHER}，
+ * 窗口结束时种类数超过 topN 的应用会打印日志，便于发现拼接了参数的 sql
+ *
+ * @author pamirs
+ */
+@Singleton
+public class SqlHeavyHitters {
+    private static final Logger logger = LoggerFactory.getLogger(SqlHeavyHitters.class);
+
+    /**
+     * 长尾 sql 的分组标识
+     */
+    public static final String OTHER = "other";
+
+    @Inject
+    @DefaultValue("true")
+    @Named("/pradar/config/rt/traceMetrics/sqlTopNEnable")
+    private Remote<Boolean> enable;
+
+    @Inject
+    @DefaultValue("50")
+    @Named("/pradar/config/rt/traceMetrics/sqlTopN")
+    private Remote<Integer> topN;
+
+    /**
+     * 进入单独分组需要的最少出现次数
+     */
+    @Inject
+    @DefaultValue("3")
+    @Named("/pradar/config/rt/traceMetrics/sqlAdmitCount")
+    private Remote<Integer> admitCount;
+
+    /**
+     * 统计窗口，单位秒
+     */
+    @Inject
+    @DefaultValue("60")
+    @Named("/pradar/config/rt/traceMetrics/sqlWindowSeconds")
+    private Remote<Integer> windowSeconds;
+
+    private final Cache<String, AppWindow> windows = CacheBuilder.newBuilder()
+            .maximumSize(10000).expireAfterAccess(30, TimeUnit.MINUTES).build();
+
+    /**
+     * 判断 sql 是否单独分组
+     *
+     * @param appKey       租户、环境、应用组成的应用标识
+     * @param sqlMd5       sql 的 md5
+     * @param logTime      日志时间
+     * @return 单独分组时返回 sqlMd5，否则返回 {@link #OTHER}
+     */
+    public String group(String appKey, String sqlMd5, long logTime) {
+        if (!enable.get()) {
+            return sqlMd5;
+        }
+        AppWindow window;
+        try {
+            window = windows.get(appKey, AppWindow::new);
+        } catch (ExecutionException e) {
+            return sqlMd5;
+        }
+        long windowKey = logTime / (Math.max(1, windowSeconds.get()) * 1000L);
+        return window.current(appKey, windowKey).offer(sqlMd5) ? sqlMd5 : OTHER;
+    }
+
+    private HeavyHitters newSketch() {
+        return new HeavyHitters(topN.get(), admitCount.get());
+    }
+
+    private void report(String appKey, long windowKey, HeavyHitters sketch) {
+        if (sketch.getFolded() == 0) {
+            return;
+        }
+        logger.warn("sql cardinality exceeds topN, app:{}, window:{}, distinct:{}, total:{}, folded:{}, top:{}",
+                appKey, FormatUtils.toSecondTimeString(windowKey * Math.max(1, windowSeconds.get()) * 1000L),
+                sketch.cardinality(), sketch.getTotal(), sketch.getFolded(), sketch.top(5));
+    }
+
+    /**
+     * 单个应用的当前窗口，迟到的日志计入当前窗口
+     */
+    private final class AppWindow {
+        private long windowKey = -1;
+        private HeavyHitters sketch;
+
+        synchronized HeavyHitters current(String appKey, long key) {
+            if (sketch == null) {
+                sketch = newSketch();
+                windowKey = key;
+            } else if (key > windowKey) {
+                report(appKey, windowKey, sketch);
+                sketch = sketch.getCapacity() == topN.get() ? sketch.next() : newSketch();
+                windowKey = key;
+            }
+            return sketch;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package io.shulie.surge.data.deploy.pradar.common;
 
 
 import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.LatencyHistogram;
 import io.shulie.surge.data.common.aggregation.metrics.Metric;
 import io.shulie.surge.data.common.utils.Pair;
 import org.apache.storm.Config;
@@ -46,9 +47,12 @@ public class StormConfig {
         conf.registerSerialization(char[].class);
         conf.registerSerialization(ArrayList.class);
         conf.registerSerialization(HashMap.class);
-        conf.registerSerialization(Metric.class);
-        conf.registerSerialization(CallStat.class);
+        conf.registerSerialization(Metric.class, MetricKryoSerializers.MetricSerializer.class);
+        conf.registerSerialization(CallStat.class, MetricKryoSerializers.CallStatSerializer.class);
+        conf.registerSerialization(LatencyHistogram.class);
         conf.registerSerialization(Pair.class);
+        // spout 到 reduce 的指标批次，按字典压缩重复的 tag 字符串
+        conf.registerSerialization(MetricBatch.class, MetricKryoSerializers.MetricBatchSerializer.class);
         //使用topology.worker.gc.childopts或者worker.childopts配置worker内存等参数,两者的效果是一致的
         conf.put("topology.worker.gc.childopts",
                 "-Xms2g -Xmx3g -XX:MaxDirectMemorySize=512m -XX:+HeapDumpOnOutOfMemoryError "
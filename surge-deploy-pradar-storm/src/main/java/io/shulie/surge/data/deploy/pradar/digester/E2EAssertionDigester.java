@@ -21,12 +21,12 @@ import com.google.inject.name.Named;
 import com.pamirs.pradar.log.parser.constant.TenantConstants;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
 import io.shulie.pradar.log.rule.RuleFactory;
-import io.shulie.pradar.log.rule.RuleFactory.Rule;
 import io.shulie.surge.data.common.aggregation.AggregateSlot;
 import io.shulie.surge.data.common.aggregation.metrics.CallStat;
 import io.shulie.surge.data.common.aggregation.metrics.Metric;
 import io.shulie.surge.data.deploy.pradar.agg.E2ETraceMetricsAggarator;
 import io.shulie.surge.data.deploy.pradar.common.AppConfigUtil;
+import io.shulie.surge.data.deploy.pradar.common.E2EAssertRule;
 import io.shulie.surge.data.deploy.pradar.common.E2ENodeCache;
 import io.shulie.surge.data.deploy.pradar.common.PradarRtConstant;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParser;
@@ -100,7 +100,7 @@ public class E2EAssertionDigester implements DataDigester<RpcBased> {
             return;
         }
         // 断言列表
-        Map<String, Rule> nodeAssertListMap = e2eNodeCache.getE2eAssertConfig().get(nodeId);
+        Map<String, E2EAssertRule> nodeAssertListMap = e2eNodeCache.getE2eAssertConfig().get(nodeId);
         long timeStamp = rpcBased.getLogTime();
         AggregateSlot<Metric, CallStat> slot = e2eTraceMetricsAggaration.getSlotByTimestamp(timeStamp);
         /**
@@ -124,19 +124,11 @@ public class E2EAssertionDigester implements DataDigester<RpcBased> {
         try {
             // 断言判定
             if (MapUtils.isNotEmpty(nodeAssertListMap)) {
-                for (String assertCode : nodeAssertListMap.keySet()) {
-                    Rule rule = nodeAssertListMap.get(assertCode);
-                    try {
-                        if (Boolean.parseBoolean(String
-                                .valueOf(
-                                        RuleFactory.INSTANCE.eval("node", rpcBased, rule.getRuleType(),
-                                                rule.getCondition().replaceAll("@node", "node"))))) {
-                            exceptionTypeList.add("assertCode-" + assertCode);
-                        }
-                    } catch (Throwable e) {
-                        logger.error("rule " + rule.toString());
+                for (Map.Entry<String, E2EAssertRule> entry : nodeAssertListMap.entrySet()) {
+                    // 规则单独计时，异常和超时由规则自身记录并熔断
+                    if (entry.getValue().evaluate(rpcBased)) {
+                        exceptionTypeList.add("assertCode-" + entry.getKey());
                     }
-
                 }
             }
             // 是否压测流量
@@ -182,10 +174,12 @@ public class E2EAssertionDigester implements DataDigester<RpcBased> {
     }
 
     private String getNodeId(String parsedAppName, String parsedServiceName, String parsedMethod, String rpcType) {
-        return Md5Utils.md5(parsedAppName + "|" + parsedServiceName + "|" + parsedMethod + "|" + rpcType);
+        return Md5Utils.hasher().append(parsedAppName).append('|').append(parsedServiceName).append('|')
+                .append(parsedMethod).append('|').append(rpcType).hex();
     }
 
     public void init() {
+        appConfigUtil.start();
         e2eNodeCache.autoRefresh(mysqlSupport);
         RuleFactory.INSTANCE.regsiterVariant(new Class[]{RpcBased.class}, new String[]{"node"});
         logger.info("e2eNodeCache:{}", e2eNodeCache);
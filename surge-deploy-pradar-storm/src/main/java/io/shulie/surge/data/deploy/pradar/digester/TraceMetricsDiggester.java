@@ -25,7 +25,6 @@ import com.google.inject.name.Named;
 import com.pamirs.pradar.log.parser.constant.TenantConstants;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
 import io.shulie.pradar.log.rule.RuleFactory;
-import io.shulie.pradar.log.rule.RuleFactory.Rule;
 import io.shulie.surge.data.common.aggregation.AggregateSlot;
 import io.shulie.surge.data.common.aggregation.metrics.CallStat;
 import io.shulie.surge.data.common.aggregation.metrics.Metric;
@@ -81,6 +80,11 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
     @Named("/pradar/config/rt/traceMetricsTenantConfig")
     private Remote<String> traceMetricsTenantConfig;
 
+    @Inject
+    @DefaultValue("1")
+    @Named("/pradar/config/rt/traceMetricsThreadCount")
+    private Remote<Integer> traceMetricsThreadCount;
+
     @Inject
     private TraceMetricsAggarator traceMetricsAggarator;
 
@@ -96,6 +100,9 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
     @Inject
     private MysqlSupport mysqlSupport;
 
+    @Inject
+    private SqlHeavyHitters sqlHeavyHitters;
+
     private E2ENodeCache e2eNodeCache = new E2ENodeCache();
 
     private Cache<String, String> cache = CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(1, TimeUnit.HOURS).build();
@@ -131,8 +138,8 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
         }
 
         // 生成唯一边Id ,同步zk集合，判断此流量是否要统计
-        String edgeId = rpcBasedParser.edgeId("", rpcBased);
         Map<String, Object> eagleTags = rpcBasedParser.edgeTags("", rpcBased);
+        String edgeId = rpcBasedParser.edgeId(eagleTags);
 
         /** 指标计算不参考业务活动的边**/
         String appName = rpcBased.getAppName();
@@ -151,8 +158,8 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
                 return;
             }
             rpcBased.setEntranceId(""); //如果边不在真实业务活动中,把所有入口流量汇总一起算指标
-            edgeId = rpcBasedParser.edgeId("", rpcBased);
-            eagleTags = rpcBasedParser.edgeTags("", rpcBased);
+            eagleTags.put("entranceId", "");
+            edgeId = rpcBasedParser.edgeId(eagleTags);
         }
 
         //获取是否压测流量
@@ -174,13 +181,13 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
         }
 
         // 断言列表,兼容老的nodeId查询
-        Map<String, Rule> nodeAssertListMap = Maps.newHashMap();
-        LinkedHashMap<String, Map<String, Rule>> e2eAssertConfig = e2eNodeCache.getE2eAssertConfig();
+        Map<String, E2EAssertRule> nodeAssertListMap = Maps.newHashMap();
+        Map<String, Map<String, E2EAssertRule>> e2eAssertConfig = e2eNodeCache.getE2eAssertConfig();
         if (!e2eAssertConfig.isEmpty()) {
             //查询新配置的断言
-            Map<String, Rule> nodeRule = e2eAssertConfig.get(nodeId);
+            Map<String, E2EAssertRule> nodeRule = e2eAssertConfig.get(nodeId);
             //查询历史配置断言
-            Map<String, Rule> edgeRule = e2eAssertConfig.get(edgeId);
+            Map<String, E2EAssertRule> edgeRule = e2eAssertConfig.get(edgeId);
             if (nodeRule != null) {
                 nodeAssertListMap.putAll(nodeRule);
             }
@@ -213,19 +220,11 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
         }
         // 断言判定
         if (MapUtils.isNotEmpty(nodeAssertListMap)) {
-            for (String assertCode : nodeAssertListMap.keySet()) {
-                Rule rule = nodeAssertListMap.get(assertCode);
-                try {
-                    if (Boolean.parseBoolean(String
-                            .valueOf(
-                                    RuleFactory.INSTANCE.eval("node", rpcBased, rule.getRuleType(),
-                                            rule.getCondition().replaceAll("@node", "node"))))) {
-                        exceptionTypeList.add("assertCode-" + assertCode);
-                    }
-                } catch (Throwable e) {
-                    logger.error("rule:{} calculate fail:{},{}", rule.toString(), e, e.getStackTrace());
+            for (Map.Entry<String, E2EAssertRule> entry : nodeAssertListMap.entrySet()) {
+                // 规则单独计时，异常和超时由规则自身记录并熔断
+                if (entry.getValue().evaluate(rpcBased)) {
+                    exceptionTypeList.add("assertCode-" + entry.getKey());
                 }
-
             }
         }
         //写入断言指标
@@ -258,7 +257,16 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
         } else {
             sqlStatement = "null";
         }
-        tags.add(Md5Utils.md5(sqlStatement));
+        String sqlStatementMd5 = Md5Utils.md5(sqlStatement);
+        if (rpcBased.getRpcType() == 4) {
+            //每个应用只保留高频sql单独分组,长尾sql归入other,防止拼接参数的sql导致分组过多
+            sqlStatementMd5 = sqlHeavyHitters.group(userAppKey + '#' + envCode + '#' + appName, sqlStatementMd5, traceTime);
+            // other 分组里混有多条 sql,不能带上其中某一条的语句
+            if (SqlHeavyHitters.OTHER.equals(sqlStatementMd5)) {
+                sqlStatement = SqlHeavyHitters.OTHER;
+            }
+        }
+        tags.add(sqlStatementMd5);
         tags.add(userAppKey);
         tags.add(envCode);
 
@@ -324,7 +332,7 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
 
     @Override
     public int threadCount() {
-        return 1;
+        return Math.max(1, traceMetricsThreadCount.get());
     }
 
     @Override
@@ -339,12 +347,14 @@ public class TraceMetricsDiggester implements DataDigester<RpcBased> {
     }
 
     public void init() {
+        appConfigUtil.start();
         e2eNodeCache.autoRefresh(mysqlSupport);
         RuleFactory.INSTANCE.regsiterVariant(new Class[]{RpcBased.class}, new String[]{"node"});
         logger.info("e2eNodeCache:{}", e2eNodeCache);
     }
 
     private String getNodeId(String parsedAppName, String parsedServiceName, String parsedMethod, String rpcType) {
-        return Md5Utils.md5(parsedAppName + "|" + parsedServiceName + "|" + parsedMethod + "|" + rpcType);
+        return Md5Utils.hasher().append(parsedAppName).append('|').append(parsedServiceName).append('|')
+                .append(parsedMethod).append('|').append(rpcType).hex();
     }
 }
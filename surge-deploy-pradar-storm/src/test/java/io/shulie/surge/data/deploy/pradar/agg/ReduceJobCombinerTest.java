@@ -0,0 +1,193 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.agg;
+
+import io.shulie.surge.data.common.aggregation.AggregateSlot;
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.utils.Pair;
+import io.shulie.surge.data.deploy.pradar.common.MetricBatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author pamirs
+ */
+public class ReduceJobCombinerTest {
+
+    /**
+     * 聚合 5 秒一个时间槽，reducer 10 秒一个窗口
+     */
+    private static final int AGG_INTERVAL = 5;
+    private static final int REDUCE_INTERVAL = 10;
+
+    @Test
+    public void commitEmitsWindowOnceItEnds() {
+        RecordingEmitter emitter = new RecordingEmitter(2);
+        ReduceJobCombiner combiner = new ReduceJobCombiner(AGG_INTERVAL, REDUCE_INTERVAL, emitter);
+
+        combiner.commit(100, slot(metric("a"), 1, metric("b"), 2));
+        Assert.assertTrue(emitter.emits.isEmpty());
+        Assert.assertEquals(1, combiner.pendingWindows());
+
+        // 窗口 [100, 110) 的第二个时间槽提交后窗口结束
+        combiner.commit(105, slot(metric("a"), 3));
+        Assert.assertEquals(0, combiner.pendingWindows());
+        Map<Metric, Long> emitted = emitter.counts(100000);
+        Assert.assertEquals(Long.valueOf(4), emitted.get(metric("a")));
+        Assert.assertEquals(Long.valueOf(2), emitted.get(metric("b")));
+        emitter.assertReducers(2);
+        // 每个 reducer 每个窗口只发一次
+        Assert.assertTrue(emitter.emits.size() <= 2);
+    }
+
+    @Test
+    public void flushCommittedEmitsEndedWindowWithoutNewSlots() {
+        RecordingEmitter emitter = new RecordingEmitter(1);
+        ReduceJobCombiner combiner = new ReduceJobCombiner(AGG_INTERVAL, REDUCE_INTERVAL, emitter);
+        combiner.commit(100, slot(metric("a"), 1));
+
+        // 延时 10 秒提交，115 秒时只提交到 100 秒的时间槽，窗口还没有结束
+        combiner.flushCommitted(115000, 10);
+        Assert.assertTrue(emitter.emits.isEmpty());
+
+        // 125 秒时 105 秒的时间槽也已提交
+        combiner.flushCommitted(125000, 10);
+        Assert.assertEquals(Long.valueOf(1), emitter.counts(100000).get(metric("a")));
+        Assert.assertEquals(0, combiner.pendingWindows());
+    }
+
+    @Test
+    public void lateSlotIsEmittedImmediately() {
+        RecordingEmitter emitter = new RecordingEmitter(1);
+        ReduceJobCombiner combiner = new ReduceJobCombiner(AGG_INTERVAL, REDUCE_INTERVAL, emitter);
+        combiner.commit(120, slot(metric("a"), 1));
+        combiner.commit(100, slot(metric("b"), 1));
+        Assert.assertEquals(Long.valueOf(1), emitter.counts(100000).get(metric("b")));
+        Assert.assertEquals(1, combiner.pendingWindows());
+    }
+
+    @Test
+    public void reducerCountChangeKeepsCombinedData() {
+        RecordingEmitter emitter = new RecordingEmitter(2);
+        ReduceJobCombiner combiner = new ReduceJobCombiner(AGG_INTERVAL, REDUCE_INTERVAL, emitter);
+        Map<Metric, Long> expected = new HashMap<>();
+        AggregateSlot<Metric, CallStat> first = new AggregateSlot<>();
+        AggregateSlot<Metric, CallStat> second = new AggregateSlot<>();
+        for (int i = 0; i < 50; i++) {
+            first.addToSlot(metric("m" + i), stat(i + 1));
+            second.addToSlot(metric("m" + i), stat(1));
+            expected.put(metric("m" + i), (long) i + 2);
+        }
+        combiner.commit(100, first);
+
+        // reducer 扩容，已合并的数据重新分组
+        emitter.reducerCount = 3;
+        combiner.commit(105, second);
+        Assert.assertEquals(expected, emitter.counts(100000));
+        emitter.assertReducers(3);
+
+        // reducer 缩容时窗口在发送前重新分组
+        emitter.emits.clear();
+        emitter.reducerCount = 3;
+        combiner.commit(110, first);
+        emitter.reducerCount = 2;
+        combiner.flushCommitted(130000, 10);
+        Assert.assertEquals(50, emitter.counts(110000).size());
+        emitter.assertReducers(2);
+    }
+
+    @Test
+    public void flushAllEmitsOpenWindows() {
+        RecordingEmitter emitter = new RecordingEmitter(1);
+        ReduceJobCombiner combiner = new ReduceJobCombiner(AGG_INTERVAL, REDUCE_INTERVAL, emitter);
+        combiner.commit(100, slot(metric("a"), 1));
+        combiner.commit(110, slot(metric("a"), 2));
+        combiner.flushAll();
+        Assert.assertEquals(Long.valueOf(1), emitter.counts(100000).get(metric("a")));
+        Assert.assertEquals(Long.valueOf(2), emitter.counts(110000).get(metric("a")));
+        Assert.assertEquals(0, combiner.pendingWindows());
+    }
+
+    private static Metric metric(String name) {
+        return Metric.of("trace_metrics", new String[]{name}, "", null);
+    }
+
+    private static CallStat stat(long count) {
+        return new CallStat(count, count * 10);
+    }
+
+    private static AggregateSlot<Metric, CallStat> slot(Object... metricAndCounts) {
+        AggregateSlot<Metric, CallStat> slot = new AggregateSlot<>();
+        for (int i = 0; i < metricAndCounts.length; i += 2) {
+            slot.addToSlot((Metric) metricAndCounts[i], stat(((Number) metricAndCounts[i + 1]).longValue()));
+        }
+        return slot;
+    }
+
+    private static final class RecordingEmitter implements ReduceJobEmitter {
+        private final List<Object[]> emits = new ArrayList<>();
+        private int reducerCount;
+
+        RecordingEmitter(int reducerCount) {
+            this.reducerCount = reducerCount;
+        }
+
+        @Override
+        public int reducerCount() {
+            return reducerCount;
+        }
+
+        @Override
+        public void emit(int reducer, long windowTime, MetricBatch job) {
+            emits.add(new Object[]{reducer, windowTime, job});
+        }
+
+        /**
+         * 窗口内每个指标的计数，同一个指标只能出现一次
+         */
+        Map<Metric, Long> counts(long windowTime) {
+            Map<Metric, Long> counts = new HashMap<>();
+            for (Object[] emit : emits) {
+                if ((Long) emit[1] != windowTime) {
+                    continue;
+                }
+                for (Pair<Metric, CallStat> pair : (MetricBatch) emit[2]) {
+                    Assert.assertNull(counts.put(pair.getFirst(), pair.getSecond().get(0)));
+                }
+            }
+            return counts;
+        }
+
+        /**
+         * 指标按当前的 reducer 数量分组
+         */
+        void assertReducers(int reducerCount) {
+            for (Object[] emit : emits) {
+                int reducer = (Integer) emit[0];
+                Assert.assertTrue(reducer < reducerCount);
+                for (Pair<Metric, CallStat> pair : (MetricBatch) emit[2]) {
+                    Assert.assertEquals(Math.abs(pair.getFirst().hashCode()) % reducerCount, reducer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import io.shulie.surge.data.common.aggregation.metrics.CallStat;
+import io.shulie.surge.data.common.aggregation.metrics.LatencyHistogram;
+import io.shulie.surge.data.common.aggregation.metrics.Metric;
+import io.shulie.surge.data.common.utils.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author pamirs
+ */
+public class MetricKryoSerializersTest {
+
+    private final Kryo kryo = new Kryo();
+
+    @Test
+    public void roundTripBatch() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3, 2);
+        histogram.record(1200, 1);
+        CallStat withHistogram = new CallStat("trace-1", "select 1", 3, 1206, 0, 0, 0, 0, 0, 0, 0, 1200);
+        withHistogram.setHistogram(histogram);
+
+        MetricBatch batch = new MetricBatch();
+        batch.add(new Pair<>(Metric.of("trace_metrics", new String[]{"app", "service", "method"}, "1000", new String[]{"rpc"}), withHistogram));
+        // 重复的 tag 按字典编号写入，前后缀为 null
+        batch.add(new Pair<>(Metric.of("trace_metrics", null, "1000", null), new CallStat("trace-2", null, 1, 2, 3)));
+        batch.add(new Pair<>(Metric.of("trace_metrics", new String[]{"app", null, "app"}, "1000", new String[0]), new CallStat(null, "app", 7)));
+
+        MetricBatch copy = roundTrip(new MetricKryoSerializers.MetricBatchSerializer(), batch, MetricBatch.class);
+        Assert.assertEquals(batch.size(), copy.size());
+        for (int i = 0; i < batch.size(); i++) {
+            assertMetricEquals(batch.get(i).getFirst(), copy.get(i).getFirst());
+            assertCallStatEquals(batch.get(i).getSecond(), copy.get(i).getSecond());
+        }
+        Assert.assertNull(copy.get(1).getFirst().getPrefixes());
+        Assert.assertNull(copy.get(1).getFirst().getSuffixes());
+        Assert.assertNull(copy.get(1).getSecond().getSqlStatement());
+        Assert.assertNull(copy.get(1).getSecond().getHistogram());
+        Assert.assertNull(copy.get(2).getSecond().getTraceId());
+    }
+
+    @Test
+    public void dictionaryShrinksRepeatedStrings() {
+        String[] prefixes = {"a-rather-long-application-name", "a-rather-long-service-name"};
+        MetricBatch single = new MetricBatch();
+        single.add(new Pair<>(Metric.of("trace_metrics", prefixes, "1000", null), new CallStat("t", 1)));
+        MetricBatch repeated = new MetricBatch();
+        for (int i = 0; i < 10; i++) {
+            repeated.add(new Pair<>(Metric.of("trace_metrics", prefixes, "1000", null), new CallStat("t", 1)));
+        }
+        MetricKryoSerializers.MetricBatchSerializer serializer = new MetricKryoSerializers.MetricBatchSerializer();
+        Assert.assertTrue(size(serializer, repeated) < size(serializer, single) * 3);
+        Assert.assertEquals(10, roundTrip(serializer, repeated, MetricBatch.class).size());
+    }
+
+    @Test
+    public void roundTripWithoutDictionary() {
+        Metric metric = Metric.of("e2e_metrics", new String[]{"node", "node"}, "2000", null);
+        assertMetricEquals(metric, roundTrip(new MetricKryoSerializers.MetricSerializer(), metric, Metric.class));
+
+        CallStat callStat = new CallStat("trace", null, 1, 0, 5, 0, 9);
+        assertCallStatEquals(callStat, roundTrip(new MetricKryoSerializers.CallStatSerializer(), callStat, CallStat.class));
+    }
+
+    private <T> T roundTrip(com.esotericsoftware.kryo.Serializer<T> serializer, T value, Class<T> type) {
+        Output output = new Output(256, -1);
+        serializer.write(kryo, output, value);
+        return serializer.read(kryo, new Input(output.toBytes()), type);
+    }
+
+    private int size(com.esotericsoftware.kryo.Serializer<MetricBatch> serializer, MetricBatch batch) {
+        Output output = new Output(256, -1);
+        serializer.write(kryo, output, batch);
+        return output.position();
+    }
+
+    private static void assertMetricEquals(Metric expected, Metric actual) {
+        Assert.assertEquals(expected.getMetricId(), actual.getMetricId());
+        Assert.assertArrayEquals(expected.getPrefixes(), actual.getPrefixes());
+        Assert.assertEquals(expected.getTime(), actual.getTime());
+        Assert.assertArrayEquals(expected.getSuffixes(), actual.getSuffixes());
+        Assert.assertEquals(expected, actual);
+    }
+
+    private static void assertCallStatEquals(CallStat expected, CallStat actual) {
+        Assert.assertEquals(expected.getTraceId(), actual.getTraceId());
+        Assert.assertEquals(expected.getSqlStatement(), actual.getSqlStatement());
+        Assert.assertEquals(expected.length(), actual.length());
+        for (int i = 0; i < expected.length(); i++) {
+            Assert.assertEquals(expected.get(i), actual.get(i));
+        }
+        if (expected.getHistogram() == null) {
+            Assert.assertNull(actual.getHistogram());
+        } else {
+            Assert.assertArrayEquals(expected.getHistogram().getCounts(), actual.getHistogram().getCounts());
+            Assert.assertEquals(expected.getPercentile(0.99), actual.getPercentile(0.99));
+        }
+    }
+}
@@ -20,10 +20,16 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
+import io.shulie.surge.data.common.pool.DataPoolExecutors;
 import io.shulie.surge.data.common.utils.HttpUtil;
 import io.shulie.surge.data.common.zk.ZkClient;
+import io.shulie.surge.data.common.zk.ZkNodeCache;
 import io.shulie.surge.data.deploy.pradar.link.util.StringUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
@@ -31,9 +37,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 @Singleton
 public class AppConfigUtil {
@@ -71,53 +85,163 @@ public class AppConfigUtil {
     private ZkClient zkClient;
 
     /**
-     * 采样率缓存
+     * 采样率后台加载线程，热路径只读缓存，不在 disruptor 线程上做 http 和 zk 请求
      */
-    LoadingCache<String, Integer> samplingCache = CacheBuilder.newBuilder().expireAfterWrite(2, TimeUnit.MINUTES).build(new CacheLoader<String, Integer>() {
-        @Override
-        public Integer load(String appName) throws Exception {
-            // 应用自定义采样率
-            String[] params = appName.split("@~@");
-            String sampling = null;
-            if (params.length == 4) {
-                Map<String, Object> res = null;
-                Map<String, String> paramMap = Maps.newHashMap();
-                paramMap.put("userAppKey", params[0]);
-                paramMap.put("envCode", params[1]);
-                paramMap.put("appName", params[2]);
-
-                //如果是压测流量,取压测流量采样率
-                if ("true".equals(params[3])) {
-                    //获取应用压测采样率
-                    paramMap.put("configKey", "trace.ct.samplingInterval");
-                } else {
-                    //获取应用采样率
-                    paramMap.put("configKey", "trace.samplingInterval");
+    private final ExecutorService samplingExecutor = DataPoolExecutors.newDefaultQueueExecutors(1, 2, 60, 1024, TimeUnit.SECONDS,
+            new ThreadFactoryBuilder().setNameFormat("app-sampling-loader-%d").setDaemon(true).build(), null);
+
+    /**
+     * 采样率缓存，写入 2 分钟后在下一次访问时后台刷新，刷新完成前继续返回旧值
+     */
+    LoadingCache<String, Integer> samplingCache = CacheBuilder.newBuilder()
+            .refreshAfterWrite(2, TimeUnit.MINUTES)
+            .expireAfterAccess(30, TimeUnit.MINUTES)
+            .build(CacheLoader.asyncReloading(new CacheLoader<String, Integer>() {
+                @Override
+                public Integer load(String appName) {
+                    return loadSampling(appName, null);
                 }
-                try {
-                    res = JSON.parseObject(HttpUtil.doGet(URI, Integer.valueOf(PORT), PATH, null, paramMap));
-                    if (res != null && res.containsKey("data")) {
-                        sampling = StringUtil.formatString(res.get("data"));
-                        logger.info("get app sampling:{},params is {}", sampling, paramMap);
-                    }
-                } catch (Throwable e) {
-                    logger.error("get app sampling catch exception:{},{}", e, e.getStackTrace());
+
+                @Override
+                public ListenableFuture<Integer> reload(String appName, Integer oldValue) {
+                    return Futures.immediateFuture(loadSampling(appName, oldValue));
+                }
+            }, samplingExecutor));
+
+    /**
+     * 缓存未命中、等待后台加载的 key，由一个后台任务一次性批量加载
+     */
+    private final Set<String> pendingSamplingKeys = Sets.newConcurrentHashSet();
+    private final AtomicBoolean prefetchScheduled = new AtomicBoolean();
+    /**
+     * 热路径未命中缓存的次数，每一次都是以前需要同步等待 http 请求的场景
+     */
+    private final LongAdder samplingMissCount = new LongAdder();
+    private volatile ZkNodeCache globalSamplingCache;
+    private final AtomicBoolean watchScheduled = new AtomicBoolean();
+
+    private Integer loadSampling(String appName, Integer oldValue) {
+        // 应用自定义采样率
+        String[] params = appName.split("@~@");
+        String sampling = null;
+        if (params.length == 4) {
+            Map<String, Object> res = null;
+            Map<String, String> paramMap = Maps.newHashMap();
+            paramMap.put("userAppKey", params[0]);
+            paramMap.put("envCode", params[1]);
+            paramMap.put("appName", params[2]);
+
+            //如果是压测流量,取压测流量采样率
+            if ("true".equals(params[3])) {
+                //获取应用压测采样率
+                paramMap.put("configKey", "trace.ct.samplingInterval");
+            } else {
+                //获取应用采样率
+                paramMap.put("configKey", "trace.samplingInterval");
+            }
+            try {
+                res = JSON.parseObject(HttpUtil.doGet(URI, Integer.valueOf(PORT), PATH, null, paramMap));
+                if (res != null && res.containsKey("data")) {
+                    sampling = StringUtil.formatString(res.get("data"));
+                    logger.info("get app sampling:{},params is {}", sampling, paramMap);
+                }
+            } catch (Throwable e) {
+                logger.error("get app sampling catch exception:{},{}", e, e.getStackTrace());
+                // 刷新失败时保留旧值，不退回全局采样率
+                if (oldValue != null) {
+                    return oldValue;
                 }
             }
+        }
 
-            // 全局采样率
-            if (StringUtils.isBlank(sampling)) {
-                if (zkClient.exists(globalSamplingPath)) {
-                    byte[] data = zkClient.getData(globalSamplingPath);
-                    if (data != null) {
-                        sampling = new String(data, "utf-8");
-                    }
+        // 全局采样率
+        if (StringUtils.isBlank(sampling)) {
+            return globalSampling();
+        }
+        return NumberUtils.toInt(sampling, 1);
+    }
+
+    /**
+     * 开始监听全局采样率节点，由使用采样率的 digester 在启动时调用，可重复调用
+     */
+    public void start() {
+        watchGlobalSampling();
+    }
+
+    /**
+     * 全局采样率取自 zk 节点监听的内存缓存，不发起 zk 读请求。
+     * 没有在启动时开始监听的，交给后台线程创建监听，创建完成前按采样率 1 处理
+     *
+     * @return
+     */
+    private int globalSampling() {
+        ZkNodeCache cache = globalSamplingCache;
+        if (cache == null) {
+            if (watchScheduled.compareAndSet(false, true)) {
+                try {
+                    samplingExecutor.execute(this::watchGlobalSampling);
+                } catch (RejectedExecutionException e) {
+                    watchScheduled.set(false);
                 }
-                logger.info("get global sampling:{}", sampling);
             }
-            return NumberUtils.toInt(sampling, 1);
+            return 1;
         }
-    });
+        byte[] data = cache.getData();
+        if (data == null) {
+            return 1;
+        }
+        return NumberUtils.toInt(new String(data, StandardCharsets.UTF_8).trim(), 1);
+    }
+
+    private synchronized void watchGlobalSampling() {
+        if (globalSamplingCache == null) {
+            ZkNodeCache cache = zkClient.createZkNodeCache(globalSamplingPath, false);
+            cache.setUpdateListener(() -> logger.info("global sampling changed:{}", cache.getData() == null ? null : new String(cache.getData(), StandardCharsets.UTF_8)));
+            try {
+                // 异步完成第一次读取，读到之前按采样率 1 处理
+                cache.start();
+            } catch (Exception e) {
+                logger.error("watch global sampling {} failed", globalSamplingPath, e);
+            }
+            globalSamplingCache = cache;
+        }
+    }
+
+    private void schedulePrefetch(String key) {
+        if (pendingSamplingKeys.add(key) && prefetchScheduled.compareAndSet(false, true)) {
+            try {
+                samplingExecutor.execute(this::prefetchPending);
+            } catch (RejectedExecutionException e) {
+                prefetchScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * 一次加载所有等待中的 key，加载完成前热路径返回全局采样率
+     */
+    private void prefetchPending() {
+        prefetchScheduled.set(false);
+        List<String> keys = new ArrayList<>(pendingSamplingKeys);
+        Map<String, Integer> loaded = Maps.newHashMapWithExpectedSize(keys.size());
+        for (String key : keys) {
+            try {
+                loaded.put(key, loadSampling(key, null));
+            } catch (Throwable e) {
+                logger.error("prefetch app sampling {} failed", key, e);
+            }
+        }
+        samplingCache.putAll(loaded);
+        pendingSamplingKeys.removeAll(keys);
+        logger.info("prefetch app sampling size:{}, hot path miss total:{}", loaded.size(), samplingMissCount.sum());
+    }
+
+    /**
+     * @return 热路径未命中采样率缓存的累计次数
+     */
+    public long getSamplingMissCount() {
+        return samplingMissCount.sum();
+    }
 
     /**
      * 慢SQL配置缓存
@@ -148,16 +272,23 @@ public class AppConfigUtil {
     });
 
     /**
-     * 获取应用采样率配置
+     * 获取应用采样率配置，不阻塞：未命中时先返回全局采样率，并在后台加载
      *
      * @param appName
      * @return
      */
     public int getAppSamplingByAppName(String userAppKey, String envCode, String appName, String clusterTest) {
+        String key = userAppKey + "@~@" + envCode + "@~@" + appName + "@~@" + clusterTest;
         try {
-            return samplingCache.get(userAppKey + "@~@" + envCode + "@~@" + appName + "@~@" + clusterTest);
+            Integer sampling = samplingCache.getIfPresent(key);
+            if (sampling != null) {
+                return sampling;
+            }
+            samplingMissCount.increment();
+            schedulePrefetch(key);
+            return globalSampling();
         } catch (Throwable e) {
-            e.printStackTrace();
+            logger.error("get app sampling failed:{}", key, e);
         }
         return 1;
     }
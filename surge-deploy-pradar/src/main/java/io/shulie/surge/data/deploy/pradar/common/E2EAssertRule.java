@@ -0,0 +1,264 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.pradar.log.rule.RuleFactory;
+import io.shulie.pradar.log.rule.RuleFactory.Rule;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * 预处理后的断言规则，在配置刷新时生成，热路径只调用 {@link #evaluate(RpcBased)}
+ * <p>
+ * 每条规则单独计时，连续超出时间预算或执行异常达到阈值后暂停一段时间，暂停期间直接跳过，
+ * 避免一条有问题的规则拖慢 disruptor 工作线程。时间预算按线程 CPU 时间判断，
+ * GC 停顿或线程被调度走不会让正常规则被误暂停；暂停和恢复都会打日志，暂停期间跳过的次数计入 skip
+ *
+ * @author pamirs
+ */
+public class E2EAssertRule {
+    private static final Logger logger = LoggerFactory.getLogger(E2EAssertRule.class);
+
+    /**
+     * 单次执行的时间预算
+     */
+    static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    /**
+     * 连续超时或异常多少次后暂停
+     */
+    static final int MAX_CONSECUTIVE_FAILURES = 3;
+    static final long SUSPEND_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * 当前线程的 CPU 时间，JVM 不支持时退回 nanoTime
+     */
+    static final LongSupplier THREAD_CPU_NANOS = threadCpuClock();
+
+    private final String assertCode;
+    private final Rule rule;
+    /**
+     * 规则中的 @node 已替换为注册的变量名
+     */
+    private final String expression;
+    private final Predicate<RpcBased> condition;
+    private final LongSupplier cpuNanos;
+    private final LongSupplier currentMillis;
+
+    private final LongAdder evalCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder errorCount = new LongAdder();
+    private final LongAdder slowCount = new LongAdder();
+    private final LongAdder skipCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder suspendCount = new LongAdder();
+    private volatile long suspendedUntil;
+    /**
+     * 本次暂停开始时的 skip 数，恢复时用来计算暂停期间跳过的次数
+     */
+    private volatile long skipCountAtSuspend;
+
+    public E2EAssertRule(String assertCode, Rule rule) {
+        this.assertCode = assertCode;
+        this.rule = rule;
+        this.expression = rule.getCondition() == null ? null : rule.getCondition().replace("@node", "node");
+        this.condition = rpcBased -> Boolean.parseBoolean(String.valueOf(
+                RuleFactory.INSTANCE.eval("node", rpcBased, rule.getRuleType(), expression)));
+        this.cpuNanos = THREAD_CPU_NANOS;
+        this.currentMillis = System::currentTimeMillis;
+    }
+
+    /**
+     * 测试用，替换规则执行和时钟
+     */
+    E2EAssertRule(String assertCode, Rule rule, Predicate<RpcBased> condition, LongSupplier cpuNanos,
+                  LongSupplier currentMillis) {
+        this.assertCode = assertCode;
+        this.rule = rule;
+        this.expression = rule.getCondition();
+        this.condition = condition;
+        this.cpuNanos = cpuNanos;
+        this.currentMillis = currentMillis;
+    }
+
+    private static LongSupplier threadCpuClock() {
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+                if (!threadMXBean.isThreadCpuTimeEnabled()) {
+                    threadMXBean.setThreadCpuTimeEnabled(true);
+                }
+                return threadMXBean::getCurrentThreadCpuTime;
+            }
+        } catch (Throwable e) {
+            logger.warn("thread cpu time not available, rule budget falls back to wall clock", e);
+        }
+        return System::nanoTime;
+    }
+
+    /**
+     * @param rpcBased
+     * @return 断言是否命中，暂停中或执行异常时返回 false
+     */
+    public boolean evaluate(RpcBased rpcBased) {
+        if (suspendedUntil != 0) {
+            if (currentMillis.getAsLong() < suspendedUntil) {
+                skipCount.increment();
+                return false;
+            }
+            resume();
+        }
+        long start = cpuNanos.getAsLong();
+        boolean hit = false;
+        boolean failed = false;
+        try {
+            hit = condition.test(rpcBased);
+        } catch (Throwable e) {
+            failed = true;
+            errorCount.increment();
+            if (consecutiveFailures.get() == 0) {
+                logger.error("rule:{} calculate fail", rule, e);
+            }
+        }
+        long cost = cpuNanos.getAsLong() - start;
+        evalCount.increment();
+        totalNanos.add(cost);
+        long max;
+        while (cost > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, cost)) {
+                break;
+            }
+        }
+        if (cost > BUDGET_NANOS) {
+            slowCount.increment();
+            failed = true;
+        }
+        if (failed) {
+            if (consecutiveFailures.incrementAndGet() >= MAX_CONSECUTIVE_FAILURES) {
+                consecutiveFailures.set(0);
+                suspend();
+            }
+        } else if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (hit) {
+            hitCount.increment();
+        }
+        return hit;
+    }
+
+    private void suspend() {
+        skipCountAtSuspend = skipCount.sum();
+        suspendCount.increment();
+        suspendedUntil = currentMillis.getAsLong() + SUSPEND_MILLIS;
+        logger.warn("rule {} suspended for {}ms, {}", assertCode, SUSPEND_MILLIS, this);
+    }
+
+    /**
+     * 多个线程可能同时发现暂停到期，只由清掉 suspendedUntil 的线程打印日志
+     */
+    private synchronized void resume() {
+        if (suspendedUntil == 0) {
+            return;
+        }
+        suspendedUntil = 0;
+        logger.warn("rule {} resumed, skipped {} evaluations while suspended", assertCode,
+                skipCount.sum() - skipCountAtSuspend);
+    }
+
+    /**
+     * 配置未变化时沿用原对象，保留统计
+     *
+     * @param other
+     * @return
+     */
+    public boolean sameDefinition(Rule other) {
+        return other != null && equals(rule.getCondition(), other.getCondition())
+                && rule.getRuleType() == other.getRuleType();
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public String getAssertCode() {
+        return assertCode;
+    }
+
+    public Rule getRule() {
+        return rule;
+    }
+
+    public long getEvalCount() {
+        return evalCount.sum();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    public long getSlowCount() {
+        return slowCount.sum();
+    }
+
+    public long getSkipCount() {
+        return skipCount.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return 累计暂停次数
+     */
+    public long getSuspendCount() {
+        return suspendCount.sum();
+    }
+
+    public boolean isSuspended() {
+        long until = suspendedUntil;
+        return until != 0 && currentMillis.getAsLong() < until;
+    }
+
+    @Override
+    public String toString() {
+        long count = getEvalCount();
+        return "assertCode=" + assertCode + ", condition=" + rule.getCondition() + ", eval=" + count + ", hit=" + getHitCount()
+                + ", error=" + getErrorCount() + ", slow=" + getSlowCount() + ", skip=" + getSkipCount()
+                + ", avgCpuMicros=" + (count == 0 ? 0 : getTotalNanos() / count / 1000) + ", maxCpuMicros=" + getMaxNanos() / 1000
+                + ", suspends=" + getSuspendCount() + ", suspended=" + isSuspended();
+    }
+}
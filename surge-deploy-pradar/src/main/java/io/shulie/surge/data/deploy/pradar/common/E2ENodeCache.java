@@ -18,9 +18,8 @@ package io.shulie.surge.data.deploy.pradar.common;
 import com.google.common.collect.Maps;
 import io.shulie.pradar.log.rule.RuleFactory.Rule;
 import io.shulie.pradar.log.rule.RuleFactory.Rule.RuleType;
+import io.shulie.surge.data.sink.mysql.IncrementalTableLoader;
 import io.shulie.surge.data.sink.mysql.MysqlSupport;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.MapUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,8 +37,14 @@ public class E2ENodeCache {
     private static final String E2E_CONFIG_TABLENAME = "t_amdb_pradar_e2e_config";
     private static final String E2E_ASSERT_CONFIG_TABLENAME = "t_amdb_pradar_e2e_assert_config";
 
-    private LinkedHashMap<String, Map<String, Object>> e2eConfig = Maps.newLinkedHashMap();
-    private LinkedHashMap<String, Map<String, Rule>> e2eAssertConfig = Maps.newLinkedHashMap();
+    private final IncrementalTableLoader e2eConfigLoader = new IncrementalTableLoader(E2E_CONFIG_TABLENAME, 9999);
+    private final IncrementalTableLoader e2eAssertConfigLoader = new IncrementalTableLoader(E2E_ASSERT_CONFIG_TABLENAME, 9999);
+
+    /**
+     * 不可变快照，刷新线程构建好新快照后整体替换，读线程不加锁
+     */
+    private volatile Map<String, Map<String, Object>> e2eConfig = Collections.emptyMap();
+    private volatile Map<String, Map<String, E2EAssertRule>> e2eAssertConfig = Collections.emptyMap();
 
     /**
      * 自动刷新hbase数据
@@ -49,36 +54,40 @@ public class E2ENodeCache {
         scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                refreshE2eConfig(mysqlSupport);
-                refreshE2eAssertConfig(mysqlSupport);
+                refresh(mysqlSupport);
             }
         }, 10, 5, TimeUnit.SECONDS);
+        scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                logRuleStats();
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+        refresh(mysqlSupport);
+    }
+
+    /**
+     * 首次刷新在调用线程执行，与定时刷新互斥
+     */
+    private synchronized void refresh(MysqlSupport mysqlSupport) {
         refreshE2eConfig(mysqlSupport);
         refreshE2eAssertConfig(mysqlSupport);
     }
 
     private void refreshE2eConfig(MysqlSupport mysqlSupport) {
         try {
-            List<Map<String, Object>> e2eConfigModels = mysqlSupport.queryForList(
-                    "select * from " + E2E_CONFIG_TABLENAME + " limit 9999");
-            Set<String> newNodeIdList = new HashSet<>();
-            for (Map<String, Object> e2eConf : e2eConfigModels) {
-                Map<String, Object> e2eConfMap = Maps.newHashMap();
-                for (String key : e2eConf.keySet()) {
-                    e2eConfMap.put(lineToHump(key), e2eConf.get(key));
-                }
-                String nodeId = (String) e2eConfMap.get("nodeId");
-                doE2eNodeConfig(nodeId, e2eConfMap);
-                newNodeIdList.add(nodeId);
+            if (!e2eConfigLoader.poll(mysqlSupport)) {
+                return;
             }
-            //老的有，新的没有，表示已被删除
-            Set<String> allNodeIdList = e2eConfig.keySet();
-            List<String> deletedNodeIdList = (List<String>) CollectionUtils.subtract(allNodeIdList, newNodeIdList);
-            if (CollectionUtils.isNotEmpty(deletedNodeIdList)) {
-                for (String nodeId : deletedNodeIdList) {
-                    e2eConfig.remove(nodeId);
+            Map<String, Map<String, Object>> next = Maps.newLinkedHashMap();
+            for (Map<String, Object> e2eConf : e2eConfigLoader.rows()) {
+                Map<String, Object> e2eConfMap = toHump(e2eConf);
+                if (e2eConfMap.isEmpty()) {
+                    continue;
                 }
+                next.put((String) e2eConfMap.get("nodeId"), Collections.unmodifiableMap(e2eConfMap));
             }
+            e2eConfig = Collections.unmodifiableMap(next);
         } catch (Exception e) {
             logger.error("Query linkId configuration faild.", e);
         }
@@ -91,71 +100,100 @@ public class E2ENodeCache {
      */
     private void refreshE2eAssertConfig(MysqlSupport mysqlSupport) {
         try {
-            List<Map<String, Object>> e2eConfigModels = mysqlSupport.queryForList(
-                    "select * from " + E2E_ASSERT_CONFIG_TABLENAME + " limit 9999");
-            Set<String> newNodeIdAssertCodeList = new HashSet<>();
-            for (Map<String, Object> e2eConf : e2eConfigModels) {
-                Map<String, Object> e2eConfMap = Maps.newHashMap();
-                for (String key : e2eConf.keySet()) {
-                    e2eConfMap.put(lineToHump(key), e2eConf.get(key));
+            if (!e2eAssertConfigLoader.poll(mysqlSupport)) {
+                return;
+            }
+            Map<String, Map<String, E2EAssertRule>> current = e2eAssertConfig;
+            Map<String, Map<String, E2EAssertRule>> next = Maps.newLinkedHashMap();
+            for (Map<String, Object> e2eConf : e2eAssertConfigLoader.rows()) {
+                Map<String, Object> e2eConfMap = toHump(e2eConf);
+                if (e2eConfMap.isEmpty()) {
+                    continue;
                 }
                 String nodeId = (String) e2eConfMap.get("nodeId");
                 String assertCode = (String) e2eConfMap.get("assertCode");
-                doE2eAssertConfig(nodeId, assertCode, e2eConfMap);
-                newNodeIdAssertCodeList.add(nodeId + "#" + assertCode);
-            }
-            //老的有，新的没有，表示已被删除
-            Set<String> allNodeIdList = new HashSet<>();
-            e2eAssertConfig.forEach((k, v) -> {
-                String nodeId = k;
-                if (MapUtils.isNotEmpty(v)) {
-                    Set<String> assertCodeSet = v.keySet();
-                    assertCodeSet.forEach(assertCode -> allNodeIdList.add(nodeId + "#" + assertCode));
-                }
-            });
-            List<String> deletedNodeIdList = (List<String>) CollectionUtils.subtract(allNodeIdList,
-                    newNodeIdAssertCodeList);
-            if (CollectionUtils.isNotEmpty(deletedNodeIdList)) {
-                for (String nodeIdAndAssertCode : deletedNodeIdList) {
-                    String[] nodeIdAndAssertCodes = nodeIdAndAssertCode.split("#");
-                    String nodeId = nodeIdAndAssertCodes[0];
-                    String assertCode = nodeIdAndAssertCodes[1];
-                    e2eAssertConfig.get(nodeId).remove(assertCode);
-                    if (MapUtils.isEmpty(e2eAssertConfig.get(nodeId))) {
-                        e2eAssertConfig.remove(nodeId);
-                    }
+                Rule rule = getRuleByAssertConf(e2eConfMap);
+                E2EAssertRule assertRule = current.getOrDefault(nodeId, Collections.emptyMap()).get(assertCode);
+                // 规则未变化时沿用原对象，不重复预处理，执行统计也保留
+                if (assertRule == null || !assertRule.sameDefinition(rule)) {
+                    assertRule = new E2EAssertRule(assertCode, rule);
                 }
+                next.computeIfAbsent(nodeId, k -> new HashMap<>()).put(assertCode, assertRule);
             }
+            for (Map.Entry<String, Map<String, E2EAssertRule>> entry : next.entrySet()) {
+                entry.setValue(Collections.unmodifiableMap(entry.getValue()));
+            }
+            e2eAssertConfig = Collections.unmodifiableMap(next);
         } catch (Exception e) {
             logger.error("Query linkId configuration faild.", e);
         }
     }
 
-    private void doE2eNodeConfig(String nodeId, Map<String, Object> e2eConf) {
-        if (e2eConf == null || e2eConf.isEmpty()) {
-            return;
-        }
-        e2eConfig.put(nodeId, e2eConf);
-    }
-
-    private void doE2eAssertConfig(String nodeId, String assertCode, Map<String, Object> e2eConf) {
-        if (e2eConf == null || e2eConf.isEmpty()) {
-            return;
-        }
-        if (!e2eAssertConfig.containsKey(nodeId)) {
-            e2eAssertConfig.put(nodeId, new HashMap<>());
+    private static Map<String, Object> toHump(Map<String, Object> row) {
+        Map<String, Object> result = Maps.newHashMapWithExpectedSize(row.size());
+        for (Map.Entry<String, Object> entry : row.entrySet()) {
+            result.put(lineToHump(entry.getKey()), entry.getValue());
         }
-        e2eAssertConfig.get(nodeId).put(assertCode, getRuleByAssertConf(e2eConf));
+        return result;
     }
 
-    public LinkedHashMap<String, Map<String, Object>> getE2eNodeConfig() {
+    /**
+     * @return 当前快照，不可修改
+     */
+    public Map<String, Map<String, Object>> getE2eNodeConfig() {
         return e2eConfig;
     }
 
-    public LinkedHashMap<String, Map<String, Rule>> getE2eAssertConfig() {
+    /**
+     * @return 当前快照，不可修改
+     */
+    public Map<String, Map<String, E2EAssertRule>> getE2eAssertConfig() {
         return e2eAssertConfig;
     }
 
+    /**
+     * 所有断言规则的执行统计
+     *
+     * @return
+     */
+    public List<E2EAssertRule> getAssertRules() {
+        List<E2EAssertRule> rules = new ArrayList<>();
+        for (Map<String, E2EAssertRule> nodeRules : e2eAssertConfig.values()) {
+            rules.addAll(nodeRules.values());
+        }
+        return rules;
+    }
+
+    /**
+     * 输出耗时最多的规则，以及所有暂停中的规则
+     */
+    private void logRuleStats() {
+        try {
+            List<E2EAssertRule> rules = getAssertRules();
+            if (rules.isEmpty()) {
+                return;
+            }
+            rules.sort((a, b) -> Long.compare(b.getTotalNanos(), a.getTotalNanos()));
+            StringBuilder appender = new StringBuilder(256);
+            appender.append("e2e assert rule stats, total ").append(rules.size());
+            for (int i = 0; i < Math.min(10, rules.size()); i++) {
+                appender.append("\n  ").append(rules.get(i));
+            }
+            int suspended = 0;
+            for (E2EAssertRule rule : rules) {
+                if (rule.isSuspended()) {
+                    if (suspended++ == 0) {
+                        appender.append("\nsuspended rules:");
+                    }
+                    appender.append("\n  ").append(rule);
+                }
+            }
+            logger.info(appender.toString());
+        } catch (Throwable e) {
+            logger.error("log rule stats failed", e);
+        }
+    }
+
     private static Pattern linePattern = Pattern.compile("_(\\w)");
 
     /**
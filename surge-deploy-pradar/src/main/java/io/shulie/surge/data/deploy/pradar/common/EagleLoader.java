@@ -1,15 +1,15 @@
 package io.shulie.surge.data.deploy.pradar.common;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import io.shulie.surge.data.sink.mysql.MysqlSupport;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
@@ -18,42 +18,59 @@ import java.util.concurrent.TimeUnit;
  */
 @Singleton
 public class EagleLoader {
+    private static final Logger logger = LoggerFactory.getLogger(EagleLoader.class);
+
+    /**
+     * 边集合快照，每次刷新整体替换，读路径无锁
+     */
+    private volatile Md5IdSet edges = Md5IdSet.EMPTY;
     /**
-     * 边缓存
+     * 上一次被替换掉的快照，已经过了一个刷新周期，读线程不会再持有它，下次刷新复用它的堆外存储
      */
-    private Cache<String, String> cache = CacheBuilder.newBuilder().maximumSize(30000).expireAfterWrite(1, TimeUnit.HOURS).build();
+    private Md5IdSet retired;
 
     @Inject
     private MysqlSupport mysqlSupport;
 
-    private static final String QUERY_LINK_CONFIG = "select link_id from t_amdb_pradar_link_config";
+    /**
+     * 边集合是否放在堆外，边数量较大时可以减少 GC 压力
+     */
+    @Inject
+    @DefaultValue("false")
+    @Named("/pradar/config/rt/eagleOffHeap")
+    private Remote<Boolean> offHeap;
 
-    private static final String QUERY_LINK_EDGE = "select edge_id from t_amdb_pradar_link_edge where link_id='%s' " +
-            " and gmt_modify >DATE_ADD(NOW(), INTERVAL -1440 MINUTE) " +
-            " order by gmt_modify desc";
+    /**
+     * 一次性拉取所有已配置链路下最近一天活跃的边，替代逐个链路查询
+     */
+    private static final String QUERY_LINK_EDGE = "select distinct e.edge_id from t_amdb_pradar_link_edge e " +
+            " inner join t_amdb_pradar_link_config c on e.link_id = c.link_id " +
+            " where e.gmt_modify >DATE_ADD(NOW(), INTERVAL -1440 MINUTE)";
 
     public void init() {
-        Executors.newScheduledThreadPool(1).scheduleAtFixedRate(() -> initConfig(), 0, 5, TimeUnit.MINUTES);
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("EagleLoader-%d").setDaemon(true).build())
+                .scheduleAtFixedRate(() -> initConfig(), 0, 5, TimeUnit.MINUTES);
     }
 
     private void initConfig() {
         try {
-            // 获取所有链路配置
-            List<Map<String, Object>> linkConfigList = mysqlSupport.queryForList(QUERY_LINK_CONFIG);
-            if (CollectionUtils.isNotEmpty(linkConfigList)) {
-                linkConfigList.stream().forEach(linkConfig -> {
-                    Object linkId = linkConfig.get("link_id");
-                    List<Map<String, Object>> edgeList = mysqlSupport.queryForList(String.format(QUERY_LINK_EDGE, linkId));
-                    if (CollectionUtils.isNotEmpty(edgeList)) {
-                        edgeList.stream().forEach(edge -> {
-                            String edgeId = String.valueOf(edge.get("edge_id"));
-                            this.cache.put(edgeId, edgeId);
-                        });
-                    }
-                });
-            }
+            long start = System.currentTimeMillis();
+            Md5IdSet.Builder builder = new Md5IdSet.Builder(edges.size());
+            mysqlSupport.query(QUERY_LINK_EDGE, rs -> {
+                String edgeId = rs.getString(1);
+                if (edgeId != null) {
+                    builder.add(edgeId);
+                }
+            });
+            Md5IdSet snapshot = builder.build(Boolean.TRUE.equals(offHeap.get()), retired);
+            Md5IdSet previous = this.edges;
+            this.edges = snapshot;
+            retired = previous;
+            logger.info("eagle edges refreshed, size={}, direct={}, cost={}ms", snapshot.size(), snapshot.isDirect(),
+                    System.currentTimeMillis() - start);
         } catch (Throwable e) {
-            e.printStackTrace();
+            // 刷新失败保留上一次的快照
+            logger.error("eagle edges refresh failed, keep last snapshot size={}", edges.size(), e);
         }
     }
 
@@ -61,14 +78,6 @@ public class EagleLoader {
      * 此边是否需要统计流量
      */
     public boolean contains(String key) {
-        try {
-            String value = this.cache.getIfPresent(key);
-            if (StringUtils.isNotBlank(value)) {
-                return true;
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return false;
+        return edges.contains(key);
     }
 }
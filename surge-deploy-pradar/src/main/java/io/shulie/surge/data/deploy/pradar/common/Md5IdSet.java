@@ -0,0 +1,228 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 只读的 md5 编号集合，每个 32 位小写十六进制编号存成两个 long，开放寻址线性探测
+ * <p>
+ * 整个集合只有一块连续存储，可放在堆外，百万级编号也不会给 gc 带来压力。
+ * 不是 md5 格式的编号单独放在一个普通集合里。构建后不可修改，刷新时整体替换；
+ * 堆外存储可以在确认不再被读取后交给下一次构建复用，见 {@link Builder#build(boolean, Md5IdSet)}
+ *
+ * @author pamirs
+ */
+public final class Md5IdSet {
+
+    public static final Md5IdSet EMPTY = new Builder(0).build(false);
+
+    /**
+     * 复用的存储超过所需容量这么多倍时不再复用，避免数量下降后长期占着大块堆外内存
+     */
+    private static final int MAX_REUSE_FACTOR = 4;
+
+    /**
+     * 槽位交替存放高 64 位与低 64 位，(0, 0) 表示空槽
+     */
+    private final LongBuffer slots;
+    private final int mask;
+    private final int size;
+    private final boolean containsZero;
+    private final Set<String> others;
+
+    private Md5IdSet(LongBuffer slots, int mask, int size, boolean containsZero, Set<String> others) {
+        this.slots = slots;
+        this.mask = mask;
+        this.size = size;
+        this.containsZero = containsZero;
+        this.others = others;
+    }
+
+    public boolean contains(String id) {
+        if (id == null) {
+            return false;
+        }
+        if (!isMd5(id)) {
+            return others.contains(id);
+        }
+        long high = parseHex(id, 0);
+        long low = parseHex(id, 16);
+        if (high == 0 && low == 0) {
+            return containsZero;
+        }
+        int index = hash(high, low) & mask;
+        while (true) {
+            long h = slots.get(index << 1);
+            long l = slots.get((index << 1) + 1);
+            if (h == 0 && l == 0) {
+                return false;
+            }
+            if (h == high && l == low) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 是否存放在堆外
+     */
+    public boolean isDirect() {
+        return slots.isDirect();
+    }
+
+    /**
+     * @return 槽位数
+     */
+    int capacity() {
+        return mask + 1;
+    }
+
+    static int hash(long high, long low) {
+        long h = high * 0x9E3779B97F4A7C15L ^ low;
+        h ^= h >>> 32;
+        return (int) (h ^ (h >>> 16));
+    }
+
+    /**
+     * @return 是否为 32 位小写十六进制
+     */
+    private static boolean isMd5(String id) {
+        if (id.length() != 32) {
+            return false;
+        }
+        for (int i = 0; i < 32; i++) {
+            char c = id.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseHex(String id, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            char c = id.charAt(i);
+            value = (value << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+        }
+        return value;
+    }
+
+    /**
+     * 构建器，先收集编号再一次性按实际数量分配存储
+     */
+    public static final class Builder {
+        private long[] pairs;
+        private int count;
+        private boolean containsZero;
+        private final Set<String> others = new HashSet<>();
+
+        public Builder(int expectedSize) {
+            this.pairs = new long[Math.max(16, expectedSize * 2)];
+        }
+
+        public Builder add(String id) {
+            if (id == null) {
+                return this;
+            }
+            if (!isMd5(id)) {
+                others.add(id);
+                return this;
+            }
+            long high = parseHex(id, 0);
+            long low = parseHex(id, 16);
+            if (high == 0 && low == 0) {
+                containsZero = true;
+                return this;
+            }
+            if (count * 2 + 2 > pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[count * 2] = high;
+            pairs[count * 2 + 1] = low;
+            count++;
+            return this;
+        }
+
+        /**
+         * @param direct 是否分配在堆外
+         * @return
+         */
+        public Md5IdSet build(boolean direct) {
+            return build(direct, null);
+        }
+
+        /**
+         * @param direct  是否分配在堆外
+         * @param recycle 不再被任何线程读取的旧集合，容量合适时直接复用它的堆外存储，之后不能再使用它
+         * @return
+         */
+        public Md5IdSet build(boolean direct, Md5IdSet recycle) {
+            // 负载因子不超过 0.75
+            int capacity = Integer.highestOneBit(Math.max(16, (int) (count * 4L / 3) + 1) - 1) << 1;
+            LongBuffer slots;
+            if (direct && recycle != null && recycle.slots.isDirect() && recycle.capacity() >= capacity
+                    && recycle.capacity() / MAX_REUSE_FACTOR <= capacity) {
+                capacity = recycle.capacity();
+                slots = recycle.slots;
+                for (int i = 0; i < capacity * 2; i++) {
+                    slots.put(i, 0L);
+                }
+            } else {
+                slots = direct
+                        ? ByteBuffer.allocateDirect(capacity * 16).asLongBuffer()
+                        : LongBuffer.wrap(new long[capacity * 2]);
+            }
+            int mask = capacity - 1;
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                long high = pairs[i * 2];
+                long low = pairs[i * 2 + 1];
+                int index = hash(high, low) & mask;
+                while (true) {
+                    long h = slots.get(index << 1);
+                    long l = slots.get((index << 1) + 1);
+                    if (h == 0 && l == 0) {
+                        slots.put(index << 1, high);
+                        slots.put((index << 1) + 1, low);
+                        size++;
+                        break;
+                    }
+                    if (h == high && l == low) {
+                        break;
+                    }
+                    index = (index + 1) & mask;
+                }
+            }
+            if (containsZero) {
+                size++;
+            }
+            return new Md5IdSet(slots, mask, size + others.size(), containsZero, ImmutableSet.copyOf(others));
+        }
+    }
+}
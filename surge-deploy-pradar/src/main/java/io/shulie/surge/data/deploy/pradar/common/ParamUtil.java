@@ -48,6 +48,10 @@ public class ParamUtil {
     public static final String EXTERNAL_ALIAS_FILE_KEY = "-DExternal.alias.file";
     //配置storm任务拓扑名称
     public static final String TOPOLOGY_NAME = "-DTopologyName=";
+    // 不依赖storm启动时本地reduce的线程数,大于0时在本进程内计算trace指标 -DReducers=4
+    public static final String REDUCERS = "-DReducers=";
+    // trace日志处理器的ringbuffer分片数,按traceId分片,默认1 -DShards=4
+    public static final String SHARDS = "-DShards=";
 
     /**
      * 读取系统参数，是否设置ip映射
@@ -81,6 +85,10 @@ public class ParamUtil {
                     conf.put(ParamUtil.PORTS, param.replace(ParamUtil.PORTS, ""));
                 } else if (param.startsWith(ParamUtil.TOPOLOGY_NAME)) {
                     conf.put(ParamUtil.TOPOLOGY_NAME, param.replace(ParamUtil.TOPOLOGY_NAME, ""));
+                } else if (param.startsWith(ParamUtil.REDUCERS)) {
+                    conf.put(ParamUtil.REDUCERS, param.replace(ParamUtil.REDUCERS, ""));
+                } else if (param.startsWith(ParamUtil.SHARDS)) {
+                    conf.put(ParamUtil.SHARDS, param.replace(ParamUtil.SHARDS, ""));
                 } else if (param.startsWith(ParamUtil.GENERAL_VERSION)) {
                     //禁止该参数作用
                 } else if (param.startsWith("-D")) {
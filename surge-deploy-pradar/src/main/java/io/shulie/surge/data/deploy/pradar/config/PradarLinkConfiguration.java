@@ -16,12 +16,13 @@
 package io.shulie.surge.data.deploy.pradar.config;
 
 import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.shulie.surge.data.common.aggregation.Scheduler;
 import io.shulie.surge.data.deploy.pradar.common.DataBootstrapEnhancer;
 import io.shulie.surge.data.deploy.pradar.common.ParamUtil;
 import io.shulie.surge.data.deploy.pradar.common.PradarStormConfigHolder;
 import io.shulie.surge.data.deploy.pradar.link.AbstractLinkCache;
+import io.shulie.surge.data.deploy.pradar.link.LinkTaskMembership;
+import io.shulie.surge.data.deploy.pradar.link.LinkTaskScheduler;
 import io.shulie.surge.data.deploy.pradar.link.processor.*;
 import io.shulie.surge.data.runtime.common.DataBootstrap;
 import io.shulie.surge.data.runtime.common.DataRuntime;
@@ -30,7 +31,6 @@ import io.shulie.surge.data.sink.clickhouse.ClickHouseModule;
 import io.shulie.surge.data.sink.mysql.MysqlModule;
 import io.shulie.surge.deploy.pradar.common.CommonStat;
 import org.apache.commons.lang3.exception.ExceptionUtils;
-import org.apache.commons.lang3.time.DateFormatUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,8 +38,6 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class PradarLinkConfiguration {
@@ -56,6 +54,11 @@ public class PradarLinkConfiguration {
 
     private static String defaultTaskId = "1";
 
+    /**
+     * 链路梳理任务并行度，任务以查询为主，按 cpu 核数的两倍
+     */
+    private static int linkTaskParallelism = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
     public PradarLinkConfiguration() {
     }
 
@@ -87,64 +90,35 @@ public class PradarLinkConfiguration {
             ApiProcessor apiProcessor = dataRuntime.getInstance(ApiProcessor.class);
             apiProcessor.init();
 
+            // 注册到 zk，按存活实例构建一致性哈希环分配任务
+            LinkTaskMembership linkTaskMembership = dataRuntime.getInstance(LinkTaskMembership.class);
+            linkTaskMembership.start(currentTaskId, allTaskIds);
+
+            LinkTaskScheduler linkTaskScheduler = new LinkTaskScheduler(linkTaskParallelism);
+
             /**
              * 链路梳理任务，此功能是将配置了业务活动的入口，梳理其链路图
              */
-            ScheduledExecutorService linkScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LinkProcessor-%d").build());
             LinkProcessor linkProcessor = dataRuntime.getInstance(LinkProcessor.class);
             linkProcessor.init(dataSourceType);
-            linkScheduledExecutorService.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        linkProcessor.share(allTaskIds, currentTaskId);
-                    } catch (Exception e) {
-                        logger.error("do link task error!", e);
-                    }
-                }
-            }, defaultDelayTime, periodTime, TimeUnit.SECONDS);
+            linkTaskScheduler.scheduleAtFixedRate("LinkProcessor", linkProcessor,
+                    () -> linkProcessor.share(allTaskIds, currentTaskId), defaultDelayTime, periodTime, TimeUnit.SECONDS);
 
             /**
              * 链路入口梳理
              */
-            ScheduledExecutorService entranceScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("EntranceProcessor-%d").build());
             EntranceProcessor entranceProcessor = dataRuntime.getInstance(EntranceProcessor.class);
             entranceProcessor.init(dataSourceType);
-            entranceScheduledExecutorService.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        logger.info("EntranceProcessor start run:{}", DateFormatUtils.format(
-                                System.currentTimeMillis(), "yyyy-MM-dd HH:mm:ss"));
-                        entranceProcessor.share(allTaskIds, currentTaskId);
-                        logger.info("EntranceProcessor run finish:{}", DateFormatUtils.format(
-                                System.currentTimeMillis(), "yyyy-MM-dd HH:mm:ss"));
-                    } catch (Throwable e) {
-                        logger.error("do link_entrance task error!", e);
-                    }
-                }
-            }, defaultDelayTime, periodTime, TimeUnit.SECONDS);
+            linkTaskScheduler.scheduleAtFixedRate("EntranceProcessor", entranceProcessor,
+                    () -> entranceProcessor.share(allTaskIds, currentTaskId), defaultDelayTime, periodTime, TimeUnit.SECONDS);
 
             /**
              * 链路出口(远程调用)梳理
              */
-            ScheduledExecutorService exitScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ExitProcessor-%d").build());
             ExitProcessor exitProcessor = dataRuntime.getInstance(ExitProcessor.class);
             exitProcessor.init(dataSourceType);
-            exitScheduledExecutorService.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        logger.info("ExitProcessor start run:{}", DateFormatUtils.format(
-                                System.currentTimeMillis(), "yyyy-MM-dd HH:mm:ss"));
-                        exitProcessor.share(allTaskIds, currentTaskId);
-                        logger.info("ExitProcessor run finish:{}", DateFormatUtils.format(
-                                System.currentTimeMillis(), "yyyy-MM-dd HH:mm:ss"));
-                    } catch (Throwable e) {
-                        logger.error("do link_exit task error!", e);
-                    }
-                }
-            }, defaultDelayTime, periodTime, TimeUnit.SECONDS);
+            linkTaskScheduler.scheduleAtFixedRate("ExitProcessor", exitProcessor,
+                    () -> exitProcessor.share(allTaskIds, currentTaskId), defaultDelayTime, periodTime, TimeUnit.SECONDS);
 
             scheduler.scheduleAtFixedRate(new Runnable() {
                 @Override
@@ -161,18 +135,10 @@ public class PradarLinkConfiguration {
             // 影子库表梳理
             ShadowDatabaseProcessor shadowDatabaseProcessor = dataRuntime.getInstance(ShadowDatabaseProcessor.class);
             shadowDatabaseProcessor.init(dataSourceType);
-            scheduler.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        shadowDatabaseProcessor.share(allTaskIds, currentTaskId);
-                    } catch (Throwable e) {
-                        logger.error("do shadow_database task error!", e);
-                    }
-                }
-            }, defaultDelayTime, periodTime, TimeUnit.SECONDS);
+            linkTaskScheduler.scheduleAtFixedRate("ShadowDatabaseProcessor", shadowDatabaseProcessor,
+                    () -> shadowDatabaseProcessor.share(allTaskIds, currentTaskId), defaultDelayTime, periodTime, TimeUnit.SECONDS);
 
-            processUnknow(dataRuntime, linkProcessor.getLinkCache(), allTaskIds, currentTaskId);
+            processUnknow(dataRuntime, linkTaskScheduler, linkProcessor.getLinkCache(), allTaskIds, currentTaskId);
         } catch (Exception e) {
             logger.error("Build task error.", e);
         }
@@ -194,37 +160,19 @@ public class PradarLinkConfiguration {
      *
      * @param dataRuntime
      */
-    private void processUnknow(DataRuntime dataRuntime, AbstractLinkCache linkCache, List<String> allTaskIds, String currentTaskId) {
+    private void processUnknow(DataRuntime dataRuntime, LinkTaskScheduler linkTaskScheduler, AbstractLinkCache linkCache, List<String> allTaskIds, String currentTaskId) {
         try {
             LinkUnKnowNodeProcessor linkUnKnowNodeProcessor = dataRuntime.getInstance(LinkUnKnowNodeProcessor.class);
             linkUnKnowNodeProcessor.init(dataSourceType);
             linkUnKnowNodeProcessor.setLinkCache(linkCache);
-            ScheduledExecutorService linkUnKnowNodeExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("linkUnKnowNodeProcessor-%d").build());
-            linkUnKnowNodeExecutorService.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        linkUnKnowNodeProcessor.share(allTaskIds, currentTaskId);
-                    } catch (Exception e) {
-                        logger.error("do link task error!", e);
-                    }
-                }
-            }, defaultDelayTime, periodTime, TimeUnit.SECONDS);
+            linkTaskScheduler.scheduleAtFixedRate("LinkUnKnowNodeProcessor", linkUnKnowNodeProcessor,
+                    () -> linkUnKnowNodeProcessor.share(allTaskIds, currentTaskId), defaultDelayTime, periodTime, TimeUnit.SECONDS);
 
             LinkUnKnowMQProcessor linkUnKnownMqProcessor = dataRuntime.getInstance(LinkUnKnowMQProcessor.class);
             linkUnKnownMqProcessor.setLinkCache(linkCache);
-            ScheduledExecutorService linkUnKnownMqService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LinkUnKnowMQProcessor-%d").build());
             linkUnKnownMqProcessor.init();
-            linkUnKnownMqService.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        linkUnKnownMqProcessor.share(allTaskIds, currentTaskId);
-                    } catch (Exception e) {
-                        logger.error("do link task error!", e);
-                    }
-                }
-            }, defaultDelayTime, periodTime * 10, TimeUnit.SECONDS);
+            linkTaskScheduler.scheduleAtFixedRate("LinkUnKnowMQProcessor", linkUnKnownMqProcessor,
+                    () -> linkUnKnownMqProcessor.share(allTaskIds, currentTaskId), defaultDelayTime, periodTime * 10, TimeUnit.SECONDS);
 
             /**
              * 未知清理
@@ -232,17 +180,8 @@ public class PradarLinkConfiguration {
             LinkUnKnowNodeCleanProcessor linkUnKnowNodeCleanProcessor = dataRuntime.getInstance(LinkUnKnowNodeCleanProcessor.class);
             linkUnKnowNodeCleanProcessor.init();
             linkUnKnowNodeCleanProcessor.setLinkCache(linkCache);
-            ScheduledExecutorService linkUnKnowNodeCleanExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LinkUnKnowNodeCleanProcessor-%d").build());
-            linkUnKnowNodeCleanExecutorService.scheduleAtFixedRate(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        linkUnKnowNodeCleanProcessor.share(allTaskIds, currentTaskId);
-                    } catch (Exception e) {
-                        logger.error("do link task error!", e);
-                    }
-                }
-            }, 0, 5, TimeUnit.HOURS);
+            linkTaskScheduler.scheduleAtFixedRate("LinkUnKnowNodeCleanProcessor", linkUnKnowNodeCleanProcessor,
+                    () -> linkUnKnowNodeCleanProcessor.share(allTaskIds, currentTaskId), 0, 5, TimeUnit.HOURS);
 
         } catch (Throwable e) {
             logger.error("process unknow error" + ExceptionUtils.getStackTrace(e));
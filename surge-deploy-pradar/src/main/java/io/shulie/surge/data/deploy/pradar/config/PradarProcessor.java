@@ -18,13 +18,22 @@ package io.shulie.surge.data.deploy.pradar.config;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.pamirs.pradar.log.parser.DataType;
+import com.pamirs.pradar.log.parser.trace.RpcBased;
 import com.pamirs.pradar.logger.Logger;
 import com.pamirs.pradar.logger.LoggerFactory;
+import io.shulie.surge.data.common.utils.ByteLineScanner;
 import io.shulie.surge.data.deploy.pradar.parser.PradarPaserFactory;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import io.shulie.surge.data.runtime.digest.DigestContext;
 import io.shulie.surge.data.runtime.parser.DataParser;
+import io.shulie.surge.data.runtime.processor.AdmissionController;
 import io.shulie.surge.data.runtime.processor.DefaultProcessor;
+import io.shulie.surge.data.runtime.processor.ProcessorConfigSpec;
+import io.shulie.surge.data.runtime.processor.WaitStrategies;
 
 import java.util.List;
 import java.util.Map;
@@ -40,6 +49,47 @@ public class PradarProcessor extends DefaultProcessor<String, DigestContext> {
 
     public static final String DATA_TYPE = "dataType";
 
+    /**
+     * 过载时的丢弃梯度，先丢弃的在前
+     */
+    @Inject
+    @DefaultValue("trace-sampled,agent,trace,monitor")
+    @Named("/pradar/config/rt/admission/ladder")
+    private Remote<String> admissionLadder;
+
+    /**
+     * 不丢弃的类别，错误链路和指标数据量小、价值高
+     */
+    @Inject
+    @DefaultValue("trace-error,metrics")
+    @Named("/pradar/config/rt/admission/kept")
+    private Remote<String> admissionKept;
+
+    /**
+     * 开始丢弃时的 ringbuffer 占用率
+     */
+    @Inject
+    @DefaultValue("0.5")
+    @Named("/pradar/config/rt/admission/shedStartRate")
+    private Remote<Double> admissionShedStartRate;
+
+    /**
+     * 积压排空时间达到该值时全部梯度丢弃，单位毫秒
+     */
+    @Inject
+    @DefaultValue("10000")
+    @Named("/pradar/config/rt/admission/maxDrainMillis")
+    private Remote<Long> admissionMaxDrainMillis;
+
+    /**
+     * ringbuffer 等待策略，逗号分隔的 processor=策略，不带 processor 的一项对所有 processor 生效，
+     * 如 trace-log=adaptive,sleeping，processor 重启后生效
+     */
+    @Inject
+    @DefaultValue("sleeping")
+    @Named("/pradar/config/rt/processor/waitStrategy")
+    private Remote<String> waitStrategy;
+
     /**
      * 获取解析器
      *
@@ -52,6 +102,77 @@ public class PradarProcessor extends DefaultProcessor<String, DigestContext> {
         return PradarPaserFactory.getParser(dataType);
     }
 
+    /**
+     * 按日志类型分类，trace 日志再区分错误和采样
+     *
+     * @param context
+     * @return
+     */
+    @Override
+    protected String classify(DigestContext<DigestContext> context) {
+        Object dataType = context.getHeader().get(DATA_TYPE);
+        // 泛型参数只是占位，content 实际是各类日志的解析结果
+        Object content = context.getContent();
+        if (DataType.METRICS_LOG.equals(dataType)) {
+            return "metrics";
+        } else if (DataType.MONITOR_LOG.equals(dataType)) {
+            return "monitor";
+        } else if (DataType.AGENT_LOG.equals(dataType)) {
+            return "agent";
+        } else if (DataType.TRACE_LOG.equals(dataType) && content instanceof RpcBased) {
+            RpcBased rpcBased = (RpcBased) content;
+            String resultCode = rpcBased.getResultCode();
+            if (resultCode != null && !resultCode.isEmpty() && !"00".equals(resultCode) && !"200".equals(resultCode)) {
+                return "trace-error";
+            }
+            return rpcBased.getSamplingInterval() > 1 ? "trace-sampled" : "trace";
+        }
+        return AdmissionController.DEFAULT_CLASS;
+    }
+
+    /**
+     * trace 日志按 traceId 分片，同一条链路的日志由同一个分片处理
+     *
+     * @param context
+     * @return
+     */
+    @Override
+    protected int partition(DigestContext<DigestContext> context) {
+        Object content = context.getContent();
+        if (content instanceof RpcBased && ((RpcBased) content).getTraceId() != null) {
+            return ((RpcBased) content).getTraceId().hashCode();
+        }
+        return super.partition(context);
+    }
+
+    /**
+     * 没有注入时使用 {@link AdmissionController} 的默认配置
+     *
+     * @param admissionController
+     */
+    @Override
+    protected void configureAdmission(AdmissionController admissionController) {
+        if (admissionLadder == null) {
+            return;
+        }
+        admissionController.configure(admissionLadder.get(), admissionKept.get(),
+                admissionShedStartRate.get().floatValue(), admissionMaxDrainMillis.get());
+    }
+
+    /**
+     * 没有注入时使用 {@link ProcessorConfigSpec#getWaitStrategy}
+     *
+     * @param processorConfig
+     * @return
+     */
+    @Override
+    protected String waitStrategy(ProcessorConfigSpec processorConfig) {
+        if (waitStrategy == null) {
+            return super.waitStrategy(processorConfig);
+        }
+        return WaitStrategies.select(waitStrategy.get(), processorConfig.getName(), super.waitStrategy(processorConfig));
+    }
+
     @Override
     public List<String> splitLog(String content, Byte dataType) {
 //        logger.info("recevie log {}", content);
@@ -64,6 +185,10 @@ public class PradarProcessor extends DefaultProcessor<String, DigestContext> {
         return Lists.newArrayList(iterator);
     }
 
+    @Override
+    protected byte[] lineDelimiter(Byte dataType) {
+        return dataType.equals(DataType.AGENT_LOG) ? ByteLineScanner.LF : ByteLineScanner.CRLF;
+    }
 
     /**
      * 移除延迟数据
@@ -15,13 +15,18 @@
 
 package io.shulie.surge.data.deploy.pradar.config;
 
+import com.google.inject.Inject;
 import io.shulie.surge.data.common.factory.GenericFactory;
+import io.shulie.surge.data.runtime.common.DataRuntime;
 import io.shulie.surge.data.runtime.processor.ProcessorConfigSpec;
 
 /**
  * @author vincent
  */
 public class PradarProcessorGenericFactory implements GenericFactory<PradarProcessor, ProcessorConfigSpec<PradarProcessor>> {
+    @Inject
+    private DataRuntime runtime;
+
     /**
      * 按照参数配置来创建 T
      *
@@ -33,6 +38,7 @@ public class PradarProcessorGenericFactory implements GenericFactory<PradarProce
     public PradarProcessor create(ProcessorConfigSpec spec) throws Exception {
         PradarProcessor processor = new PradarProcessor();
         processor.setProcessorConfig(spec);
+        runtime.inject(processor);
         return processor;
     }
 }
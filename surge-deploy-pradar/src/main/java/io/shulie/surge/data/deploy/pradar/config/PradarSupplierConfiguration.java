@@ -23,6 +23,7 @@ import io.shulie.surge.data.deploy.pradar.common.DataBootstrapEnhancer;
 import io.shulie.surge.data.deploy.pradar.common.ParamUtil;
 import io.shulie.surge.data.deploy.pradar.digester.AgentInfoDigester;
 import io.shulie.surge.data.deploy.pradar.digester.BaseDataDigester;
+import io.shulie.surge.data.deploy.pradar.digester.LinkTopologyDigester;
 import io.shulie.surge.data.deploy.pradar.digester.LogDigester;
 import io.shulie.surge.data.deploy.pradar.digester.MetricsDigester;
 import io.shulie.surge.data.runtime.common.DataBootstrap;
@@ -147,7 +148,10 @@ public class PradarSupplierConfiguration {
     public DataDigester[] buildTraceLogProcess(DataRuntime dataRuntime) {
         LogDigester logDigester = dataRuntime.getInstance(LogDigester.class);
         logDigester.setDataSourceType(this.dataSourceType);
-        return new DataDigester[]{logDigester};
+        LinkTopologyDigester linkTopologyDigester = dataRuntime.getInstance(LinkTopologyDigester.class);
+        linkTopologyDigester.setDataSourceType(this.dataSourceType);
+        linkTopologyDigester.init();
+        return new DataDigester[]{logDigester, linkTopologyDigester};
     }
 
 
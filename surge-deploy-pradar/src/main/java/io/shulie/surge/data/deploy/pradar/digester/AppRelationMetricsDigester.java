@@ -15,6 +15,7 @@
 
 package io.shulie.surge.data.deploy.pradar.digester;
 
+import com.google.inject.name.Named;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
 import io.shulie.surge.data.common.aggregation.AggregateSlot;
 import io.shulie.surge.data.common.aggregation.DefaultAggregator;
@@ -26,6 +27,8 @@ import io.shulie.surge.data.deploy.pradar.common.PradarRtConstant;
 import io.shulie.surge.data.deploy.pradar.listener.AppRelationMetricsResultListener;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParser;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParserFactory;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import io.shulie.surge.data.runtime.digest.DataDigester;
 import io.shulie.surge.data.runtime.digest.DigestContext;
 import org.apache.commons.lang3.ObjectUtils;
@@ -35,7 +38,6 @@ import org.slf4j.LoggerFactory;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 import static io.shulie.surge.data.deploy.pradar.common.PradarRtConstant.AGG_TRACE_SECONDS_INTERVAL;
 import static io.shulie.surge.data.deploy.pradar.common.PradarRtConstant.AGG_TRACE_SECONDS_LOWER_LIMIT;
@@ -53,23 +55,29 @@ public class AppRelationMetricsDigester implements DataDigester<RpcBased> {
     private AppRelationMetricsResultListener appRelationMetricsResultListener;
 
     @Inject
-    private AppConfigUtil appConfigUtil;
+    @DefaultValue("1")
+    @Named("/pradar/config/rt/appRelationDigesterThreadCount")
+    private Remote<Integer> threadCount;
 
-    private transient AtomicBoolean isRunning = new AtomicBoolean(false);
+    @Inject
+    private AppConfigUtil appConfigUtil;
 
-    private DefaultAggregator defaultAggregator;
+    private volatile DefaultAggregator defaultAggregator;
 
     private Scheduler scheduler = new Scheduler(1);
 
     @Override
     public void digest(DigestContext<RpcBased> context) {
-        if (!isRunning.get()) {
-            if (isRunning.compareAndSet(false, true)) {
-                try {
-                    defaultAggregator = new DefaultAggregator(AGG_TRACE_SECONDS_INTERVAL, AGG_TRACE_SECONDS_LOWER_LIMIT, scheduler);
-                    defaultAggregator.start();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+        if (defaultAggregator == null) {
+            synchronized (this) {
+                if (defaultAggregator == null) {
+                    try {
+                        DefaultAggregator aggregator = new DefaultAggregator(AGG_TRACE_SECONDS_INTERVAL, AGG_TRACE_SECONDS_LOWER_LIMIT, scheduler);
+                        aggregator.start();
+                        defaultAggregator = aggregator;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
                 }
             }
         }
@@ -106,7 +114,7 @@ public class AppRelationMetricsDigester implements DataDigester<RpcBased> {
 
     @Override
     public int threadCount() {
-        return 1;
+        return Math.max(1, threadCount.get());
     }
 
     @Override
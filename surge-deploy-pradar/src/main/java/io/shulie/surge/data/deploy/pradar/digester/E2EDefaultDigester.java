@@ -17,22 +17,25 @@ package io.shulie.surge.data.deploy.pradar.digester;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.pamirs.pradar.log.parser.constant.TenantConstants;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
 import io.shulie.pradar.log.rule.RuleFactory;
-import io.shulie.pradar.log.rule.RuleFactory.Rule;
 import io.shulie.surge.data.common.aggregation.AggregateSlot;
 import io.shulie.surge.data.common.aggregation.DefaultAggregator;
 import io.shulie.surge.data.common.aggregation.Scheduler;
 import io.shulie.surge.data.common.aggregation.metrics.CallStat;
 import io.shulie.surge.data.common.aggregation.metrics.Metric;
 import io.shulie.surge.data.deploy.pradar.common.AppConfigUtil;
+import io.shulie.surge.data.deploy.pradar.common.E2EAssertRule;
 import io.shulie.surge.data.deploy.pradar.common.E2ENodeCache;
 import io.shulie.surge.data.deploy.pradar.common.PradarRtConstant;
 import io.shulie.surge.data.deploy.pradar.listener.E2EMetricsResultListener;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParser;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParserFactory;
 import io.shulie.surge.data.deploy.pradar.parser.utils.Md5Utils;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import io.shulie.surge.data.runtime.common.utils.ApiProcessor;
 import io.shulie.surge.data.runtime.digest.DataDigester;
 import io.shulie.surge.data.runtime.digest.DigestContext;
@@ -46,7 +49,6 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 @Singleton
 public class E2EDefaultDigester implements DataDigester<RpcBased> {
@@ -59,25 +61,33 @@ public class E2EDefaultDigester implements DataDigester<RpcBased> {
     @Inject
     private AppConfigUtil appConfigUtil;
 
+    @Inject
+    @DefaultValue("1")
+    @Named("/pradar/config/rt/e2eDigesterThreadCount")
+    private Remote<Integer> threadCount;
+
     @Inject
     private E2EMetricsResultListener e2EMetricsResultListener;
 
     private E2ENodeCache e2eNodeCache = new E2ENodeCache();
 
-    private transient AtomicBoolean isRunning = new AtomicBoolean(false);
-
-    private DefaultAggregator defaultAggregator;
+    private volatile DefaultAggregator defaultAggregator;
 
     private Scheduler scheduler = new Scheduler(1);
 
     @Override
     public void digest(DigestContext<RpcBased> context) {
-        if (isRunning.compareAndSet(false, true)) {
-            try {
-                defaultAggregator = new DefaultAggregator(5, 60, scheduler);
-                defaultAggregator.start();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        if (defaultAggregator == null) {
+            synchronized (this) {
+                if (defaultAggregator == null) {
+                    try {
+                        DefaultAggregator aggregator = new DefaultAggregator(5, 60, scheduler);
+                        aggregator.start();
+                        defaultAggregator = aggregator;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
             }
         }
 
@@ -104,7 +114,7 @@ public class E2EDefaultDigester implements DataDigester<RpcBased> {
             return;
         }
         // 断言列表
-        Map<String, Rule> nodeAssertListMap = e2eNodeCache.getE2eAssertConfig().get(nodeId);
+        Map<String, E2EAssertRule> nodeAssertListMap = e2eNodeCache.getE2eAssertConfig().get(nodeId);
         long timeStamp = rpcBased.getLogTime();
         AggregateSlot<Metric, CallStat> slot = defaultAggregator.getSlotByTimestamp(timeStamp);
 
@@ -129,19 +139,11 @@ public class E2EDefaultDigester implements DataDigester<RpcBased> {
         try {
             // 断言判定
             if (MapUtils.isNotEmpty(nodeAssertListMap)) {
-                for (String assertCode : nodeAssertListMap.keySet()) {
-                    Rule rule = nodeAssertListMap.get(assertCode);
-                    try {
-                        if (Boolean.parseBoolean(String
-                                .valueOf(
-                                        RuleFactory.INSTANCE.eval("node", rpcBased, rule.getRuleType(),
-                                                rule.getCondition().replaceAll("@node", "node"))))) {
-                            exceptionTypeList.add("assertCode-" + assertCode);
-                        }
-                    } catch (Throwable e) {
-                        logger.error("rule " + rule.toString());
+                for (Map.Entry<String, E2EAssertRule> entry : nodeAssertListMap.entrySet()) {
+                    // 规则单独计时，异常和超时由规则自身记录并熔断
+                    if (entry.getValue().evaluate(rpcBased)) {
+                        exceptionTypeList.add("assertCode-" + entry.getKey());
                     }
-
                 }
             }
             // 是否压测流量
@@ -179,7 +181,7 @@ public class E2EDefaultDigester implements DataDigester<RpcBased> {
 
     @Override
     public int threadCount() {
-        return 1;
+        return Math.max(1, threadCount.get());
     }
 
     @Override
@@ -190,10 +192,12 @@ public class E2EDefaultDigester implements DataDigester<RpcBased> {
     }
 
     private String getNodeId(String parsedAppName, String parsedServiceName, String parsedMethod, String rpcType) {
-        return Md5Utils.md5(parsedAppName + "|" + parsedServiceName + "|" + parsedMethod + "|" + rpcType);
+        return Md5Utils.hasher().append(parsedAppName).append('|').append(parsedServiceName).append('|')
+                .append(parsedMethod).append('|').append(rpcType).hex();
     }
 
     public void init() {
+        appConfigUtil.start();
         e2eNodeCache.autoRefresh(mysqlSupport);
         RuleFactory.INSTANCE.regsiterVariant(new Class[]{RpcBased.class}, new String[]{"node"});
         logger.info("e2eNodeCache:{}", e2eNodeCache);
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.digester;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.pamirs.pradar.log.parser.constant.TenantConstants;
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.deploy.pradar.link.model.LinkEdgeModel;
+import io.shulie.surge.data.deploy.pradar.link.model.LinkNodeModel;
+import io.shulie.surge.data.deploy.pradar.link.processor.LinkProcessor;
+import io.shulie.surge.data.deploy.pradar.parser.MiddlewareType;
+import io.shulie.surge.data.deploy.pradar.parser.PradarLogType;
+import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParser;
+import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParserFactory;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
+import io.shulie.surge.data.runtime.common.utils.ApiProcessor;
+import io.shulie.surge.data.runtime.digest.DataDigester;
+import io.shulie.surge.data.runtime.digest.DigestContext;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于实时 trace 日志增量梳理业务活动链路图
+ * <p>
+ * 按 traceId 把日志暂存一个窗口（见 {@link TraceWindows}），窗口结束后如果命中了业务活动入口，
+ * 就按 {@link LinkProcessor#getTraceLog} 相同的规则截取入口下游的日志做链路分析，
+ * 只把内存中尚未出现过的节点和边写入 t_amdb_pradar_link_node/t_amdb_pradar_link_edge，
+ * 不再需要回查 t_trace_all。已知节点和边定期清空，保证 gmt_modify 被刷新。
+ * 链路配置只在开启实时梳理后才开始定时刷新
+ *
+ * @author pamirs
+ */
+@Singleton
+public class LinkTopologyDigester implements DataDigester<RpcBased> {
+    private static final Logger logger = LoggerFactory.getLogger(LinkTopologyDigester.class);
+
+    @Inject
+    private LinkProcessor linkProcessor;
+
+    @Inject
+    @Named("config.link.trace.query.limit")
+    private String traceQueryLimit;
+
+    @Inject
+    @DefaultValue("true")
+    @Named("/pradar/config/rt/linkTopology/streamEnable")
+    private Remote<Boolean> streamEnable;
+
+    /**
+     * trace 最后一条日志到达后等待的时间，单位秒
+     */
+    @Inject
+    @DefaultValue("10")
+    @Named("/pradar/config/rt/linkTopology/windowSeconds")
+    private Remote<Integer> windowSeconds;
+
+    /**
+     * 同时暂存的 trace 数上限，超过后只接收已暂存 trace 和入口日志
+     */
+    @Inject
+    @DefaultValue("20000")
+    @Named("/pradar/config/rt/linkTopology/maxTraces")
+    private Remote<Integer> maxTraces;
+
+    /**
+     * 每个业务活动每轮最多分析的 trace 数
+     */
+    @Inject
+    @DefaultValue("2")
+    @Named("/pradar/config/rt/linkTopology/tracesPerLink")
+    private Remote<Integer> tracesPerLink;
+
+    /**
+     * 已写入的节点和边的保留时间，到期后重新写入一次，单位分钟
+     */
+    @Inject
+    @DefaultValue("10")
+    @Named("/pradar/config/rt/linkTopology/resyncMinutes")
+    private Remote<Integer> resyncMinutes;
+
+    private final TraceWindows traces = new TraceWindows();
+
+    /**
+     * 只在刷新线程中访问
+     */
+    private final Map<String, KnownTopology> knownTopologies = new HashMap<>();
+
+    private volatile EntranceIndex entranceIndex = new EntranceIndex(Collections.emptyMap());
+
+    private ScheduledExecutorService flushExecutor;
+
+    private volatile boolean initialized = false;
+
+    private long lastDropLogTime;
+
+    private String dataSourceType;
+
+    private int spanLimit = 500;
+
+    /**
+     * 在构建 digester 时调用，链路配置的定时刷新推迟到开启实时梳理后由刷新线程启动
+     */
+    public synchronized void init() {
+        if (initialized) {
+            return;
+        }
+        linkProcessor.init(dataSourceType, false);
+        spanLimit = NumberUtils.toInt(traceQueryLimit, 500);
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("LinkTopology-%d").setDaemon(true).build());
+        flushExecutor.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+        initialized = true;
+    }
+
+    @Override
+    public void digest(DigestContext<RpcBased> context) {
+        if (!initialized || !streamEnable.get()) {
+            return;
+        }
+        RpcBased rpcBased = context.getContent();
+        if (rpcBased == null || StringUtils.isBlank(rpcBased.getTraceId()) || rpcBased.getRpcId() == null) {
+            return;
+        }
+        try {
+            EntranceIndex index = entranceIndex();
+            if (index.isEmpty()) {
+                return;
+            }
+            List<String> linkIds = index.match(rpcBased);
+            traces.add(rpcBased.getTraceId(), rpcBased, linkIds, spanLimit, maxTraces.get(), System.currentTimeMillis());
+        } catch (Throwable e) {
+            logger.warn("link topology digest fail, traceId:{}", rpcBased.getTraceId(), e);
+        }
+    }
+
+    private EntranceIndex entranceIndex() {
+        Map<String, Map<String, Object>> linkConfig = linkProcessor.getLinkCache().getLinkConfig();
+        EntranceIndex index = entranceIndex;
+        if (index.source != linkConfig) {
+            index = new EntranceIndex(linkConfig);
+            entranceIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * 处理窗口已结束的 trace
+     */
+    private void flush() {
+        try {
+            if (!streamEnable.get()) {
+                return;
+            }
+            linkProcessor.startLinkCacheRefresh();
+            long now = System.currentTimeMillis();
+            long window = TimeUnit.SECONDS.toMillis(windowSeconds.get());
+            Map<String, Map<String, Object>> linkConfig = linkProcessor.getLinkCache().getLinkConfig();
+            Map<String, Integer> analyzed = new HashMap<>();
+            for (TraceWindows.ExpiredTrace trace : traces.expire(now, window)) {
+                for (int i = 0; i < trace.entrances.size(); i++) {
+                    String linkId = trace.linkIds.get(i);
+                    Map<String, Object> config = linkConfig.get(linkId);
+                    if (config == null || analyzed.merge(linkId, 1, Integer::sum) > tracesPerLink.get()) {
+                        continue;
+                    }
+                    try {
+                        analyze(linkId, config, trace.traceId, trace.entrances.get(i), trace.spans, now);
+                    } catch (Throwable e) {
+                        logger.error("link topology analyze fail, linkId:{}, traceId:{}", linkId, trace.traceId, e);
+                    }
+                }
+            }
+            if (now - lastDropLogTime >= TimeUnit.MINUTES.toMillis(1)) {
+                lastDropLogTime = now;
+                long dropped = traces.drainDroppedSpans();
+                if (dropped > 0) {
+                    logger.warn("link topology window full, maxTraces:{}, traces:{}, dropped spans in last minute:{}",
+                            maxTraces.get(), traces.size(), dropped);
+                }
+            }
+            long resync = TimeUnit.MINUTES.toMillis(resyncMinutes.get());
+            knownTopologies.entrySet().removeIf(entry -> !linkConfig.containsKey(entry.getKey()) || now - entry.getValue().createTime > resync);
+        } catch (Throwable e) {
+            logger.error("link topology flush fail", e);
+        }
+    }
+
+    private void analyze(String linkId, Map<String, Object> linkConfig, String traceId, RpcBased entrance, List<RpcBased> spans, long now) {
+        String entranceRpcId = entrance.getRpcId();
+        Set<String> filterTakinApps = linkProcessor.filterTakinApps(String.valueOf(linkConfig.get("appName")));
+        List<RpcBased> topology = new ArrayList<>();
+        for (RpcBased span : spans) {
+            if (!filterTakinApps.isEmpty() && (filterTakinApps.contains(StringUtils.lowerCase(span.getAppName()))
+                    || filterTakinApps.contains(StringUtils.lowerCase(span.getUpAppName())))) {
+                continue;
+            }
+            // 针对MQ类型的,由于生产和消费的日志rpcId都一致,当设置消费者为入口时,需要把生产者的日志过滤掉
+            if (span.getLogType() == PradarLogType.LOG_TYPE_FLOW_ENGINE || (span.getRpcType() == MiddlewareType.TYPE_MQ
+                    && span.getRpcId().equals(entranceRpcId) && span.getLogType() == PradarLogType.LOG_TYPE_RPC_CLIENT)) {
+                continue;
+            }
+            if (span == entrance || (span.getRpcId().startsWith(entranceRpcId) && span.getLogType() != PradarLogType.LOG_TYPE_TRACE)) {
+                topology.add(span);
+            }
+        }
+        //当选择的入口rpcId不为0时,且当前节点为最后一个节点,此时链路图不会展示,需要兼容这种情况
+        if (topology.isEmpty()) {
+            topology.add(entrance);
+        }
+        Map<String, String> traceFilter = Collections.singletonMap(traceId, entranceRpcId + "#" + entrance.getLogType());
+        Pair<Set<LinkNodeModel>, Set<LinkEdgeModel>> linkPair = linkProcessor.linkAnalysis(linkId, linkConfig, topology, traceFilter);
+        if (linkPair.getLeft().isEmpty() || linkPair.getRight().isEmpty()) {
+            return;
+        }
+        KnownTopology known = knownTopologies.computeIfAbsent(linkId, k -> new KnownTopology(now));
+        List<LinkNodeModel> nodes = new ArrayList<>();
+        for (LinkNodeModel node : linkPair.getLeft()) {
+            if (!known.nodeIds.contains(node.getAppId())) {
+                nodes.add(node);
+            }
+        }
+        List<LinkEdgeModel> edges = new ArrayList<>();
+        for (LinkEdgeModel edge : linkPair.getRight()) {
+            if (!known.edgeIds.contains(edge.getEdgeId())) {
+                edges.add(edge);
+            }
+        }
+        if (nodes.isEmpty() && edges.isEmpty()) {
+            return;
+        }
+        linkProcessor.saveNodes(nodes);
+        linkProcessor.saveEdges(edges);
+        nodes.forEach(node -> known.nodeIds.add(node.getAppId()));
+        edges.forEach(edge -> known.edgeIds.add(edge.getEdgeId()));
+        logger.info("link topology delta saved, linkId:{}, traceId:{}, nodes:{}, edges:{}", linkId, traceId, nodes.size(), edges.size());
+    }
+
+    @Override
+    public int threadCount() {
+        return 1;
+    }
+
+    @Override
+    public void stop() {
+        if (flushExecutor != null) {
+            flushExecutor.shutdown();
+        }
+    }
+
+    public void setDataSourceType(String dataSourceType) {
+        this.dataSourceType = dataSourceType;
+    }
+
+    /**
+     * 已写入的节点和边
+     */
+    private static final class KnownTopology {
+        private final long createTime;
+        private final Set<String> nodeIds = new HashSet<>();
+        private final Set<String> edgeIds = new HashSet<>();
+
+        KnownTopology(long createTime) {
+            this.createTime = createTime;
+        }
+    }
+
+    /**
+     * 业务活动入口索引，key 与 t_trace_all 中 appName/parsedServiceName/parsedMethod/rpcType/userAppKey/envCode 对应
+     */
+    private static final class EntranceIndex {
+        private final Map<String, Map<String, Object>> source;
+        private final Set<String> appNames = new HashSet<>();
+        private final Map<String, List<String>> linkIds = new HashMap<>();
+
+        EntranceIndex(Map<String, Map<String, Object>> source) {
+            this.source = source;
+            for (Map.Entry<String, Map<String, Object>> entry : source.entrySet()) {
+                Map<String, Object> config = entry.getValue();
+                String appName = String.valueOf(config.get("appName"));
+                appNames.add(appName);
+                String key = key(appName, String.valueOf(config.get("service")), String.valueOf(config.get("method")),
+                        String.valueOf(config.get("rpcType")), String.valueOf(config.get("userAppKey")), String.valueOf(config.get("envCode")));
+                linkIds.computeIfAbsent(key, k -> new ArrayList<>(1)).add(entry.getKey());
+            }
+        }
+
+        boolean isEmpty() {
+            return linkIds.isEmpty();
+        }
+
+        /**
+         * @return 以该日志为入口的业务活动，未命中返回 null
+         */
+        List<String> match(RpcBased rpcBased) {
+            if (!appNames.contains(rpcBased.getAppName())) {
+                return null;
+            }
+            RpcBasedParser rpcBasedParser = RpcBasedParserFactory.getInstance(rpcBased.getLogType(), rpcBased.getRpcType());
+            if (rpcBasedParser == null) {
+                return null;
+            }
+            String userAppKey = rpcBased.getUserAppKey();
+            if (StringUtils.isBlank(userAppKey) || TenantConstants.DEFAULT_USER_APP_KEY.equals(userAppKey)) {
+                userAppKey = ApiProcessor.getTenantConfigByAppName(rpcBased.getAppName()).get("tenantAppKey");
+            }
+            String envCode = rpcBased.getEnvCode();
+            if (StringUtils.isBlank(envCode)) {
+                envCode = ApiProcessor.getTenantConfigByAppName(rpcBased.getAppName()).get("envCode");
+            }
+            return linkIds.get(key(rpcBased.getAppName(), rpcBasedParser.serviceParse(rpcBased), rpcBasedParser.methodParse(rpcBased),
+                    String.valueOf(rpcBased.getRpcType()), userAppKey, envCode));
+        }
+
+        private static String key(String appName, String service, String method, String rpcType, String userAppKey, String envCode) {
+            return appName + '|' + service + '|' + method + '|' + rpcType + '|' + userAppKey + '|' + envCode;
+        }
+    }
+}
@@ -17,7 +17,6 @@ package io.shulie.surge.data.deploy.pradar.digester;
 
 import com.google.common.cache.*;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
@@ -35,6 +34,7 @@ import io.shulie.surge.data.runtime.common.utils.ApiProcessor;
 import io.shulie.surge.data.runtime.digest.DataDigester;
 import io.shulie.surge.data.runtime.digest.DigestContext;
 import io.shulie.surge.data.sink.clickhouse.ClickHouseShardSupport;
+import io.shulie.surge.data.sink.clickhouse.RowBinaryTable;
 import io.shulie.surge.data.sink.mysql.MysqlSupport;
 import io.shulie.surge.deploy.pradar.common.CommonStat;
 import org.apache.commons.lang3.StringUtils;
@@ -43,9 +43,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 日志原文按插入顺序直接存储-写入ClickHouse
@@ -76,6 +74,19 @@ public class LogDigester implements DataDigester<RpcBased> {
     @Named("/pradar/config/rt/clickhouseSampling")
     private Remote<Integer> clickhouseSampling;
 
+    @Inject
+    @DefaultValue("1")
+    @Named("/pradar/config/rt/logDigesterThreadCount")
+    private Remote<Integer> threadCount;
+
+    /**
+     * trace 日志按 RowBinary 格式经 HTTP 接口写入 clickhouse，关闭时走 jdbc
+     */
+    @Inject
+    @DefaultValue("false")
+    @Named("/pradar/config/rt/clickhouseRowBinaryEnable")
+    private Remote<Boolean> rowBinaryEnable;
+
     //同时最多1000个报告,2分钟后没有数据写入则过期
     private static Cache<String, Long> taskIds = CacheBuilder.newBuilder().maximumSize(1000).expireAfterWrite(2, TimeUnit.MINUTES).removalListener(new RemovalListener<String, Long>() {
         @Override
@@ -86,15 +97,19 @@ public class LogDigester implements DataDigester<RpcBased> {
         }
     }).build();
 
-    private transient AtomicBoolean isRunning = new AtomicBoolean(false);
+    private volatile boolean initialized = false;
 
     private ClickhouseFacade clickhouseFacade = ClickhouseFacade.Factory.getInstace();
 
     private String sql = "";
     private String engineSql = "";
+    private RowBinaryTable traceTable;
 
 
-    public void init() {
+    public synchronized void init() {
+        if (initialized) {
+            return;
+        }
         String tableName = "t_trace_all";
         String engineTable = "t_trace_pressure";
         if (CommonStat.isUseCk(this.dataSourceType)) {
@@ -106,6 +121,8 @@ public class LogDigester implements DataDigester<RpcBased> {
         clickhouseFacade.addCommond(new FlagCommand());
         sql = "insert into " + tableName + " (" + clickhouseFacade.getCols() + ") values(" + clickhouseFacade.getParam() + ") ";
         engineSql = "insert into " + engineTable + " (" + clickhouseFacade.getCols() + ") values(" + clickhouseFacade.getParam() + ") ";
+        traceTable = new RowBinaryTable(tableName, clickhouseFacade.columns());
+        initialized = true;
     }
 
     @Override
@@ -113,7 +130,7 @@ public class LogDigester implements DataDigester<RpcBased> {
         if (clickhouseDisable.get()) {
             return;
         }
-        if (isRunning.compareAndSet(false, true)) {
+        if (!initialized) {
             init();
         }
         RpcBased rpcBased = context.getContent();
@@ -145,16 +162,20 @@ public class LogDigester implements DataDigester<RpcBased> {
                 rpcBased.setEnvCode(ApiProcessor.getTenantConfigByAppName(rpcBased.getAppName()).get("envCode"));
             }
 
-            List<Object[]> batchs = Lists.newArrayList();
-            batchs.add(clickhouseFacade.toObjects(clickhouseFacade.invoke(rpcBased)));
-            Map<String, List<Object[]>> objMap = Maps.newHashMap();
-            objMap.put(rpcBased.getTraceId(), batchs);
+            Object[] row = clickhouseFacade.toRow(rpcBased);
 
             // TODO 此修改支持mysql和clickhouse写入,代码不是很友好，后续剥离出来
             if (CommonStat.isUseCk(dataSourceType)) {
-
-                clickHouseShardSupport.batchUpdate(rpcBased.getLogType() == PradarLogType.LOG_TYPE_FLOW_ENGINE ? engineSql : sql, objMap);
+                if (rpcBased.getLogType() == PradarLogType.LOG_TYPE_FLOW_ENGINE) {
+                    clickHouseShardSupport.insert(engineSql, rpcBased.getTraceId(), row);
+                } else if (rowBinaryEnable.get()) {
+                    clickHouseShardSupport.insert(traceTable, rpcBased.getTraceId(), row);
+                } else {
+                    clickHouseShardSupport.insert(sql, rpcBased.getTraceId(), row);
+                }
             } else {
+                List<Object[]> batchs = Lists.newArrayList();
+                batchs.add(row);
                 mysqlSupport.batchUpdate(sql, batchs);
             }
         } catch (Throwable e) {
@@ -165,7 +186,7 @@ public class LogDigester implements DataDigester<RpcBased> {
 
     @Override
     public int threadCount() {
-        return 1;
+        return Math.max(1, threadCount.get());
     }
 
     @Override
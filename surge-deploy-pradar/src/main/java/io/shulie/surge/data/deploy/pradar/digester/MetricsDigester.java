@@ -32,7 +32,6 @@ import io.shulie.surge.data.runtime.digest.DigestContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * @Author: xingchen
@@ -53,11 +52,14 @@ public class MetricsDigester implements DataDigester<MetricsBased> {
     private Remote<Boolean> monitroDisable;
 
     @Inject
-    private MetricsResultListener metricsResultListener;
+    @DefaultValue("1")
+    @Named("/pradar/config/rt/metricsDigesterThreadCount")
+    private Remote<Integer> threadCount;
 
-    private transient AtomicBoolean isRunning = new AtomicBoolean(false);
+    @Inject
+    private MetricsResultListener metricsResultListener;
 
-    private DefaultAggregator defaultAggregator;
+    private volatile DefaultAggregator defaultAggregator;
 
     private Scheduler scheduler = new Scheduler(1);
 
@@ -66,12 +68,17 @@ public class MetricsDigester implements DataDigester<MetricsBased> {
         if (monitroDisable.get()) {
             return;
         }
-        if (isRunning.compareAndSet(false, true)) {
-            try {
-                defaultAggregator = new DefaultAggregator(5, 60, scheduler);
-                defaultAggregator.start();
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        if (defaultAggregator == null) {
+            synchronized (this) {
+                if (defaultAggregator == null) {
+                    try {
+                        DefaultAggregator aggregator = new DefaultAggregator(5, 60, scheduler);
+                        aggregator.start();
+                        defaultAggregator = aggregator;
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
             }
         }
         MetricsBased metricsBased = context.getContent();
@@ -98,7 +105,7 @@ public class MetricsDigester implements DataDigester<MetricsBased> {
 
     @Override
     public int threadCount() {
-        return 1;
+        return Math.max(1, threadCount.get());
     }
 
     @Override
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.digester;
+
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link LinkTopologyDigester} 按 traceId 暂存日志的窗口
+ * <p>
+ * 窗口到期时在窗口自身的锁内关闭，并原子地换成一个只带入口信息的新窗口，
+ * 之后到达的日志写入新窗口，在后续轮次单独分析，不会写进已经取走的旧窗口而丢失。
+ * 没有命中入口的 trace 只保留一个窗口，避免占满暂存上限
+ *
+ * @author pamirs
+ */
+final class TraceWindows {
+
+    /**
+     * 持续有日志的长 trace 最多等待的窗口数
+     */
+    static final int MAX_WINDOWS = 3;
+
+    private final ConcurrentHashMap<String, TraceWindow> traces = new ConcurrentHashMap<>();
+    private final LongAdder droppedSpans = new LongAdder();
+
+    /**
+     * @param traceId
+     * @param rpcBased
+     * @param linkIds   以该日志为入口的业务活动，未命中为 null
+     * @param spanLimit 单个窗口最多暂存的日志数
+     * @param maxTraces 同时暂存的 trace 数上限，超过后只接收已暂存 trace 和入口日志
+     * @param now
+     * @return 是否暂存
+     */
+    boolean add(String traceId, RpcBased rpcBased, List<String> linkIds, int spanLimit, int maxTraces, long now) {
+        while (true) {
+            TraceWindow window = traces.get(traceId);
+            if (window == null) {
+                if (linkIds == null && traces.size() >= maxTraces) {
+                    droppedSpans.increment();
+                    return false;
+                }
+                window = traces.computeIfAbsent(traceId, k -> new TraceWindow(now, now, null, null));
+            }
+            if (window.add(rpcBased, linkIds, spanLimit, now)) {
+                return true;
+            }
+            // 窗口刚被关闭，此时已被换成新窗口或移除，重新获取
+        }
+    }
+
+    /**
+     * 取出到期的窗口
+     *
+     * @param now
+     * @param window 窗口长度，单位毫秒
+     * @return 到期且命中入口的 trace
+     */
+    List<ExpiredTrace> expire(long now, long window) {
+        List<ExpiredTrace> expired = new ArrayList<>();
+        Iterator<Map.Entry<String, TraceWindow>> iterator = traces.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, TraceWindow> entry = iterator.next();
+            ExpiredTrace trace = entry.getValue().close(entry.getKey(), now, window, traces);
+            if (trace != null) {
+                expired.add(trace);
+            }
+        }
+        return expired;
+    }
+
+    int size() {
+        return traces.size();
+    }
+
+    /**
+     * @return 暂存已满被丢弃的日志数，读取后清零
+     */
+    long drainDroppedSpans() {
+        return droppedSpans.sumThenReset();
+    }
+
+    /**
+     * 已到期的 trace，列表不会再被修改
+     */
+    static final class ExpiredTrace {
+        final String traceId;
+        /**
+         * 命中的入口日志和对应的业务活动，两个列表一一对应
+         */
+        final List<RpcBased> entrances;
+        final List<String> linkIds;
+        final List<RpcBased> spans;
+
+        ExpiredTrace(String traceId, List<RpcBased> entrances, List<String> linkIds, List<RpcBased> spans) {
+            this.traceId = traceId;
+            this.entrances = entrances;
+            this.linkIds = linkIds;
+            this.spans = spans;
+        }
+    }
+
+    /**
+     * 单个 trace 的暂存窗口
+     */
+    private static final class TraceWindow {
+        private final long createTime;
+        private long lastUpdateTime;
+        private final List<RpcBased> spans = new ArrayList<>();
+        private List<RpcBased> entrances;
+        private List<String> linkIds;
+        private boolean closed;
+
+        TraceWindow(long createTime, long lastUpdateTime, List<RpcBased> entrances, List<String> linkIds) {
+            this.createTime = createTime;
+            this.lastUpdateTime = lastUpdateTime;
+            this.entrances = entrances;
+            this.linkIds = linkIds;
+        }
+
+        /**
+         * @return 窗口已关闭时返回 false，由调用方重新获取窗口
+         */
+        synchronized boolean add(RpcBased rpcBased, List<String> matchedLinkIds, int spanLimit, long now) {
+            if (closed) {
+                return false;
+            }
+            lastUpdateTime = now;
+            if (spans.size() < spanLimit) {
+                spans.add(rpcBased);
+            }
+            if (matchedLinkIds != null) {
+                if (entrances == null) {
+                    entrances = new ArrayList<>(2);
+                    linkIds = new ArrayList<>(2);
+                }
+                for (String linkId : matchedLinkIds) {
+                    entrances.add(rpcBased);
+                    linkIds.add(linkId);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 到期时关闭窗口，并在锁内把映射换成后续窗口或移除，写线程拿到锁时一定能看到新的映射
+         *
+         * @return 到期且有可分析的日志时返回其内容
+         */
+        synchronized ExpiredTrace close(String traceId, long now, long window,
+                                        ConcurrentHashMap<String, TraceWindow> traces) {
+            boolean capped = now - createTime >= window * MAX_WINDOWS;
+            if (entrances == null) {
+                // 没有命中入口，只保留一个窗口
+                if (now - createTime < window) {
+                    return null;
+                }
+            } else if (now - lastUpdateTime < window && !capped) {
+                return null;
+            }
+            closed = true;
+            if (entrances != null && !spans.isEmpty() && !capped) {
+                // 入口已经取走，后续窗口沿用入口信息，只接收之后到达的日志
+                traces.replace(traceId, this,
+                        new TraceWindow(createTime, now, new ArrayList<>(entrances), new ArrayList<>(linkIds)));
+            } else {
+                traces.remove(traceId, this);
+            }
+            if (entrances == null || spans.isEmpty()) {
+                return null;
+            }
+            return new ExpiredTrace(traceId, entrances, linkIds, spans);
+        }
+    }
+}
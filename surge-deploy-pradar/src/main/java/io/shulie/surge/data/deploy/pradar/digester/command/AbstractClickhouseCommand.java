@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.digester.command;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.sink.clickhouse.ClickHouseColumn;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 由列定义和 {@link #fill} 推导出 meta 和 action，保证 jdbc 写入与 RowBinary 写入的列顺序一致
+ *
+ * @author pamirs
+ */
+public abstract class AbstractClickhouseCommand implements ClickhouseCommand {
+
+    @Override
+    public LinkedHashSet<String> meta() {
+        LinkedHashSet<String> meta = Sets.newLinkedHashSet();
+        for (ClickHouseColumn column : columns()) {
+            meta.add(column.getName());
+        }
+        return meta;
+    }
+
+    @Override
+    public LinkedHashMap<String, Object> action(RpcBased rpcBased) {
+        List<ClickHouseColumn> columns = columns();
+        Object[] row = new Object[columns.size()];
+        fill(rpcBased, row, 0);
+        LinkedHashMap<String, Object> map = Maps.newLinkedHashMap();
+        for (int i = 0; i < row.length; i++) {
+            map.put(columns.get(i).getName(), row[i]);
+        }
+        return map;
+    }
+}
@@ -16,122 +16,122 @@
 package io.shulie.surge.data.deploy.pradar.digester.command;
 
 import com.alibaba.fastjson.JSON;
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.collect.ImmutableList;
 import com.pamirs.pradar.log.parser.constant.TenantConstants;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.sink.clickhouse.ClickHouseColumn;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 
 import java.util.Date;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
+
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.Type.*;
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.nullable;
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.of;
 
 /**
  * @author vincent
  */
-public class BaseCommand implements ClickhouseCommand {
+public class BaseCommand extends AbstractClickhouseCommand {
 
-    /**
-     * @return
-     */
-    public LinkedHashSet<String> meta() {
-        LinkedHashSet<String> meta = Sets.newLinkedHashSet();
-        meta.add("appName");
-        meta.add("entranceId");
-        meta.add("entranceNodeId");
-        meta.add("traceId");
-        meta.add("level");
-        meta.add("parentIndex");
-        meta.add("`index`");
-        meta.add("rpcId");
-        meta.add("rpcType");
-        meta.add("logType");
-        meta.add("traceAppName");
-        meta.add("upAppName");
-        meta.add("startTime");
-        meta.add("cost");
-        meta.add("middlewareName");
-        meta.add("serviceName");
-        meta.add("methodName");
-        meta.add("remoteIp");
-        meta.add("port");
-        meta.add("resultCode");
-        meta.add("requestSize");
-        meta.add("responseSize");
-        meta.add("request");
-        meta.add("response");
-        meta.add("clusterTest");
-        meta.add("callbackMsg");
-        meta.add("samplingInterval");
-        meta.add("localId");
-        meta.add("attributes");
-        meta.add("localAttributes");
-        meta.add("async");
-        meta.add("version");
-        meta.add("hostIp");
-        meta.add("agentId");
-        meta.add("startDate");
-        meta.add("receiveTime");
-        meta.add("processTime");
-        meta.add("uploadTime");
-        meta.add("receiveHttpTime");
-        meta.add("taskId");
+    private static final List<ClickHouseColumn> COLUMNS = ImmutableList.of(
+            of("appName", STRING),
+            nullable("entranceId", STRING),
+            nullable("entranceNodeId", STRING),
+            of("traceId", STRING),
+            nullable("level", INT8),
+            nullable("parentIndex", INT8),
+            nullable("`index`", INT8),
+            of("rpcId", STRING),
+            of("rpcType", INT8),
+            nullable("logType", INT8),
+            nullable("traceAppName", STRING),
+            nullable("upAppName", STRING),
+            of("startTime", INT64),
+            of("cost", INT32),
+            nullable("middlewareName", STRING),
+            nullable("serviceName", STRING),
+            nullable("methodName", STRING),
+            nullable("remoteIp", STRING),
+            nullable("port", INT32),
+            nullable("resultCode", STRING),
+            nullable("requestSize", STRING),
+            nullable("responseSize", STRING),
+            nullable("request", STRING),
+            nullable("response", STRING),
+            nullable("clusterTest", STRING),
+            nullable("callbackMsg", STRING),
+            nullable("samplingInterval", STRING),
+            nullable("localId", STRING),
+            nullable("attributes", STRING),
+            nullable("localAttributes", STRING),
+            nullable("async", STRING),
+            nullable("version", STRING),
+            nullable("hostIp", STRING),
+            nullable("agentId", STRING),
+            of("startDate", DATETIME),
+            nullable("receiveTime", INT64),
+            nullable("processTime", INT64),
+            nullable("uploadTime", INT64),
+            nullable("receiveHttpTime", INT64),
+            nullable("taskId", STRING),
 
-        meta.add("userAppKey");
-        meta.add("envCode");
-        meta.add("userId");
+            of("userAppKey", STRING),
+            of("envCode", STRING),
+            of("userId", STRING));
 
-        return meta;
+    @Override
+    public List<ClickHouseColumn> columns() {
+        return COLUMNS;
     }
 
     @Override
-    public LinkedHashMap<String, Object> action(RpcBased rpcBased) {
-        LinkedHashMap<String, Object> map = Maps.newLinkedHashMap();
-        map.put("appName", rpcBased.getAppName());
-        map.put("entranceId", rpcBased.getEntranceId());
-        map.put("entranceNodeId", rpcBased.getEntranceNodeId());
-        map.put("traceId", rpcBased.getTraceId());
-        map.put("level", rpcBased.getLevel());
-        map.put("parentIndex", rpcBased.getParentIndex());
-        map.put("index", rpcBased.getIndex());
-        map.put("rpcId", rpcBased.getRpcId());
-        map.put("rpcType", rpcBased.getRpcType());
-        map.put("logType", rpcBased.getLogType());
-        map.put("traceAppName", rpcBased.getTraceAppName());
-        map.put("upAppName", rpcBased.getUpAppName());
-        map.put("startTime", rpcBased.getStartTime());
-        map.put("cost", rpcBased.getCost());
-        map.put("middlewareName", rpcBased.getMiddlewareName());
-        map.put("serviceName", rpcBased.getServiceName());
-        map.put("methodName", rpcBased.getMethodName());
-        map.put("remoteIp", rpcBased.getRemoteIp());
-        map.put("port", NumberUtils.toInt(rpcBased.getPort(), 0));
-        map.put("resultCode", rpcBased.getResultCode());
-        map.put("requestSize", rpcBased.getRequestSize());
-        map.put("responseSize", rpcBased.getResponseSize());
-        map.put("request", rpcBased.getRequest());
-        map.put("response", rpcBased.getResponse());
-        map.put("clusterTest", rpcBased.isClusterTest());
-        map.put("callbackMsg", rpcBased.getCallbackMsg());
-        map.put("samplingInterval", rpcBased.getSamplingInterval());
-        map.put("localId", rpcBased.getLocalId());
-        map.put("attributes", JSON.toJSONString(rpcBased.getAttributes()));
-        map.put("localAttributes", JSON.toJSONString(rpcBased.getLocalAttributes()));
-        map.put("async", rpcBased.isAsync());
-        map.put("version", rpcBased.getVersion());
-        map.put("hostIp", rpcBased.getHostIp());
-        map.put("agentId", rpcBased.getAgentId());
-        map.put("startDate", new Date(rpcBased.getStartTime()));
-        map.put("receiveTime", rpcBased.getDataLogTime());
-        map.put("processTime", System.currentTimeMillis());
-        map.put("uploadTime", rpcBased.getUploadTime());
-        map.put("receiveHttpTime", rpcBased.getReceiveHttpTime());
-        map.put("taskId", rpcBased.getTaskId());
+    public void fill(RpcBased rpcBased, Object[] row, int offset) {
+        int i = offset;
+        row[i++] = rpcBased.getAppName();
+        row[i++] = rpcBased.getEntranceId();
+        row[i++] = rpcBased.getEntranceNodeId();
+        row[i++] = rpcBased.getTraceId();
+        row[i++] = rpcBased.getLevel();
+        row[i++] = rpcBased.getParentIndex();
+        row[i++] = rpcBased.getIndex();
+        row[i++] = rpcBased.getRpcId();
+        row[i++] = rpcBased.getRpcType();
+        row[i++] = rpcBased.getLogType();
+        row[i++] = rpcBased.getTraceAppName();
+        row[i++] = rpcBased.getUpAppName();
+        row[i++] = rpcBased.getStartTime();
+        row[i++] = rpcBased.getCost();
+        row[i++] = rpcBased.getMiddlewareName();
+        row[i++] = rpcBased.getServiceName();
+        row[i++] = rpcBased.getMethodName();
+        row[i++] = rpcBased.getRemoteIp();
+        row[i++] = NumberUtils.toInt(rpcBased.getPort(), 0);
+        row[i++] = rpcBased.getResultCode();
+        row[i++] = rpcBased.getRequestSize();
+        row[i++] = rpcBased.getResponseSize();
+        row[i++] = rpcBased.getRequest();
+        row[i++] = rpcBased.getResponse();
+        row[i++] = rpcBased.isClusterTest();
+        row[i++] = rpcBased.getCallbackMsg();
+        row[i++] = rpcBased.getSamplingInterval();
+        row[i++] = rpcBased.getLocalId();
+        row[i++] = JSON.toJSONString(rpcBased.getAttributes());
+        row[i++] = JSON.toJSONString(rpcBased.getLocalAttributes());
+        row[i++] = rpcBased.isAsync();
+        row[i++] = rpcBased.getVersion();
+        row[i++] = rpcBased.getHostIp();
+        row[i++] = rpcBased.getAgentId();
+        row[i++] = new Date(rpcBased.getStartTime());
+        row[i++] = rpcBased.getDataLogTime();
+        row[i++] = System.currentTimeMillis();
+        row[i++] = rpcBased.getUploadTime();
+        row[i++] = rpcBased.getReceiveHttpTime();
+        row[i++] = rpcBased.getTaskId();
 
-        map.put("userAppKey", rpcBased.getUserAppKey());
-        map.put("envCode", rpcBased.getEnvCode());
-        map.put("userId", StringUtils.isBlank(rpcBased.getUserId()) ? TenantConstants.DEFAULT_USERID : rpcBased.getUserId());
-        return map;
+        row[i++] = rpcBased.getUserAppKey();
+        row[i++] = rpcBased.getEnvCode();
+        row[i] = StringUtils.isBlank(rpcBased.getUserId()) ? TenantConstants.DEFAULT_USERID : rpcBased.getUserId();
     }
 }
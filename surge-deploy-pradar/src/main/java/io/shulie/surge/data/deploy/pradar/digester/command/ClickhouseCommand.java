@@ -16,9 +16,11 @@
 package io.shulie.surge.data.deploy.pradar.digester.command;
 
 import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.sink.clickhouse.ClickHouseColumn;
 
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 
 /**
  * @author vincent
@@ -29,4 +31,20 @@ public interface ClickhouseCommand {
 
     LinkedHashMap<String, Object> action(RpcBased rpcBased);
 
+    /**
+     * 列定义，顺序与 {@link #meta()} 一致
+     *
+     * @return
+     */
+    List<ClickHouseColumn> columns();
+
+    /**
+     * 按 {@link #columns()} 的顺序把值写入 row，不经过中间 map
+     *
+     * @param rpcBased
+     * @param row
+     * @param offset   起始下标
+     */
+    void fill(RpcBased rpcBased, Object[] row, int offset);
+
 }
@@ -20,6 +20,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.sink.clickhouse.ClickHouseColumn;
 
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -106,6 +107,42 @@ public class ClickhouseFacade {
         return keyValueMap.values().toArray();
     }
 
+    /**
+     * 所有命令的列定义，顺序与 {@link #getCols()} 一致
+     *
+     * @return
+     */
+    public List<ClickHouseColumn> columns() {
+        List<ClickHouseColumn> columns = Lists.newArrayList();
+        for (ClickhouseCommand command : commands) {
+            columns.addAll(command.columns());
+        }
+        return columns;
+    }
+
+    /**
+     * 直接生成一行的值，顺序与 {@link #getCols()} 一致，与 toObjects(invoke(rpcBased)) 等价但不构造中间 map
+     *
+     * @param rpcBased
+     * @return
+     */
+    public Object[] toRow(RpcBased rpcBased) {
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("Not add command.");
+        }
+        int size = 0;
+        for (ClickhouseCommand command : commands) {
+            size += command.columns().size();
+        }
+        Object[] row = new Object[size];
+        int offset = 0;
+        for (ClickhouseCommand command : commands) {
+            command.fill(rpcBased, row, offset);
+            offset += command.columns().size();
+        }
+        return row;
+    }
+
     /**
      * @author vincent
      */
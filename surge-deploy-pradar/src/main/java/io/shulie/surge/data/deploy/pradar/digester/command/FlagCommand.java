@@ -15,39 +15,41 @@
 
 package io.shulie.surge.data.deploy.pradar.digester.command;
 
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.collect.ImmutableList;
 import com.pamirs.pradar.log.parser.trace.AttachmentBased;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
 import io.shulie.surge.data.deploy.pradar.common.TraceFlagEnum;
+import io.shulie.surge.data.sink.clickhouse.ClickHouseColumn;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
 
-public class FlagCommand implements ClickhouseCommand {
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.Type.STRING;
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.nullable;
+
+public class FlagCommand extends AbstractClickhouseCommand {
     private static Logger logger = LoggerFactory.getLogger(FlagCommand.class);
 
+    private static final List<ClickHouseColumn> COLUMNS = ImmutableList.of(
+            nullable("flag", STRING),
+            nullable("flagMessage", STRING));
+
     @Override
-    public LinkedHashSet<String> meta() {
-        LinkedHashSet<String> linkedHashSet = Sets.newLinkedHashSet();
-        linkedHashSet.add("flag");
-        linkedHashSet.add("flagMessage");
-        return linkedHashSet;
+    public List<ClickHouseColumn> columns() {
+        return COLUMNS;
     }
 
     @Override
-    public LinkedHashMap<String, Object> action(RpcBased rpcBased) {
-        LinkedHashMap<String, Object> map = Maps.newLinkedHashMap();
-        map.put("flag", TraceFlagEnum.LOG_OK.getCode());
+    public void fill(RpcBased rpcBased, Object[] row, int offset) {
+        row[offset] = TraceFlagEnum.LOG_OK.getCode();
 
         //放入attachment
         AttachmentBased attachmentBased = rpcBased.getAttachmentBased();
         if (attachmentBased != null) {
-            map.put("flagMessage", attachmentBased.getTemplateId() + "@##" + attachmentBased.getExt());
+            row[offset + 1] = attachmentBased.getTemplateId() + "@##" + attachmentBased.getExt();
         } else {
-            map.put("flagMessage", "");
+            row[offset + 1] = "";
         }
         /*if (CollectionUtils.isNotEmpty(RuleLoader.flagRules)) {
             Map<String, Object> ctx = BeanMap.create(rpcBased);
@@ -72,6 +74,5 @@ public class FlagCommand implements ClickhouseCommand {
                 map.put("flagMessage", flagMessage.deleteCharAt(flagMessage.length() - 1));
             }
         }*/
-        return map;
     }
 }
@@ -15,69 +15,73 @@
 
 package io.shulie.surge.data.deploy.pradar.digester.command;
 
-import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
+import com.google.common.collect.ImmutableList;
 import com.pamirs.pradar.log.parser.trace.RpcBased;
 import io.shulie.surge.data.deploy.pradar.common.MiddlewareTypeEnum;
 import io.shulie.surge.data.deploy.pradar.parser.PradarLogType;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParser;
 import io.shulie.surge.data.deploy.pradar.parser.RpcBasedParserFactory;
+import io.shulie.surge.data.sink.clickhouse.ClickHouseColumn;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.List;
+
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.Type.INT64;
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.Type.STRING;
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.nullable;
+import static io.shulie.surge.data.sink.clickhouse.ClickHouseColumn.of;
+
+public class LinkCommand extends AbstractClickhouseCommand {
+
+    private static final List<ClickHouseColumn> COLUMNS = ImmutableList.of(
+            nullable("timeMin", INT64),
+            of("dateToMin", INT64),
+            of("parsedServiceName", STRING),
+            of("parsedMethod", STRING),
+            nullable("parsedAppName", STRING),
+            nullable("parsedExtend", STRING),
+            nullable("parsedMiddlewareName", STRING),
+            nullable("entranceServiceType", STRING));
 
-public class LinkCommand implements ClickhouseCommand {
     @Override
-    public LinkedHashSet<String> meta() {
-        LinkedHashSet<String> linkedHashSet = Sets.newLinkedHashSet();
-        linkedHashSet.add("timeMin");
-        linkedHashSet.add("dateToMin");
-        linkedHashSet.add("parsedServiceName");
-        linkedHashSet.add("parsedMethod");
-        linkedHashSet.add("parsedAppName");
-        linkedHashSet.add("parsedExtend");
-        linkedHashSet.add("parsedMiddlewareName");
-        linkedHashSet.add("entranceServiceType");
-        return linkedHashSet;
+    public List<ClickHouseColumn> columns() {
+        return COLUMNS;
     }
 
     @Override
-    public LinkedHashMap<String, Object> action(RpcBased rpcBased) {
+    public void fill(RpcBased rpcBased, Object[] row, int offset) {
         RpcBasedParser rpcBasedParser = RpcBasedParserFactory.getInstance(rpcBased.getLogType(), rpcBased.getRpcType());
-        LinkedHashMap<String, Object> map = Maps.newLinkedHashMap();
-        map.put("timeMin", rpcBased.getStartTime() / 1000 / 60);
-        map.put("dateToMin", rpcBased.getStartTime() / 1000 / 60 / 60 / 24);
+        row[offset] = rpcBased.getStartTime() / 1000 / 60;
+        row[offset + 1] = rpcBased.getStartTime() / 1000 / 60 / 60 / 24;
         if (rpcBasedParser != null) {
-            parse0(rpcBased, rpcBasedParser, map);
+            parse0(rpcBased, rpcBasedParser, row, offset + 2);
         } else {
-            parse1(rpcBased, map);
+            parse1(rpcBased, row, offset + 2);
         }
         // TODO 去掉
-        map.put("entranceServiceType", "");
-        return map;
+        row[offset + 7] = "";
     }
 
-    private void parse1(RpcBased rpcBased, LinkedHashMap<String, Object> map) {
+    private void parse1(RpcBased rpcBased, Object[] row, int offset) {
         //如果是压测引擎日志,且非http调用,如dubbo等rpc调用,赋值parsedService,parsedMethod
         if (rpcBased.getLogType() == PradarLogType.LOG_TYPE_FLOW_ENGINE) {
-            map.put("parsedServiceName", rpcBased.getServiceName());
-            map.put("parsedMethod", rpcBased.getMethodName());
-            map.put("parsedAppName", rpcBased.getAppName());
+            row[offset] = rpcBased.getServiceName();
+            row[offset + 1] = rpcBased.getMethodName();
+            row[offset + 2] = rpcBased.getAppName();
         } else {
-            map.put("parsedServiceName", "");
-            map.put("parsedMethod", "");
-            map.put("parsedAppName", "");
+            row[offset] = "";
+            row[offset + 1] = "";
+            row[offset + 2] = "";
         }
-        map.put("parsedExtend", "");
-        map.put("parsedMiddlewareName", "");
+        row[offset + 3] = "";
+        row[offset + 4] = "";
     }
 
-    private void parse0(RpcBased rpcBased, RpcBasedParser rpcBasedParser, LinkedHashMap<String, Object> map) {
-        map.put("parsedServiceName", StringUtils.defaultString(rpcBasedParser.serviceParse(rpcBased), ""));
-        map.put("parsedMethod", StringUtils.defaultString(rpcBasedParser.methodParse(rpcBased), ""));
-        map.put("parsedAppName", StringUtils.defaultString(rpcBasedParser.appNameParse(rpcBased), ""));
-        map.put("parsedExtend", StringUtils.defaultString(rpcBasedParser.extendParse(rpcBased), ""));
-        map.put("parsedMiddlewareName", MiddlewareTypeEnum.getNodeType(rpcBased.getMiddlewareName()).getType());
+    private void parse0(RpcBased rpcBased, RpcBasedParser rpcBasedParser, Object[] row, int offset) {
+        row[offset] = StringUtils.defaultString(rpcBasedParser.serviceParse(rpcBased), "");
+        row[offset + 1] = StringUtils.defaultString(rpcBasedParser.methodParse(rpcBased), "");
+        row[offset + 2] = StringUtils.defaultString(rpcBasedParser.appNameParse(rpcBased), "");
+        row[offset + 3] = StringUtils.defaultString(rpcBasedParser.extendParse(rpcBased), "");
+        row[offset + 4] = MiddlewareTypeEnum.getNodeType(rpcBased.getMiddlewareName()).getType();
     }
 }
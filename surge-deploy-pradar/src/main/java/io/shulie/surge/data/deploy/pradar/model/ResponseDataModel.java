@@ -10,6 +10,10 @@ public class ResponseDataModel {
     private long time;
     private String responseCode;
     private String responseMsg;
+    /**
+     * 建议客户端下次发送前等待的毫秒数，0 表示不需要等待
+     */
+    private long backoffMillis;
 
     public ResponseDataModel(String responseCode, String responseMsg) {
         this.responseCode = responseCode;
@@ -46,12 +50,21 @@ public class ResponseDataModel {
         this.responseMsg = responseMsg;
     }
 
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+
+    public void setBackoffMillis(long backoffMillis) {
+        this.backoffMillis = backoffMillis;
+    }
+
     @Override
     public String toString() {
         return "ResponseDataModel{" +
                 "time=" + time +
                 ", responseCode='" + responseCode + '\'' +
                 ", responseMsg='" + responseMsg + '\'' +
+                ", backoffMillis=" + backoffMillis +
                 '}';
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.parser;
+
+import io.shulie.surge.data.common.utils.Bytes;
+
+import java.util.Map;
+
+/**
+ * 字节日志行解码。协议解析器要求行尾带上 |hostIp|dataVersion，
+ * 后缀每个请求编码一次，每行在线程内缓冲区中拼接后只解码一次，得到的字符串即解析器的输入
+ *
+ * @author vincent
+ */
+final class PradarLogLines {
+
+    private static final String HEADER_DATA_VERSION = "dataVersion";
+    private static final String HEADER_HOST_IP = "hostIp";
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    private PradarLogLines() {
+    }
+
+    static String hostIp(Map<String, Object> header) {
+        return String.valueOf(header.getOrDefault(HEADER_HOST_IP, ""));
+    }
+
+    static String dataVersion(Map<String, Object> header) {
+        return String.valueOf(header.getOrDefault(HEADER_DATA_VERSION, "1.0"));
+    }
+
+    /**
+     * 请求级别的 |hostIp|dataVersion 后缀
+     */
+    static byte[] suffix(Map<String, Object> header) {
+        return ("|" + hostIp(header) + "|" + dataVersion(header)).getBytes(Bytes.UTF_8);
+    }
+
+    /**
+     * 解码一行日志，并追加后缀
+     *
+     * @param suffix {@link #suffix} 的结果
+     */
+    static String decode(byte[] body, int offset, int length, byte[] suffix) {
+        int size = length + suffix.length;
+        byte[] buffer = BUFFER.get();
+        if (buffer.length < size) {
+            buffer = new byte[Math.max(size, buffer.length << 1)];
+            BUFFER.set(buffer);
+        }
+        System.arraycopy(body, offset, buffer, 0, length);
+        System.arraycopy(suffix, 0, buffer, length, suffix.length);
+        return new String(buffer, 0, size, Bytes.UTF_8);
+    }
+}
@@ -18,6 +18,7 @@ package io.shulie.surge.data.deploy.pradar.parser;
 import com.pamirs.pradar.log.parser.ProtocolParserFactory;
 import com.pamirs.pradar.log.parser.metrics.MetricsBased;
 import io.shulie.surge.data.runtime.digest.DigestContext;
+import io.shulie.surge.data.runtime.parser.BytesDataParser;
 import io.shulie.surge.data.runtime.parser.DataParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,13 +28,10 @@ import java.util.Map;
 /**
  * @author vincent
  */
-public class PradarMetricsParser implements DataParser<String, MetricsBased> {
+public class PradarMetricsParser implements DataParser<String, MetricsBased>, BytesDataParser<MetricsBased> {
 
     private static final Logger logger = LoggerFactory.getLogger(PradarMetricsParser.class);
 
-    private static final String HEADER_DATA_VERSION = "dataVersion";
-    private static final String HEADER_HOST_IP = "hostIp";
-
     /**
      * 创建数据处理上下文
      *
@@ -43,9 +41,34 @@ public class PradarMetricsParser implements DataParser<String, MetricsBased> {
      */
     @Override
     public DigestContext<MetricsBased> createContext(Map<String, Object> header, String content) {
-        String dataVersion = String.valueOf(header.getOrDefault(HEADER_DATA_VERSION, "1.0"));
-        String hostIp = String.valueOf(header.getOrDefault(HEADER_HOST_IP, ""));
+        String dataVersion = PradarLogLines.dataVersion(header);
+        String hostIp = PradarLogLines.hostIp(header);
         content += '|' + hostIp + '|' + dataVersion;
+        return parse(header, hostIp, dataVersion, content);
+    }
+
+    @Override
+    public byte[] lineSuffix(Map<String, Object> header) {
+        return PradarLogLines.suffix(header);
+    }
+
+    /**
+     * 直接从请求体字节创建数据处理上下文
+     *
+     * @param header
+     * @param body
+     * @param offset
+     * @param length
+     * @param suffix
+     * @return
+     */
+    @Override
+    public DigestContext<MetricsBased> createContext(Map<String, Object> header, byte[] body, int offset, int length, byte[] suffix) {
+        String content = PradarLogLines.decode(body, offset, length, suffix);
+        return parse(header, PradarLogLines.hostIp(header), PradarLogLines.dataVersion(header), content);
+    }
+
+    private DigestContext<MetricsBased> parse(Map<String, Object> header, String hostIp, String dataVersion, String content) {
         long now = System.currentTimeMillis();
         MetricsBased metricsBased = ProtocolParserFactory.getFactory().getMetricsProtocolParser(dataVersion).parse(hostIp, dataVersion, content);
         if (metricsBased == null) {
@@ -2,10 +2,14 @@ package io.shulie.surge.data.deploy.pradar.servlet;
 
 import com.alibaba.fastjson.JSONObject;
 import com.google.common.collect.Maps;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.google.inject.name.Named;
 import com.pamirs.pradar.remoting.protocol.CommandCode;
 import io.shulie.surge.data.deploy.pradar.common.ResponseCodeEnum;
 import io.shulie.surge.data.deploy.pradar.model.ResponseDataModel;
+import io.shulie.surge.data.runtime.common.remote.DefaultValue;
+import io.shulie.surge.data.runtime.common.remote.Remote;
 import io.shulie.surge.data.runtime.disruptor.RingBufferIllegalStateException;
 import io.shulie.surge.data.runtime.processor.DataQueue;
 import org.apache.commons.io.IOUtils;
@@ -36,6 +40,14 @@ public class LogWriteServlet extends HttpServlet {
 
     protected Map<String, DataQueue> queueMap;
 
+    /**
+     * 按字节切分解析请求体，关闭后退回到字符串切分
+     */
+    @Inject
+    @DefaultValue("true")
+    @Named("/pradar/config/rt/bytesIngestEnable")
+    private Remote<Boolean> bytesIngestEnable;
+
     public Map<String, DataQueue> getQueueMap() {
         return queueMap;
     }
@@ -57,18 +69,19 @@ public class LogWriteServlet extends HttpServlet {
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         long receiveHttpTime = System.currentTimeMillis();
-        String content = null;
+        byte[] body = null;
         long uploadTime = Long.parseLong(request.getHeader("time"));
         ResponseDataModel responseDataModel = new ResponseDataModel(String.valueOf(CommandCode.SUCCESS), ResponseCodeEnum.CODE_0000.getMsg());
+        DataQueue queue = null;
         try {
             String encode = request.getHeader("Accept-Encoding");
             //如果含有gzip压缩头,使用gzip解压
             if (StringUtils.isNotBlank(encode) && encode.contains("gzip")) {
-                content = decompress(request.getInputStream());
+                body = decompress(request.getInputStream());
             } else {
-                content = IOUtils.toString(request.getInputStream(), "utf-8");
+                body = IOUtils.toByteArray(request.getInputStream());
             }
-            if (StringUtils.isNotBlank(content)) {
+            if (body.length > 0) {
                 String hostIp = request.getHeader("hostIp");
                 String dataVersion = request.getHeader("version");
                 String dataType = request.getHeader("dataType");
@@ -93,14 +106,18 @@ public class LogWriteServlet extends HttpServlet {
                         default:
                             break;
                     }
-                    DataQueue queue = queueMap.get(dataType);
+                    queue = queueMap.get(dataType);
                     Map<String, Object> header = Maps.newHashMap();
                     header.put("hostIp", hostIp);
                     header.put("dataVersion", dataVersion);
                     header.put("dataType", dateTypeByte);
                     header.put("uploadTime", uploadTime);
                     header.put("receiveHttpTime", receiveHttpTime);
-                    queue.publish(header, queue.splitLog(content, dateTypeByte));
+                    if (bytesIngestEnable.get()) {
+                        queue.publishBytes(header, body, dateTypeByte);
+                    } else {
+                        queue.publish(header, queue.splitLog(new String(body, "utf-8"), dateTypeByte));
+                    }
                 }
             } else {
                 responseDataModel.setResponseMsg("日志内容为空");
@@ -117,6 +134,14 @@ public class LogWriteServlet extends HttpServlet {
             responseDataModel.setResponseCode(String.valueOf(CommandCode.SYSTEM_ERROR));
         }
 
+        if (queue != null) {
+            //过载时被丢弃的数据也按成功返回，避免客户端重试，通过退避时间让客户端降低发送频率
+            long backoffMillis = queue.backoffMillis();
+            if (backoffMillis > 0) {
+                responseDataModel.setBackoffMillis(backoffMillis);
+                response.setHeader("Retry-After", String.valueOf((backoffMillis + 999) / 1000));
+            }
+        }
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("application/json;charset=utf-8");
         responseDataModel.setTime(System.currentTimeMillis());
@@ -139,9 +164,9 @@ public class LogWriteServlet extends HttpServlet {
 
 
     // 解压缩
-    private String decompress(InputStream in) throws IOException {
+    private byte[] decompress(InputStream in) throws IOException {
         if (in == null) {
-            return "";
+            return new byte[0];
         }
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         GZIPInputStream gunzip = new GZIPInputStream(in);
@@ -150,7 +175,6 @@ public class LogWriteServlet extends HttpServlet {
         while ((n = gunzip.read(buffer)) >= 0) {
             out.write(buffer, 0, n);
         }
-        // toString()使用平台默认编码，也可以显式的指定如toString("GBK")
-        return out.toString("utf-8");
+        return out.toByteArray();
     }
 }
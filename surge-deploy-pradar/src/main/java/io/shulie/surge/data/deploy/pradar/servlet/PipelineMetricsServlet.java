@@ -0,0 +1,54 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.servlet;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import io.shulie.surge.data.deploy.pradar.common.AppConfigUtil;
+import io.shulie.surge.data.runtime.processor.ProcessorMetrics;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 以 Prometheus 文本格式输出本进程所有处理器的队列深度、digester 延迟和耗时分布，存储落盘的积压和重放进度，
+ * 以及采样率缓存未命中的次数，由 Prometheus 直接抓取，不需要额外的采集程序
+ *
+ * @author pamirs
+ */
+@Singleton
+public class PipelineMetricsServlet extends HttpServlet {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Inject
+    private AppConfigUtil appConfigUtil;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        StringBuilder builder = new StringBuilder(4096);
+        ProcessorMetrics.writePrometheus(builder);
+        builder.append("# HELP surge_sampling_config_miss_total hot path lookups that missed the app sampling cache and fell back to the global sampling\n");
+        builder.append("# TYPE surge_sampling_config_miss_total counter\n");
+        builder.append("surge_sampling_config_miss_total ").append(appConfigUtil.getSamplingMissCount()).append('\n');
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(CONTENT_TYPE);
+        resp.getWriter().write(builder.toString());
+    }
+}
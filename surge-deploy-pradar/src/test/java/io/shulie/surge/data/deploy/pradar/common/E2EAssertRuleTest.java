@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.pradar.log.rule.RuleFactory.Rule;
+import io.shulie.pradar.log.rule.RuleFactory.Rule.RuleType;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 规则超时和异常后的暂停、恢复
+ *
+ * @author pamirs
+ */
+public class E2EAssertRuleTest {
+
+    private long cpuNanos;
+    private long millis;
+    /**
+     * 每次执行规则消耗的 CPU 时间
+     */
+    private long costNanos;
+    private boolean throwing;
+    private E2EAssertRule assertRule;
+
+    @Before
+    public void setUp() {
+        cpuNanos = 0;
+        millis = 1000000L;
+        costNanos = 0;
+        throwing = false;
+        Rule rule = new Rule("A001", "@node.cost > 100", "true", RuleType.tiny);
+        assertRule = new E2EAssertRule("A001", rule, rpcBased -> {
+            cpuNanos += costNanos;
+            if (throwing) {
+                throw new IllegalStateException("bad rule");
+            }
+            return true;
+        }, () -> cpuNanos, () -> millis);
+    }
+
+    @Test
+    public void suspendAfterConsecutiveSlowRuns() {
+        costNanos = E2EAssertRule.BUDGET_NANOS + 1;
+        for (int i = 0; i < E2EAssertRule.MAX_CONSECUTIVE_FAILURES; i++) {
+            Assert.assertFalse(assertRule.isSuspended());
+            // 超时的结果仍然有效
+            Assert.assertTrue(assertRule.evaluate(new RpcBased()));
+        }
+        Assert.assertTrue(assertRule.isSuspended());
+        Assert.assertEquals(1, assertRule.getSuspendCount());
+        Assert.assertEquals(E2EAssertRule.MAX_CONSECUTIVE_FAILURES, assertRule.getSlowCount());
+
+        // 暂停期间不执行，只计 skip
+        Assert.assertFalse(assertRule.evaluate(new RpcBased()));
+        Assert.assertFalse(assertRule.evaluate(new RpcBased()));
+        Assert.assertEquals(2, assertRule.getSkipCount());
+        Assert.assertEquals(E2EAssertRule.MAX_CONSECUTIVE_FAILURES, assertRule.getEvalCount());
+    }
+
+    @Test
+    public void resumeAfterSuspendWindow() {
+        throwing = true;
+        for (int i = 0; i < E2EAssertRule.MAX_CONSECUTIVE_FAILURES; i++) {
+            Assert.assertFalse(assertRule.evaluate(new RpcBased()));
+        }
+        Assert.assertTrue(assertRule.isSuspended());
+        Assert.assertEquals(E2EAssertRule.MAX_CONSECUTIVE_FAILURES, assertRule.getErrorCount());
+
+        throwing = false;
+        millis += E2EAssertRule.SUSPEND_MILLIS - 1;
+        Assert.assertFalse(assertRule.evaluate(new RpcBased()));
+        Assert.assertEquals(1, assertRule.getSkipCount());
+
+        millis += 1;
+        Assert.assertFalse(assertRule.isSuspended());
+        Assert.assertTrue(assertRule.evaluate(new RpcBased()));
+        Assert.assertEquals(1, assertRule.getHitCount());
+        Assert.assertEquals(1, assertRule.getSuspendCount());
+    }
+
+    @Test
+    public void successResetsFailureStreak() {
+        for (int round = 0; round < 5; round++) {
+            costNanos = E2EAssertRule.BUDGET_NANOS + 1;
+            for (int i = 1; i < E2EAssertRule.MAX_CONSECUTIVE_FAILURES; i++) {
+                assertRule.evaluate(new RpcBased());
+            }
+            costNanos = 0;
+            Assert.assertTrue(assertRule.evaluate(new RpcBased()));
+        }
+        Assert.assertFalse(assertRule.isSuspended());
+        Assert.assertEquals(0, assertRule.getSuspendCount());
+    }
+
+    /**
+     * 预算按 CPU 时间判断，挂钟时间再长也不算超时
+     */
+    @Test
+    public void wallClockStallIsNotSlow() {
+        Rule rule = new Rule("A002", "true", "true", RuleType.tiny);
+        E2EAssertRule stalled = new E2EAssertRule("A002", rule, rpcBased -> {
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(E2EAssertRule.BUDGET_NANOS) * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }, E2EAssertRule.THREAD_CPU_NANOS, System::currentTimeMillis);
+        for (int i = 0; i < E2EAssertRule.MAX_CONSECUTIVE_FAILURES; i++) {
+            Assert.assertTrue(stalled.evaluate(new RpcBased()));
+        }
+        Assert.assertEquals(0, stalled.getSlowCount());
+        Assert.assertFalse(stalled.isSuspended());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author pamirs
+ */
+public class Md5IdSetTest {
+
+    private static String randomId(Random random) {
+        return String.format("%016x%016x", random.nextLong(), random.nextLong());
+    }
+
+    private static int slot(String id, int capacity) {
+        return Md5IdSet.hash(Md5IdSet.parseHex(id, 0), Md5IdSet.parseHex(id, 16)) & (capacity - 1);
+    }
+
+    /**
+     * 找出若干个落在同一槽位的编号
+     */
+    private static List<String> collidingIds(Random random, int capacity, int target, int count) {
+        List<String> ids = new ArrayList<>();
+        while (ids.size() < count) {
+            String id = randomId(random);
+            if (slot(id, capacity) == target) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void emptySet() {
+        Random random = new Random(1);
+        Assert.assertEquals(0, Md5IdSet.EMPTY.size());
+        Assert.assertFalse(Md5IdSet.EMPTY.contains(null));
+        Assert.assertFalse(Md5IdSet.EMPTY.contains(""));
+        Assert.assertFalse(Md5IdSet.EMPTY.contains("00000000000000000000000000000000"));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertFalse(Md5IdSet.EMPTY.contains(randomId(random)));
+        }
+    }
+
+    /**
+     * 查询落在空槽上的编号直接返回不存在
+     */
+    @Test
+    public void containsOnEmptySlot() {
+        Random random = new Random(2);
+        String present = randomId(random);
+        Md5IdSet set = new Md5IdSet.Builder(1).add(present).build(false);
+        Assert.assertEquals(16, set.capacity());
+        int occupied = slot(present, set.capacity());
+        for (int i = 0; i < 200; i++) {
+            String absent = randomId(random);
+            if (slot(absent, set.capacity()) != occupied) {
+                Assert.assertFalse(set.contains(absent));
+            }
+        }
+        Assert.assertTrue(set.contains(present));
+    }
+
+    @Test
+    public void collisionsProbeLinearly() {
+        Random random = new Random(3);
+        // 11 个编号都落在槽位 15，探测需要从表尾回绕到表头
+        List<String> ids = collidingIds(random, 16, 15, 11);
+        Md5IdSet.Builder builder = new Md5IdSet.Builder(ids.size());
+        for (String id : ids) {
+            builder.add(id);
+        }
+        for (boolean direct : new boolean[]{false, true}) {
+            Md5IdSet set = builder.build(direct);
+            Assert.assertEquals(16, set.capacity());
+            Assert.assertEquals(ids.size(), set.size());
+            for (String id : ids) {
+                Assert.assertTrue(id, set.contains(id));
+            }
+            // 同一槽位但不在集合中的编号要探测到空槽才返回
+            for (String absent : collidingIds(random, 16, 15, 20)) {
+                Assert.assertFalse(absent, set.contains(absent));
+            }
+        }
+    }
+
+    @Test
+    public void builderGrowsAndKeepsLoadFactor() {
+        Random random = new Random(4);
+        Md5IdSet.Builder builder = new Md5IdSet.Builder(0);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            String id = randomId(random);
+            ids.add(id);
+            builder.add(id);
+        }
+        // 重复的编号只计一次
+        builder.add(ids.get(0)).add(ids.get(9999));
+        Md5IdSet set = builder.build(false);
+        Assert.assertEquals(10000, set.size());
+        Assert.assertTrue(set.size() <= set.capacity() * 3 / 4);
+        for (String id : ids) {
+            Assert.assertTrue(set.contains(id));
+        }
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertFalse(set.contains(randomId(random)));
+        }
+    }
+
+    @Test
+    public void zeroAndNonMd5Ids() {
+        Md5IdSet set = new Md5IdSet.Builder(4)
+                .add("00000000000000000000000000000000")
+                .add("D41D8CD98F00B204E9800998ECF8427E")
+                .add("edge-1")
+                .add(null)
+                .build(true);
+        Assert.assertEquals(3, set.size());
+        Assert.assertTrue(set.contains("00000000000000000000000000000000"));
+        Assert.assertTrue(set.contains("D41D8CD98F00B204E9800998ECF8427E"));
+        Assert.assertFalse(set.contains("d41d8cd98f00b204e9800998ecf8427e"));
+        Assert.assertTrue(set.contains("edge-1"));
+        Assert.assertFalse(set.contains("edge-2"));
+    }
+
+    @Test
+    public void recycleDirectStorage() {
+        Random random = new Random(5);
+        List<String> first = new ArrayList<>();
+        Md5IdSet.Builder builder = new Md5IdSet.Builder(100);
+        for (int i = 0; i < 100; i++) {
+            first.add(randomId(random));
+            builder.add(first.get(i));
+        }
+        Md5IdSet old = builder.build(true);
+        Assert.assertTrue(old.isDirect());
+
+        List<String> second = new ArrayList<>();
+        builder = new Md5IdSet.Builder(80);
+        for (int i = 0; i < 80; i++) {
+            second.add(randomId(random));
+            builder.add(second.get(i));
+        }
+        Md5IdSet reused = builder.build(true, old);
+        Assert.assertTrue(reused.isDirect());
+        Assert.assertEquals(old.capacity(), reused.capacity());
+        // 复用前清空，旧编号不能残留
+        for (String id : first) {
+            Assert.assertFalse(reused.contains(id));
+        }
+        for (String id : second) {
+            Assert.assertTrue(reused.contains(id));
+        }
+
+        // 容量不够时重新分配
+        builder = new Md5IdSet.Builder(1000);
+        for (int i = 0; i < 1000; i++) {
+            builder.add(randomId(random));
+        }
+        Md5IdSet grown = builder.build(true, reused);
+        Assert.assertTrue(grown.capacity() > reused.capacity());
+        Assert.assertEquals(1000, grown.size());
+
+        // 不要求堆外时不复用
+        Md5IdSet heap = new Md5IdSet.Builder(1).add(second.get(0)).build(false, grown);
+        Assert.assertFalse(heap.isDirect());
+        Assert.assertEquals(16, heap.capacity());
+    }
+}
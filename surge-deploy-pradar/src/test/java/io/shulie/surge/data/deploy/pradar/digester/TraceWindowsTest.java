@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.digester;
+
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author pamirs
+ */
+public class TraceWindowsTest {
+
+    private static final long WINDOW = 10000;
+    private static final List<String> LINK = Collections.singletonList("link-1");
+
+    private final TraceWindows windows = new TraceWindows();
+
+    private boolean add(String traceId, RpcBased span, List<String> linkIds, long now) {
+        return windows.add(traceId, span, linkIds, 500, 100, now);
+    }
+
+    @Test
+    public void expireAfterQuietWindow() {
+        RpcBased entrance = new RpcBased();
+        RpcBased child = new RpcBased();
+        Assert.assertTrue(add("t1", entrance, LINK, 0));
+        Assert.assertTrue(add("t1", child, null, 2000));
+
+        Assert.assertTrue(windows.expire(WINDOW + 1999, WINDOW).isEmpty());
+        List<TraceWindows.ExpiredTrace> expired = windows.expire(WINDOW + 2000, WINDOW);
+        Assert.assertEquals(1, expired.size());
+        TraceWindows.ExpiredTrace trace = expired.get(0);
+        Assert.assertEquals("t1", trace.traceId);
+        Assert.assertSame(entrance, trace.entrances.get(0));
+        Assert.assertEquals(LINK, trace.linkIds);
+        Assert.assertEquals(2, trace.spans.size());
+    }
+
+    /**
+     * 窗口取走后到达的日志进入后续窗口，下一轮带着原入口再分析一次
+     */
+    @Test
+    public void lateSpanGoesToNextWindow() {
+        RpcBased entrance = new RpcBased();
+        add("t1", entrance, LINK, 0);
+        Assert.assertEquals(1, windows.expire(WINDOW, WINDOW).size());
+        Assert.assertEquals(1, windows.size());
+
+        RpcBased late = new RpcBased();
+        Assert.assertTrue(add("t1", late, null, WINDOW + 100));
+        List<TraceWindows.ExpiredTrace> expired = windows.expire(WINDOW * 2 + 100, WINDOW);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertSame(entrance, expired.get(0).entrances.get(0));
+        Assert.assertEquals(1, expired.get(0).spans.size());
+        Assert.assertSame(late, expired.get(0).spans.get(0));
+
+        // 没有新日志的后续窗口直接移除
+        Assert.assertTrue(windows.expire(WINDOW * 3 + 100, WINDOW).isEmpty());
+        Assert.assertEquals(0, windows.size());
+    }
+
+    @Test
+    public void orphanTraceKeptOneWindow() {
+        for (long now = 0; now < WINDOW; now += 1000) {
+            add("t1", new RpcBased(), null, now);
+            Assert.assertTrue(windows.expire(now, WINDOW).isEmpty());
+            Assert.assertEquals(1, windows.size());
+        }
+        // 持续有日志也只保留一个窗口，且不会分析
+        Assert.assertTrue(windows.expire(WINDOW, WINDOW).isEmpty());
+        Assert.assertEquals(0, windows.size());
+    }
+
+    @Test
+    public void longTraceCappedAtMaxWindows() {
+        add("t1", new RpcBased(), LINK, 0);
+        long now = 0;
+        while (now < WINDOW * TraceWindows.MAX_WINDOWS - 1000) {
+            now += 1000;
+            add("t1", new RpcBased(), null, now);
+            Assert.assertTrue(windows.expire(now, WINDOW).isEmpty());
+        }
+        now += 1000;
+        List<TraceWindows.ExpiredTrace> expired = windows.expire(now, WINDOW);
+        Assert.assertEquals(1, expired.size());
+        Assert.assertEquals(WINDOW * TraceWindows.MAX_WINDOWS / 1000, expired.get(0).spans.size());
+        // 超过上限后不再保留后续窗口
+        Assert.assertEquals(0, windows.size());
+    }
+
+    @Test
+    public void maxTracesAdmitsOnlyEntrancesAndKnownTraces() {
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(windows.add("t" + i, new RpcBased(), null, 500, 3, 0));
+        }
+        Assert.assertFalse(windows.add("t3", new RpcBased(), null, 500, 3, 0));
+        Assert.assertFalse(windows.add("t4", new RpcBased(), null, 500, 3, 0));
+        Assert.assertTrue(windows.add("t0", new RpcBased(), null, 500, 3, 0));
+        Assert.assertTrue(windows.add("t5", new RpcBased(), LINK, 500, 3, 0));
+        Assert.assertEquals(4, windows.size());
+        Assert.assertEquals(2, windows.drainDroppedSpans());
+        Assert.assertEquals(0, windows.drainDroppedSpans());
+    }
+
+    @Test
+    public void spanLimitPerWindow() {
+        for (int i = 0; i < 10; i++) {
+            windows.add("t1", new RpcBased(), i == 0 ? LINK : null, 4, 100, 0);
+        }
+        Assert.assertEquals(4, windows.expire(WINDOW, WINDOW).get(0).spans.size());
+    }
+
+    /**
+     * 写线程和刷新线程并发时，每条日志都恰好被分析一次
+     */
+    @Test
+    public void concurrentAddAndExpireLosesNothing() throws Exception {
+        int threads = 4;
+        int perThread = 20000;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        // 写入时间为 0，刷新时间为一个窗口之后，每一轮都会把窗口取走
+                        windows.add("t" + (i % 8), new RpcBased(), LINK, Integer.MAX_VALUE, 100, 0);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        long analyzed = 0;
+        start.countDown();
+        while (done.getCount() > 0) {
+            for (TraceWindows.ExpiredTrace trace : windows.expire(WINDOW, WINDOW)) {
+                analyzed += trace.spans.size();
+            }
+        }
+        for (TraceWindows.ExpiredTrace trace : windows.expire(WINDOW, WINDOW)) {
+            analyzed += trace.spans.size();
+        }
+        Assert.assertEquals((long) threads * perThread, analyzed);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.digester.command;
+
+import com.pamirs.pradar.log.parser.ProtocolParserFactory;
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import com.sun.net.httpserver.HttpServer;
+import io.shulie.surge.data.common.utils.Bytes;
+import io.shulie.surge.data.sink.clickhouse.RowBinaryHttpInserter;
+import io.shulie.surge.data.sink.clickhouse.RowBinaryTable;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * t_trace_all 一批数据的写入对比：
+ * jdbc 路径(三个 LinkedHashMap + toObjects + 驱动的 TabSeparated 文本) 与 RowBinary 路径(toRow + gzip RowBinary)
+ * <p>
+ * 服务端是本地的 HTTP 替身，只读完请求体并返回 200，jdbc 驱动的文本格式按 ru.yandex 驱动的转义规则模拟。
+ * 每次迭代结束打印两条路径每行实际发送的字节数
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TraceInsertBenchmark {
+
+    private static final String LINE = "1.1.1.1|1624358761231|0ab2efc1624358761231100118869|0|0|1|pradar-demo|/api/user/query|GET|"
+            + "200|12|http|1|192.168.1.10|8080|0|0|{\"k\":\"v\"}|@ptl_1:1|||pt_0|default|test";
+
+    @Param({"1000"})
+    private int rows;
+
+    private HttpServer server;
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private String endpoint;
+    private ClickhouseFacade facade;
+    private RowBinaryTable table;
+    private RowBinaryHttpInserter inserter;
+    private List<RpcBased> batch;
+    private long jdbcBytes;
+    private long jdbcRows;
+    private long rowBinaryBytes;
+    private long rowBinaryRows;
+
+    @Setup
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            long count = 0;
+            byte[] buf = new byte[64 * 1024];
+            try (InputStream in = exchange.getRequestBody()) {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    count += n;
+                }
+            }
+            receivedBytes.addAndGet(count);
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().close();
+        });
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        facade = new ClickhouseFacade(new BaseCommand(), new LinkCommand(), new FlagCommand());
+        table = new RowBinaryTable("t_trace_all", facade.columns());
+        inserter = new RowBinaryHttpInserter(endpoint, "default", "", "");
+        batch = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            RpcBased rpcBased = ProtocolParserFactory.getFactory().getTraceProtocolParser("1.6")
+                    .parse("192.168.1.10", "1.6", LINE + i);
+            if (rpcBased == null) {
+                throw new IllegalStateException("sample line can not be parsed");
+            }
+            batch.add(rpcBased);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        if (jdbcRows > 0) {
+            System.out.println("jdbc text bytes/row: " + jdbcBytes / jdbcRows);
+        }
+        if (rowBinaryRows > 0) {
+            System.out.println("rowbinary gzip bytes/row: " + rowBinaryBytes / rowBinaryRows);
+        }
+    }
+
+    @Benchmark
+    public void jdbcText(Blackhole blackhole) throws IOException {
+        StringBuilder body = new StringBuilder(rows * 512);
+        for (RpcBased rpcBased : batch) {
+            Object[] values = facade.toObjects(facade.invoke(rpcBased));
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    body.append('\t');
+                }
+                appendTabSeparated(body, values[i]);
+            }
+            body.append('\n');
+        }
+        long before = receivedBytes.get();
+        post("INSERT INTO t_trace_all (" + facade.getCols() + ") FORMAT TabSeparated", body.toString().getBytes(Bytes.UTF_8));
+        jdbcBytes += receivedBytes.get() - before;
+        jdbcRows += rows;
+        blackhole.consume(body);
+    }
+
+    @Benchmark
+    public void rowBinary(Blackhole blackhole) throws IOException {
+        List<Object[]> values = new ArrayList<>(rows);
+        for (RpcBased rpcBased : batch) {
+            values.add(facade.toRow(rpcBased));
+        }
+        long before = receivedBytes.get();
+        blackhole.consume(inserter.insert(table, values));
+        rowBinaryBytes += receivedBytes.get() - before;
+        rowBinaryRows += rows;
+    }
+
+    private void post(String query, byte[] body) throws IOException {
+        URL url = new URL(endpoint + "/?query=" + URLEncoder.encode(query, "UTF-8"));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        if (connection.getResponseCode() != 200) {
+            throw new IOException("code " + connection.getResponseCode());
+        }
+        try (InputStream in = connection.getInputStream()) {
+            while (in.read() >= 0) {
+                // drain
+            }
+        }
+    }
+
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
+
+    /**
+     * 与 ru.yandex 驱动 ClickHouseValueFormatter 的转义规则一致
+     */
+    private static void appendTabSeparated(StringBuilder body, Object value) {
+        if (value == null) {
+            body.append("\\N");
+        } else if (value instanceof Boolean) {
+            body.append((Boolean) value ? '1' : '0');
+        } else if (value instanceof Date) {
+            body.append(DATE_FORMAT.get().format((Date) value));
+        } else if (value instanceof Number) {
+            body.append(value);
+        } else {
+            String text = value.toString();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '\\':
+                        body.append("\\\\");
+                        break;
+                    case '\n':
+                        body.append("\\n");
+                        break;
+                    case '\t':
+                        body.append("\\t");
+                        break;
+                    case '\'':
+                        body.append("\\'");
+                        break;
+                    default:
+                        body.append(c);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(TraceInsertBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.parser;
+
+import com.pamirs.pradar.log.parser.trace.RpcBased;
+import io.shulie.surge.data.deploy.pradar.parser.utils.Md5Utils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 边编号和节点编号生成对比：
+ * legacy 为 edgeTags + StringBuilder 拼接 + 每次新建 MessageDigest + String.format 十六进制，
+ * 当前实现为线程内复用摘要器，字段直接流式写入
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EdgeIdBenchmark {
+
+    private final DefaultRpcBasedParser parser = new DefaultRpcBasedParser();
+    private RpcBased rpcBased;
+
+    @Setup
+    public void setup() {
+        rpcBased = new RpcBased();
+        rpcBased.setAppName("pradar-demo");
+        rpcBased.setUpAppName("pradar-gateway");
+        rpcBased.setServiceName("/api/user/query/{id}");
+        rpcBased.setMethodName("GET");
+        rpcBased.setMiddlewareName("tomcat");
+        rpcBased.setRpcType(1);
+        rpcBased.setLogType(3);
+        rpcBased.setEntranceId("e3b0c44298fc1c149afbf4c8996fb924");
+        if (!legacyEdgeId().equals(parser.edgeId("", rpcBased))) {
+            throw new IllegalStateException("edge id mismatch");
+        }
+    }
+
+    @Benchmark
+    public void legacyEdge(Blackhole blackhole) {
+        blackhole.consume(legacyEdgeId());
+        blackhole.consume(parser.edgeTags("", rpcBased));
+    }
+
+    @Benchmark
+    public void streamingEdge(Blackhole blackhole) {
+        Map<String, Object> tags = parser.edgeTags("", rpcBased);
+        blackhole.consume(parser.edgeId(tags));
+        blackhole.consume(tags);
+    }
+
+    @Benchmark
+    public void streamingEdgeIdOnly(Blackhole blackhole) {
+        blackhole.consume(parser.edgeId("", rpcBased));
+    }
+
+    @Benchmark
+    public void legacyNode(Blackhole blackhole) {
+        blackhole.consume(legacyMd5(rpcBased.getAppName() + "|" + rpcBased.getServiceName() + "|" + rpcBased.getMethodName() + "|" + rpcBased.getRpcType()));
+    }
+
+    @Benchmark
+    public void streamingNode(Blackhole blackhole) {
+        blackhole.consume(Md5Utils.hasher().append(rpcBased.getAppName()).append('|').append(rpcBased.getServiceName()).append('|')
+                .append(rpcBased.getMethodName()).append('|').append(String.valueOf(rpcBased.getRpcType())).hex());
+    }
+
+    private String legacyEdgeId() {
+        Map<String, Object> map = parser.edgeTags("", rpcBased);
+        StringBuilder sb = new StringBuilder();
+        for (Object object : map.values()) {
+            sb.append(object).append('|');
+        }
+        sb.deleteCharAt(sb.length() - 1);
+        return legacyMd5(sb.toString());
+    }
+
+    private static String legacyMd5(String text) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (Exception e) {
+            return text;
+        }
+        byte[] md5Bytes = md5.digest(text.getBytes(StandardCharsets.UTF_8));
+        StringBuffer hexValue = new StringBuffer();
+        for (int i = 0; i < md5Bytes.length; i++) {
+            int val = ((int) md5Bytes[i]) & 0xff;
+            hexValue.append(String.format("%02X", val).toLowerCase(Locale.ROOT));
+        }
+        return hexValue.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(EdgeIdBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 Shulie Technology, Co.Ltd
+ * Email: shulie@shulie.io
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.shulie.surge.data.deploy.pradar.parser;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import io.shulie.surge.data.common.utils.ByteLineScanner;
+import io.shulie.surge.data.common.utils.Bytes;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 请求体切行对比：字符串切分 + 拼接后缀 与 字节扫描 + 单次解码
+ * 不包含协议解析本身，两条路径交给协议解析器的字符串完全相同
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class LineSplitBenchmark {
+
+    private static final String LINE = "1.1.1.1|1624358761231|0ab2efc1624358761231100118869|0|0|1|pradar-demo|/api/user/query|GET|"
+            + "200|12|http|1|192.168.1.10|8080|0|0|{\"k\":\"v\"}|@ptl_1:1|||pt_0|default|test";
+
+    @Param({"64", "512"})
+    private int lines;
+
+    private byte[] body;
+
+    private Map<String, Object> header;
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append(LINE).append(i).append("\r\n");
+        }
+        body = builder.toString().getBytes(Bytes.UTF_8);
+        header = Maps.newHashMap();
+        header.put("hostIp", "192.168.1.10");
+        header.put("dataVersion", "1.6");
+    }
+
+    @Benchmark
+    public void stringPath(Blackhole blackhole) {
+        String content = new String(body);
+        List<String> list = Lists.newArrayList(Splitter.on("\r\n").omitEmptyStrings().split(content));
+        String hostIp = String.valueOf(header.get("hostIp"));
+        String dataVersion = String.valueOf(header.get("dataVersion"));
+        for (String line : list) {
+            blackhole.consume(line + '|' + hostIp + '|' + dataVersion);
+        }
+    }
+
+    @Benchmark
+    public void bytesPath(Blackhole blackhole) {
+        byte[] suffix = PradarLogLines.suffix(header);
+        ByteLineScanner scanner = new ByteLineScanner(body, ByteLineScanner.CRLF);
+        while (scanner.next()) {
+            blackhole.consume(PradarLogLines.decode(body, scanner.lineOffset(), scanner.lineLength(), suffix));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(LineSplitBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}